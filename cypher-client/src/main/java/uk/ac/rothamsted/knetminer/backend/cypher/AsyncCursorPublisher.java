@@ -0,0 +1,202 @@
+package uk.ac.rothamsted.knetminer.backend.cypher;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.utils.exceptions.ExceptionUtils;
+
+/**
+ * <p>A {@link Flow.Publisher} that pulls items from an asynchronous cursor (eg, a Neo4j
+ * {@link org.neo4j.driver.async.ResultCursor}), only as long as the subscriber
+ * {@link Flow.Subscription#request(long) requests} them, ie, with back-pressure. This is used by
+ * {@link AsyncCypherClient}.</p>
+ *
+ * <p>The cursor is opened when the first item is requested, and there is never more than one fetch in flight, so that
+ * the subscriber signals are serialised, as required by the reactive streams rules. The items are emitted by the
+ * threads that complete the fetches (for Neo4j, the driver's event loop threads), so the subscribers shouldn't block
+ * in {@link Flow.Subscriber#onNext(Object)}.</p>
+ *
+ * <p>An instance can be subscribed only once, since it's bound to a single query run.</p>
+ *
+ * @param <C> the cursor type
+ * @param <T> the item type
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+class AsyncCursorPublisher<C, T> implements Flow.Publisher<T>
+{
+	private final Supplier<CompletionStage<C>> cursorOpener;
+	private final Function<C, CompletionStage<T>> nextItemFetcher;
+	private final Supplier<CompletionStage<?>> terminationAction;
+
+	private final AtomicBoolean isSubscribed = new AtomicBoolean ( false );
+
+	private final Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+
+	private class CursorSubscription implements Flow.Subscription
+	{
+		private final Flow.Subscriber<? super T> subscriber;
+
+		private final AtomicLong demand = new AtomicLong ( 0 );
+
+		/** Ensures a single fetch in flight */
+		private final AtomicBoolean isFetching = new AtomicBoolean ( false );
+
+		private final AtomicBoolean isDone = new AtomicBoolean ( false );
+
+		private volatile C cursor = null;
+
+		CursorSubscription ( Flow.Subscriber<? super T> subscriber ) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request ( long n )
+		{
+			if ( n <= 0 )
+			{
+				this.terminate ( ExceptionUtils.buildEx (
+					IllegalArgumentException.class, "Invalid no. of requested items: %d", n
+				));
+				return;
+			}
+			// Caps to Long.MAX_VALUE, which means unbounded
+			demand.getAndUpdate ( d -> d + n < 0 ? Long.MAX_VALUE : d + n );
+			this.fetch ();
+		}
+
+		@Override
+		public void cancel () {
+			this.terminate ( null, false );
+		}
+
+		/**
+		 * Fetches items as long as there is demand. Items that are already available (eg, records already in the
+		 * driver's buffer) are emitted in a loop, rather than by recursion from the completion callbacks.
+		 */
+		private void fetch ()
+		{
+			while ( !isDone.get () && demand.get () > 0 && isFetching.compareAndSet ( false, true ) )
+			{
+				CompletableFuture<?> next = cursor == null
+					? cursorOpener.get ().toCompletableFuture ()
+					: nextItemFetcher.apply ( cursor ).toCompletableFuture ();
+
+				if ( !next.isDone () )
+				{
+					next.whenComplete ( (result, ex) -> {
+						if ( this.onFetched ( result, ex ) ) this.fetch ();
+					});
+					return;
+				}
+
+				Object result = null; Throwable error = null;
+				try {
+					result = next.join ();
+				}
+				catch ( CompletionException | CancellationException ex ) {
+					error = ex;
+				}
+				if ( !this.onFetched ( result, error ) ) return;
+			}
+		}
+
+		/**
+		 * @return true if the fetching can go ahead.
+		 */
+		@SuppressWarnings ( "unchecked" )
+		private boolean onFetched ( Object result, Throwable ex )
+		{
+			if ( ex != null ) {
+				this.terminate ( ex instanceof CompletionException && ex.getCause () != null ? ex.getCause () : ex );
+				return false;
+			}
+
+			if ( cursor == null ) {
+				cursor = (C) result;
+				isFetching.set ( false );
+				return true;
+			}
+
+			// End of the items
+			if ( result == null ) {
+				this.terminate ( null );
+				return false;
+			}
+
+			demand.decrementAndGet ();
+			if ( isDone.get () ) return false; // cancelled in the meantime
+			subscriber.onNext ( (T) result );
+			isFetching.set ( false );
+			return true;
+		}
+
+		private void terminate ( Throwable ex ) {
+			this.terminate ( ex, true );
+		}
+
+		private void terminate ( Throwable ex, boolean signalSubscriber )
+		{
+			if ( !isDone.compareAndSet ( false, true ) ) return;
+
+			if ( signalSubscriber )
+			{
+				if ( ex == null ) subscriber.onComplete ();
+				else subscriber.onError ( ex );
+			}
+
+			if ( terminationAction == null ) return;
+			terminationAction.get ().whenComplete ( (r, closeEx) -> {
+				if ( closeEx != null ) log.warn ( "Error while closing an async query cursor: " + closeEx.getMessage (), closeEx );
+			});
+		}
+	}
+
+
+	/**
+	 * @param cursorOpener starts the query
+	 * @param nextItemFetcher fetches the next item from the cursor, which has to be null at the end of the items
+	 * @param terminationAction invoked on completion, error or cancellation, eg, to close the Neo4j session. It can
+	 * be null.
+	 */
+	AsyncCursorPublisher (
+		Supplier<CompletionStage<C>> cursorOpener, Function<C, CompletionStage<T>> nextItemFetcher,
+		Supplier<CompletionStage<?>> terminationAction
+	)
+	{
+		this.cursorOpener = cursorOpener;
+		this.nextItemFetcher = nextItemFetcher;
+		this.terminationAction = terminationAction;
+	}
+
+	@Override
+	public void subscribe ( Flow.Subscriber<? super T> subscriber )
+	{
+		if ( !isSubscribed.compareAndSet ( false, true ) )
+		{
+			subscriber.onSubscribe ( new Flow.Subscription ()
+			{
+				@Override public void request ( long n ) {}
+				@Override public void cancel () {}
+			});
+			subscriber.onError ( ExceptionUtils.buildEx (
+				IllegalStateException.class, "An async query publisher can be subscribed only once"
+			));
+			return;
+		}
+		subscriber.onSubscribe ( new CursorSubscription ( subscriber ) );
+	}
+}
@@ -0,0 +1,163 @@
+package uk.ac.rothamsted.knetminer.backend.cypher;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.TransactionConfig;
+import org.neo4j.driver.Value;
+import org.neo4j.driver.async.AsyncSession;
+import org.neo4j.driver.async.ResultCursor;
+
+/**
+ * <p>The non-blocking counterpart of {@link CypherClient}, based on a Neo4j {@link AsyncSession}.</p>
+ *
+ * <p>The methods here return either a {@link CompletionStage} of the whole result, or a {@link Flow.Publisher},
+ * which pulls the results with back-pressure, ie, the driver fetches records (in chunks of the session's fetch
+ * size) only as long as the subscriber requests them. In both cases, no thread is blocked while waiting for
+ * Neo4j, so many queries can be in flight from a few threads, and the conversion of the results can overlap
+ * with the network I/O.</p>
+ *
+ * <p>The paths are decoded like in {@link CypherClient#findPathIris(String, Value)} and
+ * {@link CypherClient#findPathOndexIds(String, Value, String)}, including the {@link CyPathProjection projected}
+ * queries.</p>
+ *
+ * <p>Every query runs in its own auto-commit transaction, an async session can run one query at a time,
+ * so you should get a new client per query, which is what the {@link CypherClientProvider} methods like
+ * {@link CypherClientProvider#findPathIrisAsync(String, Value, long, Duration)} do.</p>
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class AsyncCypherClient
+{
+	private final AsyncSession neoSession;
+	
+	/** The endpoint that {@link CypherClientProvider} picked for the session, null if it's not balanced */
+	private final Neo4jEndpoint endpoint;
+	private final long startTime = System.nanoTime ();
+	private final AtomicBoolean isClosed = new AtomicBoolean ( false );
+
+	/**
+	 * You're not supposed to instantiate me directly, use {@link CypherClientProvider#newAsyncClient(long)}.
+	 */
+	protected AsyncCypherClient ( AsyncSession neoSession ) {
+		this ( neoSession, null );
+	}
+
+	/**
+	 * The session comes from the endpoint, which is told about the end of the request when this client is 
+	 * {@link #close(boolean) closed}.
+	 */
+	AsyncCypherClient ( AsyncSession neoSession, Neo4jEndpoint endpoint ) 
+	{
+		this.neoSession = neoSession;
+		this.endpoint = endpoint;
+	}
+
+
+	/**
+	 * The async version of {@link CypherClient#findPathIris(String, Value)}, which collects all the paths.
+	 *
+	 * @param txTimeout if non-null, it's used as the server-side timeout of the query transaction.
+	 */
+	public CompletionStage<List<List<String>>> findPathIris ( String query, Value params, Duration txTimeout ) {
+		return queryToList ( query, params, txTimeout, CypherClient::decodePathIris );
+	}
+
+	/**
+	 * The async version of {@link CypherClient#findPathOndexIds(String, Value, String)}.
+	 */
+	public CompletionStage<List<int[]>> findPathOndexIds (
+		String query, Value params, String idProperty, Duration txTimeout
+	)
+	{
+		return queryToList ( query, params, txTimeout, rec -> CypherClient.decodePathOndexIds ( rec, idProperty ) );
+	}
+
+	/**
+	 * Like {@link #findPathIris(String, Value, Duration)}, but the paths are published as they're fetched.
+	 * The query is started when the subscriber requests the first path.
+	 */
+	public Flow.Publisher<List<String>> publishPathIris ( String query, Value params, Duration txTimeout ) {
+		return queryToPublisher ( query, params, txTimeout, CypherClient::decodePathIris, false );
+	}
+
+	/**
+	 * Like {@link #findPathOndexIds(String, Value, String, Duration)}, but the paths are published as they're fetched.
+	 */
+	public Flow.Publisher<int[]> publishPathOndexIds (
+		String query, Value params, String idProperty, Duration txTimeout
+	)
+	{
+		return queryToPublisher (
+			query, params, txTimeout, rec -> CypherClient.decodePathOndexIds ( rec, idProperty ), false
+		);
+	}
+
+
+	/**
+	 * Low-level async querying, the records are converted by the mapper, as they arrive.
+	 */
+	public <T> CompletionStage<List<T>> queryToList (
+		String query, Value params, Duration txTimeout, Function<Record, T> mapper
+	)
+	{
+		return run ( query, params, txTimeout ).thenCompose ( cursor -> cursor.listAsync ( mapper ) );
+	}
+
+	/**
+	 * Low-level reactive querying, see {@link AsyncCursorPublisher}.
+	 *
+	 * @param closeOnTermination if true, the client is {@link #close() closed} when the publisher completes, fails
+	 * or it's cancelled. This is used by {@link CypherClientProvider}.
+	 */
+	<T> Flow.Publisher<T> queryToPublisher (
+		String query, Value params, Duration txTimeout, Function<Record, T> mapper, boolean closeOnTermination
+	)
+	{
+		return new AsyncCursorPublisher<ResultCursor, T> (
+			() -> run ( query, params, txTimeout ),
+			cursor -> cursor.nextAsync ().thenApply ( rec -> rec == null ? null : mapper.apply ( rec ) ),
+			closeOnTermination ? this::close : null
+		);
+	}
+
+	private CompletionStage<ResultCursor> run ( String query, Value params, Duration txTimeout )
+	{
+		Query cyQuery = params == null ? new Query ( query ) : new Query ( query, params );
+		TransactionConfig txConfig = txTimeout == null
+			? TransactionConfig.empty ()
+			: TransactionConfig.builder ().withTimeout ( txTimeout ).build ();
+		return neoSession.runAsync ( cyQuery, txConfig );
+	}
+
+	/**
+	 * Closes the underlining session, any result not consumed yet is discarded.
+	 */
+	public CompletionStage<Void> close () {
+		return close ( false );
+	}
+	
+	/**
+	 * Closes the session and, if the client is based on a {@link Neo4jEndpoint}, ends its request there, so that the 
+	 * endpoint load and latency account for the async queries too. Only the first invocation ends the request.
+	 * 
+	 * @param isError if true, the request is counted as failed and its latency isn't used.
+	 */
+	CompletionStage<Void> close ( boolean isError )
+	{
+		CompletionStage<Void> result = neoSession.closeAsync ();
+		if ( endpoint == null || !isClosed.compareAndSet ( false, true ) ) return result;
+		
+		return result.whenComplete ( ( v, ex ) -> endpoint.onRequestEnd ( 
+			isError ? -1 : ( System.nanoTime () - startTime ) / 1E6, isError
+		));
+	}
+}
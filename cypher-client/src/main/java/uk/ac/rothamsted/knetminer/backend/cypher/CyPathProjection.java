@@ -0,0 +1,87 @@
+package uk.ac.rothamsted.knetminer.backend.cypher;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.neo4j.driver.Value;
+
+/**
+ * <p>Rewrites Cypher path queries, so that, instead of returning a whole path ({@code RETURN path}), they return
+ * a server-side projection of the path, made of the key properties of its nodes and relations only:</p>
+ *
+ * <pre>
+ *   RETURN [pathNode IN nodes(path) | pathNode.iri] AS pathNodeKeys,
+ *     [pathRel IN relationships(path) | pathRel.iri] AS pathRelKeys
+ * </pre>
+ *
+ * <p>This avoids that Neo4j sends, and the driver deserialises, all the properties of all the path entities,
+ * which can be a lot for entities like publications, while we only need one property to resolve the path. The
+ * projected records are decoded by methods like {@link CypherClient#findPathIris(String, Value)}.</p>
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class CyPathProjection
+{
+	/** The projection column for the node keys */
+	public static final String NODE_KEYS = "pathNodeKeys";
+
+	/** The projection column for the relation keys */
+	public static final String REL_KEYS = "pathRelKeys";
+
+	private static final String TRAIL_RE = "\\s*((ORDER\\s+BY|SKIP|LIMIT)\\b.*)?$";
+
+	private static final Pattern RETURN_PATH_RE = Pattern.compile ( "(?is)^(.*)\\bRETURN\\s+(\\w+)" + TRAIL_RE );
+
+	private static final Pattern RETURN_PROJECTION_RE = Pattern.compile (
+		"(?is)^(.*)\\bRETURN\\s+"
+		+ "\\[\\s*pathNode\\s+IN\\s+nodes\\s*\\(\\s*(\\w+)\\s*\\)\\s*\\|\\s*pathNode\\.\\w+\\s*\\]\\s+AS\\s+" + NODE_KEYS
+		+ "\\s*,\\s*"
+		+ "\\[\\s*pathRel\\s+IN\\s+relationships\\s*\\(\\s*\\2\\s*\\)\\s*\\|\\s*pathRel\\.\\w+\\s*\\]\\s+AS\\s+" + REL_KEYS
+		+ TRAIL_RE
+	);
+
+	private CyPathProjection () {
+	}
+
+	/**
+	 * The projection clause (without {@code RETURN}) for a path variable and a key property.
+	 */
+	public static String buildProjection ( String pathVar, String keyProperty )
+	{
+		return "[pathNode IN nodes(" + pathVar + ") | pathNode." + keyProperty + "] AS " + NODE_KEYS + ", "
+			+ "[pathRel IN relationships(" + pathVar + ") | pathRel." + keyProperty + "] AS " + REL_KEYS;
+	}
+
+	/**
+	 * Rewrites a query ending with {@code RETURN <path>} (possibly followed by {@code ORDER BY/SKIP/LIMIT}), so that
+	 * it returns the {@link #buildProjection(String, String) projection} of the path, based on the key property.
+	 * If the query already has a projection like this, but with a different key, the key is changed.
+	 *
+	 * If the query isn't recognised, it's returned unchanged.
+	 */
+	public static String projectPathQuery ( String query, String keyProperty )
+	{
+		String pathQuery = toPathQuery ( query );
+		Matcher matcher = RETURN_PATH_RE.matcher ( pathQuery );
+		if ( !matcher.matches () ) return query;
+
+		String trail = matcher.group ( 3 );
+		return matcher.group ( 1 ) + "RETURN " + buildProjection ( matcher.group ( 2 ), keyProperty )
+			+ ( trail == null ? "" : "\n" + trail );
+	}
+
+	/**
+	 * The opposite of {@link #projectPathQuery(String, String)}, turns a projected query into a query that returns
+	 * the whole path. If the query isn't recognised, it's returned unchanged.
+	 */
+	public static String toPathQuery ( String query )
+	{
+		Matcher matcher = RETURN_PROJECTION_RE.matcher ( query );
+		if ( !matcher.matches () ) return query;
+
+		String trail = matcher.group ( 3 );
+		return matcher.group ( 1 ) + "RETURN " + matcher.group ( 2 ) + ( trail == null ? "" : "\n" + trail );
+	}
+}
@@ -5,11 +5,11 @@ import static net.sourceforge.ondex.core.util.ONDEXGraphUtils.getEntityType;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.Spliterator;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -17,18 +17,22 @@ import org.neo4j.driver.Record;
 import org.neo4j.driver.Result;
 import org.neo4j.driver.Session;
 import org.neo4j.driver.Transaction;
+import org.neo4j.driver.TransactionConfig;
 import org.neo4j.driver.Value;
+import org.neo4j.driver.Values;
 import org.neo4j.driver.types.Entity;
 import org.neo4j.driver.types.Path;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.sourceforge.ondex.core.Attribute;
 import net.sourceforge.ondex.core.ONDEXConcept;
 import net.sourceforge.ondex.core.ONDEXEntity;
 import net.sourceforge.ondex.core.ONDEXGraph;
 import net.sourceforge.ondex.core.ONDEXRelation;
-import net.sourceforge.ondex.core.util.GraphMemIndex;
+import net.sourceforge.ondex.core.util.ONDEXGraphUtils;
 import uk.ac.ebi.utils.exceptions.ExceptionUtils;
+import uk.ac.rothamsted.knetminer.backend.cypher.jfr.PathConversionEvent;
 
 /**
  * <p>A facade for Cypher/Neo4j clients, allowing  for simplified transaction management and specific Knetminer functions.
@@ -42,11 +46,37 @@ import uk.ac.ebi.utils.exceptions.ExceptionUtils;
  */
 public class CypherClient implements AutoCloseable
 {
+	/**
+	 * How the paths returned by Cypher queries are converted into Ondex entities.
+	 */
+	public static enum PathResolutionMode
+	{
+		/** Via the {@code iri} property, see {@link CypherClient#findPathIris(String, Value)} */
+		IRI,
+		
+		/** 
+		 * Via the Ondex IDs stored in Neo4j, see {@link CypherClient#findPathOndexIds(String, Value, String)}. This 
+		 * requires that Neo4j and the in-memory Ondex graph are aligned.
+		 */
+		ONDEX_ID
+	}
+	
+	/** 
+	 * The default property where the Ondex IDs are stored in Neo4j, see {@link PathResolutionMode#ONDEX_ID}.
+	 */
+	public static final String DEFAULT_ONDEX_ID_PROPERTY = "ondexId";
+	
 	private Session neoSession;
 	private Transaction tx;
 	
+	/** See {@link #getEndpointName()} */
+	private String endpointName;
+	
   // Allows for some sanity check and diagnostics.
 	private AtomicInteger openTxsCount = new AtomicInteger ( 0 );
+
+	/** The transactions opened by all the clients, see {@link #getOpenTransactions()} */
+	private static final AtomicInteger ALL_OPEN_TXS_COUNT = new AtomicInteger ( 0 );
 	
 	
 	private Logger log = LoggerFactory.getLogger ( this.getClass () );
@@ -109,47 +139,63 @@ public class CypherClient implements AutoCloseable
 	}
 
 	/**
-	 * This is like {@link #findPathsFromIris(ONDEXGraph, Stream)}, but works on the IRIs of a single path, 
-	 * might be useful sometimes. @see the notes reported in the other method.
+	 * <p>This is like {@link #findPathsFromIris(ONDEXGraph, Stream)}, but works on the IRIs of a single path, 
+	 * might be useful sometimes. @see the notes reported in the other method.</p>
+	 * 
+	 * <p>This is invoked for every path returned by the graph traverser, so it's written to be as light as possible,
+	 * it uses {@link IriEntityIndex} and a plain loop, which allocates the result list only.</p>
 	 *  
 	 */
 	public static List<ONDEXEntity> findPathFromIris ( ONDEXGraph graph, List<String> pathAsIris )
 	{
-		GraphMemIndex memIdx = GraphMemIndex.getInstance ( graph );
-		int[] pathIdx = new int [] { -1 };
-		return pathAsIris.stream ()
-			.map ( iri ->
-			{ 
-				
-				Class<? extends ONDEXEntity> targetClass = ++pathIdx[ 0 ] % 2 == 0 
-					? ONDEXConcept.class
-				  : ONDEXRelation.class;
-
-				ONDEXEntity oe = memIdx.get ( "iri", iri );
-				
-				if ( oe == null ) ExceptionUtils.throwEx (
-					IllegalStateException.class, 
-					"Cannot find any Ondex %s for URI '%s', for the index %d of a path",
-					getEntityType ( targetClass ),
-					iri,
-					pathIdx[ 0 ]
-				);
-								
-				if ( !targetClass.isInstance ( oe ) ) ExceptionUtils.throwEx (
-					IllegalStateException.class, 
-					"The URI <%s> is about a %s, but %s is expected at index %d of a path",
-					iri,
-					getEntityType ( oe ),
-					getEntityType ( targetClass ),
-					pathIdx [ 0 ]
-				);
-				
-				return oe;
-				
-			}) // pathsAsIris.map()
-			.collect ( Collectors.toList () );
+		// This runs for every path, so skip the event calls when JFR isn't recording it
+		PathConversionEvent event = new PathConversionEvent ();
+		boolean isEventEnabled = event.isEnabled ();
+		if ( isEventEnabled ) event.begin ();
+		
+		IriEntityIndex iriIdx = IriEntityIndex.getInstance ( graph );
+		int pathLen = pathAsIris.size ();
+		List<ONDEXEntity> result = new ArrayList<> ( pathLen );
+		
+		for ( int pathIdx = 0; pathIdx < pathLen; pathIdx++ )
+		{
+			String iri = pathAsIris.get ( pathIdx );
+			ONDEXEntity oe = iriIdx.get ( iri );
+			
+			// Even positions are concepts, odd ones are relations
+			boolean isConceptExpected = pathIdx % 2 == 0;
+			if ( oe == null || ( isConceptExpected ? !( oe instanceof ONDEXConcept ) : !( oe instanceof ONDEXRelation ) ) )
+				throwPathEntityError ( oe, iri, isConceptExpected ? ONDEXConcept.class : ONDEXRelation.class, pathIdx );
+			
+			result.add ( oe );
+		}
+		
+		if ( isEventEnabled ) commitConversionEvent ( event, PathResolutionMode.IRI, pathLen );
+		return result;
 	}	
 	
+	private static void throwPathEntityError ( 
+		ONDEXEntity oe, String iri, Class<? extends ONDEXEntity> targetClass, int pathIdx 
+	)
+	{
+		if ( oe == null ) ExceptionUtils.throwEx (
+			IllegalStateException.class, 
+			"Cannot find any Ondex %s for URI '%s', for the index %d of a path",
+			getEntityType ( targetClass ),
+			iri,
+			pathIdx
+		);
+		
+		ExceptionUtils.throwEx (
+			IllegalStateException.class, 
+			"The URI <%s> is about a %s, but %s is expected at index %d of a path",
+			iri,
+			getEntityType ( oe ),
+			getEntityType ( targetClass ),
+			pathIdx
+		);
+	}
+	
 		
 	/**
 	 * <p>Low-level Neo4j querying.</p>
@@ -163,6 +209,10 @@ public class CypherClient implements AutoCloseable
 	 * TODO: for the moment it's not parallel, probably it's not good to stress the Neo4j connection with 
 	 * parallelism, to be verified..</p>
 	 * 
+	 * <p>Records are pulled from the server in chunks, as the stream is consumed, the chunk size being the fetch size 
+	 * of the underlining session (see {@link CypherClientProvider#newClient(boolean, long)}). This means
+	 * a consumer that stops early doesn't cause the whole result to be transferred.</p>
+	 * 
 	 */
 	protected Stream<Record> queryToStream ( String query, Value params )
 	{
@@ -185,6 +235,9 @@ public class CypherClient implements AutoCloseable
 	 * the in-memory OXL).</p>
 	 * 
 	 * <p>This is based on {@link #queryToStream(String, Value)}, see the note there about parallelism.</p>
+	 * 
+	 * <p>The query can also return the IRIs already extracted on the server side, as defined by 
+	 * {@link CyPathProjection}, which is much faster.</p>
 	 */
   public Stream<List<String>> findPathIris ( String query, Value params )
   {
@@ -193,24 +246,49 @@ public class CypherClient implements AutoCloseable
   	// Each record from the query result must return paths of Ondex nodes/relations 
   	// (MATCH p = (...) ... RETURN p). Every node/relation must have the iri property.
   	// 
-  	return qresult.map ( rec -> 
-  	{
-  		List<String> ids = new ArrayList<> (); 
-  		Path path = rec.get ( 0 ).asPath ();
-  		// Each segment is like (n1)-[r]-(n2), whatever the direction of r
-  		// So, we collect n1 + r at every iteration, then we pickup n2 from the last segment
-  		final String[] lastId = new String [] { null };
-  		Function<Entity, String> iriMapper = e -> e.get ( "iri" ).asString ();  		
-  		path.forEach ( seg -> { 
-  			ids.add ( iriMapper.apply ( seg.start () ) );
-  			ids.add ( iriMapper.apply ( seg.relationship () ) );
-  			lastId [ 0 ] = iriMapper.apply ( seg.end () );
-  		});
-  		if ( lastId [ 0 ] != null ) ids.add ( lastId [ 0 ] );
-  		return ids;
-  	});
+  	return qresult.map ( CypherClient::decodePathIris );
   }	
 	
+	/**
+	 * Decodes a record of {@link #findPathIris(String, Value)}, also used by {@link AsyncCypherClient}.
+	 */
+	static List<String> decodePathIris ( Record rec )
+	{
+		if ( rec.containsKey ( CyPathProjection.NODE_KEYS ) ) return decodeProjectedIris ( rec );
+		
+		List<String> ids = new ArrayList<> (); 
+		Path path = rec.get ( 0 ).asPath ();
+		// Each segment is like (n1)-[r]-(n2), whatever the direction of r
+		// So, we collect n1 + r at every iteration, then we pickup n2 from the last segment
+		final String[] lastId = new String [] { null };
+		Function<Entity, String> iriMapper = e -> e.get ( "iri" ).asString ();  		
+		path.forEach ( seg -> { 
+			ids.add ( iriMapper.apply ( seg.start () ) );
+			ids.add ( iriMapper.apply ( seg.relationship () ) );
+			lastId [ 0 ] = iriMapper.apply ( seg.end () );
+		});
+		if ( lastId [ 0 ] != null ) ids.add ( lastId [ 0 ] );
+		return ids;
+	}
+	
+  /**
+   * Decodes a path returned as a {@link CyPathProjection projection} of IRIs. This just reads the two lists of 
+   * nodes/relations in the record and interleaves them.
+   */
+	private static List<String> decodeProjectedIris ( Record rec )
+	{
+		Value nodes = rec.get ( CyPathProjection.NODE_KEYS ), rels = rec.get ( CyPathProjection.REL_KEYS );
+		int nrels = rels.size ();
+		List<String> result = new ArrayList<> ( 2 * nrels + 1 );
+		for ( int i = 0; i < nrels; i++ ) 
+		{
+			result.add ( nodes.get ( i ).asString () );
+			result.add ( rels.get ( i ).asString () );
+		}
+		result.add ( nodes.get ( nrels ).asString () );
+		return result;
+	}
+	
   /**
    * Wrapper without Cypher parameters.
    */
@@ -219,16 +297,164 @@ public class CypherClient implements AutoCloseable
   }
 
   
+	/**
+	 * <p>An alternative to {@link #findPathIris(String, Value)}, which extracts the Ondex numeric identifiers of the
+	 * path entities, using the {@code idProperty} property of Neo4j nodes and relations. Each path is returned as an 
+	 * array of concept and relation IDs (ie, even positions are concepts, odd positions are relations), which can be 
+	 * resolved by {@link #findPathFromOndexIds(ONDEXGraph, int[])}.</p>
+	 * 
+	 * <p>This is much more compact than the IRIs, and resolving entities doesn't need any string hashing. However, 
+	 * it requires that the Neo4j database was created from the same OXL that is loaded in memory, so that the 
+	 * IDs coincide, see {@link #checkOndexIdAlignment(ONDEXGraph, String, int)}.</p>
+	 * 
+	 * <p>As for the IRIs, the IDs can be already extracted on the server side, see {@link CyPathProjection}.</p>
+	 */
+	public Stream<int[]> findPathOndexIds ( String query, Value params, String idProperty )
+	{
+		return queryToStream ( query, params ).map ( rec -> decodePathOndexIds ( rec, idProperty ) );
+	}
+	
+	/**
+	 * Decodes a record of {@link #findPathOndexIds(String, Value, String)}, also used by {@link AsyncCypherClient}.
+	 */
+	static int[] decodePathOndexIds ( Record rec, String idProperty )
+	{
+		if ( rec.containsKey ( CyPathProjection.NODE_KEYS ) ) 
+		{
+			Value nodes = rec.get ( CyPathProjection.NODE_KEYS ), rels = rec.get ( CyPathProjection.REL_KEYS );
+			int nrels = rels.size ();
+			int[] result = new int [ 2 * nrels + 1 ];
+			for ( int i = 0; i < nrels; i++ )
+			{
+				result [ 2 * i ] = nodes.get ( i ).asInt ();
+				result [ 2 * i + 1 ] = rels.get ( i ).asInt ();
+			}
+			result [ 2 * nrels ] = nodes.get ( nrels ).asInt ();
+			return result;
+		}
+		
+		Path path = rec.get ( 0 ).asPath ();
+		int[] result = new int [ path.length () * 2 + 1 ];
+		int i = 0;
+		// Like in findPathIris(), (n1)-[r]-(n2), we take n1 and r, then the last n2 
+		for ( Path.Segment seg: path ) 
+		{
+			result [ i++ ] = seg.start ().get ( idProperty ).asInt ();
+			result [ i++ ] = seg.relationship ().get ( idProperty ).asInt ();
+		}
+		result [ i ] = path.end ().get ( idProperty ).asInt ();
+		return result;
+	}
+	
+	/**
+	 * The Ondex entities corresponding to the result of {@link #findPathOndexIds(String, Value, String)}.
+	 */
+	public static List<ONDEXEntity> findPathFromOndexIds ( ONDEXGraph graph, int[] pathAsIds )
+	{
+		// As above
+		PathConversionEvent event = new PathConversionEvent ();
+		boolean isEventEnabled = event.isEnabled ();
+		if ( isEventEnabled ) event.begin ();
+		
+		List<ONDEXEntity> result = new ArrayList<> ( pathAsIds.length );
+		for ( int pathIdx = 0; pathIdx < pathAsIds.length; pathIdx++ )
+		{
+			boolean isConceptExpected = pathIdx % 2 == 0;
+			ONDEXEntity oe = isConceptExpected 
+				? graph.getConcept ( pathAsIds [ pathIdx ] ) 
+				: graph.getRelation ( pathAsIds [ pathIdx ] );
+			
+			if ( oe == null ) ExceptionUtils.throwEx (
+				IllegalStateException.class, 
+				"Cannot find any Ondex %s for the ID %d, for the index %d of a path",
+				getEntityType ( isConceptExpected ? ONDEXConcept.class : ONDEXRelation.class ),
+				pathAsIds [ pathIdx ],
+				pathIdx
+			);
+			result.add ( oe );
+		}
+		
+		if ( isEventEnabled ) commitConversionEvent ( event, PathResolutionMode.ONDEX_ID, pathAsIds.length );
+		return result;
+	}
+	
+	private static void commitConversionEvent ( PathConversionEvent event, PathResolutionMode mode, int pathLength )
+	{
+		event.end ();
+		if ( !event.shouldCommit () ) return;
+		event.resolutionMode = mode.name ();
+		event.pathLength = pathLength;
+		event.commit ();
+	}
+	
+	/**
+	 * <p>Checks that Neo4j and the Ondex graph are aligned, ie, the nodes/relations having the {@code idProperty} 
+	 * correspond to the Ondex concepts/relations with the same ID, which is needed by 
+	 * {@link #findPathOndexIds(String, Value, String)}.</p>
+	 * 
+	 * <p>The check is done on a sample of up to {@code sampleSize} nodes and relations, by comparing their IRIs.
+	 * It returns false if there are mismatches, or no node/relation having the ID property at all, the details
+	 * are logged.</p>
+	 */
+	public boolean checkOndexIdAlignment ( ONDEXGraph graph, String idProperty, int sampleSize )
+	{
+		String idProp = "`" + idProperty + "`";
+		String query = 
+			"MATCH (n) WHERE n." + idProp + " IS NOT NULL\n"
+			+ "RETURN n.iri AS iri, n." + idProp + " AS id, true AS isConcept LIMIT $sampleSize\n"
+			+ "UNION ALL\n"
+			+ "MATCH ()-[r]->() WHERE r." + idProp + " IS NOT NULL\n"
+			+ "RETURN r.iri AS iri, r." + idProp + " AS id, false AS isConcept LIMIT $sampleSize";
+		
+		int[] counters = { 0, 0 }; // checked, mismatches
+		queryToStream ( query, Values.parameters ( "sampleSize", sampleSize ) )
+		.forEach ( rec -> 
+		{
+			counters [ 0 ]++;
+			int id = rec.get ( "id" ).asInt ();
+			boolean isConcept = rec.get ( "isConcept" ).asBoolean ();
+			String neoIri = rec.get ( "iri" ).asString ( null );
+			
+			ONDEXEntity oe = isConcept ? graph.getConcept ( id ) : graph.getRelation ( id );
+			Object odxIri = oe == null ? null : Optional.ofNullable ( ONDEXGraphUtils.getAttribute ( graph, oe, "iri" ) )
+				.map ( Attribute::getValue )
+				.orElse ( null );
+			
+			if ( neoIri != null && neoIri.equals ( odxIri ) ) return;
+			
+			if ( counters [ 1 ]++ < 10 ) log.warn ( 
+				"Neo4j/Ondex misalignment: the Neo4j {} with {} {} has the IRI <{}>, while the Ondex entity has <{}>",
+				isConcept ? "node" : "relation", idProperty, id, neoIri, odxIri
+			);
+		});
+		
+		if ( counters [ 0 ] == 0 ) {
+			log.warn ( "Neo4j/Ondex misalignment: no Neo4j node/relation has the property '{}'", idProperty );
+			return false;
+		}
+		if ( counters [ 1 ] > 0 ) {
+			log.warn ( "Neo4j/Ondex misalignment: {} mismatches over {} checked entities", counters [ 1 ], counters [ 0 ] );
+			return false;
+		}
+		log.info ( "Neo4j/Ondex alignment check passed, {} entities checked", counters [ 0 ] );
+		return true;
+	}
+
+  
   /**
    * Begins a new transaction in the session this client is based upon, using the 
-   * {@link Session#beginTransaction() corresponding Neo4j method}.
+   * {@link Session#beginTransaction(TransactionConfig) corresponding Neo4j method}.
    * 
    * Multiple transactions can be opened during a given session, 
 	 * but sequentially.
+	 * 
+	 * The txConfig parameter can be used for things like {@link TransactionConfig.Builder#withTimeout(java.time.Duration) 
+	 * server-side timeouts}, which make Neo4j terminate a transaction that runs for too long, releasing its resources.
    */
-	public synchronized void begin () 
+	public synchronized void begin ( TransactionConfig txConfig ) 
 	{
-		tx = neoSession.beginTransaction ();
+		tx = neoSession.beginTransaction ( txConfig );
+		ALL_OPEN_TXS_COUNT.incrementAndGet ();
 		
 		// There are more opened transactions than the expected degree of parallelism.
 		// This shouldn't happen, this limits are expected when using of ForkJoinPool. 
@@ -238,15 +464,36 @@ public class CypherClient implements AutoCloseable
 			);
 	}
 
+	/**
+	 * Uses {@link TransactionConfig#empty()}.
+	 */
+	public void begin () {
+		begin ( TransactionConfig.empty () );
+	}
+	
 	/**
 	 * Ends and possibly commits a transaction, using {@link Transaction#close() Neo4j method}.
 	 * The commit will happen unless {@link #fail()} was invoked.
 	 */
 	public synchronized void end ()
 	{
-		tx.close ();
-		tx = null;
-		openTxsCount.decrementAndGet ();
+		try {
+			tx.close ();
+		}
+		finally 
+		{
+			// Else, a failing close would leave the counters up forever
+			tx = null;
+			openTxsCount.decrementAndGet ();
+			ALL_OPEN_TXS_COUNT.decrementAndGet ();
+		}
+	}
+	
+	/**
+	 * The no. of transactions that are currently open, over all the clients, used for monitoring.
+	 */
+	public static int getOpenTransactions () {
+		return ALL_OPEN_TXS_COUNT.get ();
 	}
 	
 	/**
@@ -264,7 +511,19 @@ public class CypherClient implements AutoCloseable
 	 * 
 	 */
 	public synchronized boolean isOpen () {
-		return this.neoSession.isOpen ();
+		return this.neoSession != null && this.neoSession.isOpen ();
+	}
+	
+	/**
+	 * The name of the {@link Neo4jEndpoint read endpoint} this client is connected to, null if it's not known, 
+	 * eg, for write clients.
+	 */
+	public String getEndpointName () {
+		return endpointName;
+	}
+
+	void setEndpointName ( String endpointName ) {
+		this.endpointName = endpointName;
 	}
 	
 	/**
@@ -310,13 +569,36 @@ public class CypherClient implements AutoCloseable
 		return runTx ( client -> { action.accept ( client ); return null; } );
 	}
 	
+	/**
+	 * Ends the current transaction, if any, and detaches the session from this client, without closing it. 
+	 * This is used by {@link CypherClientProvider} to give the session back to its {@link SessionPool pool}.
+	 * After this, the client behaves as if it was {@link #close() closed}.
+	 * 
+	 * The session is detached even when ending the transaction fails, in which case the exception is re-thrown 
+	 * and the session shouldn't be reused.
+	 */
+	synchronized void detachSession ()
+	{
+		if ( this.neoSession == null ) return;
+		try {
+			if ( this.isTxOpen () ) this.end ();
+		}
+		finally {
+			neoSession = null;
+		}
+	}
+	
 	/**
 	 * Closes the underlining Neo4j {@link Session}.
 	 * After this, {@link #isOpen()} will always be false and the client cannot be used anymore.
+	 * 
+	 * This can be invoked multiple times, and from a thread other than the one that is using the client, in 
+	 * order to cancel an ongoing query.
 	 */
 	@Override
 	public synchronized void close ()
 	{
+		if ( this.neoSession == null ) return;
 		if ( this.isTxOpen () ) this.end ();
 		if ( this.neoSession.isOpen () ) this.neoSession.close ();
 		neoSession = null;
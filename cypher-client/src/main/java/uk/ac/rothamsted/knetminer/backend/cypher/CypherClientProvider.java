@@ -3,13 +3,30 @@ package uk.ac.rothamsted.knetminer.backend.cypher;
 import static org.neo4j.driver.AccessMode.READ;
 import static org.neo4j.driver.AccessMode.WRITE;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
+import javax.annotation.PreDestroy;
+
 import org.neo4j.driver.Driver;
+import org.neo4j.driver.Result;
 import org.neo4j.driver.Session;
 import org.neo4j.driver.SessionConfig;
+import org.neo4j.driver.TransactionConfig;
+import org.neo4j.driver.Value;
+import org.neo4j.driver.Values;
+import org.neo4j.driver.exceptions.ServiceUnavailableException;
+import org.neo4j.driver.exceptions.SessionExpiredException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
@@ -26,6 +43,20 @@ import org.springframework.stereotype.Component;
  * </ul>
  * </p>
  * 
+ * <p>Non-blocking queries are available via {@link AsyncCypherClient}, see methods like 
+ * {@link #findPathIrisAsync(String, Value, long, Duration)} and {@link #publishPathIris(String, Value, long, Duration)}.
+ * </p>
+ * 
+ * <p>If {@link #sessionPoolSize} is set, the read-only sessions used by {@link #queryToStream(Function, long, Duration)}
+ * and {@link #query(Function, boolean, boolean)} are taken from a {@link SessionPool}, so that they're reused across
+ * queries, rather than opening and closing a session for each query (eg, for each page or batch of
+ * the Cypher graph traverser).</p>
+ * 
+ * <p>If {@link #replicaDrivers} is set, the read-only queries of the methods above are balanced over multiple Neo4j 
+ * servers (eg, read replicas, or multiple copies of the same database dump), see {@link Neo4jEndpoint}. 
+ * The same happens for the async clients. The write queries and the clients from {@link #newClient(boolean, long)} 
+ * still use {@link #neoDriver}.</p>
+ * 
  *
  * @author brandizi
  * <dl><dt>Date:</dt><dd>15 Oct 2018</dd></dl>
@@ -37,21 +68,84 @@ public class CypherClientProvider
 	@Autowired @Qualifier ( "neoDriver" )
 	private Driver neoDriver;
 	
+	/** 
+	 * The max no. of pooled read sessions, 0 (the default) disables the pool, see {@link SessionPool}. 
+	 * This is a configurable parameter.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "neoSessionPoolSize" )
+	private int sessionPoolSize = 0;
+
+	/** 
+	 * Pooled sessions that were idle for longer than this are health-checked before being reused. 
+	 * This is a configurable parameter.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "neoSessionValidationIdleMs" )
+	private long sessionValidationIdleMs = 30000;
+	
+	/**
+	 * If set, the read queries are balanced over these drivers, rather than going to {@link #neoDriver}, see
+	 * {@link Neo4jEndpoint}. This is a configurable parameter.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "neoReplicaDrivers" )
+	private List<Driver> replicaDrivers = null;
+	
+	/**
+	 * An endpoint that fails with connectivity errors is excluded for this time, then it's tried again.
+	 * This is a configurable parameter.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "neoEndpointRetryMs" )
+	private long endpointRetryMs = 30000;
+	
+	private volatile List<Neo4jEndpoint> readEndpoints = null;
+	
+	/**
+	 * The transaction metadata key used by {@link #queryToStream(Function, long, Duration, String, String, String)} 
+	 * to tag the transactions, see {@link #terminateTransactions(String, String)}.
+	 */
+	static final String TX_TAG_KEY = "knetminerTxTag";
+	
+	private final Logger log = LoggerFactory.getLogger ( this.getClass () );
+	
 	CypherClientProvider () {
-		this ( null );
+		this ( (Driver) null );
 	}
 	
 	CypherClientProvider ( Driver neoDriver ) {
 		this.neoDriver = neoDriver;
 	}
 
+	/**
+	 * Balances the read queries over multiple drivers, see {@link #replicaDrivers}.
+	 */
+	CypherClientProvider ( List<Driver> replicaDrivers ) {
+		this.replicaDrivers = replicaDrivers;
+	}
+
+	
+	/**
+	 * Gets a new client, based on a new Neo4j {@link Session}. 
+	 * 
+	 * @param fetchSize if it's &gt; 0, it's used with {@link SessionConfig.Builder#withFetchSize(long)}, ie, the 
+	 * records returned by queries are pulled from the server in chunks of this size, as long as the client consumes 
+	 * them. If it's &lt;= 0, the driver's default is used.
+	 */
+	public CypherClient newClient ( boolean writeAccessMode, long fetchSize ) {
+		return new CypherClient ( neoDriver.session ( sessionConfig ( writeAccessMode, fetchSize ) ) );
+	}
 	
-	public CypherClient newClient ( boolean writeAccessMode )
+	static SessionConfig sessionConfig ( boolean writeAccessMode, long fetchSize )
 	{
-		var scfg = SessionConfig.builder ()
-			.withDefaultAccessMode ( writeAccessMode ? WRITE : READ  )
-			.build ();
-		return new CypherClient ( neoDriver.session ( scfg ) );
+		var scfgBuilder = SessionConfig.builder ()
+			.withDefaultAccessMode ( writeAccessMode ? WRITE : READ  );
+		if ( fetchSize > 0 ) scfgBuilder.withFetchSize ( fetchSize );
+		return scfgBuilder.build ();
+	}
+
+	/**
+	 * Uses the driver's default fetch size.
+	 */
+	public CypherClient newClient ( boolean writeAccessMode ) {
+		return newClient ( writeAccessMode, -1 );
 	}
 
 	/**
@@ -68,9 +162,19 @@ public class CypherClientProvider
 	 * <p>If the {@code inTransaction} parameter is set, wraps the parameter {@code action} into a new transaction. 
 	 * At the end, the created client is closed and disposed. So, this is a simplified way to run Cypher-related actions 
 	 * against the underlining Neo4j client.</p>  
+	 * 
+	 * <p>Read-only actions go to the {@link Neo4jEndpoint read endpoints} and they're retried on another endpoint
+	 * if the current one isn't reachable.</p>
 	 */
 	public <T> T query ( Function<CypherClient, T> action, boolean writeAccessMode, boolean inTransaction )
 	{
+		if ( !writeAccessMode ) return this.startOnReadEndpoint ( -1, -1, null, null, lease -> 
+		{
+			T result = inTransaction ? lease.client.runTx ( action ) : action.apply ( lease.client );
+			lease.release ( true, false );
+			return result;
+		});
+		
 		try ( CypherClient client = this.newClient ( writeAccessMode ) ) {
 			return inTransaction 
 				? client.runTx ( action ) 
@@ -99,22 +203,442 @@ public class CypherClientProvider
 	 * query transaction and session are closed)  to the resulting stream, by using {@link Stream#onClose(Runnable)}.
 	 * This means <b>you might need to close the returned stream {@link Stream#close()}</b>.</p>
 	 * 
+	 * <p>The fetchSize parameter is passed to {@link #newClient(boolean, long)}. Since the stream returned by
+	 * {@link CypherClient#queryToStream(String, Value)} is lazy, this allows for running a query only once and 
+	 * consuming many results, with the driver pulling them in chunks, only as long as the stream is consumed.</p>
+	 * 
+	 * <p>If txTimeout is non-null, it's used as a server-side timeout for the query transaction, see 
+	 * {@link CypherClient#begin(TransactionConfig)}. Closing the returned stream closes both the transaction and 
+	 * the session. The driver sessions aren't thread-safe, so this must happen in the thread that consumes the 
+	 * stream. To cancel an ongoing query from another thread, pass a non-null txTag, which is attached to the 
+	 * transaction metadata, and then use {@link #terminateTransactions(String, String)}: the consuming thread gets
+	 * an error from the stream and closes it as usual.</p>
+	 * 
+	 * <p>If the {@link SessionPool session pool} is enabled, closing the stream gives the session back to the pool, 
+	 * unless the closing happens from a thread other than the one that invoked this method, in which case the 
+	 * session state is unknown and the session is closed, as in the non-pooled mode. When all the pooled sessions are in use, 
+	 * the wait for one of them lasts txTimeout at most, after which the query fails with 
+	 * {@link com.google.common.util.concurrent.UncheckedTimeoutException}, as if it had timed out on the server.</p>
+	 * 
+	 * <p>The query goes to one of the {@link Neo4jEndpoint read endpoints}, if starting it fails because the endpoint
+	 * isn't reachable, it's restarted on another endpoint. Errors while the stream is being consumed are reported
+	 * as usual. If avoidedEndpoint is non-null, the query goes to that endpoint only if no other is available, this 
+	 * is used to hedge slow queries (ie, to send a copy of them to another endpoint, see 
+	 * {@link CypherClient#getEndpointName()}).</p>
+	 * 
+	 * <p>If pinnedEndpoint is non-null, the query goes to that endpoint, whatever its load, and it isn't restarted 
+	 * on another endpoint if this one isn't reachable. This is used for the pages of a paginated query, which must 
+	 * all come from the same server, since a query with SKIP/LIMIT over unordered results isn't guaranteed to return 
+	 * the same sequence on different servers.</p>
+	 * 
 	 */
-	public <T> Stream<T> queryToStream ( Function<CypherClient, Stream<T>> action )
+	public <T> Stream<T> queryToStream ( 
+		Function<CypherClient, Stream<T>> action, long fetchSize, Duration txTimeout, String avoidedEndpoint,
+		String pinnedEndpoint, String txTag
+	)
 	{
-		final CypherClient client = this.newClient ();
-		try {
-			client.begin ();
+		TransactionConfig.Builder txConfigBuilder = TransactionConfig.builder ();
+		if ( txTimeout != null ) txConfigBuilder.withTimeout ( txTimeout );
+		if ( txTag != null ) txConfigBuilder.withMetadata ( Map.of ( TX_TAG_KEY, txTag ) );
+		TransactionConfig txConfig = txConfigBuilder.build ();
+		
+		// A query that can't get a session in time is like a query that times out 
+		long maxPoolWaitMs = txTimeout == null ? -1 : txTimeout.toMillis ();
+		
+		return this.startOnReadEndpoint ( fetchSize, maxPoolWaitMs, avoidedEndpoint, pinnedEndpoint, lease -> 
+		{
+			lease.client.begin ( txConfig );
 			return action
-				.apply ( client )
-				.onClose ( () -> { if ( client.isOpen () ) client.close (); } );
+				.apply ( lease.client )
+				// Shouldn't happen (see above), but if it's closed by another thread, the session state is unknown
+				.onClose ( () -> lease.release ( Thread.currentThread () == lease.ownerThread, false ) );
+		});
+	}
+	
+	
+	/**
+	 * No transaction tag.
+	 */
+	public <T> Stream<T> queryToStream ( 
+		Function<CypherClient, Stream<T>> action, long fetchSize, Duration txTimeout, String avoidedEndpoint,
+		String pinnedEndpoint
+	)
+	{
+		return queryToStream ( action, fetchSize, txTimeout, avoidedEndpoint, pinnedEndpoint, null );
+	}
+	
+	/**
+	 * No pinned endpoint.
+	 */
+	public <T> Stream<T> queryToStream ( 
+		Function<CypherClient, Stream<T>> action, long fetchSize, Duration txTimeout, String avoidedEndpoint 
+	)
+	{
+		return queryToStream ( action, fetchSize, txTimeout, avoidedEndpoint, null );
+	}
+	
+	/**
+	 * No endpoint to avoid.
+	 */
+	public <T> Stream<T> queryToStream ( Function<CypherClient, Stream<T>> action, long fetchSize, Duration txTimeout ) {
+		return queryToStream ( action, fetchSize, txTimeout, null );
+	}
+	
+	/**
+	 * No transaction timeout.
+	 */
+	public <T> Stream<T> queryToStream ( Function<CypherClient, Stream<T>> action, long fetchSize ) {
+		return queryToStream ( action, fetchSize, null );
+	}
+	
+	/**
+	 * Uses the driver's default fetch size.
+	 */
+	public <T> Stream<T> queryToStream ( Function<CypherClient, Stream<T>> action ) {
+		return queryToStream ( action, -1 );
+	}
+	
+	
+	/**
+	 * <p>Gets a new {@link AsyncCypherClient}, based on a new read-only async Neo4j session.</p>
+	 * 
+	 * <p>The session is opened on the least loaded of the {@link Neo4jEndpoint read endpoints}, as for 
+	 * {@link #queryToStream(Function, long, Duration)}, and the request is ended on the endpoint when the client is
+	 * {@link AsyncCypherClient#close() closed}, so <b>the client must be closed</b>. Unlike the blocking queries, 
+	 * the async ones aren't restarted on another endpoint after connectivity errors, nor they mark the endpoint
+	 * as down.</p>
+	 * 
+	 * @param fetchSize like in {@link #newClient(boolean, long)}.
+	 */
+	@SuppressWarnings ( "deprecation" )
+	public AsyncCypherClient newAsyncClient ( long fetchSize )
+	{
+		var scfgBuilder = SessionConfig.builder ().withDefaultAccessMode ( READ );
+		if ( fetchSize > 0 ) scfgBuilder.withFetchSize ( fetchSize );
+		
+		Neo4jEndpoint endpoint = Neo4jEndpoint.select ( this.getReadEndpoints () );
+		try {
+			return new AsyncCypherClient ( endpoint.getDriver ().asyncSession ( scfgBuilder.build () ), endpoint );
 		}
 		catch ( RuntimeException ex ) {
-			if ( client.isOpen () ) client.close ();
+			endpoint.onRequestEnd ( -1, true );
 			throw ex;
 		}
 	}
 	
+	/**
+	 * <p>The async version of {@link #query(Function)}: gets a {@link #newAsyncClient(long) new async client}, runs
+	 * the action with it and closes the client when the action's result is completed, either normally or not.</p>
+	 */
+	public <T> CompletionStage<T> queryAsync ( Function<AsyncCypherClient, CompletionStage<T>> action, long fetchSize )
+	{
+		AsyncCypherClient client = this.newAsyncClient ( fetchSize );
+		CompletionStage<T> result;
+		try {
+			result = action.apply ( client );
+		}
+		catch ( RuntimeException ex ) {
+			result = CompletableFuture.failedFuture ( ex );
+		}
+		
+		// Waits for the action, closes, then passes on the action result, or its error
+		final CompletionStage<T> actionResult = result;
+		return actionResult
+			.handle ( ( r, ex ) -> ex != null )
+			.thenCompose ( isError -> client.close ( isError ).exceptionally ( ex -> null ) )
+			.thenCompose ( v -> actionResult );
+	}
+
+	/**
+	 * Uses {@link #queryAsync(Function, long)} and {@link AsyncCypherClient#findPathIris(String, Value, Duration)}.
+	 */
+	public CompletionStage<List<List<String>>> findPathIrisAsync ( 
+		String query, Value params, long fetchSize, Duration txTimeout 
+	)
+	{
+		return queryAsync ( client -> client.findPathIris ( query, params, txTimeout ), fetchSize );
+	}
+	
+	/**
+	 * Uses {@link #queryAsync(Function, long)} and 
+	 * {@link AsyncCypherClient#findPathOndexIds(String, Value, String, Duration)}.
+	 */
+	public CompletionStage<List<int[]>> findPathOndexIdsAsync ( 
+		String query, Value params, String idProperty, long fetchSize, Duration txTimeout 
+	)
+	{
+		return queryAsync ( client -> client.findPathOndexIds ( query, params, idProperty, txTimeout ), fetchSize );
+	}
+	
+	/**
+	 * <p>Publishes the paths of {@link AsyncCypherClient#publishPathIris(String, Value, Duration)} with back-pressure, 
+	 * using a new async client, which is closed when the publisher completes, fails or it's cancelled.</p>
+	 * 
+	 * <p>The fetch size is the no. of records that the driver pulls from Neo4j at once, that is, how much it can 
+	 * fetch ahead of the subscriber's requests.</p>
+	 * 
+	 * <p>The Neo4j session is closed at the end of the subscription only, so the publisher must be subscribed.</p>
+	 */
+	public Flow.Publisher<List<String>> publishPathIris ( 
+		String query, Value params, long fetchSize, Duration txTimeout 
+	)
+	{
+		return this.newAsyncClient ( fetchSize )
+			.queryToPublisher ( query, params, txTimeout, CypherClient::decodePathIris, true );
+	}
+
+	/**
+	 * Like {@link #publishPathIris(String, Value, long, Duration)}, based on 
+	 * {@link AsyncCypherClient#publishPathOndexIds(String, Value, String, Duration)}.
+	 */
+	public Flow.Publisher<int[]> publishPathOndexIds ( 
+		String query, Value params, String idProperty, long fetchSize, Duration txTimeout 
+	)
+	{
+		return this.newAsyncClient ( fetchSize ).queryToPublisher ( 
+			query, params, txTimeout, rec -> CypherClient.decodePathOndexIds ( rec, idProperty ), true 
+		);
+	}
+	
+	
+	/**
+	 * A read session taken from a {@link Neo4jEndpoint}, together with the client based on it.
+	 */
+	private final class ReadLease
+	{
+		private final Neo4jEndpoint endpoint;
+		private final long fetchSize;
+		private final Session session;
+		private final CypherClient client;
+		private final Thread ownerThread = Thread.currentThread ();
+		private final long startTime = System.nanoTime ();
+		private boolean isReleased = false;
+		
+		ReadLease ( Neo4jEndpoint endpoint, long fetchSize, long maxPoolWaitMs )
+		{
+			this.endpoint = endpoint;
+			this.fetchSize = fetchSize;
+			try {
+				this.session = endpoint.openSession ( fetchSize, maxPoolWaitMs );
+			}
+			catch ( RuntimeException ex ) {
+				endpoint.onRequestEnd ( -1, true );
+				throw ex;
+			}
+			this.client = new CypherClient ( session );
+			this.client.setEndpointName ( endpoint.getName () );
+		}
+
+		/**
+		 * Ends the client transaction and gives the session back to the endpoint. This can be invoked multiple times, 
+		 * only the first one has effect.
+		 * 
+		 * @param isReusable false if the session state is unknown, eg, after errors or cancellations.
+		 */
+		void release ( boolean isReusable, boolean isError )
+		{
+			synchronized ( this ) 
+			{
+				if ( isReleased ) return;
+				isReleased = true;
+			}
+			try {
+				client.detachSession ();
+			}
+			catch ( RuntimeException ex ) 
+			{
+				log.debug ( "Error while ending the transaction of a Neo4j session: {}", ex.getMessage () );
+				isReusable = false;
+			}
+			endpoint.releaseSession ( session, fetchSize, isReusable );
+			endpoint.onRequestEnd ( isError ? -1 : ( System.nanoTime () - startTime ) / 1E6, isError );
+		}
+	}
+	
+	/**
+	 * Starts a read action on the least loaded endpoint (see {@link Neo4jEndpoint#select(List, String, String)}). If 
+	 * the action fails for connectivity errors, the endpoint is marked down and the action is restarted on another one, 
+	 * unless it's pinned to the endpoint. The action is responsible for releasing the lease, when it doesn't fail. 
+	 * 
+	 * @param maxPoolWaitMs how long to wait for a pooled session at most, see {@link SessionPool#borrow(long, long)}. 
+	 */
+	private <R> R startOnReadEndpoint ( 
+		long fetchSize, long maxPoolWaitMs, String avoidedEndpoint, String pinnedEndpoint, Function<ReadLease, R> action 
+	)
+	{
+		List<Neo4jEndpoint> endpoints = this.getReadEndpoints ();
+		for ( int attempt = 1; ; attempt++ )
+		{
+			ReadLease lease = new ReadLease ( 
+				Neo4jEndpoint.select ( endpoints, avoidedEndpoint, pinnedEndpoint ), fetchSize, maxPoolWaitMs 
+			);
+			try 
+			{
+				R result = action.apply ( lease );
+				lease.endpoint.markUp ();
+				return result;
+			}
+			catch ( ServiceUnavailableException | SessionExpiredException ex ) 
+			{
+				lease.release ( false, true );
+				if ( endpoints.size () == 1 ) throw ex;
+				
+				lease.endpoint.markDown ( endpointRetryMs );
+				if ( pinnedEndpoint != null || attempt >= endpoints.size () ) throw ex;
+				log.warn ( 
+					"Error with the Neo4j endpoint {}: \"{}\", trying another endpoint", 
+					lease.endpoint.getName (), ex.getMessage () 
+				);
+			}
+			catch ( RuntimeException ex ) {
+				lease.release ( false, true );
+				throw ex;
+			}
+		}
+	}
+	
+	/**
+	 * <p>Terminates the transactions that were started by {@link #queryToStream(Function, long, Duration, String, String, String)}
+	 * with the given tag, on the given endpoint (see {@link CypherClient#getEndpointName()}). This uses 
+	 * {@code SHOW TRANSACTIONS} and {@code TERMINATE TRANSACTIONS}, ie, it requires Neo4j &gt;= 4.4.</p>
+	 * 
+	 * <p>This is the way to cancel a query from a thread other than the one that is consuming its results: the 
+	 * query is stopped on the server, the consuming thread receives an error and releases its session. This
+	 * involves a round trip to the server, so don't call it from time-critical threads.</p> 
+	 * 
+	 * <p>Errors are logged and not propagated, since the transaction might be already over, or the server 
+	 * might not support the termination, in which case the transaction timeout is the only way to stop the 
+	 * query.</p>
+	 * 
+	 * @return the no. of terminated transactions, 0 if none matched the tag.
+	 */
+	public int terminateTransactions ( String endpointName, String txTag )
+	{
+		Neo4jEndpoint endpoint = this.getReadEndpoints ()
+			.stream ()
+			.filter ( e -> e.getName ().equals ( endpointName ) )
+			.findFirst ()
+			.orElseThrow ( () -> new IllegalArgumentException ( 
+				"Can't terminate transactions on the unknown Neo4j endpoint \"" + endpointName + "\"" 
+			));
+		
+		// A new session, not a pooled one, since the pool might be exhausted by the queries we want to stop
+		try ( Session session = endpoint.getDriver ().session ( sessionConfig ( false, -1 ) ) )
+		{
+			Result txRecords = session.run ( 
+				"SHOW TRANSACTIONS YIELD transactionId, metaData\n" 
+				+ "WHERE metaData." + TX_TAG_KEY + " = $txTag\n"
+				+ "RETURN transactionId", 
+				Values.parameters ( "txTag", txTag ) 
+			);
+			List<String> txIds = new ArrayList<> ();
+			while ( txRecords.hasNext () ) 
+				txIds.add ( txRecords.next ().get ( "transactionId" ).asString () );
+			
+			if ( txIds.isEmpty () ) return 0;
+			
+			session.run ( "TERMINATE TRANSACTIONS $txIds", Values.parameters ( "txIds", txIds ) ).consume ();
+			log.debug ( "Terminated {} Neo4j transaction(s) tagged '{}' on the endpoint '{}'", txIds.size (), txTag, endpointName );
+			return txIds.size ();
+		}
+		catch ( RuntimeException ex ) 
+		{
+			log.warn ( 
+				"Can't terminate the Neo4j transactions tagged '{}' on the endpoint '{}', they'll run until their "
+				+ "timeout. Error: {}", txTag, endpointName, ex.getMessage ()
+			);
+			return 0;
+		}
+	}
+	
+	/**
+	 * The endpoints for the read queries, created upon the first use. These are based on {@link #replicaDrivers},
+	 * or there is a single endpoint for {@link #neoDriver}.
+	 */
+	private List<Neo4jEndpoint> getReadEndpoints ()
+	{
+		if ( this.readEndpoints != null ) return this.readEndpoints;
+		
+		synchronized ( this )
+		{
+			if ( this.readEndpoints != null ) return this.readEndpoints;
+			
+			List<Driver> drivers = replicaDrivers == null || replicaDrivers.isEmpty () 
+				? List.of ( neoDriver ) 
+				: replicaDrivers;
+			
+			List<Neo4jEndpoint> endpoints = new ArrayList<> ( drivers.size () );
+			for ( int i = 0; i < drivers.size (); i++ )
+			{
+				Driver driver = drivers.get ( i );
+				SessionPool<Session> pool = sessionPoolSize <= 0 ? null : new SessionPool<> ( 
+					sessionPoolSize, 
+					sessionValidationIdleMs,
+					fetchSize -> driver.session ( sessionConfig ( false, fetchSize ) ), 
+					session -> { session.run ( "RETURN 1" ).consume (); return session.isOpen (); } 
+				);
+				endpoints.add ( new Neo4jEndpoint ( drivers.size () == 1 ? "default" : "replica-" + i, driver, pool ) );
+			}
+			if ( endpoints.size () > 1 ) log.info ( "Balancing the Neo4j read queries over {} endpoints", endpoints.size () );
+			
+			return this.readEndpoints = endpoints;
+		}
+	}
+	
+	/**
+	 * The no. of endpoints the read queries are balanced over, see {@link #replicaDrivers}.
+	 */
+	public int getReadEndpointsCount () {
+		return this.getReadEndpoints ().size ();
+	}
+	
+	/**
+	 * The no. of Neo4j sessions kept by the {@link SessionPool session pools}, either idle or in use. This is 0 if 
+	 * the pool is disabled. Useful for diagnostics.
+	 */
+	public int getOpenSessions ()
+	{
+		int result = 0;
+		for ( Neo4jEndpoint endpoint: this.getReadEndpoints () )
+			if ( endpoint.getSessionPool () != null ) result += endpoint.getSessionPool ().getOpenSessions ();
+		return result;
+	}
+	
+	/**
+	 * The no. of idle sessions in the {@link SessionPool session pools}.
+	 */
+	public int getIdleSessions ()
+	{
+		int result = 0;
+		for ( Neo4jEndpoint endpoint: this.getReadEndpoints () )
+			if ( endpoint.getSessionPool () != null ) result += endpoint.getSessionPool ().getIdleSessions ();
+		return result;
+	}
+	
+	/**
+	 * Logs the stats about the read endpoints (requests, latency, etc), if there are multiple endpoints, and 
+	 * the session pools, if enabled.
+	 */
+	public void logStats ()
+	{
+		List<Neo4jEndpoint> endpoints = this.readEndpoints;
+		if ( endpoints == null ) return;
+		
+		if ( endpoints.size () > 1 ) 
+			endpoints.forEach ( Neo4jEndpoint::logStats );
+		else if ( endpoints.get ( 0 ).getSessionPool () != null )
+			endpoints.get ( 0 ).getSessionPool ().logStats ();
+	}
+	
+	@PreDestroy
+	void close ()
+	{
+		List<Neo4jEndpoint> endpoints = this.readEndpoints;
+		if ( endpoints == null ) return;
+		for ( Neo4jEndpoint endpoint: endpoints )
+			if ( endpoint.getSessionPool () != null ) endpoint.getSessionPool ().close ();
+	}
+	
 	
 	/**
 	 * A wrapper of {@link #query(Function, boolean, boolean)} to be used for actions that don't need to 
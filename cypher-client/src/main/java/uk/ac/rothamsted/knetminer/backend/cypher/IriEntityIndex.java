@@ -0,0 +1,150 @@
+package uk.ac.rothamsted.knetminer.backend.cypher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import net.sourceforge.ondex.core.Attribute;
+import net.sourceforge.ondex.core.AttributeName;
+import net.sourceforge.ondex.core.ONDEXEntity;
+import net.sourceforge.ondex.core.ONDEXGraph;
+import net.sourceforge.ondex.core.util.GraphMemIndex;
+
+/**
+ * <p>A compact index of the 'iri' attribute of the concepts and relations in an {@link ONDEXGraph}, which is used
+ * by {@link CypherClient#findPathFromIris(ONDEXGraph, java.util.List)} to convert the IRIs returned by the Cypher
+ * queries into Ondex entities.</p>
+ *
+ * <p>This is much lighter than {@link GraphMemIndex} on the hot path of the graph traverser, since it's based
+ * on an open-addressing hash table made of plain arrays (no boxing, no entry objects, no per-lookup allocation).
+ * An instance is built once per graph (see {@link #getInstance(ONDEXGraph)}) and it's immutable after that, so it's
+ * safe for concurrent reads without any synchronisation.</p>
+ *
+ * <p>Since the index is a snapshot, entities that are added to the graph after its creation are not
+ * in it, use {@link #invalidate(ONDEXGraph)} to rebuild the index for a graph that changes. An IRI that isn't in
+ * the index isn't looked up elsewhere, since this is routine when the Neo4j database and the OXL drift apart, and
+ * a fallback to {@link GraphMemIndex} would build the whole index that this class replaces.</p>
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class IriEntityIndex
+{
+	private static final LoadingCache<ONDEXGraph, IriEntityIndex> INSTANCES = CacheBuilder
+		.newBuilder ()
+		.weakKeys ()
+		.build ( CacheLoader.from ( IriEntityIndex::new ) );
+
+	/** The table, the slot of an IRI is the same in the three arrays */
+	private final String[] iris;
+	private final int[] hashes;
+	private final ONDEXEntity[] entities;
+
+	/** The table size minus 1, sizes are powers of 2 */
+	private final int mask;
+	private final int size;
+
+	private static final Logger log = LoggerFactory.getLogger ( IriEntityIndex.class );
+
+
+	private IriEntityIndex ( ONDEXGraph graph )
+	{
+		AttributeName iriAttr = graph.getMetaData ().getAttributeName ( "iri" );
+		int nentities = iriAttr == null ? 0 : graph.getConcepts ().size () + graph.getRelations ().size ();
+
+		// Load factor <= 0.5, keeps the linear probing short
+		int capacity = Integer.highestOneBit ( Math.max ( 2, nentities ) * 2 - 1 ) << 1;
+		this.iris = new String [ capacity ];
+		this.hashes = new int [ capacity ];
+		this.entities = new ONDEXEntity [ capacity ];
+		this.mask = capacity - 1;
+
+		if ( iriAttr == null ) {
+			log.warn ( "The graph has no 'iri' attribute, the IRI index will be empty" );
+			this.size = 0;
+			return;
+		}
+
+		int[] counters = { 0, 0 }; // size, duplicates
+		graph.getConcepts ().forEach ( concept -> this.add ( concept, iriAttr, counters ) );
+		graph.getRelations ().forEach ( rel -> this.add ( rel, iriAttr, counters ) );
+		this.size = counters [ 0 ];
+
+		if ( counters [ 1 ] > 0 ) log.warn (
+			"The IRI index found {} duplicated IRIs in the graph, only the first entity is kept for them", counters [ 1 ]
+		);
+		log.debug ( "IRI index created, {} IRIs indexed", this.size );
+	}
+
+	private void add ( ONDEXEntity entity, AttributeName iriAttr, int[] counters )
+	{
+		Attribute attr = entity.getAttribute ( iriAttr );
+		if ( attr == null ) return;
+		String iri = (String) attr.getValue ();
+		if ( iri == null ) return;
+
+		int hash = hash ( iri );
+		int slot = hash & mask;
+		for ( ; this.iris [ slot ] != null; slot = ( slot + 1 ) & mask )
+		{
+			if ( this.hashes [ slot ] == hash && this.iris [ slot ].equals ( iri ) ) {
+				counters [ 1 ]++;
+				return;
+			}
+		}
+		this.iris [ slot ] = iri;
+		this.hashes [ slot ] = hash;
+		this.entities [ slot ] = entity;
+		counters [ 0 ]++;
+	}
+
+
+	/**
+	 * Gets the index for a graph, creating it the first time. Instances are cached with weak references to their
+	 * graphs, so they don't prevent a graph to be garbage-collected.
+	 */
+	public static IriEntityIndex getInstance ( ONDEXGraph graph ) {
+		return INSTANCES.getUnchecked ( graph );
+	}
+
+	/**
+	 * Forces the re-creation of the graph index, at the next {@link #getInstance(ONDEXGraph)}. Use it if you change
+	 * the graph after having used it with the Cypher traverser.
+	 */
+	public static void invalidate ( ONDEXGraph graph ) {
+		INSTANCES.invalidate ( graph );
+	}
+
+
+	/**
+	 * The entity having the IRI, or null if there isn't any in the index.
+	 */
+	public ONDEXEntity get ( String iri )
+	{
+		int hash = hash ( iri );
+		for ( int slot = hash & mask; this.iris [ slot ] != null; slot = ( slot + 1 ) & mask )
+			if ( this.hashes [ slot ] == hash && this.iris [ slot ].equals ( iri ) ) return this.entities [ slot ];
+		return null;
+	}
+
+	/**
+	 * The number of IRIs in the index.
+	 */
+	public int size () {
+		return size;
+	}
+
+	/**
+	 * Mixes the string hash bits, since IRIs tend to share long prefixes and their hash codes end up being poorly
+	 * spread on the lower bits.
+	 */
+	private static int hash ( String iri )
+	{
+		int h = iri.hashCode () * 0x9E3779B9;
+		return h ^ ( h >>> 16 );
+	}
+}
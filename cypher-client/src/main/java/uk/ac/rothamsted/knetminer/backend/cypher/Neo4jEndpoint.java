@@ -0,0 +1,239 @@
+package uk.ac.rothamsted.knetminer.backend.cypher;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.utils.exceptions.ExceptionUtils;
+
+/**
+ * <p>A Neo4j server that {@link CypherClientProvider} can send read queries to, together with its load and
+ * health state, which are used to {@link #select(List) balance} the queries over multiple servers
+ * (eg, read replicas, or copies of the same database dump).</p>
+ *
+ * <p>The queries go to the endpoint with the least outstanding requests, the ties being broken by the
+ * average latency. An endpoint that fails with connectivity errors is {@link #markDown(long) excluded} for a while,
+ * after which it gets queries again, and it's excluded again if they fail.</p>
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+class Neo4jEndpoint
+{
+	/** The weight of new samples in the latency average */
+	private static final double LATENCY_WEIGHT = 0.1;
+
+	private final String name;
+	private final Driver driver;
+
+	/** Sessions of this endpoint, null if pooling is disabled */
+	private final SessionPool<Session> sessionPool;
+
+	private final AtomicInteger outstanding = new AtomicInteger ( 0 );
+	private final AtomicLong requests = new AtomicLong (), errors = new AtomicLong ();
+
+	/** In ms, -1 means no sample yet */
+	private volatile double avgLatency = -1;
+
+	/** The time (ms from epoch) until which this endpoint is excluded, 0 if it's healthy */
+	private volatile long downUntil = 0;
+
+	private final Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+
+	Neo4jEndpoint ( String name, Driver driver, SessionPool<Session> sessionPool )
+	{
+		this.name = name;
+		this.driver = driver;
+		this.sessionPool = sessionPool;
+	}
+
+
+	/**
+	 * Gets a read session, from the {@link SessionPool pool}, if it's enabled.
+	 * 
+	 * @param maxPoolWaitMs how long to wait for a pooled session at most, see {@link SessionPool#borrow(long, long)}.
+	 */
+	Session openSession ( long fetchSize, long maxPoolWaitMs )
+	{
+		return sessionPool == null 
+			? driver.session ( CypherClientProvider.sessionConfig ( false, fetchSize ) ) 
+			: sessionPool.borrow ( fetchSize, maxPoolWaitMs );
+	}
+	
+	/**
+	 * Gives a session from {@link #openSession(long, long)} back to the pool, or closes it, if the pool is disabled or
+	 * the session isn't reusable.
+	 */
+	void releaseSession ( Session session, long fetchSize, boolean isReusable )
+	{
+		if ( sessionPool != null ) {
+			sessionPool.release ( session, fetchSize, !( isReusable && session.isOpen () ) );
+			return;
+		}
+		if ( session.isOpen () ) session.close ();
+	}
+	
+	
+	/**
+	 * Selects the endpoint for a new request and {@link #onRequestStart() starts} the request. If all the endpoints
+	 * are down, selects the one that is due to be retried first.
+	 * 
+	 * @param avoidedEndpoint if non-null, the name of an endpoint to be used only if no other endpoint is healthy, 
+	 * eg, the one that is already running a request that we're hedging.
+	 * @param pinnedEndpoint if non-null, the name of the endpoint to be used, no matter its load or health, eg, the 
+	 * one that served the previous pages of a paginated query.
+	 */
+	static Neo4jEndpoint select ( List<Neo4jEndpoint> endpoints, String avoidedEndpoint, String pinnedEndpoint )
+	{
+		Neo4jEndpoint result = null;
+		if ( pinnedEndpoint != null )
+		{
+			for ( Neo4jEndpoint endpoint: endpoints )
+				if ( endpoint.name.equals ( pinnedEndpoint ) ) result = endpoint;
+			if ( result == null ) ExceptionUtils.throwEx ( 
+				IllegalArgumentException.class, "There is no Neo4j endpoint named '%s'", pinnedEndpoint 
+			);
+		}
+		else if ( endpoints.size () == 1 ) result = endpoints.get ( 0 );
+		else
+		{
+			long now = System.currentTimeMillis ();
+			Neo4jEndpoint firstRetry = null, avoided = null;
+			for ( Neo4jEndpoint endpoint: endpoints )
+			{
+				if ( !endpoint.isHealthy ( now ) )
+				{
+					if ( firstRetry == null || endpoint.downUntil < firstRetry.downUntil ) firstRetry = endpoint;
+					continue;
+				}
+				if ( endpoint.name.equals ( avoidedEndpoint ) ) {
+					avoided = endpoint;
+					continue;
+				}
+				if ( result == null || endpoint.compareLoad ( result ) < 0 ) result = endpoint;
+			}
+			if ( result == null ) result = avoided != null ? avoided : firstRetry;
+		}
+
+		result.onRequestStart ();
+		return result;
+	}
+
+	/**
+	 * No pinned endpoint.
+	 */
+	static Neo4jEndpoint select ( List<Neo4jEndpoint> endpoints, String avoidedEndpoint ) {
+		return select ( endpoints, avoidedEndpoint, null );
+	}
+
+	/**
+	 * No endpoint to avoid.
+	 */
+	static Neo4jEndpoint select ( List<Neo4jEndpoint> endpoints ) {
+		return select ( endpoints, null );
+	}
+
+	/**
+	 * &lt; 0 if this endpoint is less loaded than the other.
+	 */
+	private int compareLoad ( Neo4jEndpoint other )
+	{
+		int cmp = Integer.compare ( this.outstanding.get (), other.outstanding.get () );
+		if ( cmp != 0 ) return cmp;
+		// No samples yet, let's try it
+		return Double.compare ( this.avgLatency, other.avgLatency );
+	}
+
+
+	void onRequestStart ()
+	{
+		outstanding.incrementAndGet ();
+		requests.incrementAndGet ();
+	}
+
+	/**
+	 * @param latencyMs the request duration, or -1 if it's not available (eg, for failed requests)
+	 */
+	void onRequestEnd ( double latencyMs, boolean isError )
+	{
+		outstanding.decrementAndGet ();
+		if ( isError ) errors.incrementAndGet ();
+		if ( latencyMs < 0 ) return;
+
+		// Races might lose a sample, which is fine for an average
+		double avg = this.avgLatency;
+		this.avgLatency = avg < 0 ? latencyMs : ( 1 - LATENCY_WEIGHT ) * avg + LATENCY_WEIGHT * latencyMs;
+	}
+
+	/**
+	 * Excludes the endpoint from the selection for a time, used after connectivity errors.
+	 */
+	void markDown ( long retryMs )
+	{
+		if ( this.downUntil == 0 )
+			log.warn ( "The Neo4j endpoint {} seems down, excluding it for {} ms", name, retryMs );
+		this.downUntil = System.currentTimeMillis () + retryMs;
+	}
+
+	/**
+	 * Used after a successful request, to make an endpoint healthy again.
+	 */
+	void markUp ()
+	{
+		if ( this.downUntil == 0 ) return;
+		this.downUntil = 0;
+		log.info ( "The Neo4j endpoint {} is up again", name );
+	}
+
+	boolean isHealthy ( long now ) {
+		return downUntil == 0 || now >= downUntil;
+	}
+
+	String getName () {
+		return name;
+	}
+
+	Driver getDriver () {
+		return driver;
+	}
+
+	SessionPool<Session> getSessionPool () {
+		return sessionPool;
+	}
+
+	int getOutstandingRequests () {
+		return outstanding.get ();
+	}
+
+	/**
+	 * The average request latency, in ms, -1 if there are no samples yet.
+	 */
+	double getAvgLatency () {
+		return avgLatency;
+	}
+
+	long getRequests () {
+		return requests.get ();
+	}
+
+	long getErrors () {
+		return errors.get ();
+	}
+
+	void logStats ()
+	{
+		log.info (
+			"Neo4j endpoint {}, requests: {}, errors: {}, outstanding: {}, avg latency: {} ms{}",
+			name, requests.get (), errors.get (), outstanding.get (), String.format ( "%.1f", avgLatency ),
+			isHealthy ( System.currentTimeMillis () ) ? "" : ", DOWN"
+		);
+		if ( sessionPool != null ) sessionPool.logStats ();
+	}
+}
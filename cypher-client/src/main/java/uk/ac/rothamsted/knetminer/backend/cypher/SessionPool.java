@@ -0,0 +1,267 @@
+package uk.ac.rothamsted.knetminer.backend.cypher;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.UncheckedTimeoutException;
+
+import uk.ac.ebi.utils.exceptions.ExceptionUtils;
+
+/**
+ * <p>A bounded pool of Neo4j sessions, used by {@link CypherClientProvider} to reuse read sessions across queries,
+ * rather than opening a new session for every query page or batch.</p>
+ *
+ * <p>Sessions are kept per fetch size, since this is a session-level setting in the Neo4j driver. Idle sessions are
+ * reused LIFO, so that the sessions that were used recently are reused first. A session that stayed idle for more
+ * than {@link #validationIdleMs} is health-checked before being reused. A session returned as broken (eg, after a
+ * query error, or a cancellation) is closed and replaced by a new one when needed.</p>
+ *
+ * <p>No more than {@link #maxSize} sessions can be borrowed at the same time, further borrowers wait for a session
+ * to be released, possibly within a time limit, see {@link #borrow(long, long)}.</p>
+ *
+ * @param <S> the session type, this is generic mainly for testing purposes.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+class SessionPool<S extends AutoCloseable>
+{
+	private final int maxSize;
+	private final long validationIdleMs;
+	private final LongFunction<S> sessionFactory;
+	private final Predicate<S> healthCheck;
+
+	private final Semaphore permits;
+
+	/** fetch size -> idle sessions */
+	private final Map<Long, Deque<IdleSession<S>>> idleSessions = new HashMap<> ();
+	private int nidle = 0, nopen = 0;
+
+	private final AtomicLong created = new AtomicLong (), recycled = new AtomicLong (), reused = new AtomicLong ();
+
+	private final Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+
+	private static final class IdleSession<S>
+	{
+		private final S session;
+		private final long fetchSize;
+		private final long idleSince = System.currentTimeMillis ();
+
+		IdleSession ( S session, long fetchSize )
+		{
+			this.session = session;
+			this.fetchSize = fetchSize;
+		}
+	}
+
+	/**
+	 * @param maxSize the max no. of sessions that can be borrowed at the same time, which is also the max no. of idle
+	 * sessions kept in the pool.
+	 * @param validationIdleMs sessions idle for longer than this are checked by healthCheck before being reused.
+	 * @param sessionFactory creates a new session with the fetch size it receives.
+	 * @param healthCheck returns true if the session can still be used.
+	 */
+	SessionPool ( int maxSize, long validationIdleMs, LongFunction<S> sessionFactory, Predicate<S> healthCheck )
+	{
+		this.maxSize = maxSize;
+		this.validationIdleMs = validationIdleMs;
+		this.sessionFactory = sessionFactory;
+		this.healthCheck = healthCheck;
+		this.permits = new Semaphore ( maxSize, true );
+	}
+
+
+	/**
+	 * <p>Gets an idle session with the fetch size, or a new one, waiting if {@link #maxSize} sessions are already
+	 * borrowed. The session must be {@link #release(AutoCloseable, long, boolean) released} when done.</p>
+	 * 
+	 * <p>If maxWaitMs isn't -1, the wait for a session lasts that time at most, after which 
+	 * {@link UncheckedTimeoutException} is thrown, so that a query that is waiting for a session is treated like one 
+	 * that timed out while running. Either way, the wait is stopped by the thread interruption, which makes this
+	 * method throw {@link IllegalStateException}, keeping the thread interrupted.</p>
+	 */
+	S borrow ( long fetchSize, long maxWaitMs )
+	{
+		this.acquirePermit ( maxWaitMs );
+		try
+		{
+			IdleSession<S> idle;
+			while ( ( idle = this.pollIdle ( fetchSize ) ) != null )
+			{
+				if ( System.currentTimeMillis () - idle.idleSince <= validationIdleMs || this.isHealthy ( idle.session ) )
+				{
+					reused.incrementAndGet ();
+					return idle.session;
+				}
+				log.debug ( "Neo4j session pool, recycling an idle session that failed the health check" );
+				this.closeSession ( idle.session, true );
+			}
+
+			S result = sessionFactory.apply ( fetchSize );
+			synchronized ( this ) { nopen++; }
+			created.incrementAndGet ();
+			return result;
+		}
+		catch ( RuntimeException ex ) {
+			permits.release ();
+			throw ex;
+		}
+	}
+
+	/**
+	 * No time limit.
+	 */
+	S borrow ( long fetchSize ) {
+		return borrow ( fetchSize, -1 );
+	}
+
+	/**
+	 * Gives back a session obtained from {@link #borrow(long, long)}.
+	 *
+	 * @param isBroken if true, the session is closed, rather than being kept for reuse. This should be used
+	 * when there were errors with the session, or when its state is unknown.
+	 */
+	void release ( S session, long fetchSize, boolean isBroken )
+	{
+		try
+		{
+			if ( isBroken ) {
+				this.closeSession ( session, true );
+				return;
+			}
+
+			IdleSession<S> evicted = null;
+			synchronized ( this )
+			{
+				idleSessions.computeIfAbsent ( fetchSize, fs -> new ArrayDeque<> () )
+					.push ( new IdleSession<> ( session, fetchSize ) );
+				// Too many idle sessions, which might happen with multiple fetch sizes, evict the oldest
+				if ( ++nidle > maxSize ) evicted = this.pollOldestIdle ();
+			}
+			if ( evicted != null ) this.closeSession ( evicted.session, false );
+		}
+		finally {
+			permits.release ();
+		}
+	}
+
+	/**
+	 * Closes the idle sessions. Borrowed sessions are closed when they're released.
+	 */
+	void close ()
+	{
+		IdleSession<S> idle;
+		while ( ( idle = this.pollOldestIdle () ) != null )
+			this.closeSession ( idle.session, false );
+	}
+
+
+	private void acquirePermit ( long maxWaitMs )
+	{
+		try 
+		{
+			if ( maxWaitMs == -1 ) {
+				permits.acquire ();
+				return;
+			}
+			if ( permits.tryAcquire ( maxWaitMs, TimeUnit.MILLISECONDS ) ) return;
+		}
+		catch ( InterruptedException ex ) 
+		{
+			Thread.currentThread ().interrupt ();
+			throw ExceptionUtils.buildEx ( 
+				IllegalStateException.class, ex, "Interrupted while waiting for a Neo4j session from the pool" 
+			);
+		}
+		
+		ExceptionUtils.throwEx ( 
+			UncheckedTimeoutException.class, 
+			"No Neo4j session available in the pool within %d ms, all the %d sessions are in use", maxWaitMs, maxSize 
+		);
+	}
+
+	private synchronized IdleSession<S> pollIdle ( long fetchSize )
+	{
+		Deque<IdleSession<S>> sessions = idleSessions.get ( fetchSize );
+		IdleSession<S> result = sessions == null ? null : sessions.poll ();
+		if ( result != null ) nidle--;
+		return result;
+	}
+
+	private synchronized IdleSession<S> pollOldestIdle ()
+	{
+		IdleSession<S> oldest = null;
+		for ( Deque<IdleSession<S>> sessions: idleSessions.values () )
+		{
+			IdleSession<S> candidate = sessions.peekLast ();
+			if ( candidate != null && ( oldest == null || candidate.idleSince < oldest.idleSince ) ) oldest = candidate;
+		}
+		if ( oldest == null ) return null;
+
+		idleSessions.get ( oldest.fetchSize ).pollLast ();
+		nidle--;
+		return oldest;
+	}
+
+	private boolean isHealthy ( S session )
+	{
+		try {
+			return healthCheck.test ( session );
+		}
+		catch ( RuntimeException ex ) {
+			log.debug ( "Neo4j session pool, health check error: {}", ex.getMessage () );
+			return false;
+		}
+	}
+
+	private void closeSession ( S session, boolean isRecycling )
+	{
+		synchronized ( this ) { nopen--; }
+		if ( isRecycling ) recycled.incrementAndGet ();
+		try {
+			session.close ();
+		}
+		catch ( Exception ex ) {
+			log.debug ( "Neo4j session pool, error while closing a session: {}", ex.getMessage () );
+		}
+	}
+
+
+	/**
+	 * The sessions currently open, either idle or borrowed.
+	 */
+	synchronized int getOpenSessions () {
+		return nopen;
+	}
+
+	synchronized int getIdleSessions () {
+		return nidle;
+	}
+
+	/**
+	 * The sessions that were closed because they were broken or unhealthy.
+	 */
+	long getRecycledSessions () {
+		return recycled.get ();
+	}
+
+	void logStats ()
+	{
+		log.info (
+			"Neo4j session pool, open sessions: {}, idle: {}, created: {}, reused: {}, recycled: {}",
+			getOpenSessions (), getIdleSessions (), created.get (), reused.get (), recycled.get ()
+		);
+	}
+}
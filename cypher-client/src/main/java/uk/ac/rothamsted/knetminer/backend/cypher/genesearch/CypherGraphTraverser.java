@@ -10,6 +10,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.neo4j.driver.Driver;
 import org.neo4j.driver.Value;
@@ -25,9 +26,11 @@ import net.sourceforge.ondex.core.ONDEXConcept;
 import net.sourceforge.ondex.core.ONDEXGraph;
 import uk.ac.ebi.utils.exceptions.ExceptionUtils;
 import uk.ac.ebi.utils.exceptions.UncheckedFileNotFoundException;
+import uk.ac.rothamsted.knetminer.backend.cypher.CyPathProjection;
 import uk.ac.rothamsted.knetminer.backend.cypher.CypherClient;
 import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers.CyTraverserPerformanceTracker;
 import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers.PathQueryProcessor;
+import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers.TraversalContext;
 
 /**
  * <p>A {@link AbstractGraphTraverser graph traverser} based on Cypher queries against a property graph database
@@ -40,6 +43,9 @@ import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers.PathQueryPro
  * </ul>
  * 
  * </p>
+ * 
+ * <p>Multiple traversals can run in parallel on the same instance (eg, for multiple web requests), each has its own
+ * {@link TraversalContext}, see {@link #traverseGraph(ONDEXGraph, Set, FilterPaths, TraversalContext)}.</p>
  *
  * @author brandizi
  * <dl><dt>Date:</dt><dd>30 Jan 2019</dd></dl>
@@ -59,6 +65,12 @@ public class CypherGraphTraverser extends AbstractGraphTraverser
 	public static final String CFGOPT_PATH = "knetminer.backend.configPath";
 
 	private static AbstractApplicationContext springContext;
+	
+	/** The traversals that are running, used by {@link #interrupt()} */
+	private final Set<TraversalContext> activeContexts = ConcurrentHashMap.newKeySet ();
+	
+	/** The last traversal that was started, used by methods like {@link #getPercentProgress()} */
+	private volatile TraversalContext lastContext = null;
 			
 	private final Logger log = LoggerFactory.getLogger ( this.getClass () );
 
@@ -69,16 +81,6 @@ public class CypherGraphTraverser extends AbstractGraphTraverser
 	private void init ()
 	{
 		this.initSpring ();
-		
-		// Sometimes this is set via options for debugging purposes 
-		Integer reportFrequency = this.getOption ( "performanceReportFrequency" );
-		if ( reportFrequency != null )
-		{
-			log.debug ( "Overriding performanceReportFrequency with the value {}", reportFrequency );
-			springContext
-				.getBean ( CyTraverserPerformanceTracker.class )
-				.setReportFrequency ( reportFrequency );
-		}
 	}
 	
 	private void initSpring ()
@@ -132,7 +134,9 @@ public class CypherGraphTraverser extends AbstractGraphTraverser
 	 * {@link #setSemanticMotifsQueries(List)}. Each query must fulfil certain requirements:
 	 * 
 	 * <ul>
-	 * 	<li>The query must return a path as first projected result (see {@link CypherClient#findPathIris(String, Value)}</li>
+	 * 	<li>The query must return a path as first projected result (see {@link CypherClient#findPathIris(String, Value)}, 
+	 * or the path projection defined by {@link CyPathProjection}. By default, queries returning a path are rewritten 
+	 * into the latter form (see the {@code queryPathProjection} option).</li>
 	 * 	<li>Every returned path must match an Ondex gene concept as first node, followed by Cypher entities corresponding
 	 * to Ondex concept/relation pairs</li>
 	 * 	<li>The query must deal with the {@code $startGeneIris} parameter, of type list of strings, which are a set of 
@@ -143,11 +147,44 @@ public class CypherGraphTraverser extends AbstractGraphTraverser
 	 * </ul>
 	 * 
 	 * <p>The implementation of this method is based on {@link PathQueryProcessor}.</p>
+	 * 
+	 * <p>This runs the traversal with {@link #newTraversalContext() a new context}, which becomes the one used by 
+	 * methods like {@link #getPercentProgress()}.</p>
 	 */	
 	@Override
-	@SuppressWarnings ( { "rawtypes", "static-access" } )
+	@SuppressWarnings ( { "rawtypes" } )
 	public Map<ONDEXConcept, List<EvidencePathNode>> traverseGraph ( 
 		ONDEXGraph graph, Set<ONDEXConcept> concepts, FilterPaths<EvidencePathNode> filter )
+	{
+		return traverseGraph ( graph, concepts, filter, newTraversalContext () );
+	}
+
+	/**
+	 * Like {@link #traverseGraph(ONDEXGraph, Set, FilterPaths)}, but the whole traversal must complete within 
+	 * timeoutMs, after which the pending query batches are skipped and the results found so far are returned.
+	 * Use {@link #isComplete()} to know if that happened (or 
+	 * {@link #traverseGraph(ONDEXGraph, Set, FilterPaths, TraversalContext)} and {@link TraversalContext#isComplete()}, 
+	 * when multiple traversals run in parallel).
+	 * 
+	 * @param timeoutMs -1 means no limit, see {@link TraversalContext#setTimeoutMs(long)}.
+	 */
+	@SuppressWarnings ( { "rawtypes" } )
+	public Map<ONDEXConcept, List<EvidencePathNode>> traverseGraph ( 
+		ONDEXGraph graph, Set<ONDEXConcept> concepts, FilterPaths<EvidencePathNode> filter, long timeoutMs )
+	{
+		TraversalContext context = newTraversalContext ();
+		context.setTimeoutMs ( timeoutMs );
+		return traverseGraph ( graph, concepts, filter, context );
+	}
+	
+	/**
+	 * Like {@link #traverseGraph(ONDEXGraph, Set, FilterPaths)}, but uses a context created by the caller, 
+	 * via {@link #newTraversalContext()}. This allows for interrupting the traversal, or checking its progress and
+	 * performance, independently of the other traversals that are running in parallel.
+	 */
+	@SuppressWarnings ( { "rawtypes", "static-access" } )
+	public Map<ONDEXConcept, List<EvidencePathNode>> traverseGraph ( 
+		ONDEXGraph graph, Set<ONDEXConcept> concepts, FilterPaths<EvidencePathNode> filter, TraversalContext context )
 	{
 		init ();
 
@@ -156,9 +193,18 @@ public class CypherGraphTraverser extends AbstractGraphTraverser
 		log.info ( "Graph Traverser, beginning parallel traversing of {} concept(s)", concepts.size () );
 				
 		PathQueryProcessor queryProcessor = this.springContext.getBean ( PathQueryProcessor.class );
-		Map<ONDEXConcept, List<EvidencePathNode>> result = queryProcessor.process ( graph, concepts );
+		
+		this.lastContext = context;
+		this.activeContexts.add ( context );
+		Map<ONDEXConcept, List<EvidencePathNode>> result;
+		try {
+			result = queryProcessor.process ( context, graph, concepts );
+		}
+		finally {
+			this.activeContexts.remove ( context );
+		}
 
-		if ( this.isInterrupted () ) return new HashMap<> ();
+		if ( context.isInterrupted () ) return new HashMap<> ();
 		
 		if ( filter == null ) return result;
 		
@@ -171,15 +217,40 @@ public class CypherGraphTraverser extends AbstractGraphTraverser
 	}
 
 	/**
-	 * A wrapper of {@link CyTraverserPerformanceTracker#getStats()}.
+	 * Creates a new context for {@link #traverseGraph(ONDEXGraph, Set, FilterPaths, TraversalContext)}. This is
+	 * a wrapper of {@link PathQueryProcessor#newContext()}, which also considers the {@code performanceReportFrequency}
+	 * option, if it's set.
+	 */
+	public TraversalContext newTraversalContext ()
+	{
+		init ();
+		
+		PathQueryProcessor qp = springContext.getBean ( PathQueryProcessor.class );
+		TraversalContext result = qp.newContext ();
+		
+		// Sometimes this is set via options for debugging purposes 
+		Integer reportFrequency = this.getOption ( "performanceReportFrequency" );
+		if ( reportFrequency != null )
+		{
+			log.debug ( "Overriding performanceReportFrequency with the value {}", reportFrequency );
+			result.getPerformanceTracker ().setReportFrequency ( reportFrequency );
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * A wrapper of {@link CyTraverserPerformanceTracker#getStats()}, for the last traversal that was started.
+	 * Use {@link TraversalContext#getPerformanceTracker()} for a particular traversal.
 	 */
 	public String getPerformanceStats ()
 	{
 		if ( springContext == null ) throw new IllegalStateException (
 			"getPerformanceStats() cannot be invoked before init(), ignoring it at this stage" 
 		);
-		CyTraverserPerformanceTracker performanceTracker = springContext.getBean ( CyTraverserPerformanceTracker.class );
-		return performanceTracker.getStats ();
+		TraversalContext context = this.lastContext;
+		if ( context == null ) return CyTraverserPerformanceTracker.getEmptyStats ();
+		return context.getPerformanceTracker ().getStats ();
 	}
 	
 	/**
@@ -208,9 +279,6 @@ public class CypherGraphTraverser extends AbstractGraphTraverser
 		
 		PathQueryProcessor qp = springContext.getBean ( PathQueryProcessor.class );
 		qp.setSemanticMotifsQueries ( semanticMotifsQueries );
-
-		CyTraverserPerformanceTracker performanceTracker = springContext.getBean ( CyTraverserPerformanceTracker.class );
-		performanceTracker.setSemanticMotifsQueries ( semanticMotifsQueries );
 	}
 
 	/**
@@ -244,35 +312,49 @@ public class CypherGraphTraverser extends AbstractGraphTraverser
 	}
 	
 	/**
-	 * Wrapper of {@link PathQueryProcessor#getPercentProgress()}.
+	 * Wrapper of {@link TraversalContext#getPercentProgress()}, for the last traversal that was started.
 	 */
 	public double getPercentProgress ()
 	{
-		PathQueryProcessor qp = springContext.getBean ( PathQueryProcessor.class );
-		return qp.getPercentProgress ();
+		TraversalContext context = this.lastContext;
+		return context == null ? 0d : context.getPercentProgress ();
 	}
 	
 	/**
+	 * Tells if the last traversal that was started was interrupted.
+	 * 
 	 * @see #interrupt()
 	 */
 	public boolean isInterrupted ()
 	{
-		PathQueryProcessor qp = springContext.getBean ( PathQueryProcessor.class );
-		return qp.isInterrupted ();
+		TraversalContext context = this.lastContext;
+		return context != null && context.isInterrupted ();
+	}
+	
+	/**
+	 * Tells if the last traversal that was started returned all the results, ie, it wasn't cut by its deadline 
+	 * (see {@link #traverseGraph(ONDEXGraph, Set, FilterPaths, long)}), nor interrupted.
+	 * 
+	 * @see TraversalContext#isComplete()
+	 */
+	public boolean isComplete ()
+	{
+		TraversalContext context = this.lastContext;
+		return context == null || context.isComplete ();
 	}
 	
 	/**
 	 * <p>This and isInterrupted() allows for stopping the traversal, a feature used in Knetminer {@code CypherDebugger} 
 	 * component.</p>
 	 * 
-	 * <p>They are wrappers of {@link PathQueryProcessor#interrupt()} and {@link PathQueryProcessor#isInterrupted()}.</p>
+	 * <p>This interrupts all the traversals that this traverser is running, see {@link TraversalContext#interrupt()}
+	 * to stop a single traversal. The traversals that are already over aren't affected, nor the ones started later.</p>
 	 * 
 	 * <p>There is an integration test about this.</p>
 	 */
 	public void interrupt ()
 	{
-		PathQueryProcessor qp = springContext.getBean ( PathQueryProcessor.class );
-		qp.interrupt ();
+		this.activeContexts.forEach ( TraversalContext::interrupt );
 	}
 	
 	/**
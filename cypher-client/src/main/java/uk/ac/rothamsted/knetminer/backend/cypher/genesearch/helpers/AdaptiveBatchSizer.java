@@ -0,0 +1,89 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Adapts the size of the gene batches sent to a single semantic motif query, based on how the query performs
+ * with the batches that it has already processed. This is used by {@link SinglePathQueryProcessor}, when the
+ * adaptive batch size is enabled, so that cheap queries (eg, gene-&gt;protein) can work with large batches, while
+ * expensive ones (eg, long homology chains) get small ones.</p>
+ *
+ * <p>The policy is AIMD (additive increase, multiplicative decrease): when a batch completes within the
+ * target time, the batch size grows by a fixed step (the floor size), when it takes longer, the size is decreased
+ * proportionally to how much the target was exceeded (at most halved), when it times out, it's halved. The size is
+ * always kept between the floor and the ceiling.</p>
+ *
+ * <p>This is thread-safe, since batches complete in parallel.</p>
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+class AdaptiveBatchSizer
+{
+	private final long floor, ceiling, targetTimeMs;
+	private final AtomicLong batchSize;
+
+	private final Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+	AdaptiveBatchSizer ( long initialSize, long floor, long ceiling, long targetTimeMs )
+	{
+		if ( floor < 1 || ceiling < floor ) throw new IllegalArgumentException ( String.format (
+			"Invalid values for the adaptive batch size range: [%d, %d]", floor, ceiling
+		));
+		if ( targetTimeMs <= 0 ) throw new IllegalArgumentException (
+			"Invalid value for the adaptive batch size target time: " + targetTimeMs
+		);
+
+		this.floor = floor;
+		this.ceiling = ceiling;
+		this.targetTimeMs = targetTimeMs;
+		this.batchSize = new AtomicLong ( clamp ( initialSize ) );
+	}
+
+	/**
+	 * Tracks a batch of the given size that completed in the given time.
+	 */
+	void onCompleted ( long completedBatchSize, long timeMs )
+	{
+		long newSize;
+		if ( timeMs <= this.targetTimeMs )
+			newSize = this.batchSize.updateAndGet ( size -> clamp ( size + floor ) );
+		else
+		{
+			// Proportional to the excess time, but don't shrink too fast on a single slow batch
+			double factor = Math.max ( 0.5, 1d * this.targetTimeMs / timeMs );
+			long target = (long) ( completedBatchSize * factor );
+			newSize = this.batchSize.updateAndGet ( size -> clamp ( Math.min ( size, target ) ) );
+		}
+
+		if ( log.isTraceEnabled () ) log.trace (
+			"Adaptive batch size: {} after a batch of {} genes completed in {} ms", newSize, completedBatchSize, timeMs
+		);
+	}
+
+	/**
+	 * Tracks a batch of the given size that timed out.
+	 */
+	void onTimeout ( long timedOutBatchSize )
+	{
+		long newSize = this.batchSize.updateAndGet ( size -> clamp ( Math.min ( size, timedOutBatchSize / 2 ) ) );
+		if ( log.isTraceEnabled () ) log.trace (
+			"Adaptive batch size: {} after a batch of {} genes timed out", newSize, timedOutBatchSize
+		);
+	}
+
+	/**
+	 * The batch size that should be used for the next batches.
+	 */
+	long getBatchSize () {
+		return this.batchSize.get ();
+	}
+
+	private long clamp ( long size ) {
+		return Math.max ( floor, Math.min ( ceiling, size ) );
+	}
+}
@@ -0,0 +1,155 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Limits the no. of query jobs that {@link QueryJobDispatcher} runs at the same time, adapting the limit to the
+ * Neo4j server health, in the spirit of the TCP Vegas and gradient concurrency limiters.</p>
+ *
+ * <p>The limit is driven by the latency samples that {@link SinglePathQueryProcessor} reports for every completed
+ * batch, as the time per gene. Since every query has its own costs, the samples are compared to a long-term
+ * baseline of the same query (a slow exponential moving average). When the latency inflates beyond a tolerance (ie,
+ * Neo4j is getting slower, eg, because of page cache misses or other loads), the limit shrinks proportionally to the
+ * inflation (the gradient), when it's in line with the baseline, the limit grows, by the square root of the current
+ * limit. Timeouts are considered like packet drops, ie, they cause a multiplicative decrease. The limit doesn't grow
+ * when the jobs in flight are less than half of it, since in this case we don't know if the server would have
+ * room for more.</p>
+ *
+ * <p>A non-adaptive instance just keeps the limit fixed at its max value.</p>
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+class AdaptiveConcurrencyLimiter
+{
+	/** Latencies up to this times the baseline are considered fine */
+	private static final double TOLERANCE = 1.5;
+
+	/** The weight of new samples in the baseline averages, ie, the inverse of the window size */
+	private static final double BASELINE_WEIGHT = 0.02;
+
+	/** How fast the limit moves towards the new estimates */
+	private static final double SMOOTHING = 0.2;
+
+	/** The multiplicative decrease on timeouts */
+	private static final double DROP_BACKOFF = 0.9;
+
+	private final boolean isAdaptive;
+	private final int minLimit, maxLimit;
+
+	private double estimatedLimit;
+	private volatile int limit;
+	private int inFlight = 0;
+
+	/** key (ie, query) -> latency baseline */
+	private final Map<Object, Double> baselines = new HashMap<> ();
+
+	private final Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+
+	/**
+	 * A fixed limit.
+	 */
+	AdaptiveConcurrencyLimiter ( int limit )
+	{
+		this ( false, limit, limit );
+	}
+
+	/**
+	 * An adaptive limit, which starts from the max.
+	 */
+	AdaptiveConcurrencyLimiter ( int minLimit, int maxLimit )
+	{
+		this ( true, minLimit, maxLimit );
+	}
+
+	private AdaptiveConcurrencyLimiter ( boolean isAdaptive, int minLimit, int maxLimit )
+	{
+		this.isAdaptive = isAdaptive;
+		this.maxLimit = Math.max ( 1, maxLimit );
+		this.minLimit = Math.max ( 1, Math.min ( minLimit, this.maxLimit ) );
+		this.estimatedLimit = this.limit = this.maxLimit;
+	}
+
+
+	/**
+	 * Gets a slot for a new job, if the jobs in flight are below the limit.
+	 */
+	synchronized boolean tryAcquire ()
+	{
+		if ( inFlight >= limit ) return false;
+		inFlight++;
+		return true;
+	}
+
+	/**
+	 * Releases a slot obtained with {@link #tryAcquire()}.
+	 */
+	synchronized void release () {
+		inFlight--;
+	}
+
+	/**
+	 * Updates the limit with a new latency sample.
+	 *
+	 * @param key the samples of each key are compared to the baseline of the same key, ie, this is the query.
+	 * @param latency the time per gene of a completed batch.
+	 */
+	synchronized void onSample ( Object key, double latency )
+	{
+		if ( !isAdaptive || latency <= 0 ) return;
+
+		Double baseline = baselines.get ( key );
+		if ( baseline == null ) baseline = latency;
+		else
+		{
+			baseline = ( 1 - BASELINE_WEIGHT ) * baseline + BASELINE_WEIGHT * latency;
+			// Things went back to normal after a slow period, so the baseline needs to recover faster
+			if ( baseline / latency > 2 ) baseline *= 0.95;
+		}
+		baselines.put ( key, baseline );
+
+		double gradient = Math.max ( 0.5, Math.min ( 1.0, TOLERANCE * baseline / latency ) );
+
+		// We can't know if there is room for growing
+		if ( gradient == 1.0 && inFlight < limit / 2 ) return;
+
+		double newLimit = estimatedLimit * gradient + Math.sqrt ( estimatedLimit );
+		this.updateLimit ( ( 1 - SMOOTHING ) * estimatedLimit + SMOOTHING * newLimit );
+	}
+
+	/**
+	 * Reports a job that timed out.
+	 */
+	synchronized void onDrop ()
+	{
+		if ( !isAdaptive ) return;
+		this.updateLimit ( estimatedLimit * DROP_BACKOFF );
+	}
+
+	private void updateLimit ( double newLimit )
+	{
+		this.estimatedLimit = Math.max ( minLimit, Math.min ( maxLimit, newLimit ) );
+		int oldLimit = this.limit;
+		this.limit = (int) this.estimatedLimit;
+		if ( this.limit != oldLimit && log.isDebugEnabled () )
+			log.debug ( "Query concurrency limit changed from {} to {}", oldLimit, this.limit );
+	}
+
+	int getLimit () {
+		return limit;
+	}
+
+	synchronized int getInFlight () {
+		return inFlight;
+	}
+
+	boolean isAdaptive () {
+		return isAdaptive;
+	}
+}
@@ -11,19 +11,21 @@ import java.io.StringWriter;
 import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
-import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.Supplier;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
@@ -33,11 +35,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
-import com.google.common.util.concurrent.TimeLimiter;
 import com.google.common.util.concurrent.UncheckedTimeoutException;
-import com.google.common.util.concurrent.Uninterruptibles;
 
 import net.sourceforge.ondex.algorithm.graphquery.FilterPaths;
 import net.sourceforge.ondex.core.ONDEXConcept;
@@ -51,8 +52,17 @@ import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.CypherGraphTraverser
  * 
  * <p>Note that, because queries are run against batches of starting genes, as per {@link SinglePathQueryProcessor}, many
  * of the figures reported by this component refer to the performance per single batch, not per single gene.</p> 
+ * 
+ * <p>This is a prototype bean, since every traversal has its own tracker, see {@link TraversalContext}.</p> 
+ * 
+ * <p>The tracking runs on the query hot path, for every batch, so it's based on per-query {@link LongAdder} counters 
+ * and striped histograms (see {@link LatencyHistogram}), which are updated once per batch, and the timed out batches 
+ * are kept in a bounded log, so that it can be enabled in production at a negligible cost.</p>
+ * 
+ * <p>Optionally, the {@link #geneCostTracking gene cost tracking} attributes the paths and the time of every batch to
+ * its genes, to find the hub genes that make the queries explode, see {@link #getHubGenes()}.</p>
  */
-@Component
+@Component @Scope ( "prototype" )
 public class CyTraverserPerformanceTracker 
 {	
 	/** This is a configurable parameter */
@@ -74,33 +84,125 @@ public class CyTraverserPerformanceTracker
 		.map ( base -> base += "/logs/knetminer-cy-timeout-report-%s.tsv" )
 		.orElse ( null );
 	
-	/** Times to fetch all the results **/
-	private Map<String, Long> query2ExecTimes = new ConcurrentHashMap<> ();
+	/** 
+	 * This is a configurable parameter, the max no. of timed out batches kept by {@link #timeoutLog}, when it's
+	 * full, the oldest are dropped. 
+	 */
+	@Autowired ( required = false ) @Qualifier ( "timeoutReportMaxEntries" )
+	private int timeoutReportMaxEntries = 1000;
+	
+	/** 
+	 * If true, the paths and an estimate of the time of every batch are attributed to the batch genes, see 
+	 * {@link #trackGeneCosts(String, List, Map, long)} and {@link #trackTimedOutGeneCosts(String, List, long)}. 
+	 * This is a configurable parameter, it's off by default, since it needs memory for every gene having paths or 
+	 * timeouts.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "geneCostTracking" )
+	private boolean geneCostTracking = false;
 
-	/** No of results (pahts) returned by each query **/
-	private Map<String, Integer> query2Results = new ConcurrentHashMap<> ();
+	/** The no. of top genes per query reported by {@link #getHubGenes()}. This is a configurable parameter. */
+	@Autowired ( required = false ) @Qualifier ( "hubGenesReportSize" )
+	private int hubGenesReportSize = 20;
 
-	/** No of query invocations ({@code #invocations = #queries x #genes}) **/
-	private Map<String, Integer> query2Invocations = new ConcurrentHashMap<> ();
+	/** 
+	 * Like {@link #timeoutReportPathTemplate}, the file where {@link #getHubGenes()} is reported, if 
+	 * {@link #geneCostTracking} is enabled. This is a configurable option.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "hubGenesReportPathTemplate" )
+	private String hubGenesReportPathTemplate = 
+		Optional.ofNullable ( System.getenv ( "CATALINA_HOME" ) )
+		.map ( base -> base += "/logs/knetminer-cy-hub-genes-report-%s.tsv" )
+		.orElse ( null );
 	
-	/** No. of queries that timed out */
-	private Map<String, Integer> query2Timeouts = new ConcurrentHashMap<> ();
+	/**
+	 * The stats about a single query, all the batches of the query update them in parallel.
+	 */
+	private static class QueryStats
+	{
+		/** Times to fetch all the results **/
+		final LongAdder execTime = new LongAdder ();
+		
+		/** No of results (paths) **/
+		final LongAdder results = new LongAdder ();
+		
+		/** No of query invocations ({@code #invocations = #genes / batch size}) **/
+		final LongAdder invocations = new LongAdder ();
+		
+		/** No. of invocations that timed out */
+		final LongAdder timeouts = new LongAdder ();
+		
+		/** Sum of the returned path lengths **/
+		final LongAdder pathLens = new LongAdder ();
+		
+		/** No. of genes in the completed batches **/
+		final LongAdder genes = new LongAdder ();
+		
+		/** 
+		 * The distribution of the completed batch times. Unlike the averages, this shows the few slow 
+		 * batches (eg, hub genes) that cause the timeouts.
+		 */
+		final LatencyHistogram batchTimeHisto = new LatencyHistogram ();
+		
+		/** The distribution of the no. of paths returned by the completed batches */
+		final LatencyHistogram batchPathsHisto = new LatencyHistogram ();
+		
+		/** The distribution of the returned path lengths */
+		final LatencyHistogram pathLenHisto = new LatencyHistogram ();
+		
+		/** 
+		 * Used with {@link CyTraverserPerformanceTracker#geneCostTracking}, only the genes having paths or timeouts 
+		 * are here 
+		 */
+		final Map<ONDEXConcept, GeneCost> geneCosts = new ConcurrentHashMap<> ();
+		
+		/** 
+		 * The time of the timed out batches, which, unlike {@link #execTime}, includes the time spent until the 
+		 * timeout. This is tracked with {@link CyTraverserPerformanceTracker#geneCostTracking} only.
+		 */
+		final LongAdder timedOutTime = new LongAdder ();
+	}
 	
-	/** Sums of returned path lengths for the each query **/
-	private Map<String, Long> query2PathLens = new ConcurrentHashMap<> ();
+	/**
+	 * The cost of a gene for a query, see {@link CyTraverserPerformanceTracker#trackGeneCosts(String, List, Map, long)}.
+	 */
+	private static class GeneCost
+	{
+		final LongAdder paths = new LongAdder ();
+		
+		/** The estimated share of the batch times, in microseconds, to not lose the small shares */
+		final LongAdder timeUs = new LongAdder ();
+	}
+	
+	private final Map<String, QueryStats> query2Stats = new ConcurrentHashMap<> ();
+	
+	/** The percentiles reported by {@link #getStats()} and {@link #getPercentiles()} */
+	private static final double[] REPORTED_PERCENTILES = { 50, 90, 99 };
 	
 	/** Total no. of invocations, ie #queries x #genes / {@link #queryBatchSize} **/ 
-	private AtomicInteger invocations = new AtomicInteger ( 0 );
+	private final LongAdder invocations = new LongAdder ();
+	
+	/** Used to trigger the periodic reports, see {@link #reportFrequency} */
+	private final AtomicLong reportTicker = new AtomicLong ( 0 );
 
 	/** Used by {@link #trackTimedOutQuery(String, List)}  */
 	private AtomicLong currentTime = new AtomicLong ( 0 );
 	
 	/**
-	 * This used by {@link #trackTimedOutQuery()} to keep track of the queries that couldn't complete within the configured
-	 * time out. The structure contains triples of: Cypher query, timestamp (the usual ms from epoch), batch of genes
-	 * that caused the query to fail at that timestamp.
+	 * This used by {@link #trackTimedOutQuery(String, List)} to keep track of the queries that couldn't complete within 
+	 * the configured time out. This is a ring buffer of {@link #timeoutReportMaxEntries} triples of: Cypher query, 
+	 * timestamp (the usual ms from epoch), batch of genes that caused the query to fail at that timestamp.
+	 */
+	private volatile AtomicReferenceArray<Triple<String, Long, List<ONDEXConcept>>> timeoutLog = null;
+	
+	/** The no. of timed out batches added to {@link #timeoutLog} so far, including the dropped ones */
+	private final AtomicLong timeoutLogCount = new AtomicLong ( 0 );
+	
+	/**
+	 * The genes that still time out when their batch can't be split further by the 
+	 * {@link SinglePathQueryProcessor} timeout bisection. This is populated by 
+	 * {@link #trackUnresolvedTimeout(String, List)}. 
 	 */
-	private List<Triple<String, Long, List<ONDEXConcept>>> timedOutQueries = new Vector<> ();
+	private Map<String, Set<ONDEXConcept>> query2UnresolvedTimedOutGenes = new ConcurrentHashMap<> ();
 	
 	private final Logger log = LoggerFactory.getLogger ( this.getClass () );
 	
@@ -113,24 +215,15 @@ public class CyTraverserPerformanceTracker
 	public void reset ()
 	{
 		if ( this.reportFrequency < 0 ) return; // tracking is disabled
-		invocations.getAndSet ( 0 );
-		
-		this.query2ExecTimes.clear ();
-		this.query2Invocations.clear ();
-		this.query2Timeouts.clear ();
-		this.query2PathLens.clear ();
-		this.query2Results.clear ();
+		invocations.reset ();
+		reportTicker.set ( 0 );
 		
-		this.semanticMotifsQueries.forEach ( q ->
-		{
-			this.query2ExecTimes.put ( q, 0l );
-			this.query2Invocations.put ( q, 0 );
-			this.query2Timeouts.put ( q, 0 );
-			this.query2PathLens.put ( q, 0l );
-			this.query2Results.put ( q, 0 );
-		});
+		this.query2Stats.clear ();
+		this.semanticMotifsQueries.forEach ( q -> this.query2Stats.put ( q, new QueryStats () ) );
 		
-		this.timedOutQueries.clear ();
+		this.timeoutLog = null; // created upon the first timeout
+		this.timeoutLogCount.set ( 0 );
+		this.query2UnresolvedTimedOutGenes.clear ();
 	}
 	
 	/**
@@ -140,26 +233,34 @@ public class CyTraverserPerformanceTracker
 	 * has to provide code to compute such counts.</p>
 	 * 
 	 * <p>Moreover, if {@code queryAction} throws {@link UncheckedTimeoutException}, time and path counters aren't updated,
-	 * the timeout counter is update instead. This is useful when the query action makes use of {@link TimeLimiter}</p>
+	 * the timeout counter is update instead. This is what the query action does when it's cancelled by the 
+	 * {@link SinglePathQueryProcessor} timeout watchdog</p>
 	 * 
+	 * <p>Returns the time (ms) that the query action took. This is measured even when the tracking is disabled, since
+	 * other components need it (eg, {@link AdaptiveBatchSizer}).</p>
 	 */
-	void track ( 
+	long track ( 
 		String query, Runnable queryAction, 
-		Supplier<Integer> pathsCounter, Supplier<Integer> pathLensCounter, 
+		IntSupplier pathsCounter, IntSupplier pathLensCounter, 
 		List<ONDEXConcept> startGenes 
 	)
 	{
 		if ( this.reportFrequency < 0 ) {
 			// tracking is disabled
-			queryAction.run ();
-			return;
+			return XStopWatch.profile ( queryAction );
 		}
 
+		QueryStats stats = this.getQueryStats ( query );
 		try {			
 			long time = XStopWatch.profile ( queryAction );
-			this.query2ExecTimes.compute ( query, (k, t) -> t + time );
-			this.query2Results.compute ( query, (k, n) -> n + pathsCounter.get () );
-			this.query2PathLens.compute ( query, (k, l) -> l + pathLensCounter.get () );
+			int npaths = pathsCounter.getAsInt ();
+			stats.execTime.add ( time );
+			stats.results.add ( npaths );
+			stats.pathLens.add ( pathLensCounter.getAsInt () );
+			stats.genes.add ( startGenes.size () );
+			stats.batchTimeHisto.record ( time );
+			stats.batchPathsHisto.record ( npaths );
+			return time;
 		}
 		catch ( UncheckedTimeoutException ex ) {
 			// Track the query timed out, the other updates above are skipped by the exec flow.
@@ -170,29 +271,151 @@ public class CyTraverserPerformanceTracker
 		}
 		finally
 		{
-			this.query2Invocations.compute ( query, (k, n) -> n + 1 );
-			this.invocations.incrementAndGet ();
-			if ( this.reportFrequency > 0 && invocations.get () % this.reportFrequency == 0 ) logStats ();
+			stats.invocations.increment ();
+			this.invocations.increment ();
+			if ( this.reportFrequency > 0 && reportTicker.incrementAndGet () % this.reportFrequency == 0 ) logStats ();
 		}
 	}
 	
+	/**
+	 * The stats are created by {@link #reset()}, but we might get a query that was added later.
+	 */
+	private QueryStats getQueryStats ( String query )
+	{
+		QueryStats result = this.query2Stats.get ( query );
+		return result != null ? result : this.query2Stats.computeIfAbsent ( query, q -> new QueryStats () );
+	}
+	
+	/**
+	 * Records the lengths of the paths that a batch of the query returned, for the path length percentiles. 
+	 * This is a separate step, since {@link #track(String, Runnable, IntSupplier, IntSupplier, List)} only gets the 
+	 * sum of the lengths, and it should be invoked for the completed batches only.
+	 */
+	<P> void trackPathLengths ( String query, List<P> paths, ToIntFunction<P> pathLength )
+	{
+		if ( this.reportFrequency < 0 ) return; // tracking is disabled
+		
+		this.getQueryStats ( query ).pathLenHisto.recordAll ( paths, pathLength::applyAsInt );
+	}
+	
+	/**
+	 * True if {@link #trackGeneCosts(String, List, Map, long)} is enabled, which needs the tracking enabled too.
+	 */
+	boolean isGeneCostTracking () {
+		return this.geneCostTracking && this.reportFrequency >= 0;
+	}
+	
+	/**
+	 * <p>Attributes the paths returned by a completed batch of the query to their start genes, together with an 
+	 * estimate of the time each gene took. Neo4j doesn't tell the latter, so the batch time is split into units, 
+	 * where every gene costs one unit for being in the batch, plus one unit per path, ie, a gene gets 
+	 * {@code batchTime * ( 1 + genePaths ) / ( batchSize + batchPaths )}.</p>
+	 * 
+	 * <p>This is invoked by {@link SinglePathQueryProcessor} when {@link #isGeneCostTracking()}, with the 
+	 * path counts it collects from the first node of every path. The genes without paths are ignored, since they 
+	 * aren't the hubs we look for and they'd take a lot of memory with large traversals.</p>
+	 * 
+	 * @param genePaths gene -&gt; no. of paths, in a single-element array, for the batch genes having paths.
+	 */
+	void trackGeneCosts ( String query, List<ONDEXConcept> batch, Map<ONDEXConcept, int[]> genePaths, long batchTimeMs )
+	{
+		if ( !this.isGeneCostTracking () || genePaths.isEmpty () ) return;
+		
+		long batchPaths = 0;
+		for ( int[] npaths: genePaths.values () ) batchPaths += npaths [ 0 ];
+		double timeUnitUs = 1000d * batchTimeMs / ( batch.size () + batchPaths );
+		
+		Map<ONDEXConcept, GeneCost> geneCosts = this.getQueryStats ( query ).geneCosts;
+		genePaths.forEach ( ( gene, npaths ) -> 
+		{
+			GeneCost cost = geneCosts.computeIfAbsent ( gene, g -> new GeneCost () );
+			cost.paths.add ( npaths [ 0 ] );
+			cost.timeUs.add ( Math.round ( timeUnitUs * ( 1 + npaths [ 0 ] ) ) );
+		});
+	}
+	
+	/**
+	 * <p>Like {@link #trackGeneCosts(String, List, Map, long)}, but for a batch that timed out, which didn't return any 
+	 * path, so its time is split evenly between its genes.</p>
+	 * 
+	 * <p>This way, the genes that make the batches time out get into {@link #getHubGenes()}, even when they never 
+	 * complete. With the timeout bisection in {@link SinglePathQueryProcessor}, these genes get the time of all the 
+	 * smaller batches that still time out, including those {@link #trackUnresolvedTimeout(String, List) unresolved}, 
+	 * so they accumulate more time than the genes that were in the same batch only once.</p>
+	 * 
+	 * @param batchTimeMs the time the batch took until its timeout.
+	 */
+	void trackTimedOutGeneCosts ( String query, List<ONDEXConcept> batch, long batchTimeMs )
+	{
+		if ( !this.isGeneCostTracking () || batch.isEmpty () ) return;
+		
+		QueryStats stats = this.getQueryStats ( query );
+		stats.timedOutTime.add ( batchTimeMs );
+		
+		long geneTimeUs = Math.round ( 1000d * batchTimeMs / batch.size () );
+		for ( ONDEXConcept gene: batch )
+			stats.geneCosts.computeIfAbsent ( gene, g -> new GeneCost () ).timeUs.add ( geneTimeUs );
+	}
+	
 	/**
 	 * Keeps track of the queries that timed out, together with 
-	 * the genes/concepts that caused this. The field {@link #timedOutQueries}
+	 * the genes/concepts that caused this. The field {@link #timeoutLog}
 	 * is used for that.
 	 */
 	private void trackTimedOutQuery ( String query, List<ONDEXConcept> startGenes )
 	{
-		this.query2Timeouts.compute ( query, (q, n) -> n + 1 );
+		this.getQueryStats ( query ).timeouts.increment ();
 		
-		// To have different time stamps
-		Uninterruptibles.sleepUninterruptibly ( 1, TimeUnit.MILLISECONDS );
-		
-		long tstamp = this.currentTime.updateAndGet ( prev -> System.currentTimeMillis () );
+		// To have different time stamps, without waiting
+		long tstamp = this.currentTime.updateAndGet ( prev -> Math.max ( prev + 1, System.currentTimeMillis () ) );
 
-		this.timedOutQueries.add ( Triple.of ( query, tstamp, startGenes ) );
+		AtomicReferenceArray<Triple<String, Long, List<ONDEXConcept>>> ring = this.timeoutLog;
+		if ( ring == null ) synchronized ( this ) 
+		{
+			if ( this.timeoutLog == null ) 
+				this.timeoutLog = new AtomicReferenceArray<> ( Math.max ( 1, this.timeoutReportMaxEntries ) );
+			ring = this.timeoutLog;
+		}
+		int idx = (int) ( this.timeoutLogCount.getAndIncrement () % ring.length () );
+		ring.set ( idx, Triple.of ( query, tstamp, startGenes ) );
+	}
+	
+	/**
+	 * The entries in {@link #timeoutLog}, in no particular order.
+	 */
+	List<Triple<String, Long, List<ONDEXConcept>>> getTimeoutLog ()
+	{
+		List<Triple<String, Long, List<ONDEXConcept>>> result = new ArrayList<> ();
+		AtomicReferenceArray<Triple<String, Long, List<ONDEXConcept>>> ring = this.timeoutLog;
+		if ( ring == null ) return result;
+		
+		for ( int i = 0; i < ring.length (); i++ )
+		{
+			Triple<String, Long, List<ONDEXConcept>> entry = ring.get ( i );
+			if ( entry != null ) result.add ( entry );
+		}
+		return result;
 	}
 	
+	/**
+	 * The no. of timed out batches tracked so far, including those dropped from {@link #timeoutLog}.
+	 */
+	long getTimeoutCount () {
+		return this.timeoutLogCount.get ();
+	}
+
+	/**
+	 * Used by the timeout bisection in {@link SinglePathQueryProcessor}, to keep track of the genes that 
+	 * time out even in the smallest batches that the bisection produces. 
+	 */
+	void trackUnresolvedTimeout ( String query, List<ONDEXConcept> startGenes )
+	{
+		if ( this.reportFrequency < 0 ) return; // tracking is disabled
+		
+		this.query2UnresolvedTimedOutGenes
+			.computeIfAbsent ( query, q -> ConcurrentHashMap.newKeySet () )
+			.addAll ( startGenes );
+	}
 
 	/**
 	 * Sends {@link #getStats()} to the logging system.
@@ -204,6 +427,7 @@ public class CyTraverserPerformanceTracker
 		
 		log.info ( "\n\n  -------------- Cypher Graph Traverser, Query Stats --------------\n{}", stats );
 		this.logTimeOuts ();
+		this.logHubGenes ();
 	}
 	
 	/**
@@ -215,7 +439,14 @@ public class CyTraverserPerformanceTracker
 	private void logTimeOuts ()
 	{
 		if ( this.timeoutReportPathTemplate == null ) return;
-		if ( this.timedOutQueries.size () == 0 ) return;
+		List<Triple<String, Long, List<ONDEXConcept>>> timedOutQueries = this.getTimeoutLog ();
+		if ( timedOutQueries.size () == 0 ) return;
+		
+		long ntimedOut = this.getTimeoutCount ();
+		if ( ntimedOut > timedOutQueries.size () ) log.warn ( 
+			"The timeout report has the last {} timed out batches only, out of {}, see timeoutReportMaxEntries", 
+			timedOutQueries.size (), ntimedOut 
+		);
 		
 		String reportPath = String.format (
 			timeoutReportPathTemplate,
@@ -227,7 +458,7 @@ public class CyTraverserPerformanceTracker
 		{
 			out.println ( "Query\tTimestamp\tGenes" );
 			
-			this.timedOutQueries
+			timedOutQueries
 			.stream ()
 			.map ( e ->
 			{
@@ -256,6 +487,53 @@ public class CyTraverserPerformanceTracker
 			throw new UncheckedIOException ( "Error while saving time out report: " + ex.getMessage (), ex );
 		}
 	}
+	
+	/**
+	 * Reports {@link #getHubGenes()} into the file {@link #hubGenesReportPathTemplate}, if this is non null, 
+	 * {@link #geneCostTracking} is enabled and there is any gene to report. 
+	 * 
+	 * This is invoked by {@link #logStats()}, like {@link #logTimeOuts()}.
+	 */
+	private void logHubGenes ()
+	{
+		if ( this.hubGenesReportPathTemplate == null || !this.isGeneCostTracking () ) return;
+		Map<String, List<Triple<ONDEXConcept, Long, Double>>> hubGenes = this.getHubGenes ();
+		if ( hubGenes.isEmpty () ) return;
+		
+		String reportPath = String.format (
+			hubGenesReportPathTemplate,
+			format ( System.currentTimeMillis (), "yyyyMMddHHmmss" )
+		);
+		log.info ( "Writing hub genes report to '{}'", reportPath );
+		
+		try ( PrintStream out = new PrintStream ( new FileOutputStream ( reportPath ) ) ) 
+		{
+			out.println ( "Query\tRank\tGene\tReturned Paths\tEst Time(ms)\t% Query Time" );
+			
+			for ( String query: new TreeSet<> ( hubGenes.keySet () ) )
+			{
+				QueryStats stats = this.query2Stats.get ( query );
+				long queryTime = stats.execTime.sum () + stats.timedOutTime.sum ();
+				int rank = 0;
+				for ( Triple<ONDEXConcept, Long, Double> hubGene: hubGenes.get ( query ) )
+				{
+					double geneTime = hubGene.getRight ();
+					out.printf ( 
+						"\"%s\"\t%d\t'%s'\t%d\t%#6.2f\t%#6.2f\n",
+						escapeJava ( query ),
+						++rank,
+						hubGene.getLeft ().getPID (),
+						hubGene.getMiddle (),
+						geneTime,
+						queryTime == 0 ? 0d : 100d * geneTime / queryTime
+					);
+				}
+			}
+		}
+		catch ( IOException ex ) {
+			throw new UncheckedIOException ( "Error while saving hub genes report: " + ex.getMessage (), ex );
+		}
+	}
 
 	
 	/**
@@ -275,21 +553,24 @@ public class CyTraverserPerformanceTracker
 		StringWriter statsSW = new StringWriter ();
 		PrintWriter out = new PrintWriter ( statsSW );
 		
-		final int nTotQueries = invocations.get ();
+		final long nTotQueries = invocations.sum ();
+		if ( nTotQueries == 0 ) return getEmptyStats ();
 		out.printf ( "Total queries issued: %s\n", nTotQueries );
-		if ( nTotQueries == 0 ) return statsSW.toString ();
 				
 		out.println (   
 			"Query\tTot Invocations\t% Timeouts\tTot Returned Paths\tAvg Ret Paths x Gene\tAvg Time(ms)\tAvg Path Len\tTot Time(min)" 
 		);
 		
-		SortedSet<String> queries = new TreeSet<> ( query2Invocations.keySet () );
+		SortedSet<String> queries = new TreeSet<> ( query2Stats.keySet () );
 		for ( String query: queries )
 		{
-			int nresults = query2Results.get ( query );
-			int nqueries = query2Invocations.get ( query );
-			int ntimeouts = query2Timeouts.get ( query );
-			int ncompleted = nqueries - ntimeouts;
+			QueryStats stats = query2Stats.get ( query );
+			long nresults = stats.results.sum ();
+			long nqueries = stats.invocations.sum ();
+			long ntimeouts = stats.timeouts.sum ();
+			long ncompleted = nqueries - ntimeouts;
+			long ngenes = stats.genes.sum ();
+			long execTime = stats.execTime.sum ();
 							
 			out.printf (
 				"\"%s\"\t%d\t%#6.2f\t%d\t%#6.2f\t%#6.2f\t%#6.2f\t%#6.2f\n",
@@ -297,28 +578,144 @@ public class CyTraverserPerformanceTracker
 				nqueries, // tot invocations
 				nqueries == 0 ? 0d : 100d * ntimeouts  / nqueries, // % timeouts
 				nresults, // tot returned paths
-				ncompleted == 0 ? 0d : 1d * nresults / ( ncompleted * this.queryBatchSize ), // avg ret paths x gene
-				ncompleted == 0 ? 0d : 1d * query2ExecTimes.get ( query ) / ncompleted, // avg time
-				nresults == 0 ? 0d : 1d * query2PathLens.get ( query ) / nresults, // avg path len
-				ncompleted == 0 ? 0 : query2ExecTimes.get ( query ) / ( 1000d * 60 ) // tot time
+				ngenes == 0 ? 0d : 1d * nresults / ngenes, // avg ret paths x gene
+				ncompleted == 0 ? 0d : 1d * execTime / ncompleted, // avg time
+				nresults == 0 ? 0d : 1d * stats.pathLens.sum () / nresults, // avg path len
+				ncompleted == 0 ? 0 : execTime / ( 1000d * 60 ) // tot time
 			);
 		}
 		out.println ( "" );
+		
+		out.print ( "Percentiles, for the batch times (ms), the paths per batch and the path lengths:\nQuery" );
+		for ( String metric: this.getHistograms ( queries.first () ).keySet () )
+		{
+			for ( double p: REPORTED_PERCENTILES ) out.printf ( "\t%s p%.0f", metric, p );
+			out.printf ( "\t%s max", metric );
+		}
+		out.println ();
+		for ( String query: queries )
+		{
+			out.printf ( "\"%s\"", escapeJava ( query ) );
+			for ( LatencyHistogram histo: this.getHistograms ( query ).values () )
+			{
+				for ( double p: REPORTED_PERCENTILES ) out.printf ( "\t%d", histo.getPercentile ( p ) );
+				out.printf ( "\t%d", histo.getCount () == 0 ? -1 : histo.getMax () );
+			}
+			out.println ();
+		}
+		out.println ( "" );
+		
+		if ( !query2UnresolvedTimedOutGenes.isEmpty () )
+		{
+			out.println ( "Genes that timed out after the timeout bisection:" );
+			out.println ( "Query\tNo. of Genes\tGenes" );
+			for ( String query: new TreeSet<> ( query2UnresolvedTimedOutGenes.keySet () ) )
+			{
+				Set<ONDEXConcept> genes = query2UnresolvedTimedOutGenes.get ( query );
+				out.printf ( 
+					"\"%s\"\t%d\t%s\n", 
+					escapeJava ( query ), 
+					genes.size (), 
+					genes.stream ()
+						.map ( concept -> '\'' + concept.getPID () + '\'' )
+						.sorted ()
+						.collect ( Collectors.joining ( ",", "[", "]" ) ) 
+				);
+			}
+			out.println ( "" );
+		}
+		
 		return statsSW.toString ();
 	}
 
 
 	/**
-	 * This reports a variant of {@link #timedOutQueries}, where its raw results are translated into
+	 * What {@link #getStats()} reports when no query was issued yet.
+	 */
+	public static String getEmptyStats () {
+		return "Total queries issued: 0\n";
+	}
+	
+	/**
+	 * The same percentiles reported by {@link #getStats()}, in a machine-readable form, ie, query -&gt; metric -&gt; value,
+	 * where the metrics are named like {@code batchTime.p50}, {@code batchTime.max}, {@code batchPaths.p90}, 
+	 * {@code pathLength.p99}. The batch times are in ms. A value is -1 if there are no samples for it yet. 
+	 * The result is empty if the tracking is disabled.
+	 */
+	public Map<String, Map<String, Long>> getPercentiles ()
+	{
+		Map<String, Map<String, Long>> result = new HashMap<> ();
+		if ( this.reportFrequency < 0 ) return result;
+		
+		for ( String query: query2Stats.keySet () )
+		{
+			Map<String, Long> metrics = new LinkedHashMap<> ();
+			this.getHistograms ( query ).forEach ( ( metric, histo ) -> 
+			{
+				for ( double p: REPORTED_PERCENTILES ) 
+					metrics.put ( String.format ( "%s.p%.0f", metric, p ), histo.getPercentile ( p ) );
+				metrics.put ( metric + ".max", histo.getCount () == 0 ? -1 : histo.getMax () );
+			});
+			result.put ( query, metrics );
+		}
+		return result;
+	}
+	
+	/**
+	 * The histograms about a query, indexed by the metric names used in {@link #getPercentiles()}.
+	 */
+	private Map<String, LatencyHistogram> getHistograms ( String query )
+	{
+		QueryStats stats = query2Stats.get ( query );
+		Map<String, LatencyHistogram> result = new LinkedHashMap<> ();
+		result.put ( "batchTime", stats.batchTimeHisto );
+		result.put ( "batchPaths", stats.batchPathsHisto );
+		result.put ( "pathLength", stats.pathLenHisto );
+		return result;
+	}
+
+	/**
+	 * The top {@link #hubGenesReportSize} genes per query, by estimated time, when {@link #geneCostTracking} is 
+	 * enabled, ie, query -&gt; list of (gene, no. of returned paths, estimated time in ms), see 
+	 * {@link #trackGeneCosts(String, List, Map, long)}. The time includes the timed out batches, see 
+	 * {@link #trackTimedOutGeneCosts(String, List, long)}, so the genes that only time out are here too, with 0 paths.
+	 * The result is empty if this tracking is disabled.
+	 */
+	public Map<String, List<Triple<ONDEXConcept, Long, Double>>> getHubGenes ()
+	{
+		Map<String, List<Triple<ONDEXConcept, Long, Double>>> result = new HashMap<> ();
+		if ( !this.isGeneCostTracking () ) return result;
+		
+		this.query2Stats.forEach ( ( query, stats ) -> 
+		{
+			if ( stats.geneCosts.isEmpty () ) return;
+			List<Triple<ONDEXConcept, Long, Double>> hubGenes = stats.geneCosts
+				.entrySet ()
+				.stream ()
+				.map ( e -> Triple.of ( e.getKey (), e.getValue ().paths.sum (), e.getValue ().timeUs.sum () / 1000d ) )
+				.sorted ( 
+					Comparator.comparing ( ( Triple<ONDEXConcept, Long, Double> t ) -> t.getRight () )
+					.thenComparing ( Triple::getMiddle )
+					.reversed () 
+				)
+				.limit ( this.hubGenesReportSize )
+				.collect ( Collectors.toList () );
+			result.put ( query, hubGenes );
+		});
+		return result;
+	}
+	
+	/**
+	 * This reports a variant of {@link #timeoutLog}, where its raw results are translated into
 	 * query -> all the ONDEX concepts that caused the query to fail. Note that this results misses the detail 
 	 * about the gene batches where a query invocation has timed out: all the batches about a query are put together
-	 * here.
+	 * here. Moreover, only the last {@link #timeoutReportMaxEntries} timed out batches are considered.
 	 */
 	public Map<String, Collection<ONDEXConcept>> getTimedOutQueries ()
 	{
 		Map<String, Collection<ONDEXConcept>> result = new HashMap<> ();
 		
-		this.timedOutQueries.forEach ( e ->
+		this.getTimeoutLog ().forEach ( e ->
 		{
 			String query = e.getLeft ();
 			List<ONDEXConcept> genes = e.getRight ();
@@ -331,6 +728,19 @@ public class CyTraverserPerformanceTracker
 	}
 	
 	
+	/**
+	 * The genes that time out even at the minimum batch size of the timeout bisection, see 
+	 * {@link #trackUnresolvedTimeout(String, List)}. Unlike {@link #getTimedOutQueries()}, these are the
+	 * individual genes that couldn't be traversed, not the whole batches where they were.
+	 */
+	public Map<String, Collection<ONDEXConcept>> getUnresolvedTimedOutGenes ()
+	{
+		Map<String, Collection<ONDEXConcept>> result = new HashMap<> ();
+		this.query2UnresolvedTimedOutGenes.forEach ( ( query, genes ) -> result.put ( query, new ArrayList<> ( genes ) ) );
+		return result;
+	}
+	
+	
 	public int getReportFrequency () {
 		return reportFrequency;
 	}
@@ -342,6 +752,28 @@ public class CyTraverserPerformanceTracker
 		this.reportFrequency = reportFrequency;
 	}
 
+	/**
+	 * Used for testing, the Spring configuration doesn't need it.
+	 */
+	void setGeneCostTracking ( boolean geneCostTracking ) {
+		this.geneCostTracking = geneCostTracking;
+	}
+
+	/**
+	 * Used for testing, the Spring configuration doesn't need it.
+	 */
+	void setHubGenesReportSize ( int hubGenesReportSize ) {
+		this.hubGenesReportSize = hubGenesReportSize;
+	}
+
+	/**
+	 * Used for testing. This is read when the {@link #timeoutLog} is created, ie, it doesn't change it
+	 * until the next {@link #reset()}.
+	 */
+	void setTimeoutReportMaxEntries ( int timeoutReportMaxEntries ) {
+		this.timeoutReportMaxEntries = timeoutReportMaxEntries;
+	}
+
 	/**
 	 * We need to set this programmatically, not just via Spring.
 	 * This invokes {@link #reset()}, so every stats is lost.
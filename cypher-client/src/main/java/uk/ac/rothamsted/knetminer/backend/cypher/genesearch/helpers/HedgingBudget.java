@@ -0,0 +1,49 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+/**
+ * <p>Caps the no. of hedged batches (see {@link SinglePathQueryProcessor}) to a ratio of the batches, so that
+ * the hedges can't overload Neo4j when it's slow across the board.</p>
+ *
+ * <p>This is a token bucket: every batch adds a fraction of token, up to a max, and every hedge costs a token.
+ * The tokens are counted in integer units of {@link #TOKEN}, to avoid rounding errors.</p>
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+class HedgingBudget
+{
+	private static final long TOKEN = 1000;
+
+	private final long batchTokens;
+	private final long maxTokens;
+	private long tokens;
+
+	/**
+	 * @param maxRatio the max no. of hedges per batch, eg, 0.05 means 5% of the batches can be hedged.
+	 * @param maxTokens the max no. of hedges that can be issued in a burst.
+	 */
+	HedgingBudget ( double maxRatio, double maxTokens )
+	{
+		this.batchTokens = Math.round ( maxRatio * TOKEN );
+		this.maxTokens = Math.max ( TOKEN, Math.round ( maxTokens * TOKEN ) );
+		this.tokens = 0;
+	}
+
+	/**
+	 * To be invoked for every batch.
+	 */
+	synchronized void onBatch () {
+		this.tokens = Math.min ( maxTokens, tokens + batchTokens );
+	}
+
+	/**
+	 * @return true if a new hedge is allowed, in which case, its token is consumed.
+	 */
+	synchronized boolean tryAcquire ()
+	{
+		if ( tokens < TOKEN ) return false;
+		tokens -= TOKEN;
+		return true;
+	}
+}
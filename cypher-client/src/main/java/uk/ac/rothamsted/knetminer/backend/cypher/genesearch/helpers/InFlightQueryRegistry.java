@@ -0,0 +1,124 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * <p>Keeps track of the (query, gene) units that are being queried by any traversal, so that concurrent traversals
+ * involving the same genes (eg, users searching overlapping gene lists) can join the pending result, rather than
+ * sending the same work to Neo4j again. This is used by {@link SinglePathQueryProcessor}, when the
+ * {@code queryCoalescing} option is on.</p>
+ *
+ * <p>The job that first {@link #join(Object, long, int, CompletableFuture) claims} a unit becomes its owner and
+ * it must {@link #complete(Object, long, int, CompletableFuture, List) complete} it in any case, possibly with a
+ * null result, if the query couldn't be completed (eg, it timed out). The other jobs get the owner's future and wait
+ * for it. Results are the paths found for the gene, as lists of Ondex IDs (like in {@link TraversalResultCache}).
+ * A unit is forgotten as soon as it's completed, ie, this isn't a cache.</p>
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+@Component
+class InFlightQueryRegistry
+{
+	private final Map<UnitKey, CompletableFuture<List<int[]>>> inFlightUnits = new ConcurrentHashMap<> ();
+
+	private final AtomicLong claims = new AtomicLong (), joins = new AtomicLong ();
+
+	private final Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+
+	private static final class UnitKey
+	{
+		private final Object scope;
+		private final long queryHash;
+		private final int geneId;
+
+		UnitKey ( Object scope, long queryHash, int geneId )
+		{
+			this.scope = scope;
+			this.queryHash = queryHash;
+			this.geneId = geneId;
+		}
+
+		@Override
+		public int hashCode () {
+			return Objects.hash ( System.identityHashCode ( scope ), queryHash, geneId );
+		}
+
+		@Override
+		public boolean equals ( Object obj )
+		{
+			if ( this == obj ) return true;
+			if ( !( obj instanceof UnitKey ) ) return false;
+			UnitKey other = (UnitKey) obj;
+			return scope == other.scope && queryHash == other.queryHash && geneId == other.geneId;
+		}
+	}
+
+
+	/**
+	 * Claims a (query, gene) unit.
+	 *
+	 * @param scope what the gene IDs refer to, ie, the Ondex graph. This is compared by identity.
+	 * @param ownFuture the future that the caller will complete if it becomes the unit owner.
+	 *
+	 * @return null if the caller is the owner of the unit, ie, it has to query it, or the pending future of the
+	 * current owner.
+	 */
+	CompletableFuture<List<int[]>> join (
+		Object scope, long queryHash, int geneId, CompletableFuture<List<int[]>> ownFuture
+	)
+	{
+		CompletableFuture<List<int[]>> result = this.inFlightUnits.putIfAbsent (
+			new UnitKey ( scope, queryHash, geneId ), ownFuture
+		);
+		( result == null ? claims : joins ).incrementAndGet ();
+		return result;
+	}
+
+	/**
+	 * Used by the owner of a unit to complete it and to release it.
+	 *
+	 * @param paths the paths found for the gene, null means the owner couldn't complete the query and the waiting
+	 * jobs have to query the gene on their own.
+	 */
+	void complete (
+		Object scope, long queryHash, int geneId, CompletableFuture<List<int[]>> ownFuture, List<int[]> paths
+	)
+	{
+		// Remove first, so that new jobs don't join a completed unit
+		this.inFlightUnits.remove ( new UnitKey ( scope, queryHash, geneId ), ownFuture );
+		ownFuture.complete ( paths );
+	}
+
+	/**
+	 * The no. of units currently being queried.
+	 */
+	int size () {
+		return this.inFlightUnits.size ();
+	}
+
+	/**
+	 * The no. of units that were joined, rather than queried again.
+	 */
+	long getJoins () {
+		return this.joins.get ();
+	}
+
+	void logStats ()
+	{
+		long joins = this.joins.get ();
+		if ( joins == 0 ) return;
+		log.info ( "Query coalescing, query x gene units queried: {}, joined in-flight: {}", claims.get (), joins );
+	}
+}
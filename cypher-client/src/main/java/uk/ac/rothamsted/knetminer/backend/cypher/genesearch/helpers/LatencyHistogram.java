@@ -0,0 +1,186 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * <p>A lock-free histogram of non-negative long values (eg, latencies in ms), in the style of HDR histograms:
+ * values up to {@link #LINEAR_LIMIT} have their own bucket, above that, every power-of-2 range is split into
+ * {@link #SUB_BUCKETS} linear buckets, so that the percentiles have a relative error within ~3%, whatever the
+ * value magnitude, using a fixed, small amount of memory.</p>
+ *
+ * <p>This is updated by all the query workers, so the updates are contention-free: the bucket counts are split into
+ * stripes, which are picked by thread and merged when the histogram is read, while the count, sum and max are
+ * {@link LongAdder}/{@link LongAccumulator} cells. The stripes are allocated when a thread needs them, so a
+ * histogram that is updated by a single thread only has one of them. Use {@link #recordAll(Collection, ToLongFunction)}
+ * to record many values at once (eg, the path lengths of a batch).</p>
+ *
+ * <p>This is used to track per-query stats, eg, to compute the batch latency percentiles in
+ * {@link SinglePathQueryProcessor}, or the percentiles reported by {@link CyTraverserPerformanceTracker}.</p>
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+class LatencyHistogram
+{
+	private static final int SUB_BUCKETS = 32;
+	private static final int SUB_BUCKET_BITS = 5;
+
+	/** Values below this are counted exactly */
+	private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+
+	/** Values above this are counted as this, it's about 12 days in ms */
+	private static final long MAX_VALUE = ( 1L << 40 ) - 1;
+
+	private static final int NBUCKETS = bucketIndex ( MAX_VALUE ) + 1;
+
+	/** A power of 2, so that a thread hash can be masked into a stripe index. */
+	private static final int NSTRIPES = Math.min ( 8, Integer.highestOneBit ( 
+		2 * Runtime.getRuntime ().availableProcessors () - 1 
+	));
+
+	/** The bucket counts, each stripe is an array of {@link #NBUCKETS} counts, which is created on first use. */
+	private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<> ( NSTRIPES );
+	private final LongAdder count = new LongAdder (), sum = new LongAdder ();
+	private final LongAccumulator max = new LongAccumulator ( Math::max, 0 );
+
+
+	void record ( long value )
+	{
+		value = clamp ( value );
+		getStripe ().incrementAndGet ( bucketIndex ( value ) );
+		count.increment ();
+		sum.add ( value );
+		max.accumulate ( value );
+	}
+
+	/**
+	 * Records the values of many items, by aggregating them locally first, so that the shared counters are updated
+	 * once per bucket, rather than once per value.
+	 */
+	<T> void recordAll ( Collection<T> items, ToLongFunction<T> valueFunction )
+	{
+		if ( items.isEmpty () ) return;
+		
+		// Plain counts, no boxing. Only the range of touched buckets is flushed, since the values of a batch are 
+		// usually close to each other (eg, path lengths)
+		long[] bucketCounts = new long [ NBUCKETS ];
+		int minBucket = NBUCKETS, maxBucket = -1;
+		long itemsSum = 0, itemsMax = 0;
+		for ( T item: items )
+		{
+			long value = clamp ( valueFunction.applyAsLong ( item ) );
+			int bucket = bucketIndex ( value );
+			bucketCounts [ bucket ]++;
+			if ( bucket < minBucket ) minBucket = bucket;
+			if ( bucket > maxBucket ) maxBucket = bucket;
+			itemsSum += value;
+			itemsMax = Math.max ( itemsMax, value );
+		}
+		
+		AtomicLongArray stripe = getStripe ();
+		for ( int i = minBucket; i <= maxBucket; i++ )
+			if ( bucketCounts [ i ] != 0 ) stripe.addAndGet ( i, bucketCounts [ i ] );
+		count.add ( items.size () );
+		sum.add ( itemsSum );
+		max.accumulate ( itemsMax );
+	}
+
+	/**
+	 * The value at a percentile (0-100), approximated by the upper bound of its bucket, but never more than the
+	 * {@link #getMax() max value}. Returns -1 if there are no values.
+	 */
+	long getPercentile ( double percentile )
+	{
+		// Merge the stripes, the total is computed from the merged counts, so that it's consistent with them
+		long[] counts = new long [ NBUCKETS ];
+		long n = 0;
+		for ( int s = 0; s < NSTRIPES; s++ )
+		{
+			AtomicLongArray stripe = stripes.get ( s );
+			if ( stripe == null ) continue;
+			for ( int i = 0; i < NBUCKETS; i++ )
+			{
+				long c = stripe.get ( i );
+				counts [ i ] += c;
+				n += c;
+			}
+		}
+		if ( n == 0 ) return -1;
+
+		long rank = Math.max ( 1, (long) Math.ceil ( percentile / 100d * n ) );
+		long seen = 0, maxValue = max.get ();
+		for ( int i = 0; i < NBUCKETS; i++ )
+		{
+			seen += counts [ i ];
+			// The max might not include a concurrent update yet
+			if ( seen >= rank ) return Math.min ( bucketUpperBound ( i ), Math.max ( maxValue, bucketLowerBound ( i ) ) );
+		}
+		// Shouldn't happen
+		return maxValue;
+	}
+
+	long getCount () {
+		return count.sum ();
+	}
+
+	long getMax () {
+		return max.get ();
+	}
+
+	long getSum () {
+		return sum.sum ();
+	}
+
+	double getMean ()
+	{
+		long n = count.sum ();
+		return n == 0 ? 0 : 1d * sum.sum () / n;
+	}
+
+	/**
+	 * The bucket stripe of the current thread, created if it doesn't exist yet.
+	 */
+	private AtomicLongArray getStripe ()
+	{
+		// Spread the thread IDs, which are often sequential, over the stripes
+		long id = Thread.currentThread ().getId () * 0x9E3779B97F4A7C15L;
+		int idx = (int) ( id >>> 32 ) & ( NSTRIPES - 1 );
+		
+		AtomicLongArray result = stripes.get ( idx );
+		if ( result != null ) return result;
+		
+		stripes.compareAndSet ( idx, null, new AtomicLongArray ( NBUCKETS ) );
+		return stripes.get ( idx );
+	}
+
+	private static long clamp ( long value ) {
+		return Math.max ( 0, Math.min ( value, MAX_VALUE ) );
+	}
+
+
+	static int bucketIndex ( long value )
+	{
+		if ( value < LINEAR_LIMIT ) return (int) value;
+		// So that value >> shift is in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+		int shift = 63 - Long.numberOfLeadingZeros ( value ) - SUB_BUCKET_BITS;
+		return LINEAR_LIMIT + ( shift - 1 ) * SUB_BUCKETS + (int) ( ( value >> shift ) - SUB_BUCKETS );
+	}
+
+	static long bucketLowerBound ( int index ) {
+		return index == 0 ? 0 : bucketUpperBound ( index - 1 ) + 1;
+	}
+
+	static long bucketUpperBound ( int index )
+	{
+		if ( index < LINEAR_LIMIT ) return index;
+		int shift = ( index - LINEAR_LIMIT ) / SUB_BUCKETS + 1;
+		long subBucket = ( index - LINEAR_LIMIT ) % SUB_BUCKETS + SUB_BUCKETS;
+		return ( ( subBucket + 1 ) << shift ) - 1;
+	}
+}
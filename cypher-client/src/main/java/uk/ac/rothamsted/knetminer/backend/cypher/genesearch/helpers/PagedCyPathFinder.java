@@ -1,8 +1,10 @@
 package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
 
+import java.time.Duration;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.UUID;
 import java.util.stream.Stream;
 
 import org.neo4j.driver.Value;
@@ -14,17 +16,24 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
+import com.google.common.util.concurrent.UncheckedTimeoutException;
+
 import uk.ac.ebi.utils.exceptions.ExceptionUtils;
+import uk.ac.rothamsted.knetminer.backend.cypher.CyPathProjection;
 import uk.ac.rothamsted.knetminer.backend.cypher.CypherClient;
 import uk.ac.rothamsted.knetminer.backend.cypher.CypherClientProvider;
 import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.CypherGraphTraverser;
+import uk.ac.rothamsted.knetminer.backend.cypher.jfr.QueryPageEvent;
 
 /**
  * <p>Support component for {@link CypherGraphTraverser} that manages Cypher queries against a Knetminer Neo4j database.</p>
  * 
  * <p>This uses {@link CypherClient#findPathIris(String, Value)} to get the path IRIs for a gene
- * that is reachable from the {@code query} parameter. Additionally, this method queries the Neo4j server 
- * in a paginated fashion, by fetching {@link #getPageSize()} paths per query.</p>
+ * that is reachable from the {@code query} parameter (or another {@link PathFetcher}, when the paths are 
+ * represented differently, eg, {@link #ondexIdFetcher(String) Ondex IDs}). Additionally, this method queries the 
+ * Neo4j server in a paginated fashion, by fetching {@link #queryPageSize} paths per query.</p>
+ * 
+ * <p>How pages are fetched depends on {@link #queryPagingMode}, see {@link PagingMode}.</p>
  * 
  * <p>Because this is used to process a single query sequentially, this method isn't thread-safe</p>
  *
@@ -33,13 +42,118 @@ import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.CypherGraphTraverser
  *
  */
 @Component @Scope ( "prototype" )
-class PagedCyPathFinder implements Iterator<List<String>>, AutoCloseable
+class PagedCyPathFinder<P> implements Iterator<P>, AutoCloseable
 {
+	/**
+	 * Defines how the paths are fetched from Neo4j and how they are represented.
+	 */
+	static interface PathFetcher<P>
+	{
+		Stream<P> fetch ( CypherClient client, String query, Value params );
+		
+		/**
+		 * The node/relation property that identifies the path entities, used for {@link CyPathProjection}.
+		 */
+		String getKeyProperty ();
+		
+		/**
+		 * The approximate size in bytes of a path, as it's received from Neo4j, used for {@link QueryPageEvent}.
+		 */
+		long getSize ( P path );
+	}
+	
+	/**
+	 * The default, paths as lists of IRIs, see {@link CypherClient#findPathIris(String, Value)}.
+	 */
+	static final PathFetcher<List<String>> IRI_FETCHER = new PathFetcher<> () 
+	{
+		@Override
+		public Stream<List<String>> fetch ( CypherClient client, String query, Value params ) {
+			return client.findPathIris ( query, params );
+		}
+
+		@Override
+		public String getKeyProperty () {
+			return "iri";
+		}
+
+		@Override
+		public long getSize ( List<String> path )
+		{
+			// IRIs are mostly ASCII, so chars ~ bytes
+			long result = 0;
+			for ( String iri: path ) result += iri.length ();
+			return result;
+		}
+	};
+	
+	/**
+	 * Paths as Ondex IDs, see {@link CypherClient#findPathOndexIds(String, Value, String)}.
+	 */
+	static PathFetcher<int[]> ondexIdFetcher ( String idProperty )
+	{
+		return new PathFetcher<> () 
+		{
+			@Override
+			public Stream<int[]> fetch ( CypherClient client, String query, Value params ) {
+				return client.findPathOndexIds ( query, params, idProperty );
+			}
+
+			@Override
+			public String getKeyProperty () {
+				return idProperty;
+			}
+
+			@Override
+			public long getSize ( int[] path ) {
+				return Integer.BYTES * path.length;
+			}
+		};
+	}
+	
+
+	/**
+	 * <p>The ways the semantic motif queries can be paginated.</p>
+	 * 
+	 * <p>There is no keyset mode (ie, {@code WHERE key > $lastKey ORDER BY key}): the path keys are computed by the 
+	 * query itself, so Neo4j would have to compute and sort all the remaining paths of the batch at every page, 
+	 * which doesn't improve {@link #OFFSET} for the genes with many paths. {@link #STREAMING} is the mode for them.</p>
+	 */
+	public static enum PagingMode 
+	{
+		/**
+		 * The original mode: the query is re-issued with {@code SKIP $offset LIMIT $pageSize} appended, so 
+		 * Neo4j needs to recompute all the paths before the offset at every new page.
+		 */
+		OFFSET,
+		
+		/**
+		 * No pagination at all: the query is run once per batch and its results are pulled lazily, in chunks of 
+		 * {@link PagedCyPathFinder#queryPageSize} records, by means of the driver's fetch size (see 
+		 * {@link CypherClientProvider#queryToStream(java.util.function.Function, long)}). This saves the 
+		 * round trips, query planning, sessions and transactions that {@link #OFFSET} needs for every page.
+		 * 
+		 * <p>This is the mode to use when there are genes with many paths: every page in {@link #OFFSET} mode has to 
+		 * recompute the paths that the previous pages already returned, while here every path is computed once.</p>
+		 */
+		STREAMING
+	}
 	
 	/** This is a configurable parameter */
 	@Autowired ( required = false ) @Qualifier ( "queryPageSize" )
 	private long queryPageSize = 2500;
 
+	/** 
+	 * If true, the queries returning a path are {@link CyPathProjection rewritten}, so that the path entity keys are 
+	 * extracted on the server side, rather than fetching whole paths. This is a configurable parameter.  
+	 */
+	@Autowired ( required = false ) @Qualifier ( "queryPathProjection" )
+	private boolean queryPathProjection = true;
+	
+	/** This is a configurable parameter, it's one of the {@link PagingMode} values. */
+	@Autowired ( required = false ) @Qualifier ( "queryPagingMode" )
+	private String queryPagingMode = PagingMode.OFFSET.name ();
+	
 	/**
 	 * Used internally to compose the Cypher queries
 	 */
@@ -48,26 +162,94 @@ class PagedCyPathFinder implements Iterator<List<String>>, AutoCloseable
 	private List<String> startGeneIris;
 	private String query;
 	
+	private PathFetcher<P> pathFetcher;
+	
+	private PagingMode pagingMode;
+	
 	@Autowired
 	private CypherClientProvider cypherClientProvider;
 	
 	
 	private long offset;
-	private Stream<List<String>> currentPageStream = null;
-	private Iterator<List<String>> currentPageIterator = null;
+	private volatile Stream<P> currentPageStream = null;
+	
+	/** With {@link PagingMode#STREAMING}, tells that the single query was already issued. */
+	private boolean isStreamStarted = false;
+	private Iterator<P> currentPageIterator = null;
 	
 	private boolean isClosed = false, isFinished = false;
 	
+	/** @see #cancel() */
+	private volatile boolean isCancelled = false;
+	
+	/** 
+	 * If it's not -1, the time (ms from epoch) within which the whole iteration must complete, see 
+	 * {@link #init(List, String, long)}.
+	 */
+	private long deadline = -1;
+	
+	/** @see #setAvoidedEndpoint(String) */
+	private String avoidedEndpoint = null;
+	
+	/** @see #getLastEndpoint() */
+	private volatile String lastEndpoint = null;
+	
+	/** Tags the Neo4j transactions of this finder, so that {@link #cancel()} can terminate them on the server */
+	private final String txTag = UUID.randomUUID ().toString ();
+	
+	/** @see #setQueryId(String) */
+	private String queryId = null;
+	
+	/** The JFR event about the current page, null if JFR isn't recording it */
+	private QueryPageEvent pageEvent = null;
+	
 	private Logger log = LoggerFactory.getLogger ( this.getClass () );
 
 	
-	public void init ( List<String> startGeneIris, String query )
+	/**
+	 * Prepares the iteration over the paths returned by query for the start genes.
+	 * 
+	 * @param pathFetcher how the paths are fetched and represented.
+	 * @param timeoutMs if it's not -1, the iteration over all the pages must be completed within this time,
+	 * which is used as server-side transaction timeout for the queries sent to Neo4j (see
+	 * {@link CypherClientProvider#queryToStream(java.util.function.Function, long, Duration)}). Every new page
+	 * gets the time that is left and {@link UncheckedTimeoutException} is thrown when there is no time left.  
+	 */
+	public void init ( 
+		PathFetcher<P> pathFetcher, List<String> startGeneIris, String query, long timeoutMs 
+	)
 	{
+		this.pathFetcher = pathFetcher;
 		this.startGeneIris = startGeneIris;
-		this.query = query;
+		
+		// We might receive a projection (eg, from StateMachine2CyTranslator), either way, we need the plain path
+		// query to apply the projection that fits the path fetcher.
+		this.query = CyPathProjection.toPathQuery ( query );
+		if ( this.queryPathProjection ) 
+			this.query = CyPathProjection.projectPathQuery ( this.query, pathFetcher.getKeyProperty () );
+
 		this.offset = -queryPageSize;
+		this.lastEndpoint = null;
+		this.deadline = timeoutMs == -1 ? -1 : System.currentTimeMillis () + timeoutMs;
+		
+		this.pagingMode = PagingMode.valueOf ( this.queryPagingMode.toUpperCase () );
 	}
 
+	/**
+	 * Uses {@link #IRI_FETCHER}, this is available for the finders of type {@code List<String>} only. 
+	 */
+	@SuppressWarnings ( "unchecked" )
+	public void init ( List<String> startGeneIris, String query, long timeoutMs ) {
+		init ( (PathFetcher<P>) IRI_FETCHER, startGeneIris, query, timeoutMs );
+	}
+	
+	/**
+	 * No timeout.
+	 */
+	public void init ( List<String> startGeneIris, String query ) {
+		init ( startGeneIris, query, -1 );
+	}
+	
 	/**
 	 * Issues the query with the current offset. @see {@link #hasNext()}.
 	 * @return true if it found a non-empty page. Else, invokes {@link #closePage()}, sets {@link #isFinished} and 
@@ -77,28 +259,90 @@ class PagedCyPathFinder implements Iterator<List<String>>, AutoCloseable
 	{
 		if ( this.isFinished ) return false; // you're calling me after both hasNext() and the last page said we're over.
 		
+		// A cancelled page might look exhausted, don't take it as the end of the results
+		this.checkNotCancelled ();
+		
 		// Close the current exhausted stream, which is going to be disposed (if non-null)
 		this.closePage ();
 		
-		offset += queryPageSize;
-		log.trace ( "offset: {} for query: {}", offset, query );
+		final Value params;
+		final String pagedQuery;
+		long fetchSize = -1;
 		
-		Value params = Values.parameters ( 
-			"startGeneIris", startGeneIris,
-			"offset", offset,
-			"pageSize", queryPageSize
-		); 
-					
-		String pagedQuery = query + PAGINATION_TRAIL;
+		if ( this.pagingMode == PagingMode.STREAMING )
+		{
+			// The single stream was exhausted, there is nothing else
+			if ( this.isStreamStarted ) {
+				this.isFinished = true;
+				return false;
+			}
+			
+			log.trace ( "streaming query: {}", query );
+			params = Values.parameters ( "startGeneIris", startGeneIris );
+			pagedQuery = query;
+			fetchSize = queryPageSize;
+			this.isStreamStarted = true;
+		}
+		else
+		{
+			offset += queryPageSize;
+			log.trace ( "offset: {} for query: {}", offset, query );
+			
+			params = Values.parameters ( 
+				"startGeneIris", startGeneIris,
+				"offset", offset,
+				"pageSize", queryPageSize
+			); 
+						
+			pagedQuery = query + PAGINATION_TRAIL;
+		}
 
+		Duration txTimeout = null;
+		if ( this.deadline != -1 )
+		{
+			long remainingMs = this.deadline - System.currentTimeMillis ();
+			if ( remainingMs <= 0 ) throwEx ( 
+				UncheckedTimeoutException.class, "The Cypher Path Finder has no time left to fetch a new page"
+			);
+			txTimeout = Duration.ofMillis ( remainingMs );
+		}
+		
+		QueryPageEvent event = new QueryPageEvent ();
+		if ( event.isEnabled () ) 
+		{
+			event.offset = this.offset;
+			event.begin ();
+			this.pageEvent = event;
+		}
+		
+		// After the first page, stick to its endpoint, since SKIP/LIMIT over unordered paths isn't stable across 
+		// different servers, ie, paths would be lost or duplicated
+		String pinnedEndpoint = this.lastEndpoint;
+		
 		this.currentPageStream = cypherClientProvider.queryToStream (
-			cyClient -> cyClient.findPathIris ( pagedQuery, params )
+			cyClient -> {
+				this.lastEndpoint = cyClient.getEndpointName ();
+				return pathFetcher.fetch ( cyClient, pagedQuery, params );
+			},
+			fetchSize,
+			txTimeout,
+			avoidedEndpoint,
+			pinnedEndpoint,
+			txTag
 		)
 		.sequential ();
+		
+		// Might have happened while we were creating the new stream, ie, before the server could see the 
+		// transaction to terminate.
+		if ( this.isCancelled ) this.checkNotCancelled ();
+		
 		this.currentPageIterator = currentPageStream.iterator ();
 		
 		if ( this.currentPageIterator.hasNext () ) return true;
 		
+		// As above, it might have been cancelled while we were waiting for the first records
+		this.checkNotCancelled ();
+		
 		// else, no more pages, let's close and mark it's all over
 		this.closePage ();
 		this.isFinished = true;
@@ -122,6 +366,15 @@ class PagedCyPathFinder implements Iterator<List<String>>, AutoCloseable
 		// You're still calling me after the last empty page 
 		if ( this.isFinished ) return false;
 		
+		this.checkNotCancelled ();
+		
+		// Stop pulling records, since they're going to be discarded
+		if ( Thread.currentThread ().isInterrupted () ) 
+		{
+			this.close ();
+			throwEx ( IllegalStateException.class, "The Cypher Path Finder thread was interrupted" );
+		}
+		
 		// get a first iterator if it's the first time we're called
 		if ( this.currentPageIterator == null ) return this.nextPage ();
 		// or check the current iterator if it was already created by previous calls, possibly advance
@@ -130,16 +383,20 @@ class PagedCyPathFinder implements Iterator<List<String>>, AutoCloseable
 	}
 
 	@Override
-	public List<String> next ()
+	public P next ()
 	{		
 		if ( !this.hasNext () ) throwEx ( 
 			NoSuchElementException.class, "Cypher Path Finder has no more items (hasNext() == false)"
 		);
 			
 		// If you call it at the appropriate time, it was prepared by the hasNext() method above
-		return currentPageIterator.next ();
+		P result = currentPageIterator.next ();
+		if ( this.pageEvent != null ) {
+			this.pageEvent.rows++;
+			this.pageEvent.bytes += pathFetcher.getSize ( result );
+		}
+		return result;
 	}
-
 	
 	@Override
 	public void close ()
@@ -149,15 +406,103 @@ class PagedCyPathFinder implements Iterator<List<String>>, AutoCloseable
 		this.isClosed = this.isFinished = true;
 	}
 	
+	/**
+	 * <p>Cancels the iteration, by terminating the current page query on the Neo4j server (see 
+	 * {@link CypherClientProvider#terminateTransactions(String, String)}). This makes the iterating thread get an 
+	 * error from the page it's reading, after which the iteration methods throw an exception and the iterating 
+	 * thread itself releases the transaction and session, since the Neo4j sessions aren't thread-safe.</p> 
+	 * 
+	 * <p>Unlike the other methods, this is supposed to be invoked by a thread other than the one that is iterating, 
+	 * typically a timeout watchdog or the traversal interruption, and its purpose is to release the server resources 
+	 * held by a query that we don't want anymore. It requires a server round trip. If the termination fails 
+	 * (eg, Neo4j &lt; 4.4), the query goes on until the transaction timeout set by {@link #init(List, String, long)}.</p>
+	 */
+	void cancel ()
+	{
+		// Set it before reading lastEndpoint, a page started after this is stopped by the check in nextPage()
+		this.isCancelled = true;
+		String endpoint = this.lastEndpoint;
+		if ( endpoint != null ) cypherClientProvider.terminateTransactions ( endpoint, txTag );
+	}
+	
+	boolean isCancelled () {
+		return isCancelled;
+	}
+	
+	/**
+	 * If set, the queries go to a Neo4j endpoint other than this, if available (see 
+	 * {@link CypherClientProvider#queryToStream(java.util.function.Function, long, Duration, String)}). This is used
+	 * for the hedged batches, see {@link SinglePathQueryProcessor}.
+	 */
+	void setAvoidedEndpoint ( String avoidedEndpoint ) {
+		this.avoidedEndpoint = avoidedEndpoint;
+	}
+
+	/**
+	 * Identifies the query in the JFR events, see {@link QueryPageEvent}. 
+	 */
+	void setQueryId ( String queryId ) {
+		this.queryId = queryId;
+	}
+
+	/**
+	 * The Neo4j endpoint that the last page query was sent to, null if no query was sent yet. All the pages go to the
+	 * endpoint of the first one.
+	 */
+	String getLastEndpoint () {
+		return lastEndpoint;
+	}
+
+	void setCypherClientProvider ( CypherClientProvider cypherClientProvider ) {
+		this.cypherClientProvider = cypherClientProvider;
+	}
+
+	void setQueryPageSize ( long queryPageSize ) {
+		this.queryPageSize = queryPageSize;
+	}
+
+	void setQueryPagingMode ( String queryPagingMode ) {
+		this.queryPagingMode = queryPagingMode;
+	}
+
+	void setQueryPathProjection ( boolean queryPathProjection ) {
+		this.queryPathProjection = queryPathProjection;
+	}
+
+	private void checkNotCancelled ()
+	{
+		if ( !this.isCancelled ) return;
+		this.close ();
+		throwEx ( IllegalStateException.class, "The Cypher Path Finder was cancelled" );
+	}
+	
 	private void closePage ()
 	{
-		if ( this.currentPageIterator == null ) return;
+		this.commitPageEvent ();
+		
+		if ( this.currentPageStream == null ) return;
 		this.currentPageStream.close ();
 		this.currentPageIterator = null;
 		this.currentPageStream = null;
 	}
 	
 	
+	private void commitPageEvent ()
+	{
+		QueryPageEvent event = this.pageEvent;
+		if ( event == null ) return;
+		this.pageEvent = null;
+		
+		event.end ();
+		if ( !event.shouldCommit () ) return;
+		event.queryId = this.queryId;
+		event.pagingMode = this.pagingMode.name ();
+		event.endpoint = this.lastEndpoint;
+		event.cancelled = this.isCancelled;
+		event.commit ();
+	}
+	
+	
 	/**
 	 * A template to report exceptions, adds query and gene to the prefixMsg.
 	 */
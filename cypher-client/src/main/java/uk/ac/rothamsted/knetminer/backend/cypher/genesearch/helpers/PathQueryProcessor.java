@@ -1,12 +1,19 @@
 package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
 
-import static java.lang.Math.ceil;
-
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,12 +27,18 @@ import org.springframework.stereotype.Component;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import net.sourceforge.ondex.algorithm.graphquery.nodepath.EvidencePathNode;
 import net.sourceforge.ondex.core.ONDEXConcept;
 import net.sourceforge.ondex.core.ONDEXGraph;
-import uk.ac.ebi.utils.runcontrol.PercentProgressLogger;
+import uk.ac.ebi.utils.exceptions.ExceptionUtils;
+import uk.ac.rothamsted.knetminer.backend.cypher.CypherClient;
+import uk.ac.rothamsted.knetminer.backend.cypher.CypherClient.PathResolutionMode;
+import uk.ac.rothamsted.knetminer.backend.cypher.CypherClientProvider;
 import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.CypherGraphTraverser;
+import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers.TraversalContext.Priority;
+import uk.ac.rothamsted.neo4j.utils.GenericNeo4jException;
 
 /**
  * An helper for {@link CypherGraphTraverser}, which manages {@link SinglePathQueryProcessor}-s, by dispatching the 
@@ -34,6 +47,16 @@ import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.CypherGraphTraverser
  * one {@link SinglePathQueryProcessor} per query configured in {@link #semanticMotifsQueries} (via Spring).
  * 
  * The query-specific path processors are cached in this class, in order to avoid performance problems.
+ * 
+ * The gene batches of all the queries are run by a single scheduler, which submits all the query x batch jobs to the
+ * same thread pool, starting from the queries that are expected to be the slowest, based on the previous traversals.
+ * This way, the pool keeps working at full capacity until the end of the traversal, rather than waiting for the 
+ * last batches of each query to complete, before starting with the next query. The pool has a lane per 
+ * {@link Priority traversal priority}, so that interactive traversals don't wait for bulk traversals, see 
+ * {@link QueryJobDispatcher}.
+ * 
+ * This component is shared by all the traversals, which can run in parallel. Everything that is specific of a
+ * traversal (interruption, progress, stats) is kept in a {@link TraversalContext} that is created per traversal.
  *
  * @author brandizi
  * <dl><dt>Date:</dt><dd>28 Nov 2019</dd></dl>
@@ -46,14 +69,158 @@ public class PathQueryProcessor implements ApplicationContextAware
 	@Autowired @Qualifier ( "semanticMotifsQueries" )
 	private List<String> semanticMotifsQueries; 
 
-	@Autowired
-	private CyTraverserPerformanceTracker cyTraverserPerformanceTracker;
-
 	/** This is a configurable parameter */
 	@Autowired ( required = false) @Qualifier ( "queryBatchSize" ) 
 	private long queryBatchSize = SinglePathQueryProcessor.DEFAULT_QUERY_BATCH_SIZE;
 
 	
+	/**
+	 * The pool size used to send semantic motif queries in parallel to Neo4j.
+	 * 
+	 * Namely, this is used with {@link QueryJobDispatcher}, together with {@link #threadQueueSize}, ie, we use a fixed
+	 * number of active threads, and a fixed number of thread queue (per priority lane).
+	 * 
+	 * If this value is -1, the default is {@link Runtime#availableProcessors()}.
+	 * If {@link #threadQueueSize} is -1, it's set to the default of {@link #threadPoolSize} * 2.
+	 * 
+	 * This is a configurable parameter, but we have it so just to test performance issues with Neo4j, it's unlikely
+	 * you will need to change the defaults.
+	 * 
+	 */
+	@Autowired ( required = false ) @Qualifier ( "queryThreadPoolSize" )
+	private int threadPoolSize = -1;
+	
+	/**
+	 * @see #threadPoolSize
+	 */
+	@Autowired ( required = false ) @Qualifier ( "queryThreadQueueSize" )
+	private int threadQueueSize = -1;
+	
+	/**
+	 * The traversals with at least this no. of genes are considered {@link Priority#BULK bulk}, unless their context
+	 * has {@link TraversalContext#setPriority(Priority) an explicit priority}. This is a configurable parameter.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "bulkTraversalMinGenes" )
+	private long bulkTraversalMinGenes = 5000;
+	
+	/**
+	 * The max no. of threads that can run {@link Priority#BULK bulk} jobs while there is interactive work, see 
+	 * {@link QueryJobDispatcher}. This is a configurable parameter, -1 means 1/4 of {@link #threadPoolSize}.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "bulkQueryThrottledThreads" )
+	private int bulkQueryThrottledThreads = -1;
+	
+	/**
+	 * Where the query jobs run, one of the {@link QueryJobDispatcher.ExecutorMode} values. With 
+	 * {@link QueryJobDispatcher.ExecutorMode#VIRTUAL VIRTUAL}, every job runs on its own virtual thread, and
+	 * {@link #queryMaxConcurrency} is used instead of {@link #threadPoolSize}. If virtual threads aren't available
+	 * (ie, before Java 21), the PLATFORM mode is used, with {@link #threadPoolSize}. This is a configurable parameter.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "queryExecutorMode" )
+	private String queryExecutorMode = QueryJobDispatcher.ExecutorMode.PLATFORM.name ();
+
+	/**
+	 * The max no. of query jobs running at the same time in the {@link #queryExecutorMode virtual threads mode}. 
+	 * This is a configurable parameter, -1 means the same as {@link #threadPoolSize}.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "queryMaxConcurrency" )
+	private int queryMaxConcurrency = -1;
+	
+	/**
+	 * If true, the no. of query jobs running at the same time is adapted to the Neo4j server latency, between 
+	 * {@link #adaptiveQueryConcurrencyMin} and {@link #threadPoolSize} (or {@link #queryMaxConcurrency}), see
+	 * {@link AdaptiveConcurrencyLimiter}. This is a configurable parameter.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "adaptiveQueryConcurrency" )
+	private boolean adaptiveQueryConcurrency = false;
+
+	/** @see #adaptiveQueryConcurrency. This is a configurable parameter. */
+	@Autowired ( required = false ) @Qualifier ( "adaptiveQueryConcurrencyMin" )
+	private int adaptiveQueryConcurrencyMin = 2;
+
+	/**
+	 * The default time within which a whole traversal must complete, used when the traversal context doesn't set its 
+	 * own (see {@link TraversalContext#setTimeoutMs(long)}). This is a configurable parameter, -1 (the default) means 
+	 * no limit.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "traversalTimeoutMs" )
+	private long traversalTimeoutMs = -1;
+	
+	/** 
+	 * If true, the slow query batches are hedged, ie, sent a second time to another Neo4j endpoint, using the 
+	 * first result that arrives, see {@link SinglePathQueryProcessor}. This has effect only when there are multiple 
+	 * endpoints (see {@link CypherClientProvider}). This is a configurable parameter.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "queryHedging" )
+	private boolean queryHedging = false;
+
+	/** 
+	 * @see #queryHedging, the max ratio of batches that can be hedged, see {@link HedgingBudget}. This is a 
+	 * configurable parameter. 
+	 */
+	@Autowired ( required = false ) @Qualifier ( "queryHedgingMaxRatio" )
+	private double queryHedgingMaxRatio = 0.05;
+
+	/** 
+	 * If true (the default), the {@link TraverserMetrics live metrics} are published via JMX. This is a configurable 
+	 * parameter.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "metricsJmx" )
+	private boolean metricsJmx = true;
+
+	/** 
+	 * If it's not -1 (the default), the {@link TraverserMetrics live metrics} are published in the Prometheus text 
+	 * format, at {@link TraverserMetrics#HTTP_PATH} on this port. This is a configurable parameter.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "metricsHttpPort" )
+	private int metricsHttpPort = -1;
+
+	/** 
+	 * The host name or IP that the {@link #metricsHttpPort metrics endpoint} is bound to. This is a configurable 
+	 * parameter. By default, it's the loopback interface, since the endpoint has no authentication and it publishes 
+	 * the queries, use {@code 0.0.0.0} to bind all the interfaces.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "metricsHttpHost" )
+	private String metricsHttpHost = "127.0.0.1";
+
+	/** @see SinglePathQueryProcessor. This is a configurable parameter. */
+	@Autowired ( required = false ) @Qualifier ( "pathResolutionMode" )
+	private String pathResolutionMode = PathResolutionMode.IRI.name ();
+
+	/** @see SinglePathQueryProcessor. This is a configurable parameter. */
+	@Autowired ( required = false ) @Qualifier ( "ondexIdProperty" )
+	private String ondexIdProperty = CypherClient.DEFAULT_ONDEX_ID_PROPERTY;
+
+	@Autowired
+	private CypherClientProvider cypherClientProvider;
+	
+	@Autowired
+	private TraversalResultCache resultCache;
+	
+	@Autowired
+	private InFlightQueryRegistry inFlightRegistry;
+	
+	/**
+	 * With {@link PathResolutionMode#ONDEX_ID}, we check that every graph is 
+	 * {@link CypherClient#checkOndexIdAlignment(ONDEXGraph, String, int) aligned} to Neo4j once, and we cache the 
+	 * result here.
+	 */
+	private final LoadingCache<ONDEXGraph, Boolean> ondexIdAlignedGraphs = CacheBuilder
+		.newBuilder ()
+		.weakKeys ()
+		.build ( CacheLoader.from ( 
+			graph -> cypherClientProvider.query ( client -> client.checkOndexIdAlignment ( graph, ondexIdProperty, 1000 ) ) 
+		));
+	
+	/**
+	 * All the query jobs go to this dispatcher. This is static in order to avoid too much load on Neo4j in case of 
+	 * multiple Spring contexts. It's initialised (once) by {@link #init()}.
+	 */
+	private static QueryJobDispatcher SHARED_DISPATCHER;
+	
+	/** Shared by all the queries, not null when {@link #queryHedging} is set. */
+	private HedgingBudget hedgingBudget = null;
+	
 	private LoadingCache<String, SinglePathQueryProcessor> processorCache = 
 		CacheBuilder.newBuilder ()
 		.maximumSize ( 1000 )
@@ -64,6 +231,11 @@ public class PathQueryProcessor implements ApplicationContextAware
 			{
 				SinglePathQueryProcessor result = springContext.getBean ( SinglePathQueryProcessor.class );
 				result.setPathQuery ( pathQuery );
+				result.setConcurrencyLimiter ( SHARED_DISPATCHER.getLimiter () );
+				result.setJobDispatcher ( SHARED_DISPATCHER );
+				// Hedging needs a different endpoint to send the hedge to
+				if ( hedgingBudget != null && cypherClientProvider.getReadEndpointsCount () > 1 ) 
+					result.setHedgingBudget ( hedgingBudget );
 				return result;
 			} 
 		});
@@ -71,67 +243,300 @@ public class PathQueryProcessor implements ApplicationContextAware
 	// Protected allows inner classes to access without synthetic methods
 	protected ApplicationContext springContext;
 	
-	private boolean isInterrupted = false; 
+	/** The traversals that are running, used by {@link #interrupt()} */
+	private final Set<TraversalContext> activeContexts = ConcurrentHashMap.newKeySet ();
+	
+	private TraverserMetrics metrics;
 	
-	private PercentProgressLogger queryProgressLogger = null;
-			
 	private Logger log = LoggerFactory.getLogger ( this.getClass () );
 
 	
 	public PathQueryProcessor () {
 	}
 	
+	@PostConstruct
+	private void init ()
+	{
+		this.threadPoolSize = threadPoolSize != -1 ? threadPoolSize : Runtime.getRuntime().availableProcessors();
+		this.threadQueueSize = threadQueueSize != -1 ? threadQueueSize : threadPoolSize * 2;
+		QueryJobDispatcher.ExecutorMode executorMode = 
+			QueryJobDispatcher.ExecutorMode.valueOf ( this.queryExecutorMode.toUpperCase () );
+		
+		// Else, queryMaxConcurrency would become the no. of platform threads, which is likely too high 
+		if ( executorMode == QueryJobDispatcher.ExecutorMode.VIRTUAL && !QueryJobDispatcher.isVirtualThreadsAvailable () )
+		{
+			log.warn ( 
+				"queryExecutorMode is VIRTUAL, but virtual threads aren't available in this JVM (they need Java 21), "
+				+ "falling back to the PLATFORM mode, with {} threads (queryMaxConcurrency is ignored)", 
+				this.threadPoolSize 
+			);
+			executorMode = QueryJobDispatcher.ExecutorMode.PLATFORM;
+		}
+		
+		int concurrency = executorMode == QueryJobDispatcher.ExecutorMode.VIRTUAL && this.queryMaxConcurrency != -1 
+			? this.queryMaxConcurrency : this.threadPoolSize;
+		
+		this.bulkQueryThrottledThreads = bulkQueryThrottledThreads != -1 
+			? bulkQueryThrottledThreads : Math.max ( 1, concurrency / 4 );
+		
+		// Bursts up to 1/4 of the jobs can be hedged
+		if ( this.queryHedging ) 
+			this.hedgingBudget = new HedgingBudget ( this.queryHedgingMaxRatio, Math.max ( 1, concurrency / 4 ) );
+		
+		this.metrics = new TraverserMetrics ( this, this.cypherClientProvider );
+		if ( this.metricsJmx ) this.metrics.registerJmx ();
+		if ( this.metricsHttpPort != -1 ) this.metrics.startHttpEndpoint ( this.metricsHttpHost, this.metricsHttpPort );
+				
+		synchronized ( PathQueryProcessor.class ) 
+		{
+			if ( SHARED_DISPATCHER != null ) return;
+			AdaptiveConcurrencyLimiter limiter = this.adaptiveQueryConcurrency 
+				? new AdaptiveConcurrencyLimiter ( this.adaptiveQueryConcurrencyMin, concurrency )
+				: new AdaptiveConcurrencyLimiter ( concurrency );
+			SHARED_DISPATCHER = new QueryJobDispatcher ( 
+				executorMode, limiter, concurrency, threadQueueSize, bulkQueryThrottledThreads, 
+				SinglePathQueryProcessor.class.getSimpleName ()
+			);
+		}
+	}
+	
+	/**
+	 * Creates a new context, to be used with {@link #process(TraversalContext, ONDEXGraph, Collection)}. The context
+	 * has its own {@link CyTraverserPerformanceTracker}, which is configured with the current 
+	 * {@link #getSemanticMotifsQueries() queries}.
+	 */
+	public TraversalContext newContext ()
+	{
+		CyTraverserPerformanceTracker performanceTracker = springContext.getBean ( CyTraverserPerformanceTracker.class );
+		performanceTracker.setSemanticMotifsQueries ( this.semanticMotifsQueries );
+		return new TraversalContext ( performanceTracker );
+	}
+	
+	/**
+	 * Runs a traversal with {@link #newContext() a new context}.
+	 */
+	@SuppressWarnings ( { "rawtypes" } )
+	public Map<ONDEXConcept, List<EvidencePathNode>> process ( ONDEXGraph graph, Collection<ONDEXConcept> concepts )
+	{
+		return process ( newContext (), graph, concepts );
+	}
+	
 	/**
 	 * This is the entry point used by 
 	 * {@link CypherGraphTraverser#traverseGraph(ONDEXGraph, java.util.Set, net.sourceforge.ondex.algorithm.graphquery.FilterPaths)}.
+	 * 
+	 * The context is used for this traversal only, and it can be used to interrupt the traversal or to check its 
+	 * progress from another thread. Multiple invocations of this method can run in parallel, using different contexts.
 	 */
 	@SuppressWarnings ( { "rawtypes" } )
-	public Map<ONDEXConcept, List<EvidencePathNode>> process ( ONDEXGraph graph, Collection<ONDEXConcept> concepts )
+	public Map<ONDEXConcept, List<EvidencePathNode>> process ( 
+		TraversalContext context, ONDEXGraph graph, Collection<ONDEXConcept> concepts 
+	)
 	{
-		this.isInterrupted = false;
-
 		if ( this.semanticMotifsQueries == null || this.semanticMotifsQueries.isEmpty () ) {
 			log.warn ( "We don't have any configured Cypher query to run the traverser! Returning empty result" );
 			return new ConcurrentHashMap<> ( 0 );
 		}
 		
-		int threadPoolSize = 
-			this.processorCache.getUnchecked ( this.semanticMotifsQueries.iterator ().next () )
-			.getThreadPoolSize ();
-
 		doLogConfig ();
 		
+		if ( PathResolutionMode.ONDEX_ID.name ().equalsIgnoreCase ( this.pathResolutionMode ) 
+				 && !this.ondexIdAlignedGraphs.getUnchecked ( graph ) )
+			ExceptionUtils.throwEx ( 
+				IllegalStateException.class, 
+				"The Neo4j database isn't aligned to the Ondex graph, so the path resolution mode %s can't be used (see "
+				+ "the log for details). Check the database or use %s",
+				PathResolutionMode.ONDEX_ID.name (), PathResolutionMode.IRI.name ()
+			);
+		
+		this.resultCache.open ( graph );
+		
 		int nconcepts = concepts.size ();
 		
 		Map<ONDEXConcept, List<EvidencePathNode>> result = new ConcurrentHashMap<> ( nconcepts, 0.75f, threadPoolSize );
-		this.cyTraverserPerformanceTracker.reset ();
 		
-		queryProgressLogger = new PercentProgressLogger ( 
-			"{}% of graph traversing queries processed",
-			(long) ceil ( 1.0 * concepts.size () / this.queryBatchSize ) * semanticMotifsQueries.size (),
-			10
-		);
-			
-		this.semanticMotifsQueries
-		.stream ()
-		.forEach ( query -> 
-		{
-			if ( isInterrupted ) return;
-			SinglePathQueryProcessor thisQueryProc = this.processorCache.getUnchecked ( query );
-			thisQueryProc.process ( graph, concepts, result, queryProgressLogger ); 
-		});
+		if ( context.getPriority () == null ) 
+			context.setPriority ( nconcepts >= this.bulkTraversalMinGenes ? Priority.BULK : Priority.INTERACTIVE );
+		log.info ( "Traversing {} gene(s) with {} priority", nconcepts, context.getPriority () );
 		
+		if ( context.getTimeoutMs () == -1 ) context.setTimeoutMs ( this.traversalTimeoutMs );
+
+		// We count the progress in terms of query x gene units, since batch sizes might change while we go
+		context.start ( graph, result, (long) nconcepts * semanticMotifsQueries.size () );
+		
+		this.activeContexts.add ( context );
+		try {
+			this.processQueries ( context, concepts );
+		}
+		finally {
+			this.activeContexts.remove ( context );
+		}
+		
+		if ( context.isInterrupted () ) log.debug ( "Cypher traverser was interrupted" );
+		else if ( !context.isComplete () ) log.warn ( 
+			"The Cypher traverser deadline of {} ms expired, returning partial results", context.getTimeoutMs () 
+		);
 		
 		log.info ( "Cypher traverser finished" );
 		
-		Map<String, Collection<ONDEXConcept>> timedOutQueries = cyTraverserPerformanceTracker.getTimedOutQueries ();
+		CyTraverserPerformanceTracker performanceTracker = context.getPerformanceTracker ();
+		Map<String, Collection<ONDEXConcept>> timedOutQueries = performanceTracker.getTimedOutQueries ();
 		if ( !timedOutQueries.isEmpty () )
 			log.warn ( "Some queries couldn't complete, see the summary statistics (must be enabled)" );
-		this.cyTraverserPerformanceTracker.logStats ();
+		performanceTracker.logStats ();
+		this.resultCache.logStats ();
+		this.inFlightRegistry.logStats ();
+		this.cypherClientProvider.logStats ();
+		
+		AdaptiveConcurrencyLimiter limiter = SHARED_DISPATCHER.getLimiter ();
+		if ( limiter.isAdaptive () ) log.info ( "Current query concurrency limit: {}", limiter.getLimit () );
 		
 		return result;
 	}
 	
+	/**
+	 * Schedules all the query x batch jobs for {@link #process(TraversalContext, ONDEXGraph, Collection)} and waits
+	 * for them.
+	 */
+	private void processQueries ( TraversalContext context, Collection<ONDEXConcept> concepts )
+	{
+		int nconcepts = concepts.size ();
+		
+		// Most expensive first, the unknown ones are considered expensive.
+		List<SinglePathQueryProcessor> queryProcs = this.semanticMotifsQueries
+			.stream ()
+			.map ( this.processorCache::getUnchecked )
+			.sorted ( Comparator.comparingDouble ( 
+				(SinglePathQueryProcessor qproc) -> qproc.getExpectedGeneCost () == -1 
+					? Double.MAX_VALUE 
+					: qproc.getExpectedGeneCost () 
+				).reversed () 
+			)
+			.collect ( Collectors.toList () );
+		
+		// Batches are sublist views, so we need random access
+		List<ONDEXConcept> conceptsList = new ArrayList<> ( concepts );
+
+		// Submit everything. The executor blocks when its queue is full, so jobs are released gradually, and the
+		// adaptive batch sizes are read as late as possible. 
+		List<Future<?>> jobs = new ArrayList<> ();
+		for ( SinglePathQueryProcessor queryProc: queryProcs )
+		{
+			// Only query the genes that aren't in the cache
+			List<ONDEXConcept> queryConcepts = queryProc.resolveFromCache ( context, conceptsList );
+			int nqueryConcepts = queryConcepts.size ();
+			if ( nqueryConcepts < nconcepts ) context.updateProgress ( nconcepts - nqueryConcepts );
+			
+			for ( int i = 0; i < nqueryConcepts && !context.isInterrupted (); )
+			{
+				// No point with submitting more work, the jobs would skip it anyway
+				if ( context.isDeadlineExpired () ) {
+					context.markIncomplete ();
+					break;
+				}
+				List<ONDEXConcept> batch = queryConcepts.subList ( i, Math.min ( nqueryConcepts, i + queryProc.getBatchSize () ) );
+				i += batch.size ();
+				jobs.add ( submitQueryJob ( context, context.getPriority (), queryProc, batch, false ) );
+			}
+		}
+		waitQueryJobs ( jobs );
+		
+		this.retryTimedOutBatches ( context, queryProcs );
+	}
+	
+	
+	/**
+	 * Submits a query batch job to {@link #SHARED_DISPATCHER}, in the lane of the given priority.
+	 *  
+	 * @param isRetry true for the halves of a timed out batch (see {@link #retryTimedOutBatches(TraversalContext, List)}),
+	 * which don't update the context progress, since their genes were already counted, and don't feed the runtime 
+	 * adaptation of the query (see {@link SinglePathQueryProcessor#queryJob(TraversalContext, List, boolean)}).
+	 */
+	private Future<?> submitQueryJob ( 
+		TraversalContext context, Priority priority, SinglePathQueryProcessor queryProc, List<ONDEXConcept> batch, 
+		boolean isRetry 
+	)
+	{
+		return SHARED_DISPATCHER.submit ( priority, () -> 
+		{
+			if ( context.isInterrupted () ) return;
+			// It was queued for too long
+			if ( context.isDeadlineExpired () ) {
+				context.markIncomplete ();
+				return;
+			}
+			queryProc.queryJob ( context, batch, isRetry );
+			if ( !isRetry ) context.updateProgress ( batch.size () );
+		});
+	}
+	
+	/**
+	 * Waits for all the jobs to complete and then re-throws the first error they have raised, if any.
+	 */
+	private void waitQueryJobs ( List<Future<?>> jobs )
+	{
+		Throwable error = null;
+		for ( Future<?> job: jobs )
+		{
+			try {
+				Uninterruptibles.getUninterruptibly ( job );
+			}
+			catch ( ExecutionException ex ) {
+				if ( error == null ) error = ex.getCause ();
+			}
+		}
+		if ( error == null ) return;
+		if ( error instanceof RuntimeException ) throw (RuntimeException) error;
+		throw ExceptionUtils.buildEx ( 
+			GenericNeo4jException.class, error, "Error while running graph traversal queries: %s", error.getMessage () 
+		);
+	}
+	
+	/**
+	 * Implements the timeout bisection, see {@link SinglePathQueryProcessor#pollTimedOutBatch(TraversalContext)}. 
+	 * This is invoked after the regular batches of all the queries are processed, and each round splits the timed out 
+	 * batches of all the queries into halves, retrying them together. This goes on until there are timed out batches 
+	 * to split, or the traversal deadline expires.
+	 * 
+	 * The retries always go to the {@link Priority#BULK bulk} lane, whatever the traversal priority, so that the 
+	 * timed out batches of an interactive traversal, which are likely about a few hub genes, don't compete with 
+	 * the first-pass batches of the other interactive traversals.
+	 */
+	private void retryTimedOutBatches ( TraversalContext context, List<SinglePathQueryProcessor> queryProcs )
+	{
+		while ( !context.isInterrupted () )
+		{
+			if ( context.isDeadlineExpired () ) 
+			{
+				// Anything left to retry is lost
+				for ( SinglePathQueryProcessor queryProc: queryProcs )
+					if ( queryProc.pollTimedOutBatch ( context ) != null ) context.markIncomplete ();
+				return;
+			}
+			
+			List<Future<?>> jobs = new ArrayList<> ();
+			int nbatches = 0;
+			for ( SinglePathQueryProcessor queryProc: queryProcs )
+			{
+				for ( List<ONDEXConcept> batch; ( batch = queryProc.pollTimedOutBatch ( context ) ) != null; nbatches++ )
+				{
+					int half = ( batch.size () + 1 ) / 2;
+					for ( List<ONDEXConcept> halfBatch: List.of ( batch.subList ( 0, half ), batch.subList ( half, batch.size () ) ) )
+						if ( !halfBatch.isEmpty () ) jobs.add ( submitQueryJob ( context, Priority.BULK, queryProc, halfBatch, true ) );
+				}
+			}
+			if ( jobs.isEmpty () ) return;
+			
+			log.info ( "Retrying {} timed out gene batches, split into halves", nbatches );
+			waitQueryJobs ( jobs );
+		}
+	}
+	
+	
+	@PreDestroy
+	private void close () {
+		if ( this.metrics != null ) this.metrics.close ();
+	}
 	
 	@Override
 	public void setApplicationContext ( ApplicationContext applicationContext ) throws BeansException
@@ -158,43 +563,38 @@ public class PathQueryProcessor implements ApplicationContextAware
 	}
 
 	/**
-	 * Tells a percentage of completed queries. This assumes {@link #process(ONDEXGraph, Collection)} has been invoked and
-	 * doesn't do any synchronisation, ie, you are supposed to be asking approximate results.
+	 * The live metrics of the traverser, which are also published via JMX and HTTP, if enabled.
 	 */
-	public double getPercentProgress ()
-	{
-		return this.queryProgressLogger == null
-			? 0d : this.queryProgressLogger.getPercentProgress ();
+	public TraverserMetrics getMetrics () {
+		return metrics;
 	}
 	
-	/**
-	 * @see {@link CypherGraphTraverser#interrupt()} and {@link CypherGraphTraverser#isInterrupted()}.
-	 * 
-	 */
-	public boolean isInterrupted () {
-		return isInterrupted;
+	/** The traversals that are running, used by {@link TraverserMetrics} */
+	Set<TraversalContext> getActiveContexts () {
+		return activeContexts;
+	}
+
+	/** The processors of the queries that were used so far, used by {@link TraverserMetrics} */
+	Collection<SinglePathQueryProcessor> getQueryProcessors () {
+		return processorCache.asMap ().values ();
+	}
+
+	/** Used by {@link TraverserMetrics} */
+	QueryJobDispatcher getDispatcher () {
+		return SHARED_DISPATCHER;
 	}
 
 	/**
-	 * @see {@link CypherGraphTraverser#interrupt()} and {@link CypherGraphTraverser#isInterrupted()}.
-	 * 
-	 * This propagates the interruption trigger to all {@link PathQueryProcessor#interrupt() query processors}  that the 
-	 * component is using.
+	 * Interrupts all the traversals that are running, see {@link TraversalContext#interrupt()} to stop a single one.
 	 */
 	public void interrupt ()
 	{
-		this.isInterrupted = true;
-		log.warn ( "Traversal was interrupted, stopping everything" );
-		
-		this.semanticMotifsQueries.forEach ( query ->
-		{
-			SinglePathQueryProcessor thisQueryProc = this.processorCache.getUnchecked ( query );
-			thisQueryProc.interrupt ();
-		});
+		log.warn ( "Interrupting all the running traversals" );
+		this.activeContexts.forEach ( TraversalContext::interrupt );
 	}
 	
 	/**
-	 * Logs some config params, it's invoked by {@link #process(ONDEXGraph, Collection)} for
+	 * Logs some config params, it's invoked by {@link #process(TraversalContext, ONDEXGraph, Collection)} for
 	 * diagnostic purposes.
 	 */
 	private void doLogConfig ()
@@ -210,10 +610,41 @@ public class PathQueryProcessor implements ApplicationContextAware
 		);
 
 		ctxBeanLogger.accept ( "queryTimeoutMs", Long.class );
+		ctxBeanLogger.accept ( "queryTimeoutMinBatchSize", Long.class );
+		ctxBeanLogger.accept ( "adaptiveQueryBatchSize", Boolean.class );
+		ctxBeanLogger.accept ( "adaptiveQueryBatchSizeMin", Long.class );
+		ctxBeanLogger.accept ( "adaptiveQueryBatchSizeMax", Long.class );
+		ctxBeanLogger.accept ( "adaptiveQueryBatchTargetTimeMs", Long.class );
+		ctxBeanLogger.accept ( "traversalTimeoutMs", Long.class );
+		ctxBeanLogger.accept ( "queryHedging", Boolean.class );
+		ctxBeanLogger.accept ( "queryHedgingMaxRatio", Double.class );
+		ctxBeanLogger.accept ( "metricsJmx", Boolean.class );
+		ctxBeanLogger.accept ( "metricsHttpPort", Integer.class );
+		ctxBeanLogger.accept ( "metricsHttpHost", String.class );
+		ctxBeanLogger.accept ( "pathResolutionMode", String.class );
+		ctxBeanLogger.accept ( "ondexIdProperty", String.class );
 		ctxBeanLogger.accept ( "performanceReportFrequency", Integer.class );
+		ctxBeanLogger.accept ( "timeoutReportMaxEntries", Integer.class );
+		ctxBeanLogger.accept ( "geneCostTracking", Boolean.class );
+		ctxBeanLogger.accept ( "hubGenesReportSize", Integer.class );
 		ctxBeanLogger.accept ( "queryPageSize", Long.class );
+		ctxBeanLogger.accept ( "queryPagingMode", String.class );
+		ctxBeanLogger.accept ( "queryPathProjection", Boolean.class );
+		ctxBeanLogger.accept ( "queryCoalescing", Boolean.class );
 		ctxBeanLogger.accept ( "queryThreadPoolSize", Integer.class );
 		ctxBeanLogger.accept ( "queryThreadQueueSize", Integer.class );
+		ctxBeanLogger.accept ( "bulkTraversalMinGenes", Long.class );
+		ctxBeanLogger.accept ( "bulkQueryThrottledThreads", Integer.class );
+		ctxBeanLogger.accept ( "queryExecutorMode", String.class );
+		ctxBeanLogger.accept ( "queryMaxConcurrency", Integer.class );
+		ctxBeanLogger.accept ( "adaptiveQueryConcurrency", Boolean.class );
+		ctxBeanLogger.accept ( "adaptiveQueryConcurrencyMin", Integer.class );
+		ctxBeanLogger.accept ( "neoSessionPoolSize", Integer.class );
+		ctxBeanLogger.accept ( "neoSessionValidationIdleMs", Long.class );
+		ctxBeanLogger.accept ( "neoEndpointRetryMs", Long.class );
+		ctxBeanLogger.accept ( "traversalCacheDir", String.class );
+		ctxBeanLogger.accept ( "traversalCacheMaxSizeMB", Long.class );
+		ctxBeanLogger.accept ( "traversalCacheDatasetVersion", String.class );
 		
 		log.info ( "---- /CypherQueryTraverser, Config -----" );
 	}
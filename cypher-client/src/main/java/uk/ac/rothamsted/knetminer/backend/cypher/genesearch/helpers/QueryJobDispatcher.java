@@ -0,0 +1,356 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers.TraversalContext.Priority;
+
+/**
+ * <p>The thread pool that runs the query jobs of {@link PathQueryProcessor}, which has a queue (lane) per
+ * {@link Priority traversal priority}.</p>
+ *
+ * <p>The workers always take the {@link Priority#INTERACTIVE interactive} jobs first, and the
+ * {@link Priority#BULK bulk} jobs only when there isn't any interactive job waiting. Moreover, while there are
+ * interactive jobs queued or running, no more than {@link #bulkThrottledThreads} workers can run bulk jobs, so that
+ * bulk traversals (eg, the one that Knetminer runs at startup, over all the genes) yield most of the pool (and of
+ * Neo4j) to the interactive ones, rather than making them wait for thousands of batches.</p>
+ *
+ * <p>Like the executor created by {@link uk.ac.ebi.utils.threading.HackedBlockingQueue#createExecutor(int, int)},
+ * {@link #submit(Priority, Runnable)} blocks when the lane queue is full.</p>
+ *
+ * <p>The jobs are mostly waiting for Neo4j, so they can run either on a fixed pool of platform threads
+ * ({@link ExecutorMode#PLATFORM}), or on virtual threads ({@link ExecutorMode#VIRTUAL}), one per job, in which case 
+ * the concurrency is capped by the {@link AdaptiveConcurrencyLimiter limiter} only, so it can be raised to what Neo4j 
+ * can serve, without creating many platform threads. Virtual threads need Java 21, when they aren't available, 
+ * the platform mode is used.</p>
+ * 
+ * <p>In both modes, a job starts only if the {@link AdaptiveConcurrencyLimiter} allows it, so that the no. of
+ * queries running on Neo4j can follow the server health, when the limiter is adaptive. The batch hedges take 
+ * their limiter permits through this dispatcher too, see {@link #tryAcquireHedgePermit()}.</p>
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+class QueryJobDispatcher
+{
+	/** @see QueryJobDispatcher */
+	static enum ExecutorMode { PLATFORM, VIRTUAL }
+	
+	private final int queueSize;
+	private final int bulkThrottledThreads;
+	private final AdaptiveConcurrencyLimiter limiter;
+
+	private final Deque<Runnable> interactiveJobs = new ArrayDeque<> ();
+	private final Deque<Runnable> bulkJobs = new ArrayDeque<> ();
+
+	/** Interactive jobs queued or running */
+	private int interactiveLoad = 0;
+
+	/** Bulk jobs running */
+	private int runningBulkJobs = 0;
+
+	private final ReentrantLock lock = new ReentrantLock ();
+	private final Condition hasWork = lock.newCondition ();
+	private final Condition hasRoom = lock.newCondition ();
+
+	private final Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+	
+	private static final class LaneJob
+	{
+		private final Runnable job;
+		private final boolean isInteractive;
+		
+		LaneJob ( Runnable job, boolean isInteractive )
+		{
+			this.job = job;
+			this.isInteractive = isInteractive;
+		}
+	}
+
+
+	/**
+	 * Uses {@link ExecutorMode#PLATFORM} and a fixed concurrency limit.
+	 */
+	QueryJobDispatcher ( int nthreads, int queueSize, int bulkThrottledThreads, String threadNamePrefix )
+	{
+		this ( ExecutorMode.PLATFORM, nthreads, queueSize, bulkThrottledThreads, threadNamePrefix );
+	}
+
+	/**
+	 * Uses a fixed concurrency limit.
+	 */
+	QueryJobDispatcher ( 
+		ExecutorMode mode, int concurrency, int queueSize, int bulkThrottledThreads, String threadNamePrefix 
+	)
+	{
+		this ( 
+			mode, new AdaptiveConcurrencyLimiter ( concurrency ), concurrency, queueSize, bulkThrottledThreads, 
+			threadNamePrefix 
+		);
+	}
+	
+	/**
+	 * @param mode if it's {@link ExecutorMode#VIRTUAL}, but virtual threads aren't available, falls back to 
+	 * {@link ExecutorMode#PLATFORM}.
+	 * @param limiter decides how many jobs can run at the same time.
+	 * @param concurrency the max no. of jobs running at the same time, ie, the no. of workers in the platform mode.
+	 * This should be the same as the max of the limiter.
+	 * @param queueSize the max no. of jobs waiting in each lane
+	 * @param bulkThrottledThreads the max no. of workers that can run bulk jobs while there are interactive jobs
+	 * @param threadNamePrefix used to name the threads, which are daemon threads
+	 */
+	QueryJobDispatcher ( 
+		ExecutorMode mode, AdaptiveConcurrencyLimiter limiter, int concurrency, int queueSize, int bulkThrottledThreads, 
+		String threadNamePrefix 
+	)
+	{
+		this.limiter = limiter;
+		this.queueSize = queueSize;
+		this.bulkThrottledThreads = Math.max ( 1, bulkThrottledThreads );
+
+		ThreadFactory virtualThreadFactory = mode == ExecutorMode.VIRTUAL 
+			? createVirtualThreadFactory ( threadNamePrefix + "-virtual-" ) 
+			: null;
+			
+		if ( virtualThreadFactory == null )
+		{
+			for ( int i = 0; i < concurrency; i++ )
+			{
+				Thread worker = new Thread ( this::work, threadNamePrefix + "-" + i );
+				worker.setDaemon ( true );
+				worker.start ();
+			}
+			return;
+		}
+		
+		Thread dispatcher = new Thread ( 
+			() -> this.dispatchToVirtualThreads ( virtualThreadFactory ), threadNamePrefix + "-dispatcher" 
+		);
+		dispatcher.setDaemon ( true );
+		dispatcher.start ();
+		log.info ( "Query jobs run on virtual threads, max concurrency is {}", concurrency );
+	}
+
+	/**
+	 * Queues a job in the lane of the priority, waiting for room in the lane, if it's full.
+	 */
+	Future<?> submit ( Priority priority, Runnable job )
+	{
+		FutureTask<?> task = new FutureTask<> ( job, null );
+		boolean isInteractive = priority == Priority.INTERACTIVE;
+		Deque<Runnable> lane = isInteractive ? interactiveJobs : bulkJobs;
+
+		lock.lock ();
+		try
+		{
+			while ( lane.size () >= queueSize ) hasRoom.awaitUninterruptibly ();
+			lane.add ( task );
+			if ( isInteractive ) interactiveLoad++;
+			hasWork.signalAll ();
+		}
+		finally {
+			lock.unlock ();
+		}
+		return task;
+	}
+
+	/**
+	 * The worker loop, used in the platform mode.
+	 */
+	private void work ()
+	{
+		while ( true )
+		{
+			LaneJob laneJob = this.takeJob ();
+			try {
+				this.runJob ( laneJob );
+			}
+			finally {
+				this.jobDone ( laneJob );
+			}
+		}
+	}
+	
+	/**
+	 * The dispatcher loop, used in the virtual mode. Every job gets its own thread, the {@link #limiter} decides how
+	 * many jobs can run at the same time.
+	 */
+	private void dispatchToVirtualThreads ( ThreadFactory virtualThreadFactory )
+	{
+		while ( true )
+		{
+			LaneJob laneJob = this.takeJob ();
+			virtualThreadFactory.newThread ( () -> 
+			{
+				try {
+					this.runJob ( laneJob );
+				}
+				finally {
+					this.jobDone ( laneJob );
+				}
+			}).start ();
+		}
+	}
+	
+	/**
+	 * Waits for the next job that can go, based on the lane rules and the {@link #limiter}.
+	 */
+	private LaneJob takeJob ()
+	{
+		lock.lock ();
+		try
+		{
+			while ( true )
+			{
+				if ( !interactiveJobs.isEmpty () && limiter.tryAcquire () ) {
+					hasRoom.signalAll ();
+					return new LaneJob ( interactiveJobs.poll (), true );
+				}
+				if ( !bulkJobs.isEmpty () && ( interactiveLoad == 0 || runningBulkJobs < bulkThrottledThreads ) 
+						 && limiter.tryAcquire () ) 
+				{
+					runningBulkJobs++;
+					hasRoom.signalAll ();
+					return new LaneJob ( bulkJobs.poll (), false );
+				}
+				hasWork.awaitUninterruptibly ();
+			}
+		}
+		finally {
+			lock.unlock ();
+		}
+	}
+	
+	private void runJob ( LaneJob laneJob )
+	{
+		try {
+			// FutureTask doesn't throw anything, errors go to its get()
+			laneJob.job.run ();
+		}
+		catch ( RuntimeException ex ) {
+			log.error ( "Internal error while running a query job: " + ex.getMessage (), ex );
+		}
+	}
+	
+	private void jobDone ( LaneJob laneJob )
+	{
+		lock.lock ();
+		try
+		{
+			if ( laneJob.isInteractive ) interactiveLoad--;
+			else runningBulkJobs--;
+			limiter.release ();
+			// Throttled bulk jobs might be able to go now
+			hasWork.signalAll ();
+		}
+		finally {
+			lock.unlock ();
+		}
+	}
+
+	/**
+	 * <p>Takes a {@link #limiter} permit for a query that runs outside of this dispatcher, ie, a hedge issued by 
+	 * {@link SinglePathQueryProcessor}, so that such queries count against the same limit as the jobs.</p>
+	 * 
+	 * <p>The jobs come first, so the permit is denied when there are jobs waiting in the lanes. The permit must be 
+	 * returned with {@link #releaseHedgePermit()}, not directly to the limiter, so that the workers waiting for it 
+	 * are woken up.</p>
+	 */
+	boolean tryAcquireHedgePermit ()
+	{
+		lock.lock ();
+		try {
+			return interactiveJobs.isEmpty () && bulkJobs.isEmpty () && limiter.tryAcquire ();
+		}
+		finally {
+			lock.unlock ();
+		}
+	}
+	
+	/**
+	 * Returns a permit taken with {@link #tryAcquireHedgePermit()}.
+	 */
+	void releaseHedgePermit ()
+	{
+		lock.lock ();
+		try
+		{
+			limiter.release ();
+			// The queued jobs might have been waiting for this permit only, eg, if the limit went down meanwhile 
+			hasWork.signalAll ();
+		}
+		finally {
+			lock.unlock ();
+		}
+	}
+
+	AdaptiveConcurrencyLimiter getLimiter () {
+		return limiter;
+	}
+
+	/**
+	 * The no. of jobs waiting in the lane of a priority.
+	 */
+	int getQueuedJobs ( Priority priority )
+	{
+		lock.lock ();
+		try {
+			return priority == Priority.INTERACTIVE ? interactiveJobs.size () : bulkJobs.size ();
+		}
+		finally {
+			lock.unlock ();
+		}
+	}
+	
+	/**
+	 * Gets a factory of virtual threads via reflection, since we still need to compile with Java 17. 
+	 * Returns null if they aren't available.
+	 */
+	static ThreadFactory createVirtualThreadFactory ( String namePrefix )
+	{
+		try {
+			return newVirtualThreadFactory ( namePrefix );
+		}
+		catch ( ReflectiveOperationException | RuntimeException ex ) 
+		{
+			LoggerFactory.getLogger ( QueryJobDispatcher.class ).warn ( 
+				"Virtual threads aren't available ({}), using the platform mode for query jobs", ex.toString () 
+			);
+			return null;
+		}
+	}
+	
+	/**
+	 * Tells if the virtual threads are available, ie, if {@link ExecutorMode#VIRTUAL} can actually be used. 
+	 * This needs Java 21.
+	 */
+	static boolean isVirtualThreadsAvailable ()
+	{
+		try {
+			return newVirtualThreadFactory ( "test-" ) != null;
+		}
+		catch ( ReflectiveOperationException | RuntimeException ex ) {
+			return false;
+		}
+	}
+	
+	private static ThreadFactory newVirtualThreadFactory ( String namePrefix ) throws ReflectiveOperationException
+	{
+		Class<?> builderClass = Class.forName ( "java.lang.Thread$Builder" );
+		Object builder = Thread.class.getMethod ( "ofVirtual" ).invoke ( null );
+		Method nameMethod = builderClass.getMethod ( "name", String.class, long.class );
+		builder = nameMethod.invoke ( builder, namePrefix, 0L );
+		return (ThreadFactory) builderClass.getMethod ( "factory" ).invoke ( builder );
+	}
+}
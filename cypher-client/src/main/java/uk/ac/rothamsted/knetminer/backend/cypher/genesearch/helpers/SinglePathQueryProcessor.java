@@ -5,28 +5,45 @@ import static uk.ac.ebi.utils.exceptions.ExceptionUtils.buildEx;
 import static uk.ac.ebi.utils.exceptions.ExceptionUtils.throwEx;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
 
+import org.neo4j.driver.exceptions.Neo4jException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
-import com.google.common.util.concurrent.SimpleTimeLimiter;
-import com.google.common.util.concurrent.TimeLimiter;
 import com.google.common.util.concurrent.UncheckedTimeoutException;
 
 import net.sourceforge.ondex.algorithm.graphquery.AbstractGraphTraverser;
@@ -42,19 +59,23 @@ import net.sourceforge.ondex.core.ONDEXGraph;
 import net.sourceforge.ondex.core.ONDEXRelation;
 import net.sourceforge.ondex.core.util.ONDEXGraphUtils;
 import uk.ac.ebi.utils.exceptions.ExceptionUtils;
-import uk.ac.ebi.utils.runcontrol.PercentProgressLogger;
-import uk.ac.ebi.utils.threading.HackedBlockingQueue;
-import uk.ac.ebi.utils.threading.ThreadUtils;
-import uk.ac.ebi.utils.threading.batchproc.BatchProcessor;
-import uk.ac.ebi.utils.threading.batchproc.processors.ListBasedBatchProcessor;
 import uk.ac.rothamsted.knetminer.backend.cypher.CypherClient;
-import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.CypherGraphTraverser;
+import uk.ac.rothamsted.knetminer.backend.cypher.CypherClient.PathResolutionMode;
+import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers.PagedCyPathFinder.PathFetcher;
+import uk.ac.rothamsted.knetminer.backend.cypher.jfr.EvidencePathEvent;
+import uk.ac.rothamsted.knetminer.backend.cypher.jfr.QueryBatchEvent;
 import uk.ac.rothamsted.neo4j.utils.GenericNeo4jException;
 
 /**
- * An helper (used by {@link SinglePathQueryProcessor}) to traverse a list of genes with a single query. 
- * This is based on {@link BatchProcessor}, which is used to group start genes into batches and run one
- * query per batch as a parallel task. 
+ * <p>An helper (used by {@link PathQueryProcessor}) to traverse a list of genes with a single query.</p>
+ * 
+ * <p>{@link PathQueryProcessor} splits the start genes into batches and schedules one 
+ * {@link #queryJob(TraversalContext, List) job} per batch, running the jobs of all the queries in 
+ * the same thread pool. This class keeps the query-specific state used for that, ie, the {@link #getBatchSize() 
+ * batch size} and an {@link #getExpectedGeneCost() estimate of the query cost}, which are shared by all the 
+ * traversals, so that they learn from each other. Everything that belongs to a single traversal (interruption,
+ * stats, timed out batches) is in its {@link TraversalContext}, so that multiple traversals can use the same 
+ * processor in parallel.</p>
  *
  * @author brandizi
  * <dl><dt>Date:</dt><dd>25 Nov 2019</dd></dl>
@@ -62,12 +83,17 @@ import uk.ac.rothamsted.neo4j.utils.GenericNeo4jException;
  */
 @Component @Scope ( "prototype" )
 class SinglePathQueryProcessor
-	extends ListBasedBatchProcessor<ONDEXConcept, Consumer<List<ONDEXConcept>>>
 {	
 	public static final long DEFAULT_QUERY_BATCH_SIZE = 500;
 	
 	private String pathQuery;
 	
+	/** Identifies the query in the {@link #resultCache} */
+	private long pathQueryHash;
+	
+	/** Identifies the query in the metrics and JFR events, see {@link TraverserMetrics#toQueryId(long)} */
+	private String queryId;
+	
 	/** This is a configurable parameter */
 	@Autowired ( required = false) @Qualifier ( "queryBatchSize" ) 
 	private long queryBatchSize = DEFAULT_QUERY_BATCH_SIZE;
@@ -76,52 +102,138 @@ class SinglePathQueryProcessor
 	@Autowired ( required = false ) @Qualifier ( "queryTimeoutMs" )
 	private long queryTimeoutMs = 60 * 1000;
 
-	
 	/**
-	 * The pool size used by the query processor to send semantic motif queries in parallel to
-	 * Neo4j.
+	 * <p>If this is not -1, a batch that times out is not just discarded: if its size is greater than this value, it's 
+	 * split into two halves, which are retried after the regular batches, in the {@link TraversalContext.Priority#BULK 
+	 * bulk lane} (ie, with lower priority), and this goes on recursively, until the batches time out at this minimum 
+	 * size. This way, usually only a few pathological genes are dropped, rather than whole batches. The genes that 
+	 * time out even at the minimum size are reported by 
+	 * {@link CyTraverserPerformanceTracker#getUnresolvedTimedOutGenes()}.</p>
 	 * 
-	 * Namely, this is used with {@link #setExecutor(ExecutorService)}, which, in the default implementation,
-	 * uses this parameter and {@link #threadQueueSize} with {@link HackedBlockingQueue#createExecutor(int, int)},
-	 * ie, we use a fixed number of active threads, and a fixed number of thread queue.
+	 * <p>The batches to be retried are kept by the {@link TraversalContext traversal} they belong to.</p>
 	 * 
-	 * If this value is -1, the default is {@link Runtime#availableProcessors()}.
-	 * If {@link #threadQueueSize} is -1, it's set to the default of {@link #threadPoolSize} * 2.
-	 * 
-	 * This is a configurable parameter, but we have it so just to test performance issues with Neo4j, it's unlikely
-	 * you will need to change the defaults.
+	 * <p>This is a configurable parameter, -1 (the default) disables the timeout bisection, else it must be &gt;= 1,
+	 * since a batch can't be split below one gene.</p>
+	 */
+	@Autowired ( required = false ) @Qualifier ( "queryTimeoutMinBatchSize" )
+	private long queryTimeoutMinBatchSize = -1;
+	
+	/** 
+	 * If true, {@link #queryBatchSize} is just the initial batch size, which is then adapted at runtime for every 
+	 * query, see {@link AdaptiveBatchSizer}. This is a configurable parameter.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "adaptiveQueryBatchSize" )
+	private boolean adaptiveQueryBatchSize = false;
+
+	/** @see #adaptiveQueryBatchSize. This is a configurable parameter. */
+	@Autowired ( required = false ) @Qualifier ( "adaptiveQueryBatchSizeMin" )
+	private long adaptiveQueryBatchSizeMin = 50;
+
+	/** @see #adaptiveQueryBatchSize. This is a configurable parameter. */
+	@Autowired ( required = false ) @Qualifier ( "adaptiveQueryBatchSizeMax" )
+	private long adaptiveQueryBatchSizeMax = 5000;
+
+	/** 
+	 * @see #adaptiveQueryBatchSize. This is a configurable parameter, if it's -1, the default is 1/4 of 
+	 * {@link #queryTimeoutMs} (or 15s, if there is no timeout).
+	 */
+	@Autowired ( required = false ) @Qualifier ( "adaptiveQueryBatchTargetTimeMs" )
+	private long adaptiveQueryBatchTargetTimeMs = -1;
+	
+	/** 
+	 * How the paths returned by Neo4j are converted into Ondex entities, one of the {@link PathResolutionMode} values.
+	 * This is a configurable parameter.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "pathResolutionMode" )
+	private String pathResolutionModeStr = PathResolutionMode.IRI.name ();
+	
+	private PathResolutionMode resolutionMode;
+
+	/** 
+	 * The Neo4j property where the Ondex IDs are stored, used with {@link PathResolutionMode#ONDEX_ID}. 
+	 * This is a configurable parameter.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "ondexIdProperty" )
+	private String ondexIdProperty = CypherClient.DEFAULT_ONDEX_ID_PROPERTY;
+	
+	/** 
+	 * If true, the (query, gene) units that are already being queried by another traversal aren't queried again, the 
+	 * pending result is used instead, see {@link InFlightQueryRegistry}. This is a configurable parameter.
 	 * 
+	 * It's false by default, since it's useful only when traversals with overlapping genes run at the same time,
+	 * while it costs the conversion of all the batch results into Ondex IDs.
 	 */
-	@Autowired ( required = false ) @Qualifier ( "queryThreadPoolSize" )
-	private int threadPoolSize = -1;
+	@Autowired ( required = false ) @Qualifier ( "queryCoalescing" )
+	private boolean queryCoalescing = false;
+	
+	/** 
+	 * How often a job waiting for other jobs (eg, for joined genes or for a hedge) checks if its traversal was 
+	 * interrupted, see {@link #waitFor(TraversalContext, Future, long)}.
+	 */
+	private static final long WAIT_POLL_MS = 200;
+	
+	/** Not null when {@link #adaptiveQueryBatchSize} is set. */
+	private AdaptiveBatchSizer batchSizer = null;
 	
 	/**
-	 * @see #threadPoolSize
+	 * The average time per gene taken by the query (ms), an exponential moving average computed from the completed
+	 * batches. This is kept across multiple traversals and it's used by {@link PathQueryProcessor} to schedule the
+	 * most expensive queries first. -1 means we don't know yet.
 	 */
-	@Autowired ( required = false ) @Qualifier ( "queryThreadQueueSize" )
-	private int threadQueueSize = -1;
-		
+	private volatile double expectedGeneCost = -1;
+	
 	@Autowired
-	private CyTraverserPerformanceTracker cyTraverserPerformanceTracker;
+	private TraversalResultCache resultCache;
 	
+	@Autowired
+	private InFlightQueryRegistry inFlightRegistry;
 	
-  /**
-   * <p>We share a single executor between all the single query path processors, in order to
-   * avoid too much load created by parallel per-query processors.</p>
-   * 
-   * <p>This is initialised in the {@link SinglePathQueryProcessor constructor}, using (once)
-   * {@link #getExecutor() the processor executor}.</p>
-   * 
-   * <p><b>WARNING</b>: that means that invoking
-   * {@link #setExecutor(ExecutorService)} after initialisation can break this executor sharing
-   * policy.</p>
+	/** Receives the batch latencies, set by {@link PathQueryProcessor} */
+	private AdaptiveConcurrencyLimiter concurrencyLimiter = null;
+	
+	/** Gives the permits to the hedges, set by {@link PathQueryProcessor} */
+	private QueryJobDispatcher jobDispatcher = null;
+	
+	/** 
+	 * Not null when the batch hedging is enabled, see {@link #hedgedQuery(TraversalContext, QueryAttempt, Consumer)}.
+	 * Set by {@link PathQueryProcessor}.
+	 */
+	private HedgingBudget hedgingBudget = null;
+
+	/** The times of the completed batches of this query, used to decide when a batch is slow enough to be hedged. */
+	private final LatencyHistogram batchTimes = new LatencyHistogram ();
+	
+	/** A batch is hedged when it takes longer than this percentile of {@link #batchTimes} */
+	private static final double HEDGING_PERCENTILE = 95;
+	
+	/** We don't hedge until we have these batch time samples */
+	private static final int HEDGING_MIN_SAMPLES = 20;
+	
+	/** 
+	 * Live stats about the batches of this query, since the processor was created, for {@link TraverserMetrics}. 
+	 * Unlike {@link CyTraverserPerformanceTracker}, these are about all the traversals and are always collected.
+	 */
+	private final LongAdder batchCount = new LongAdder (), timeoutCount = new LongAdder (), pathCount = new LongAdder ();
+	private final AtomicInteger inFlightBatches = new AtomicInteger ();
+	
+	
+  /** 
+   * Used by {@link #timedQuery(TraversalContext, PagedCyPathFinder, Runnable, long, List)} to cancel the queries that don't complete within 
+   * {@link #queryTimeoutMs} (or the traversal deadline). Queries run in the job threads, so this just needs to fire the 
+   * cancellations.
    */
-  private static ExecutorService SHARED_EXECUTOR;
-  
-  /** Used by {@link #timedQuery(Runnable, long, List, String)}. */
-	private static final TimeLimiter TIME_LIMITER = SimpleTimeLimiter.create ( Executors.newCachedThreadPool () );
+	private static final ScheduledExecutorService TIMEOUT_WATCHDOG = createTimeoutWatchdog ();
+	
+	/** @see #HEDGE_EXECUTOR */
+	private static final int HEDGE_MAX_THREADS = Math.max ( 2, Runtime.getRuntime ().availableProcessors () / 2 );
+
+	/** 
+	 * Runs the hedged batches, see {@link #hedgedQuery(TraversalContext, QueryAttempt, Consumer)}. This has at most
+	 * {@link #HEDGE_MAX_THREADS} threads and no queue, a hedge that doesn't find a free thread isn't issued.
+	 */
+	private static final ExecutorService HEDGE_EXECUTOR = createHedgeExecutor ();
 
-	private boolean isInterrupted = false; 
+	private final Logger log = LoggerFactory.getLogger ( this.getClass () );
 	
 
   @Autowired private ApplicationContext springContext;
@@ -130,80 +242,219 @@ class SinglePathQueryProcessor
    * This is a prototype-scoped bean, so we need a getter that uses #springContext.
    * Note that, for some reason {@code @Lookup} stopped to work at some point.
    */
-  public PagedCyPathFinder getCyPathFinder () {
+  @SuppressWarnings ( "unchecked" )
+	public <P> PagedCyPathFinder<P> getCyPathFinder () {
     return springContext.getBean ( PagedCyPathFinder.class );
   }	
 
   
+	@PostConstruct
+	private void init ()
 	{
-		this.setJobLogPeriod ( -1 ); // We do all the logging about submitted/completed jobs
+		this.resolutionMode = PathResolutionMode.valueOf ( this.pathResolutionModeStr.toUpperCase () );
+		
+		if ( this.queryTimeoutMinBatchSize != -1 && this.queryTimeoutMinBatchSize < 1 ) throwEx (
+			IllegalArgumentException.class,
+			"Invalid value %d for queryTimeoutMinBatchSize, it must be -1 (no timed out batch splitting) or >= 1",
+			this.queryTimeoutMinBatchSize
+		);
+		
+		if ( this.adaptiveQueryBatchSize )
+		{
+			long targetTime = this.adaptiveQueryBatchTargetTimeMs != -1 
+				? this.adaptiveQueryBatchTargetTimeMs
+				: this.queryTimeoutMs != -1 ? this.queryTimeoutMs / 4 : 15 * 1000;
+			
+			this.batchSizer = new AdaptiveBatchSizer ( 
+				this.queryBatchSize, this.adaptiveQueryBatchSizeMin, this.adaptiveQueryBatchSizeMax, targetTime 
+			);
+		}
 	}
 	
-	public SinglePathQueryProcessor ()
+	
+	/**
+	 * The size that the next gene batch for this query should have. This is {@link #queryBatchSize}, or the 
+	 * {@link AdaptiveBatchSizer current adapted size}, if {@link #adaptiveQueryBatchSize} is set.
+	 */
+	int getBatchSize ()
 	{
-		super ();
-	}	
-
-	@PostConstruct
-	private void init ()
+		return (int) ( this.batchSizer == null ? this.queryBatchSize : this.batchSizer.getBatchSize () );
+	}
+	
+	/**
+	 * @see #expectedGeneCost.
+	 */
+	double getExpectedGeneCost () {
+		return this.expectedGeneCost;
+	}
+	
+	/**
+	 * Updates {@link #expectedGeneCost}, which is a moving average for the whole query, not to be confused with the 
+	 * per-gene costs that {@link CyTraverserPerformanceTracker} reports.
+	 */
+	private synchronized void updateExpectedGeneCost ( long timeMs, int nGenes )
 	{
-		this.getBatchCollector ().setMaxBatchSize ( this.queryBatchSize );
-
-		this.threadPoolSize = threadPoolSize != -1 ? threadPoolSize : Runtime.getRuntime().availableProcessors();
-		this.threadQueueSize = threadQueueSize != -1 ? threadQueueSize : threadPoolSize * 2;
-				
-		synchronized ( SinglePathQueryProcessor.class ) 
+		if ( nGenes == 0 ) return;
+		double cost = 1d * timeMs / nGenes;
+		this.expectedGeneCost = this.expectedGeneCost == -1 ? cost : 0.7 * this.expectedGeneCost + 0.3 * cost;
+	}
+	
+	/**
+	 * Gets a batch of a traversal that timed out and needs to be split and retried, see 
+	 * {@link #queryTimeoutMinBatchSize}. Returns null if there are no such batches.
+	 */
+	List<ONDEXConcept> pollTimedOutBatch ( TraversalContext context ) {
+		return context.pollTimedOutBatch ( this );
+	}
+	
+	
+	/**
+	 * <p>Queries a batch of genes and adds the resulting paths to the result of the traversal. This is a job that 
+	 * {@link PathQueryProcessor} runs in parallel with the other batches (and other queries).</p> 
+	 * 
+	 * <p>If {@link #queryCoalescing} is set, the genes that other jobs (ie, other traversals) are already querying 
+	 * aren't queried again, this job waits for them instead, after having queried the remaining genes. If the other 
+	 * job doesn't complete a gene (eg, it times out), the gene is queried here. The waiting is stopped by the
+	 * interruption or the deadline of this job's traversal, regardless of the traversal that the other job belongs to.</p>
+	 * 
+	 * <p>isRetry is true for the halves of a timed out batch that is being bisected (see 
+	 * {@link #queryTimeoutMinBatchSize}). Those batches don't feed {@link #batchSizer} and {@link #concurrencyLimiter},
+	 * since they're about a few pathological genes: their timeouts would shrink the batch size and the concurrency of 
+	 * the whole query at every bisection level, for all the next batches.</p>
+	 */
+	@SuppressWarnings ( "rawtypes" )
+	void queryJob ( TraversalContext context, List<ONDEXConcept> batch, boolean isRetry )
+	{
+		if ( context.isInterrupted () ) return;
+		
+		if ( !this.queryCoalescing ) {
+			this.queryBatch ( context, batch, isRetry );
+			return;
+		}
+		
+		ONDEXGraph graph = context.getGraph ();
+		
+		// Split the batch between the genes we own and those that others are querying
+		Map<ONDEXConcept, CompletableFuture<List<int[]>>> ownedGenes = new LinkedHashMap<> (), joinedGenes = new HashMap<> ();
+		for ( ONDEXConcept gene: batch )
+		{
+			CompletableFuture<List<int[]>> ownFuture = new CompletableFuture<> ();
+			CompletableFuture<List<int[]>> pending = this.inFlightRegistry.join ( 
+				graph, this.pathQueryHash, gene.getId (), ownFuture 
+			);
+			if ( pending == null ) ownedGenes.put ( gene, ownFuture );
+			else joinedGenes.put ( gene, pending );
+		}
+		
+		// Query our genes and release them in any case, so that the jobs waiting for them can go ahead
+		Map<Integer, List<int[]>> ownedPaths = null;
+		try {
+			if ( !ownedGenes.isEmpty () ) 
+				ownedPaths = this.queryBatch ( context, new ArrayList<> ( ownedGenes.keySet () ), isRetry );
+		}
+		finally 
 		{
-			if ( SHARED_EXECUTOR != null )
-				this.setExecutor ( SHARED_EXECUTOR );
-			else
+			for ( Entry<ONDEXConcept, CompletableFuture<List<int[]>>> owned: ownedGenes.entrySet () )
 			{
-				this.setExecutor ( 
-					SHARED_EXECUTOR = HackedBlockingQueue.createExecutor ( threadPoolSize, threadQueueSize )
+				int geneId = owned.getKey ().getId ();
+				this.inFlightRegistry.complete ( 
+					graph, this.pathQueryHash, geneId, owned.getValue (), 
+					ownedPaths == null ? null : ownedPaths.getOrDefault ( geneId, List.of () ) 
 				);
-				ThreadUtils.setNamingThreadFactory ( SinglePathQueryProcessor.class, SHARED_EXECUTOR );
 			}
 		}
+		
+		// Now get what the others have found, or query it if they couldn't
+		List<ONDEXConcept> missedGenes = new ArrayList<> ();
+		Map<ONDEXConcept, List<EvidencePathNode>> result = context.getResult ();
+		for ( Entry<ONDEXConcept, CompletableFuture<List<int[]>>> joined: joinedGenes.entrySet () )
+		{
+			if ( context.isInterrupted () ) return;
+
+			ONDEXConcept gene = joined.getKey ();
+			List<int[]> pathIds;
+			try {
+				pathIds = this.waitJoinedGene ( context, joined.getValue () );
+			}
+			catch ( InterruptedException ex ) {
+				// The job was cancelled (eg, the dispatcher is shutting down), results are discarded anyway
+				Thread.currentThread ().interrupt ();
+				return;
+			}
+			if ( pathIds == null || !this.addPathsFromIds ( graph, gene, pathIds, result ) ) missedGenes.add ( gene );
+		}
+		
+		if ( !missedGenes.isEmpty () && !context.isInterrupted () ) this.queryBatch ( context, missedGenes, isRetry );
 	}
 	
+	/**
+	 * Not a retry.
+	 */
+	void queryJob ( TraversalContext context, List<ONDEXConcept> batch ) {
+		queryJob ( context, batch, false );
+	}
 	
 	/**
-	 * This is the entry point used by {@link PathQueryProcessor#process(ONDEXGraph, Collection)}.
+	 * Waits for a gene that another job is querying, for {@link #queryJob(TraversalContext, List)}. The other job
+	 * might belong to a traversal with a longer deadline (or none), so we don't wait beyond our own
+	 * {@link TraversalContext#setTimeoutMs(long) deadline}.
+	 * 
+	 * @return the paths that the other job found, or null if it couldn't complete the gene, or if our traversal 
+	 * was interrupted or its deadline expired in the meantime, in which case, the traversal is marked as incomplete.
 	 */
-	@SuppressWarnings ( "rawtypes" )
-	public void process ( 
-		ONDEXGraph graph,
-		Collection<ONDEXConcept> concepts,
-		Map<ONDEXConcept, List<EvidencePathNode>> result,
-		PercentProgressLogger queryProgressLogger
-	)
+	private List<int[]> waitJoinedGene ( TraversalContext context, CompletableFuture<List<int[]>> pending ) 
+		throws InterruptedException
 	{
-		this.isInterrupted = false;
-		
-		this.setBatchJob ( batch -> 
-		{
-			if ( this.isInterrupted ) return;
-			this.queryJob ( graph, batch, result ); 
-			queryProgressLogger.updateWithIncrement ();
-		});
-
-		// TODO: parallelStream() might be worth here and should work, but needs testing.
-		// This is only about scanning the concepts and build the batches in parallel or not, 
-		// querying the batches of concepts is parallel anyway.
-		boolean wasInterrupted[] = new boolean[] { false };
-		super.process (
-			conceptProcessor -> wasInterrupted [ 0 ] = 
-				!concepts.stream ()
-				.peek ( conceptProcessor )
-				.allMatch ( concept -> !this.isInterrupted )
-		);
-		if ( wasInterrupted [ 0 ] ) log.debug ( "Query processor was interrupted, query is:\n  {}", this.pathQuery );
+		try {
+			return waitFor ( context, pending, context.getRemainingTimeMs () );
+		}
+		catch ( TimeoutException ex ) {
+			if ( context.isDeadlineExpired () ) context.markIncomplete ();
+			return null;
+		}
+		catch ( ExecutionException ex ) {
+			// Not expected, since the owners always complete with a value, we just query the gene
+			return null;
+		}
 	}
 	
+	/**
+	 * Waits for the result of another job, checking the {@link TraversalContext#interrupt() interruption} of our 
+	 * traversal every {@link #WAIT_POLL_MS}.
+	 * 
+	 * @param timeoutMs -1 means no timeout
+	 * @throws TimeoutException if the time is over, or our traversal was interrupted.
+	 */
+	private static <T> T waitFor ( TraversalContext context, Future<T> future, long timeoutMs ) 
+		throws InterruptedException, ExecutionException, TimeoutException
+	{
+		long deadline = timeoutMs == -1 ? -1 : System.currentTimeMillis () + timeoutMs;
+		while ( !context.isInterrupted () )
+		{
+			// With no time left, we still get a result that is already available
+			long pollMs = WAIT_POLL_MS;
+			if ( deadline != -1 ) pollMs = Math.max ( 0, Math.min ( pollMs, deadline - System.currentTimeMillis () ) );
+			try {
+				return future.get ( pollMs, TimeUnit.MILLISECONDS );
+			}
+			catch ( TimeoutException ex ) {
+				if ( deadline != -1 && System.currentTimeMillis () >= deadline ) break;
+			}
+		}
+		throw new TimeoutException ( context.isInterrupted () ? "Traversal interrupted" : "Wait timed out" );
+	}
 	
-	@SuppressWarnings ( "rawtypes" )
-	private void queryJob ( ONDEXGraph graph, List<ONDEXConcept> batch, Map<ONDEXConcept, List<EvidencePathNode>> result )
+	/**
+	 * Queries a batch of genes for {@link #queryJob(TraversalContext, List, boolean)}.
+	 * 
+	 * @return the paths found for the batch genes, as Ondex IDs, indexed by gene ID. The genes without any path
+	 * might be missing. This is null if the query didn't complete (timeout or interruption) and it's empty if 
+	 * neither {@link #queryCoalescing} nor {@link #resultCache} are enabled, since in this case we don't need the IDs. 
+	 */
+	private Map<Integer, List<int[]>> queryBatch ( TraversalContext context, List<ONDEXConcept> batch, boolean isRetry )
 	{
+		ONDEXGraph graph = context.getGraph ();
+		
 		// So, let's get the starting IRIs from the concepts parameter.
 		//
 		List<String> startGeneIris = batch.parallelStream ()
@@ -217,49 +468,166 @@ class SinglePathQueryProcessor
 				))
 		).collect ( Collectors.toList () );
 		
-
-		// Collects IRIs resulting from the query
-		final List<List<String>> queryResultIris = new ArrayList<> ();
+		if ( this.resolutionMode == PathResolutionMode.ONDEX_ID ) 
+			return this.queryBatch ( 
+				context, batch, isRetry, PagedCyPathFinder.ondexIdFetcher ( this.ondexIdProperty ), startGeneIris,
+				path -> path.length, path -> CypherClient.findPathFromOndexIds ( graph, path )
+			);
+		else
+			return this.queryBatch ( 
+				context, batch, isRetry, PagedCyPathFinder.IRI_FETCHER, startGeneIris,
+				List::size, path -> CypherClient.findPathFromIris ( graph, path )
+			);
+	}
+	
+	/**
+	 * Does the job for {@link #queryBatch(TraversalContext, List, boolean)}, using a given path representation.
+	 * 
+	 * @param pathLength used for the performance stats
+	 * @param pathResolver converts the paths into Ondex entities
+	 */
+	@SuppressWarnings ( "rawtypes" )
+	private <P> Map<Integer, List<int[]>> queryBatch ( 
+		TraversalContext context, List<ONDEXConcept> batch, boolean isRetry, PathFetcher<P> pathFetcher, 
+		List<String> startGeneIris,
+		ToIntFunction<P> pathLength, Function<P, List<ONDEXEntity>> pathResolver
+	)
+	{
+		// No time left for the traversal, the batch is skipped
+		if ( context.isDeadlineExpired () ) {
+			context.markIncomplete ();
+			return null;
+		}
 		
-		// Used below, by the cyTraverserPerformanceTracker
-		int performanceCounters[] = { 0, 0 };
+		CyTraverserPerformanceTracker performanceTracker = context.getPerformanceTracker ();
 
-		// Base Cypher query action
-		Runnable queryAction = () -> this.doQuery ( startGeneIris, queryResultIris, performanceCounters );
+		// Base Cypher query action, collecting the resulting paths and the performance counters into an attempt, 
+		// possibly, there is a second attempt, when the batch is hedged
+		Consumer<QueryAttempt<P>> queryAction = attempt -> this.doQuery ( 
+			context, attempt.pathsItr, pathFetcher, startGeneIris, attempt.paths, pathLength, 
+			attempt.performanceCounters, attempt.timeoutMs
+		);
 
-		// Don't allow it to run too long (if queryTimeoutMs != -1)
-		Runnable timedQueryAction = () -> timedQuery ( queryAction, startGeneIris ); 
+		// Don't allow it to run too long (if queryTimeoutMs != -1 or the traversal has a deadline). Every attempt gets
+		// the time that is left when it starts
+		Consumer<QueryAttempt<P>> timedQueryAction = attempt -> 
+		{
+			attempt.timeoutMs = this.getBatchTimeout ( context );
+			timedQuery ( context, attempt.pathsItr, () -> queryAction.accept ( attempt ), attempt.timeoutMs, startGeneIris );
+		};
 
+		// Hedge it, if it's slow (and hedging is enabled), the attempt that completes first is the winner
+		QueryAttempt<P> primary = new QueryAttempt<> ( this.getCyPathFinder () );
+		AtomicReference<QueryAttempt<P>> winner = new AtomicReference<> ( primary );
+		Runnable hedgedQueryAction = () -> winner.set ( this.hedgedQuery ( context, primary, timedQueryAction ) );
 		
 		// Wrap it further with the machinery that accumulates query performance-related stats
 		// (when that's feature is disabled, it just runs the query action)
 		//
+		this.batchCount.increment ();
+		this.inFlightBatches.incrementAndGet ();
+		QueryBatchEvent batchEvent = new QueryBatchEvent ();
+		batchEvent.begin ();
+		long batchStartTime = System.currentTimeMillis ();
+		long queryTime;
 		try {
-			this.cyTraverserPerformanceTracker.track
+			queryTime = performanceTracker.track
 			( 
 				pathQuery, 
-				timedQueryAction,
-				() -> performanceCounters [ 0 ],
-				() -> performanceCounters [ 1 ],
+				hedgedQueryAction,
+				() -> winner.get ().performanceCounters [ 0 ],
+				() -> winner.get ().performanceCounters [ 1 ],
 				batch
-			);			
+			);
+			this.batchTimes.record ( queryTime );
+			this.pathCount.add ( winner.get ().paths.size () );
+			performanceTracker.trackPathLengths ( pathQuery, winner.get ().paths, pathLength );
+			if ( !isRetry )
+			{
+				if ( this.batchSizer != null ) this.batchSizer.onCompleted ( batch.size (), queryTime );
+				if ( this.concurrencyLimiter != null ) 
+					this.concurrencyLimiter.onSample ( this.pathQuery, 1d * queryTime / batch.size () );
+			}
+			this.updateExpectedGeneCost ( queryTime, batch.size () );
 		}
 		catch ( UncheckedTimeoutException ex ) 
 		{
+			this.timeoutCount.increment ();
+			batchEvent.timedOut = true;
 			if ( log.isTraceEnabled () )
 				log.trace ( "Query timed out. First gene: <{}>, query: {}", startGeneIris.get ( 0 ), pathQuery );
 
+			// It's the traversal that is over, not (necessarily) this batch that is slow, so no penalty and no retry
+			if ( context.isDeadlineExpired () ) {
+				context.markIncomplete ();
+				return null;
+			}
+
+			// Only the original batches are representative of the query
+			if ( !isRetry )
+			{
+				if ( this.batchSizer != null ) this.batchSizer.onTimeout ( batch.size () );
+				if ( this.concurrencyLimiter != null ) this.concurrencyLimiter.onDrop ();
+			}
+			// At least this
+			if ( this.queryTimeoutMs != -1 ) this.updateExpectedGeneCost ( this.queryTimeoutMs, batch.size () );
+			
+			// These are likely the hub genes, so they must be in the costs, even if they don't return anything
+			if ( performanceTracker.isGeneCostTracking () ) performanceTracker.trackTimedOutGeneCosts ( 
+				pathQuery, batch, System.currentTimeMillis () - batchStartTime 
+			);
+
 			// The query didn't complete within the timeout, results are partial, we must invalidate
-			// everything
-			return;
+			// everything, possibly, we retry with smaller batches.
+			if ( this.queryTimeoutMinBatchSize != -1 ) 
+			{
+				if ( batch.size () > this.queryTimeoutMinBatchSize ) context.addTimedOutBatch ( this, batch );
+				else performanceTracker.trackUnresolvedTimeout ( pathQuery, batch );
+			}
+			return null;
+		}
+		catch ( RuntimeException ex ) 
+		{
+			// The query was cancelled by the traversal interruption, results are discarded anyway
+			if ( context.isInterrupted () ) return null;
+			throw ex;
+		}
+		finally 
+		{
+			this.inFlightBatches.decrementAndGet ();
+			batchEvent.end ();
+			if ( batchEvent.shouldCommit () ) 
+			{
+				QueryAttempt<P> result = winner.get ();
+				batchEvent.queryId = this.queryId;
+				batchEvent.batchSize = batch.size ();
+				batchEvent.rows = result.performanceCounters [ 0 ];
+				batchEvent.entities = result.performanceCounters [ 1 ];
+				// The same measure as the page events, computed here, so that it costs nothing without a recording
+				for ( P path: result.paths ) batchEvent.bytes += pathFetcher.getSize ( path );
+				batchEvent.hedged = result != primary;
+				batchEvent.commit ();
+			}
 		}
 		
 		
+		// The iteration might have stopped before the end, don't collect (or cache) partial results
+		if ( context.isInterrupted () ) return null;
+		
+		// Gene ID -> paths as IDs, for the results cache and the jobs waiting for these genes
+		Map<Integer, List<int[]>> idPaths = new HashMap<> ();
+		boolean collectIds = this.resultCache.isEnabled () || this.queryCoalescing;
+		
+		// Gene -> no. of paths, for the per-gene costs, when enabled
+		Map<ONDEXConcept, int[]> genePaths = performanceTracker.isGeneCostTracking () ? new HashMap<> () : null;
+		
 		// And eventually, let's collect the results
 		// A parallel stream doesn't seem worth here, since there are a lot of
 		// synch writings into the result Map.
 		//
-		CypherClient.findPathsFromIris ( graph, queryResultIris.stream () )
+		Map<ONDEXConcept, List<EvidencePathNode>> result = context.getResult ();
+		winner.get ().paths.stream ()
+		.map ( pathResolver )
 		.forEach ( pathEntities ->
 		{
 			// Do it before the following, it checks the first entity is a concept.
@@ -269,63 +637,159 @@ class SinglePathQueryProcessor
 			result
 				.computeIfAbsent ( firstGene, k -> new Vector<> () )
 				.add ( path );
+			
+			if ( collectIds ) idPaths
+				.computeIfAbsent ( firstGene.getId (), k -> new ArrayList<> () )
+				.add ( pathEntities.stream ().mapToInt ( ONDEXEntity::getId ).toArray () );
+			
+			if ( genePaths != null ) genePaths.computeIfAbsent ( firstGene, k -> new int[ 1 ] ) [ 0 ]++;
 		});
+		
+		if ( genePaths != null ) performanceTracker.trackGeneCosts ( pathQuery, batch, genePaths, queryTime );
+		
+		// Genes without paths are cached too, since we know they don't have any
+		if ( this.resultCache.isEnabled () ) for ( ONDEXConcept gene: batch )
+			this.resultCache.put ( this.pathQueryHash, gene.getId (), idPaths.getOrDefault ( gene.getId (), List.of () ) );
+		
+		return idPaths;
+	}
+	
+	/**
+	 * Gets the genes that are in the {@link TraversalResultCache}, adding their paths to the traversal result, and 
+	 * returns the genes that aren't in the cache, ie, those that have to be queried. This is used by 
+	 * {@link PathQueryProcessor} before batching the genes.
+	 */
+	@SuppressWarnings ( "rawtypes" )
+	List<ONDEXConcept> resolveFromCache ( TraversalContext context, List<ONDEXConcept> concepts )
+	{
+		if ( !this.resultCache.isEnabled () ) return concepts;
+		
+		ONDEXGraph graph = context.getGraph ();
+		Map<ONDEXConcept, List<EvidencePathNode>> result = context.getResult ();
+		
+		List<ONDEXConcept> misses = new ArrayList<> ();
+		int staleCount = 0;
+		for ( ONDEXConcept gene: concepts )
+		{
+			List<int[]> pathIds = this.resultCache.get ( this.pathQueryHash, gene.getId () );
+			if ( pathIds != null && this.addPathsFromIds ( graph, gene, pathIds, result ) ) continue;
+			
+			if ( pathIds != null ) {
+				// It refers to entities that aren't in the graph anymore, treat it like a miss
+				this.resultCache.remove ( this.pathQueryHash, gene.getId () );
+				staleCount++;
+			}
+			misses.add ( gene );
+		}
+		
+		if ( staleCount > 0 ) log.warn ( 
+			"Traversal result cache: {} entries refer to Ondex IDs that aren't in the graph, they were removed and their "
+			+ "genes will be queried. This means the OXL has changed, you should change traversalCacheDatasetVersion too", 
+			staleCount 
+		);
+		return misses;
 	}
-
 	
-	private void doQuery ( 
-		List<String> startGeneIris, List<List<String>> queryResultIris, int performanceCounters[] 
+	/**
+	 * Adds paths represented as Ondex IDs to the traversal result, used with the IDs coming from the 
+	 * {@link #resultCache} or from the {@link #inFlightRegistry}.
+	 * 
+	 * @return false if some ID can't be found in the graph (eg, a cache entry created for a previous OXL), in which 
+	 * case nothing is added to the result. 
+	 */
+	@SuppressWarnings ( "rawtypes" )
+	private boolean addPathsFromIds ( 
+		ONDEXGraph graph, ONDEXConcept gene, List<int[]> pathIds, Map<ONDEXConcept, List<EvidencePathNode>> result 
 	)
 	{
-		PagedCyPathFinder pathsItr = this.getCyPathFinder ();
-		pathsItr.init ( startGeneIris, this.pathQuery );
+		List<EvidencePathNode> paths = new ArrayList<> ( pathIds.size () );
+		try {
+			for ( int[] ids: pathIds )
+				paths.add ( this.buildEvidencePath ( CypherClient.findPathFromOndexIds ( graph, ids ) ) );
+		}
+		catch ( IllegalStateException ex ) {
+			log.debug ( "Can't resolve the paths for the gene {}: {}", gene.getId (), ex.getMessage () );
+			return false;
+		}
 		
-		// For each configured semantic motif query, get the paths from Neo4j + indexed resource
-		pathsItr.forEachRemaining ( 
-			pathIris -> {
-				queryResultIris.add ( pathIris );
+		if ( !paths.isEmpty () ) result.computeIfAbsent ( gene, k -> new Vector<> () ).addAll ( paths );
+		return true;
+	}
+
+	
+	private <P> void doQuery ( 
+		TraversalContext context, PagedCyPathFinder<P> pathsItr, PathFetcher<P> pathFetcher, List<String> startGeneIris, 
+		List<P> queryResultPaths, ToIntFunction<P> pathLength, int performanceCounters[], long timeoutMs 
+	)
+	{
+		try ( pathsItr )
+		{
+			pathsItr.setQueryId ( this.queryId );
+			pathsItr.init ( pathFetcher, startGeneIris, this.pathQuery, timeoutMs );
+			
+			// For each configured semantic motif query, get the paths from Neo4j + indexed resource
+			// The interruption check allows for stopping long-running batches (eg, in the streaming mode)
+			while ( !context.isInterrupted () && pathsItr.hasNext () )
+			{
+				P path = pathsItr.next ();
+				queryResultPaths.add ( path );
 				performanceCounters [ 0 ]++; // no. of resulting paths
-				performanceCounters [ 1 ] += pathIris.size (); // total path lengths
+				performanceCounters [ 1 ] += pathLength.applyAsInt ( path ); // total path lengths
 			}
-		);
+		}
 	}
 	
 	
 	/**
-	 * Runs a query action with time restrictions (if queryTimeOutMs != -1).
+	 * <p>Runs a query action with time restrictions (if timeOutMs != -1, see {@link #getBatchTimeout(TraversalContext)}).</p>
+	 * 
+	 * <p>The query runs in the current thread. The timeout is used as a server-side transaction timeout 
+	 * (see {@link PagedCyPathFinder#init(List, String, long)}) and, in addition, {@link #TIMEOUT_WATCHDOG} 
+	 * {@link PagedCyPathFinder#cancel() cancels} the query when its time is over, by terminating it on the server, 
+	 * so that the Neo4j transaction is stopped straight away and the query thread gets an error, after which 
+	 * it releases its session.</p>
 	 * 
-	 * if the query can't run within its time limits, #UncheckedTimeoutException is thrown. This is possibly
-	 * intercepted by {@link CyTraverserPerformanceTracker}.
+	 * <p>if the query can't run within its time limits, #UncheckedTimeoutException is thrown. This is possibly
+	 * intercepted by {@link CyTraverserPerformanceTracker}.</p>
 	 * 
 	 */
-	private void timedQuery ( Runnable queryAction, List<String> startGeneIris )
+	private void timedQuery ( 
+		TraversalContext context, PagedCyPathFinder<?> pathsItr, Runnable queryAction, long timeoutMs, List<String> startGeneIris 
+	)
 	{
-		// No timeout wanted
-		if ( this.queryTimeoutMs == -1l ) {
-			queryAction.run ();
-			return;
-		}
+		// So that the traversal interruption can cancel it
+		context.addActiveFinder ( pathsItr );
 
+		ScheduledFuture<?> watchdog = null;
+		
+		// Set before cancelling, since the query might fail due to the cancellation before the watchdog is done with it
+		AtomicBoolean isWatchdogFired = new AtomicBoolean ( false );
 		try
 		{
-			TIME_LIMITER.callWithTimeout ( 
-				Executors.callable ( queryAction ), queryTimeoutMs, TimeUnit.MILLISECONDS 
-			);
-		}
-		catch ( TimeoutException|UncheckedTimeoutException|InterruptedException ex ) 
-		{
-			// Don't wrap it with other exception types, but let it flow to the performance tracker
-			throw ExceptionUtils.buildEx ( 
-				UncheckedTimeoutException.class,
-				ex,
-				"Timed out query: %s. First gene IRI is: <%s>. Query is: \"%s\"",
-				ex.getMessage (),
-				startGeneIris.get ( 0 ),
-				escapeJava ( this.pathQuery )
+			// No timeout wanted
+			if ( timeoutMs != -1l ) watchdog = TIMEOUT_WATCHDOG.schedule ( 
+				() -> {
+					isWatchdogFired.set ( true );
+					pathsItr.cancel ();
+				}, 
+				timeoutMs, TimeUnit.MILLISECONDS 
 			);
+			
+			queryAction.run ();
 		}
-		catch ( Exception ex )
+		catch ( RuntimeException ex ) 
 		{
+			if ( isTimeout ( ex ) || isWatchdogFired.get () )
+				// Don't wrap it with other exception types, but let it flow to the performance tracker
+				throw ExceptionUtils.buildEx ( 
+					UncheckedTimeoutException.class,
+					ex,
+					"Timed out query: %s. First gene IRI is: <%s>. Query is: \"%s\"",
+					ex.getMessage (),
+					startGeneIris.get ( 0 ),
+					escapeJava ( this.pathQuery )
+				);
+
 			throw ExceptionUtils.buildEx ( 
 				GenericNeo4jException.class,
 				ex,
@@ -334,8 +798,202 @@ class SinglePathQueryProcessor
 				startGeneIris.get ( 0 ),
 				escapeJava ( this.pathQuery )
 			);
-		}			
-	}		
+		}
+		finally 
+		{
+			if ( watchdog != null ) watchdog.cancel ( false );
+			context.removeActiveFinder ( pathsItr );
+		}
+	}
+	
+	/**
+	 * <p>Runs a batch query attempt and, if hedging is enabled ({@link #hedgingBudget}), hedges it when it's slow: 
+	 * if the attempt doesn't complete within the {@link #HEDGING_PERCENTILE} of the batch times seen so far for this 
+	 * query, a copy of it is sent to another Neo4j endpoint (see {@link PagedCyPathFinder#setAvoidedEndpoint(String)}), 
+	 * the first of the two attempts that completes wins and the other one is {@link PagedCyPathFinder#cancel() 
+	 * cancelled}. This cuts the tail latency due to an endpoint that is temporarily slow (eg, GC pauses, 
+	 * page cache misses), without the cost of always sending all the queries twice.</p>
+	 * 
+	 * <p>The hedges are limited by the {@link HedgingBudget}, so that they can't overload the endpoints when they're 
+	 * all slow. Moreover, every hedge takes a permit from the {@link #jobDispatcher}, which is counted by its 
+	 * limiter like the regular jobs, so that hedges aren't issued when the limiter is shedding load, nor when there 
+	 * are jobs waiting for a permit. They run in {@link #HEDGE_EXECUTOR}, outside of the job dispatcher, since 
+	 * they're meant to replace a query that already has a job slot.</p>
+	 * 
+	 * <p>If the primary attempt fails (eg, it times out) while the hedge is running, the hedge is waited for, within 
+	 * the batch timeout and unless the traversal is interrupted, and the primary failure is reported only if the hedge 
+	 * fails too.</p>
+	 * 
+	 * @return the attempt that completed first.
+	 */
+	<P> QueryAttempt<P> hedgedQuery ( 
+		TraversalContext context, QueryAttempt<P> primary, Consumer<QueryAttempt<P>> timedQueryAction 
+	)
+	{
+		if ( this.hedgingBudget != null ) this.hedgingBudget.onBatch ();
+		final long hedgeDelay = this.getHedgeDelay ();
+		
+		if ( hedgeDelay == -1 ) {
+			timedQueryAction.accept ( primary );
+			return primary;
+		}
+		
+		// Completed with the hedge, when it wins, or with null, when the hedge isn't needed anymore
+		CompletableFuture<QueryAttempt<P>> hedgeResult = new CompletableFuture<> ();
+		AtomicReference<QueryAttempt<P>> hedgeRef = new AtomicReference<> ();
+		
+		ScheduledFuture<?> hedgeTrigger = TIMEOUT_WATCHDOG.schedule ( () -> 
+		{
+			if ( hedgeResult.isDone () || context.isInterrupted () ) return;
+			
+			// No hedge if Neo4j is already at its concurrency limit, or if we've run out of hedges
+			if ( this.jobDispatcher != null && !this.jobDispatcher.tryAcquireHedgePermit () ) return;
+			if ( !this.hedgingBudget.tryAcquire () ) {
+				if ( this.jobDispatcher != null ) this.jobDispatcher.releaseHedgePermit ();
+				return;
+			}
+			
+			QueryAttempt<P> hedge = new QueryAttempt<> ( this.getCyPathFinder () );
+			hedge.pathsItr.setAvoidedEndpoint ( primary.pathsItr.getLastEndpoint () );
+			hedgeRef.set ( hedge );
+			
+			try 
+			{
+				HEDGE_EXECUTOR.execute ( () -> 
+				{
+					try 
+					{
+						// The primary might have completed in the meanwhile
+						if ( hedgeResult.isDone () ) return;
+						
+						log.debug ( "Hedging a batch after {} ms, query: {}", hedgeDelay, this.pathQuery );
+						timedQueryAction.accept ( hedge );
+						if ( hedgeResult.complete ( hedge ) ) primary.pathsItr.cancel ();
+					}
+					catch ( RuntimeException ex ) {
+						hedgeResult.completeExceptionally ( ex );
+					}
+					finally {
+						if ( this.jobDispatcher != null ) this.jobDispatcher.releaseHedgePermit ();
+					}
+				});
+			}
+			catch ( RejectedExecutionException ex ) 
+			{
+				// All the hedge threads are busy, it's like a failed hedge
+				log.debug ( "No thread available to hedge a batch, query: {}", this.pathQuery );
+				if ( this.jobDispatcher != null ) this.jobDispatcher.releaseHedgePermit ();
+				hedgeResult.completeExceptionally ( ex );
+			}
+		}, hedgeDelay, TimeUnit.MILLISECONDS );
+		
+		RuntimeException primaryError = null;
+		try {
+			timedQueryAction.accept ( primary );
+		}
+		catch ( RuntimeException ex ) {
+			primaryError = ex;
+		}
+		finally {
+			hedgeTrigger.cancel ( false );
+		}
+		
+		if ( primaryError == null || hedgeRef.get () == null )
+		{
+			// Either the primary won, or there is no hedge to wait for. A hedge that is starting or running 
+			// is stopped (the second check is for the case it started after the first one)
+			hedgeResult.complete ( null );
+			QueryAttempt<P> hedge = hedgeRef.get ();
+			if ( hedge != null ) hedge.pathsItr.cancel ();
+			
+			if ( primaryError != null ) throw primaryError;
+			return primary;
+		}
+		
+		// The primary failed, either because the hedge won and cancelled it, or for its own reasons, in which
+		// case the hedge might still make it. The hedge has its own timeout, but we don't want to depend on it only
+		try 
+		{
+			QueryAttempt<P> hedge = waitFor ( context, hedgeResult, this.getBatchTimeout ( context ) );
+			log.debug ( "Hedged batch won, query: {}", this.pathQuery );
+			return hedge;
+		}
+		catch ( InterruptedException ex ) {
+			Thread.currentThread ().interrupt ();
+		}
+		catch ( ExecutionException | TimeoutException ex ) {
+			// The hedge failed too, or it's too late for it
+		}
+		
+		hedgeResult.complete ( null );
+		hedgeRef.get ().pathsItr.cancel ();
+		throw primaryError;
+	}
+	
+	/**
+	 * The timeout for a batch query that is starting: {@link #queryTimeoutMs}, or the time left before the traversal 
+	 * deadline (see {@link TraversalContext#setTimeoutMs(long)}), if that's shorter. -1 means no timeout.
+	 */
+	private long getBatchTimeout ( TraversalContext context )
+	{
+		long remainingMs = context.getRemainingTimeMs ();
+		if ( remainingMs == -1 ) return this.queryTimeoutMs;
+		return this.queryTimeoutMs == -1 ? remainingMs : Math.min ( remainingMs, this.queryTimeoutMs );
+	}
+	
+	/**
+	 * The time after which a batch is hedged, -1 if it shouldn't be hedged, because hedging is disabled, or we 
+	 * don't have enough batch time samples yet, or the hedge would start after {@link #queryTimeoutMs}.
+	 */
+	private long getHedgeDelay ()
+	{
+		if ( this.hedgingBudget == null || this.batchTimes.getCount () < HEDGING_MIN_SAMPLES ) return -1;
+		long result = this.batchTimes.getPercentile ( HEDGING_PERCENTILE );
+		return this.queryTimeoutMs != -1 && result >= this.queryTimeoutMs ? -1 : result;
+	}
+	
+	/**
+	 * Tells if an exception is due to a timeout, either client-side (see {@link PagedCyPathFinder}), or server-side, 
+	 * ie, Neo4j terminated a query that exceeded its transaction timeout.
+	 */
+	private static boolean isTimeout ( Throwable ex )
+	{
+		for ( Throwable cause = ex; cause != null; cause = cause.getCause () )
+		{
+			if ( cause instanceof UncheckedTimeoutException ) return true;
+			if ( cause instanceof Neo4jException ) 
+			{
+				String code = ( (Neo4jException) cause ).code ();
+				if ( code != null && code.contains ( "TransactionTimedOut" ) ) return true;
+			}
+		}
+		return false;
+	}
+	
+	private static ExecutorService createHedgeExecutor ()
+	{
+		return new ThreadPoolExecutor ( 
+			0, HEDGE_MAX_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<> (), 
+			runnable -> {
+				Thread thread = new Thread ( runnable, SinglePathQueryProcessor.class.getSimpleName () + "-hedge" );
+				thread.setDaemon ( true );
+				return thread;
+			}
+		);
+	}
+	
+	private static ScheduledExecutorService createTimeoutWatchdog ()
+	{
+		// Cancellations need a round trip to the Neo4j server, so a couple of threads is safer
+		ScheduledThreadPoolExecutor result = new ScheduledThreadPoolExecutor ( 2, runnable -> {
+			Thread thread = new Thread ( runnable, SinglePathQueryProcessor.class.getSimpleName () + "-timeout-watchdog" );
+			thread.setDaemon ( true );
+			return thread;
+		});
+		// Most of the timeouts are cancelled because the query completes in time, so don't keep them around
+		result.setRemoveOnCancelPolicy ( true );
+		return result;
+	}
 		
 	
 	/**
@@ -346,6 +1004,11 @@ class SinglePathQueryProcessor
 	@SuppressWarnings ( { "rawtypes", "unchecked" } )
 	private EvidencePathNode buildEvidencePath ( List<ONDEXEntity> ondexPathEntities )
 	{
+		// This runs for every path, so skip the event calls when JFR isn't recording it, as PagedCyPathFinder does
+		EvidencePathEvent event = new EvidencePathEvent ();
+		boolean isEventEnabled = event.isEnabled ();
+		if ( isEventEnabled ) event.begin ();
+		
 		EvidencePathNode result = null; 
 		for ( ONDEXEntity odxEnt: ondexPathEntities ) 
 		{ 
@@ -386,22 +1049,106 @@ class SinglePathQueryProcessor
 			"Internal error: Cypher Graph Traverser got a null result from entity->evidence-path conversion"
 		);
 		
+		if ( isEventEnabled ) 
+		{
+			event.end ();
+			if ( event.shouldCommit () ) 
+			{
+				event.queryId = this.queryId;
+				event.pathLength = ondexPathEntities.size ();
+				event.commit ();
+			}
+		}
+		
 		return result;
 	}
 
-	public void setPathQuery ( String pathQuery ) {
+	void setQueryTimeoutMs ( long queryTimeoutMs ) {
+		this.queryTimeoutMs = queryTimeoutMs;
+	}
+
+	void setConcurrencyLimiter ( AdaptiveConcurrencyLimiter concurrencyLimiter ) {
+		this.concurrencyLimiter = concurrencyLimiter;
+	}
+
+	void setJobDispatcher ( QueryJobDispatcher jobDispatcher ) {
+		this.jobDispatcher = jobDispatcher;
+	}
+
+	void setHedgingBudget ( HedgingBudget hedgingBudget ) {
+		this.hedgingBudget = hedgingBudget;
+	}
+
+	void setResultCache ( TraversalResultCache resultCache ) {
+		this.resultCache = resultCache;
+	}
+
+	void setInFlightRegistry ( InFlightQueryRegistry inFlightRegistry ) {
+		this.inFlightRegistry = inFlightRegistry;
+	}
+
+	void setQueryCoalescing ( boolean queryCoalescing ) {
+		this.queryCoalescing = queryCoalescing;
+	}
+
+	public void setPathQuery ( String pathQuery ) 
+	{
 		this.pathQuery = pathQuery;
+		this.pathQueryHash = TraversalResultCache.queryHash ( pathQuery );
+		this.queryId = TraverserMetrics.toQueryId ( this.pathQueryHash );
+	}
+	
+	String getPathQuery () {
+		return pathQuery;
+	}
+
+	String getQueryId () {
+		return queryId;
+	}
+
+	/** The no. of batches started for this query, see {@link TraverserMetrics} */
+	long getBatchCount () {
+		return batchCount.sum ();
 	}
 
+	/** The no. of batches of this query that timed out */
+	long getTimeoutCount () {
+		return timeoutCount.sum ();
+	}
+
+	/** The no. of paths returned by the completed batches of this query */
+	long getPathCount () {
+		return pathCount.sum ();
+	}
+
+	/** The no. of batches of this query that are running now */
+	int getInFlightBatches () {
+		return inFlightBatches.get ();
+	}
+
+	/** The times of the completed batches of this query */
+	LatencyHistogram getBatchTimes () {
+		return batchTimes;
+	}
+	
+	
 	/**
-	 * Causes {@link #process(ONDEXGraph, Collection, Map, PercentProgressLogger) the ongoing} query processing to 
-	 * stop. This is used by {@link PathQueryProcessor#interrupt()}, see also {@link CypherGraphTraverser#interrupt()}.
+	 * A run of a batch query, a batch has two of them when it's hedged, see 
+	 * {@link SinglePathQueryProcessor#hedgedQuery(TraversalContext, QueryAttempt, Consumer)}.
 	 */
-	void interrupt () {
-		this.isInterrupted = true;
-	}
+	static class QueryAttempt<P>
+	{
+		final PagedCyPathFinder<P> pathsItr;
+		final List<P> paths = new ArrayList<> ();
+
+		/** No. of resulting paths and total path lengths, used by the performance tracker */
+		final int performanceCounters[] = { 0, 0 };
+		
+		/** The timeout it gets when it starts, see {@link SinglePathQueryProcessor#getBatchTimeout(TraversalContext)} */
+		long timeoutMs = -1;
 
-	int getThreadPoolSize () {
-		return threadPoolSize;
+		QueryAttempt ( PagedCyPathFinder<P> pathsItr ) {
+			this.pathsItr = pathsItr;
+		}
 	}
 }
@@ -0,0 +1,251 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.sourceforge.ondex.algorithm.graphquery.nodepath.EvidencePathNode;
+import net.sourceforge.ondex.core.ONDEXConcept;
+import net.sourceforge.ondex.core.ONDEXGraph;
+import uk.ac.ebi.utils.exceptions.ExceptionUtils;
+import uk.ac.ebi.utils.runcontrol.PercentProgressLogger;
+import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.CypherGraphTraverser;
+
+/**
+ * <p>The state of a single traversal, ie, of a single invocation of
+ * {@link PathQueryProcessor#process(TraversalContext, ONDEXGraph, java.util.Collection)}.</p>
+ *
+ * <p>{@link PathQueryProcessor} and {@link SinglePathQueryProcessor} are shared by all the traversals (and all the
+ * traversals share the same thread pool), so everything that belongs to one run is kept here: the interruption flag,
+ * the progress, the deadline, the performance stats, the timed out batches to be retried and the queries that 
+ * are running.
+ * This way, multiple {@link CypherGraphTraverser#traverseGraph(ONDEXGraph, Set, net.sourceforge.ondex.algorithm.graphquery.FilterPaths)
+ * traversals} can run in parallel (eg, for multiple web requests), without interfering with each other.</p>
+ *
+ * <p>Instances are created by {@link PathQueryProcessor#newContext()} and can be used for one traversal only.</p>
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class TraversalContext
+{
+	/**
+	 * The priority of a traversal, which decides the {@link QueryJobDispatcher lane} where its query jobs go.
+	 */
+	public static enum Priority 
+	{
+		/** Eg, users' searches, their jobs go first */
+		INTERACTIVE, 
+		/** Eg, the traversal of all the genes at startup, its jobs yield to the interactive ones */
+		BULK 
+	}
+	
+	private final CyTraverserPerformanceTracker performanceTracker;
+	
+	private Priority priority = null;
+
+	private ONDEXGraph graph;
+
+	@SuppressWarnings ( "rawtypes" )
+	private Map<ONDEXConcept, List<EvidencePathNode>> result;
+
+	private volatile PercentProgressLogger progressLogger = null;
+
+	private volatile boolean isInterrupted = false;
+
+	/** @see #setTimeoutMs(long) */
+	private long timeoutMs = -1;
+	
+	/** The time (ms from epoch) within which the traversal must complete, -1 if there is no deadline */
+	private volatile long deadline = -1;
+	
+	/** @see #isComplete() */
+	private volatile boolean isComplete = true;
+
+	/** The finders currently running a query for this traversal, so that {@link #interrupt()} can cancel them. */
+	private final Set<PagedCyPathFinder<?>> activeFinders = ConcurrentHashMap.newKeySet ();
+
+	/** Batches to be retried, see the {@code queryTimeoutMinBatchSize} option in {@link SinglePathQueryProcessor}. */
+	private final Map<SinglePathQueryProcessor, Queue<List<ONDEXConcept>>> timedOutBatches = new ConcurrentHashMap<> ();
+
+	private final Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+
+	TraversalContext ( CyTraverserPerformanceTracker performanceTracker )
+	{
+		this.performanceTracker = performanceTracker;
+	}
+
+
+	/**
+	 * Prepares the context for the traversal, used by {@link PathQueryProcessor}.
+	 *
+	 * @param nunits the total no. of query x gene units to be processed, used for the progress.
+	 */
+	@SuppressWarnings ( "rawtypes" )
+	synchronized void start ( ONDEXGraph graph, Map<ONDEXConcept, List<EvidencePathNode>> result, long nunits )
+	{
+		if ( this.graph != null ) ExceptionUtils.throwEx (
+			IllegalStateException.class, "A traversal context can't be used for more than one traversal"
+		);
+
+		this.graph = graph;
+		this.result = result;
+		this.deadline = timeoutMs == -1 ? -1 : System.currentTimeMillis () + timeoutMs;
+		this.progressLogger = new PercentProgressLogger ( "{}% of graph traversing queries processed", nunits, 10 );
+	}
+
+	/**
+	 * If this isn't set, {@link PathQueryProcessor} decides it, based on the no. of genes to traverse. 
+	 */
+	public Priority getPriority () {
+		return priority;
+	}
+
+	public void setPriority ( Priority priority ) {
+		this.priority = priority;
+	}
+
+	/**
+	 * The time within which the whole traversal must complete, -1 means no limit. If this isn't set, 
+	 * {@link PathQueryProcessor} sets its {@code traversalTimeoutMs} option. 
+	 */
+	public long getTimeoutMs () {
+		return timeoutMs;
+	}
+
+	/**
+	 * <p>Sets {@link #getTimeoutMs()}, this must be done before the traversal starts.</p>
+	 * 
+	 * <p>The traversal timeout is a budget for all the query batches: every batch gets the time left 
+	 * (or its own timeout, if it's shorter), the batches that are still pending when the time is over are skipped 
+	 * and the traversal returns the results collected so far, flagging them as {@link #isComplete() incomplete}.</p>
+	 */
+	public void setTimeoutMs ( long timeoutMs ) {
+		this.timeoutMs = timeoutMs;
+	}
+
+	/**
+	 * The time left before the traversal deadline (0 if it's over), or -1 if there is no deadline, 
+	 * see {@link #setTimeoutMs(long)}.
+	 */
+	long getRemainingTimeMs ()
+	{
+		long deadline = this.deadline;
+		return deadline == -1 ? -1 : Math.max ( 0, deadline - System.currentTimeMillis () );
+	}
+
+	/**
+	 * @see #setTimeoutMs(long)
+	 */
+	boolean isDeadlineExpired () {
+		return this.getRemainingTimeMs () == 0;
+	}
+	
+	/**
+	 * False if some work was skipped or cut because the traversal deadline expired (see 
+	 * {@link #setTimeoutMs(long)}), or because the traversal was {@link #interrupt() interrupted}. In this case, the
+	 * traversal result is partial, ie, some genes might have fewer paths than they should, or none.
+	 */
+	public boolean isComplete () {
+		return isComplete && !isInterrupted;
+	}
+
+	/**
+	 * Used when some work is skipped due to the deadline, see {@link #isComplete()}.
+	 */
+	void markIncomplete () {
+		this.isComplete = false;
+	}
+
+	ONDEXGraph getGraph () {
+		return graph;
+	}
+
+	@SuppressWarnings ( "rawtypes" )
+	Map<ONDEXConcept, List<EvidencePathNode>> getResult () {
+		return result;
+	}
+
+	/**
+	 * Increments the progress by a no. of query x gene units.
+	 */
+	void updateProgress ( long nunits ) {
+		this.progressLogger.updateWithIncrement ( nunits );
+	}
+
+	/**
+	 * Tells a percentage of completed queries. This doesn't do any synchronisation, ie, you are supposed to be asking
+	 * approximate results. It returns 0 if the traversal isn't started yet.
+	 */
+	public double getPercentProgress ()
+	{
+		PercentProgressLogger progressLogger = this.progressLogger;
+		return progressLogger == null ? 0d : progressLogger.getPercentProgress ();
+	}
+
+	/**
+	 * The performance tracker for this traversal only.
+	 */
+	public CyTraverserPerformanceTracker getPerformanceTracker () {
+		return performanceTracker;
+	}
+
+
+	/**
+	 * @see #interrupt()
+	 */
+	public boolean isInterrupted () {
+		return isInterrupted;
+	}
+
+	/**
+	 * Stops this traversal, the other traversals aren't affected. The queries that are running are
+	 * {@link PagedCyPathFinder#cancel() cancelled}, ie, terminated on the Neo4j server, so that their server resources 
+	 * are freed straight away and their threads release their client resources.
+	 */
+	public void interrupt ()
+	{
+		this.isInterrupted = true;
+		log.warn ( "Traversal was interrupted, stopping it" );
+		this.activeFinders.forEach ( PagedCyPathFinder::cancel );
+	}
+
+	/**
+	 * Registers a finder that is running a query for this traversal, cancelling it straight away if the traversal
+	 * was interrupted in the meantime.
+	 */
+	void addActiveFinder ( PagedCyPathFinder<?> finder )
+	{
+		this.activeFinders.add ( finder );
+		// Might have happened before the line above
+		if ( this.isInterrupted ) finder.cancel ();
+	}
+
+	void removeActiveFinder ( PagedCyPathFinder<?> finder ) {
+		this.activeFinders.remove ( finder );
+	}
+
+	void addTimedOutBatch ( SinglePathQueryProcessor queryProc, List<ONDEXConcept> batch )
+	{
+		this.timedOutBatches
+			.computeIfAbsent ( queryProc, qp -> new ConcurrentLinkedQueue<> () )
+			.add ( batch );
+	}
+
+	/**
+	 * @return null if there aren't more timed out batches for the query processor.
+	 */
+	List<ONDEXConcept> pollTimedOutBatch ( SinglePathQueryProcessor queryProc )
+	{
+		Queue<List<ONDEXConcept>> batches = this.timedOutBatches.get ( queryProc );
+		return batches == null ? null : batches.poll ();
+	}
+}
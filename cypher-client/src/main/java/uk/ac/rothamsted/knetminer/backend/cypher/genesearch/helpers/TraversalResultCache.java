@@ -0,0 +1,528 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import com.google.common.hash.Hashing;
+
+import net.sourceforge.ondex.core.ONDEXGraph;
+import uk.ac.ebi.utils.exceptions.ExceptionUtils;
+
+/**
+ * <p>A persistent cache of the graph traverser results, which stores the paths found by a semantic motif query for
+ * a gene, so that the next traversals involving the same genes don't need to query Neo4j again for them. This is used
+ * by {@link PathQueryProcessor}, which queries only the genes that aren't in the cache, and by
+ * {@link SinglePathQueryProcessor}, which stores what it gets from Neo4j.</p>
+ *
+ * <p>The paths are stored as lists of Ondex concept/relation IDs, in a set of memory-mapped files
+ * ({@link #cacheDir}), which are used as segments of a ring log: new entries are appended to the current segment and,
+ * when it's full, the next segment is cleared and becomes the current one, ie, eviction is FIFO, at the segment
+ * granularity, and the whole cache can't be bigger than {@link #maxSizeMB}. The index of the stored entries is kept
+ * in memory and it's rebuilt by scanning the segments when the cache is opened.</p>
+ *
+ * <p>The cache content is invalidated (ie, cleared) when the dataset version changes, see
+ * {@link #getDatasetVersion(ONDEXGraph)}. Since the Ondex IDs depend on the loaded OXL, the dataset version must
+ * change every time the OXL changes. If the version isn't changed, the entries with IDs that aren't in the new
+ * graph are detected and {@link #remove(long, int) removed} by {@link SinglePathQueryProcessor}, but the ones
+ * that now refer to other entities can't be detected.</p>
+ *
+ * <p>The cache is disabled by default, ie, when {@link #cacheDir} is null.</p>
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+@Component
+class TraversalResultCache
+{
+	/** The directory where the cache is stored, null disables the cache. This is a configurable parameter. */
+	@Autowired ( required = false ) @Qualifier ( "traversalCacheDir" )
+	private String cacheDir = null;
+
+	/** The max size of the cache files. This is a configurable parameter. */
+	@Autowired ( required = false ) @Qualifier ( "traversalCacheMaxSizeMB" )
+	private long maxSizeMB = 1024;
+
+	/**
+	 * The dataset version, see {@link #getDatasetVersion(ONDEXGraph)}. This is a configurable parameter and it's
+	 * mandatory when the cache is enabled.
+	 */
+	@Autowired ( required = false ) @Qualifier ( "traversalCacheDatasetVersion" )
+	private String datasetVersion = null;
+
+	static final int SEGMENTS = 16;
+
+	/** [int len][long query hash][int gene ID][int no. of paths], len is negated for the removed entries */
+	private static final int RECORD_HEADER_SIZE = 4 + 8 + 4 + 4;
+
+	private static final String META_FILE_NAME = "traversal-cache.properties";
+
+	private MappedByteBuffer[] segments;
+	private int segmentSize;
+	private int currentSegment;
+	private int writePos;
+
+	/** Where the entries are, as segment no. (high 32 bits) and offset in the segment */
+	private final Map<CacheKey, Long> index = new ConcurrentHashMap<> ();
+
+	/** The keys in every segment, used for eviction */
+	private List<Queue<CacheKey>> segmentKeys;
+
+	/** The version used to open the cache, null if it's not open */
+	private String openedVersion = null;
+
+	/**
+	 * The write lock is used to open/close the cache and to evict segments, {@link #get(long, int)} and
+	 * {@link #put(long, int, List)} share the read lock.
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock ();
+
+	/** Guards {@link #writePos} when the entries are written under the read lock */
+	private final Object allocationLock = new Object ();
+
+	private final AtomicLong hits = new AtomicLong (), misses = new AtomicLong ();
+
+	private final Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+
+	private static final class CacheKey
+	{
+		private final long queryHash;
+		private final int geneId;
+
+		CacheKey ( long queryHash, int geneId )
+		{
+			this.queryHash = queryHash;
+			this.geneId = geneId;
+		}
+
+		@Override
+		public int hashCode () {
+			return Objects.hash ( queryHash, geneId );
+		}
+
+		@Override
+		public boolean equals ( Object obj )
+		{
+			if ( this == obj ) return true;
+			if ( !( obj instanceof CacheKey ) ) return false;
+			CacheKey other = (CacheKey) obj;
+			return queryHash == other.queryHash && geneId == other.geneId;
+		}
+	}
+
+
+	TraversalResultCache () {
+	}
+
+	/**
+	 * Mainly for testing.
+	 */
+	TraversalResultCache ( String cacheDir, long maxSizeMB, String datasetVersion )
+	{
+		this.cacheDir = cacheDir;
+		this.maxSizeMB = maxSizeMB;
+		this.datasetVersion = datasetVersion;
+	}
+
+
+	@PostConstruct
+	void checkConfig ()
+	{
+		if ( this.isEnabled () && this.datasetVersion == null ) ExceptionUtils.throwEx (
+			IllegalArgumentException.class,
+			"traversalCacheDatasetVersion must be set when the traversal cache is enabled (traversalCacheDir is '%s'), "
+			+ "and it must change when the OXL changes",
+			this.cacheDir
+		);
+	}
+
+	public boolean isEnabled () {
+		return this.cacheDir != null;
+	}
+
+	/**
+	 * The hash that identifies a query in the cache.
+	 */
+	static long queryHash ( String query ) {
+		return Hashing.murmur3_128 ().hashString ( query, StandardCharsets.UTF_8 ).asLong ();
+	}
+
+	/**
+	 * Opens the cache for a graph, clearing its content if it was created for another dataset version. This is
+	 * invoked by {@link PathQueryProcessor} at every traversal and it doesn't do anything if the cache is already
+	 * open with the same version.
+	 */
+	void open ( ONDEXGraph graph )
+	{
+		if ( !this.isEnabled () ) return;
+		this.checkConfig ();
+
+		String version = this.getDatasetVersion ( graph );
+
+		lock.writeLock ().lock ();
+		try
+		{
+			if ( version.equals ( this.openedVersion ) ) return;
+
+			File dir = new File ( this.cacheDir );
+			dir.mkdirs ();
+
+			int newSegmentSize = (int) Math.min ( Integer.MAX_VALUE, this.maxSizeMB * 1024 * 1024 / SEGMENTS );
+			newSegmentSize -= newSegmentSize % 4;
+
+			Properties meta = loadMeta ( dir );
+			boolean isCompatible = version.equals ( meta.getProperty ( "datasetVersion" ) )
+				&& String.valueOf ( newSegmentSize ).equals ( meta.getProperty ( "segmentSize" ) );
+
+			this.segmentSize = newSegmentSize;
+			this.segments = new MappedByteBuffer [ SEGMENTS ];
+			for ( int i = 0; i < SEGMENTS; i++ )
+				this.segments [ i ] = mapSegment ( new File ( dir, String.format ( "segment-%02d.dat", i ) ), segmentSize );
+
+			this.index.clear ();
+			this.segmentKeys = new ArrayList<> ( SEGMENTS );
+			for ( int i = 0; i < SEGMENTS; i++ ) this.segmentKeys.add ( new ConcurrentLinkedQueue<> () );
+
+			if ( isCompatible )
+			{
+				this.currentSegment = Integer.parseInt ( meta.getProperty ( "currentSegment", "0" ) );
+				// From the oldest segment to the current, so that the newest entries win
+				for ( int i = 1; i <= SEGMENTS; i++ )
+					this.scanSegment ( ( this.currentSegment + i ) % SEGMENTS );
+				log.info ( "Traversal result cache opened, {} entries found", this.index.size () );
+			}
+			else
+			{
+				log.info ( "Traversal result cache: new dataset version or new size, clearing the cache" );
+				for ( MappedByteBuffer segment: this.segments ) segment.putInt ( 0, 0 );
+				this.currentSegment = 0;
+				this.writePos = 0;
+			}
+
+			this.openedVersion = version;
+			this.saveMeta ();
+		}
+		finally {
+			lock.writeLock ().unlock ();
+		}
+	}
+
+	/**
+	 * Gets the paths stored for the query and the gene, as lists of Ondex IDs (concept, relation, concept, ...),
+	 * see {@link SinglePathQueryProcessor}. Returns null if there is nothing for them.
+	 */
+	List<int[]> get ( long queryHash, int geneId )
+	{
+		lock.readLock ().lock ();
+		try
+		{
+			Long location = this.openedVersion == null ? null : this.index.get ( new CacheKey ( queryHash, geneId ) );
+			if ( location == null ) {
+				misses.incrementAndGet ();
+				return null;
+			}
+			hits.incrementAndGet ();
+
+			MappedByteBuffer segment = this.segments [ (int) ( location >>> 32 ) ];
+			int pos = (int) ( location & 0xFFFFFFFFL ) + RECORD_HEADER_SIZE - 4;
+
+			int npaths = segment.getInt ( pos ); pos += 4;
+			List<int[]> result = new ArrayList<> ( npaths );
+			for ( int i = 0; i < npaths; i++ )
+			{
+				int[] path = new int [ segment.getInt ( pos ) ]; pos += 4;
+				for ( int j = 0; j < path.length; j++, pos += 4 )
+					path [ j ] = segment.getInt ( pos );
+				result.add ( path );
+			}
+			return result;
+		}
+		finally {
+			lock.readLock ().unlock ();
+		}
+	}
+
+	/**
+	 * <p>Stores the paths for a query and a gene, see {@link #get(long, int)}. An empty list is stored too, since it
+	 * tells that the gene has no paths for the query.</p>
+	 *
+	 * <p>This is invoked for every gene by all the query workers, so the write lock is taken only to evict a segment
+	 * when the current one is full. Otherwise, the space for the entry is reserved under the small
+	 * {@link #allocationLock} and the entry is written concurrently with the others (in distinct regions of the
+	 * segment, using absolute buffer methods only).</p>
+	 */
+	void put ( long queryHash, int geneId, List<int[]> paths )
+	{
+		int size = RECORD_HEADER_SIZE;
+		for ( int[] path: paths ) size += 4 + 4 * path.length;
+
+		while ( true )
+		{
+			lock.readLock ().lock ();
+			try
+			{
+				if ( this.openedVersion == null ) return;
+
+				if ( size > segmentSize ) {
+					log.debug ( "Traversal result cache: entry for the gene ID {} too big, not cached", geneId );
+					return;
+				}
+
+				long location = this.allocate ( size );
+				if ( location != -1 )
+				{
+					this.write ( location, queryHash, geneId, paths, size );
+					return;
+				}
+			}
+			finally {
+				lock.readLock ().unlock ();
+			}
+
+			// The current segment is full, evict the next one, unless another thread has already done it
+			lock.writeLock ().lock ();
+			try {
+				if ( this.openedVersion != null && this.writePos + size > segmentSize ) this.nextSegment ();
+			}
+			finally {
+				lock.writeLock ().unlock ();
+			}
+		}
+	}
+
+	/**
+	 * Removes an entry, eg, because it refers to Ondex IDs that aren't in the graph anymore. The entry is marked
+	 * as removed in its segment (by negating its size), so that {@link #open(ONDEXGraph)} doesn't bring it back. The 
+	 * space it takes is reclaimed when its segment is evicted.
+	 */
+	void remove ( long queryHash, int geneId )
+	{
+		lock.readLock ().lock ();
+		try 
+		{
+			if ( this.openedVersion == null ) return;
+			
+			Long location = this.index.remove ( new CacheKey ( queryHash, geneId ) );
+			if ( location == null ) return;
+			
+			MappedByteBuffer segment = this.segments [ (int) ( location >>> 32 ) ];
+			int pos = (int) ( location & 0xFFFFFFFFL );
+			segment.putInt ( pos, -segment.getInt ( pos ) );
+		}
+		finally {
+			lock.readLock ().unlock ();
+		}
+	}
+
+	/**
+	 * The dataset version used to invalidate the cache, ie, {@link #datasetVersion}, which
+	 * {@link #checkConfig()} requires when the cache is enabled.
+	 * The graph isn't used at the moment: a stamp based on its name and size was used in the past, but it doesn't
+	 * detect a new OXL with the same number of entities and different Ondex IDs, which would make the cache return
+	 * wrong paths.
+	 */
+	String getDatasetVersion ( ONDEXGraph graph ) {
+		return this.datasetVersion;
+	}
+
+	/**
+	 * Logs the hit/miss counts, since the cache was created.
+	 */
+	void logStats ()
+	{
+		if ( !this.isEnabled () ) return;
+		log.info (
+			"Traversal result cache, hits: {}, misses: {}, entries: {}", hits.get (), misses.get (), this.index.size ()
+		);
+	}
+
+	@PreDestroy
+	void close ()
+	{
+		lock.writeLock ().lock ();
+		try
+		{
+			if ( this.openedVersion == null ) return;
+			for ( MappedByteBuffer segment: this.segments ) segment.force ();
+			this.saveMeta ();
+			this.openedVersion = null;
+		}
+		finally {
+			lock.writeLock ().unlock ();
+		}
+	}
+
+
+	/**
+	 * Reserves the space for a new entry in the current segment and marks the end of the written data
+	 * after it, since the old content there might look like an entry.
+	 *
+	 * @return the entry location or -1 if the current segment doesn't have enough space.
+	 */
+	private long allocate ( int size )
+	{
+		synchronized ( this.allocationLock )
+		{
+			if ( this.writePos + size > segmentSize ) return -1;
+
+			long result = location ( this.currentSegment, this.writePos );
+			this.writePos += size;
+			if ( this.writePos + 4 <= segmentSize ) this.segments [ this.currentSegment ].putInt ( this.writePos, 0 );
+			return result;
+		}
+	}
+
+	/**
+	 * Writes an entry in the space returned by {@link #allocate(int)}. The size header is written last, so that
+	 * an entry isn't valid until it's complete.
+	 */
+	private void write ( long location, long queryHash, int geneId, List<int[]> paths, int size )
+	{
+		int segIdx = (int) ( location >>> 32 );
+		int start = (int) ( location & 0xFFFFFFFFL );
+
+		MappedByteBuffer segment = this.segments [ segIdx ];
+		int pos = start + 4;
+		segment.putLong ( pos, queryHash ); pos += 8;
+		segment.putInt ( pos, geneId ); pos += 4;
+		segment.putInt ( pos, paths.size () ); pos += 4;
+		for ( int[] path: paths )
+		{
+			segment.putInt ( pos, path.length ); pos += 4;
+			for ( int id: path ) { segment.putInt ( pos, id ); pos += 4; }
+		}
+		segment.putInt ( start, size );
+
+		CacheKey key = new CacheKey ( queryHash, geneId );
+		this.index.put ( key, location );
+		this.segmentKeys.get ( segIdx ).add ( key );
+	}
+
+	/**
+	 * Evicts the oldest segment and makes it the current one. This requires the write lock.
+	 */
+	private void nextSegment ()
+	{
+		this.segments [ this.currentSegment ].force ();
+
+		this.currentSegment = ( this.currentSegment + 1 ) % SEGMENTS;
+		Queue<CacheKey> evictedKeys = this.segmentKeys.get ( this.currentSegment );
+		for ( CacheKey key: evictedKeys )
+			// Might have been re-added to a newer segment
+			this.index.computeIfPresent ( key, (k, loc) -> ( loc >>> 32 ) == this.currentSegment ? null : loc );
+		evictedKeys.clear ();
+
+		this.segments [ this.currentSegment ].putInt ( 0, 0 );
+		this.writePos = 0;
+		this.saveMeta ();
+	}
+
+	private void scanSegment ( int segIdx )
+	{
+		MappedByteBuffer segment = this.segments [ segIdx ];
+		int pos = 0;
+		while ( pos + RECORD_HEADER_SIZE <= segmentSize )
+		{
+			int size = segment.getInt ( pos );
+			boolean isRemoved = size < 0;
+			if ( isRemoved ) size = -size;
+			if ( size < RECORD_HEADER_SIZE || pos + size > segmentSize ) break;
+
+			CacheKey key = new CacheKey ( segment.getLong ( pos + 4 ), segment.getInt ( pos + 12 ) );
+			if ( isRemoved ) 
+				// The older copies of the entry, seen in the previous segments, were removed too
+				this.index.remove ( key );
+			else 
+			{
+				this.index.put ( key, location ( segIdx, pos ) );
+				this.segmentKeys.get ( segIdx ).add ( key );
+			}
+			pos += size;
+		}
+		if ( segIdx == this.currentSegment ) this.writePos = pos;
+	}
+
+	private static long location ( int segIdx, int pos ) {
+		return ( (long) segIdx << 32 ) | pos;
+	}
+
+	private static MappedByteBuffer mapSegment ( File file, int size )
+	{
+		try ( RandomAccessFile raf = new RandomAccessFile ( file, "rw" ) )
+		{
+			if ( raf.length () != size ) raf.setLength ( size );
+			// The mapping stays valid after the file is closed
+			return raf.getChannel ().map ( FileChannel.MapMode.READ_WRITE, 0, size );
+		}
+		catch ( IOException ex ) {
+			throw ExceptionUtils.buildEx (
+				UncheckedIOException.class, ex, "Error while opening the traversal cache file '%s': %s",
+				file.getAbsolutePath (), ex.getMessage ()
+			);
+		}
+	}
+
+	private static Properties loadMeta ( File dir )
+	{
+		Properties result = new Properties ();
+		File metaFile = new File ( dir, META_FILE_NAME );
+		if ( !metaFile.exists () ) return result;
+
+		try ( Reader reader = Files.newBufferedReader ( metaFile.toPath (), StandardCharsets.UTF_8 ) ) {
+			result.load ( reader );
+			return result;
+		}
+		catch ( IOException ex ) {
+			throw ExceptionUtils.buildEx (
+				UncheckedIOException.class, ex, "Error while reading the traversal cache metadata: %s", ex.getMessage ()
+			);
+		}
+	}
+
+	private void saveMeta ()
+	{
+		Properties meta = new Properties ();
+		meta.setProperty ( "datasetVersion", this.openedVersion );
+		meta.setProperty ( "segmentSize", String.valueOf ( this.segmentSize ) );
+		meta.setProperty ( "currentSegment", String.valueOf ( this.currentSegment ) );
+
+		File metaFile = new File ( this.cacheDir, META_FILE_NAME );
+		try ( Writer writer = Files.newBufferedWriter ( metaFile.toPath (), StandardCharsets.UTF_8 ) ) {
+			meta.store ( writer, "Knetminer Cypher traverser result cache" );
+		}
+		catch ( IOException ex ) {
+			throw ExceptionUtils.buildEx (
+				UncheckedIOException.class, ex, "Error while writing the traversal cache metadata: %s", ex.getMessage ()
+			);
+		}
+	}
+}
@@ -0,0 +1,407 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import uk.ac.rothamsted.knetminer.backend.cypher.CypherClient;
+import uk.ac.rothamsted.knetminer.backend.cypher.CypherClientProvider;
+import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers.TraversalContext.Priority;
+
+/**
+ * <p>The live metrics of a {@link PathQueryProcessor}, ie, of the Cypher traverser, which are published as a JMX
+ * MXBean and, optionally, as an HTTP endpoint that returns them in the Prometheus text format, so that they can be
+ * scraped by monitoring tools.</p>
+ *
+ * <p>Unlike {@link CyTraverserPerformanceTracker}, which reports about a single traversal, when it's over, this
+ * reports the current state of the traverser (eg, running batches, queued jobs, open Neo4j sessions) and the per-query
+ * stats accumulated since the application started, which are always collected by {@link SinglePathQueryProcessor}.
+ * Everything is computed when the metrics are requested, so this doesn't cost anything to the traversals.</p>
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class TraverserMetrics implements TraverserMetricsMXBean
+{
+	/** The JMX domain and type used by {@link #registerJmx()} */
+	public static final String JMX_NAME_PREFIX = "uk.ac.rothamsted.knetminer.backend.cypher:type=TraverserMetrics";
+
+	/** The HTTP path served by {@link #startHttpEndpoint(String, int)} */
+	public static final String HTTP_PATH = "/metrics";
+
+	private static final String PROMETHEUS_PREFIX = "knetminer_traverser_";
+	private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final double[] REPORTED_PERCENTILES = { 50, 90, 99 };
+
+	/** Used to name multiple instances in the same JVM, eg, with multiple Spring contexts */
+	private static final AtomicInteger INSTANCES_COUNT = new AtomicInteger ( 0 );
+
+	private final PathQueryProcessor queryProcessor;
+	private final CypherClientProvider cypherClientProvider;
+
+	private ObjectName jmxName = null;
+	private HttpServer httpServer = null;
+
+	private final Logger log = LoggerFactory.getLogger ( this.getClass () );
+
+
+	TraverserMetrics ( PathQueryProcessor queryProcessor, CypherClientProvider cypherClientProvider )
+	{
+		this.queryProcessor = queryProcessor;
+		this.cypherClientProvider = cypherClientProvider;
+	}
+
+
+	@Override
+	public int getActiveTraversals () {
+		return queryProcessor.getActiveContexts ().size ();
+	}
+
+	@Override
+	public double getTraversalProgress ()
+	{
+		Set<TraversalContext> contexts = queryProcessor.getActiveContexts ();
+		return contexts.stream ()
+			.mapToDouble ( TraversalContext::getPercentProgress )
+			.average ()
+			.orElse ( 100d );
+	}
+
+	@Override
+	public int getInFlightBatches ()
+	{
+		return queryProcessor.getQueryProcessors ()
+			.stream ()
+			.mapToInt ( SinglePathQueryProcessor::getInFlightBatches )
+			.sum ();
+	}
+
+	@Override
+	public int getQueuedInteractiveJobs () {
+		return queryProcessor.getDispatcher ().getQueuedJobs ( Priority.INTERACTIVE );
+	}
+
+	@Override
+	public int getQueuedBulkJobs () {
+		return queryProcessor.getDispatcher ().getQueuedJobs ( Priority.BULK );
+	}
+
+	@Override
+	public int getActiveJobs () {
+		return queryProcessor.getDispatcher ().getLimiter ().getInFlight ();
+	}
+
+	@Override
+	public int getConcurrencyLimit () {
+		return queryProcessor.getDispatcher ().getLimiter ().getLimit ();
+	}
+
+	@Override
+	public int getOpenSessions () {
+		return cypherClientProvider.getOpenSessions ();
+	}
+
+	@Override
+	public int getIdleSessions () {
+		return cypherClientProvider.getIdleSessions ();
+	}
+
+	@Override
+	public int getOpenTransactions () {
+		return CypherClient.getOpenTransactions ();
+	}
+
+	@Override
+	public Map<String, Map<String, Long>> getQueryMetrics ()
+	{
+		Map<String, Map<String, Long>> result = new LinkedHashMap<> ();
+		for ( SinglePathQueryProcessor queryProc: queryProcessor.getQueryProcessors () )
+		{
+			Map<String, Long> metrics = new LinkedHashMap<> ();
+			metrics.put ( "invocations", queryProc.getBatchCount () );
+			metrics.put ( "timeouts", queryProc.getTimeoutCount () );
+			metrics.put ( "paths", queryProc.getPathCount () );
+			metrics.put ( "inFlightBatches", (long) queryProc.getInFlightBatches () );
+
+			LatencyHistogram batchTimes = queryProc.getBatchTimes ();
+			metrics.put ( "batchTime.count", batchTimes.getCount () );
+			metrics.put ( "batchTime.sum", batchTimes.getSum () );
+			for ( double p: REPORTED_PERCENTILES )
+				metrics.put ( "batchTime.p" + (int) p, batchTimes.getPercentile ( p ) );
+			metrics.put ( "batchTime.max", batchTimes.getCount () == 0 ? -1 : batchTimes.getMax () );
+
+			result.put ( queryProc.getQueryId (), metrics );
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, String> getQueries ()
+	{
+		Map<String, String> result = new LinkedHashMap<> ();
+		for ( SinglePathQueryProcessor queryProc: queryProcessor.getQueryProcessors () )
+			result.put ( queryProc.getQueryId (), queryProc.getPathQuery () );
+		return result;
+	}
+
+
+	/**
+	 * The metrics in the Prometheus text exposition format. The per-query metrics have a {@code query} label, which
+	 * is the same ID used by {@link #getQueryMetrics()}, {@code knetminer_traverser_query_info} maps it to the
+	 * query text.
+	 */
+	public String getPrometheusText ()
+	{
+		StringBuilder out = new StringBuilder ();
+
+		gauge ( out, "active_traversals", "The no. of traversals that are running", getActiveTraversals () );
+		gauge ( out, "traversal_progress_percent", "The mean progress of the running traversals", getTraversalProgress () );
+		gauge ( out, "in_flight_batches", "The query batches that are running", getInFlightBatches () );
+
+		header ( out, "queued_jobs", "gauge", "The query jobs waiting in the thread pool, per priority lane" );
+		sample ( out, "queued_jobs", "{lane=\"interactive\"}", getQueuedInteractiveJobs () );
+		sample ( out, "queued_jobs", "{lane=\"bulk\"}", getQueuedBulkJobs () );
+
+		gauge ( out, "active_jobs", "The query jobs that are running in the thread pool", getActiveJobs () );
+		gauge ( out, "concurrency_limit", "The max no. of query jobs that can run", getConcurrencyLimit () );
+		gauge ( out, "neo4j_open_sessions", "The open Neo4j sessions in the session pools", getOpenSessions () );
+		gauge ( out, "neo4j_idle_sessions", "The idle Neo4j sessions in the session pools", getIdleSessions () );
+		gauge ( out, "neo4j_open_transactions", "The open Neo4j transactions", getOpenTransactions () );
+
+		// Let's use the same snapshot for all the queries
+		List<SinglePathQueryProcessor> queryProcs = new ArrayList<> ( queryProcessor.getQueryProcessors () );
+
+		header ( out, "query_info", "gauge", "Maps the query IDs to the queries" );
+		for ( SinglePathQueryProcessor queryProc: queryProcs )
+			sample (
+				out, "query_info",
+				"{query=\"" + queryProc.getQueryId () + "\",cypher=\"" + escapeLabel ( queryProc.getPathQuery () ) + "\"}",
+				1
+			);
+
+		queryFamily (
+			out, queryProcs, "query_batches_total", "counter", "The query batches started",
+			SinglePathQueryProcessor::getBatchCount
+		);
+		queryFamily (
+			out, queryProcs, "query_timeouts_total", "counter", "The query batches that timed out",
+			SinglePathQueryProcessor::getTimeoutCount
+		);
+		queryFamily (
+			out, queryProcs, "query_paths_total", "counter", "The paths returned by the query batches",
+			SinglePathQueryProcessor::getPathCount
+		);
+		queryFamily (
+			out, queryProcs, "query_in_flight_batches", "gauge", "The query batches that are running",
+			SinglePathQueryProcessor::getInFlightBatches
+		);
+
+		String name = "query_batch_time_ms";
+		header ( out, name, "summary", "The time taken by the completed query batches" );
+		for ( SinglePathQueryProcessor queryProc: queryProcs )
+		{
+			String queryId = queryProc.getQueryId ();
+			LatencyHistogram batchTimes = queryProc.getBatchTimes ();
+			if ( batchTimes.getCount () > 0 ) for ( double p: REPORTED_PERCENTILES )
+				sample (
+					out, name, "{query=\"" + queryId + "\",quantile=\"" + p / 100 + "\"}", batchTimes.getPercentile ( p )
+				);
+			sample ( out, name + "_sum", "{query=\"" + queryId + "\"}", batchTimes.getSum () );
+			sample ( out, name + "_count", "{query=\"" + queryId + "\"}", batchTimes.getCount () );
+		}
+
+		return out.toString ();
+	}
+
+
+	/**
+	 * Registers this in the platform MBean server. This is invoked by {@link PathQueryProcessor}, when the JMX
+	 * metrics are enabled.
+	 */
+	synchronized void registerJmx ()
+	{
+		if ( this.jmxName != null ) return;
+
+		try
+		{
+			ObjectName name = new ObjectName ( JMX_NAME_PREFIX + ",instance=" + INSTANCES_COUNT.getAndIncrement () );
+			ManagementFactory.getPlatformMBeanServer ().registerMBean ( this, name );
+			this.jmxName = name;
+			log.info ( "Cypher traverser metrics registered in JMX as {}", name );
+		}
+		catch ( JMException ex ) {
+			// Monitoring isn't essential, let's just report it
+			log.error ( "Can't register the Cypher traverser metrics in JMX: " + ex.getMessage (), ex );
+		}
+	}
+
+	/**
+	 * Starts the HTTP endpoint that serves {@link #getPrometheusText()} at {@link #HTTP_PATH}. This is invoked by
+	 * {@link PathQueryProcessor}, when a metrics port is configured. 
+	 * 
+	 * The endpoint has no authentication and it publishes the Cypher queries, so it should be bound to the loopback 
+	 * interface, unless it's protected otherwise (eg, by a firewall).
+	 * 
+	 * Like {@link #registerJmx()}, if the endpoint can't be started (eg, the port is busy), the error is only 
+	 * logged and false is returned.
+	 * 
+	 * @param host the host name or IP the endpoint is bound to, eg, {@code 0.0.0.0} for all the network interfaces.
+	 * @param port the endpoint port, 0 means an automatically allocated port, see {@link #getHttpAddress()}. 
+	 */
+	synchronized boolean startHttpEndpoint ( String host, int port )
+	{
+		if ( this.httpServer != null ) return true;
+
+		try {
+			this.httpServer = HttpServer.create ( new InetSocketAddress ( host, port ), 0 );
+		}
+		catch ( IOException ex )
+		{
+			// Monitoring isn't essential, let's just report it
+			log.error ( String.format ( 
+				"Can't start the Cypher traverser metrics endpoint on %s:%d: %s", host, port, ex.getMessage () 
+			), ex );
+			return false;
+		}
+
+		this.httpServer.createContext ( HTTP_PATH, this::handleHttpRequest );
+		// Scrapes are rare and cheap, a single thread is enough
+		this.httpServer.setExecutor ( Executors.newSingleThreadExecutor ( runnable -> {
+			Thread thread = new Thread ( runnable, this.getClass ().getSimpleName () + "-http" );
+			thread.setDaemon ( true );
+			return thread;
+		}));
+		this.httpServer.start ();
+		
+		InetSocketAddress address = this.getHttpAddress ();
+		log.info ( 
+			"Cypher traverser metrics available at http://{}:{}{}", 
+			address.getAddress ().getHostAddress (), address.getPort (), HTTP_PATH 
+		);
+		return true;
+	}
+
+	/**
+	 * The address the HTTP endpoint is bound to, null if it isn't running.
+	 */
+	synchronized InetSocketAddress getHttpAddress () {
+		return this.httpServer == null ? null : this.httpServer.getAddress ();
+	}
+
+	/**
+	 * Unregisters the MBean and stops the HTTP endpoint, if they're active.
+	 */
+	synchronized void close ()
+	{
+		if ( this.httpServer != null )
+		{
+			this.httpServer.stop ( 0 );
+			this.httpServer = null;
+		}
+
+		if ( this.jmxName == null ) return;
+		try
+		{
+			MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer ();
+			if ( mbeanServer.isRegistered ( this.jmxName ) ) mbeanServer.unregisterMBean ( this.jmxName );
+		}
+		catch ( JMException ex ) {
+			log.warn ( "Can't unregister the Cypher traverser metrics from JMX: " + ex.getMessage (), ex );
+		}
+		this.jmxName = null;
+	}
+
+
+	private void handleHttpRequest ( HttpExchange exchange ) throws IOException
+	{
+		try
+		{
+			if ( !"GET".equals ( exchange.getRequestMethod () ) ) {
+				exchange.sendResponseHeaders ( 405, -1 );
+				return;
+			}
+
+			byte[] body = getPrometheusText ().getBytes ( StandardCharsets.UTF_8 );
+			exchange.getResponseHeaders ().set ( "Content-Type", PROMETHEUS_CONTENT_TYPE );
+			exchange.sendResponseHeaders ( 200, body.length );
+			try ( OutputStream out = exchange.getResponseBody () ) {
+				out.write ( body );
+			}
+		}
+		catch ( RuntimeException ex )
+		{
+			log.error ( "Error while serving the Cypher traverser metrics: " + ex.getMessage (), ex );
+			exchange.sendResponseHeaders ( 500, -1 );
+		}
+		finally {
+			exchange.close ();
+		}
+	}
+
+	private static void queryFamily (
+		StringBuilder out, List<SinglePathQueryProcessor> queryProcs, String name, String type, String help,
+		ToLongFunction<SinglePathQueryProcessor> value
+	)
+	{
+		header ( out, name, type, help );
+		for ( SinglePathQueryProcessor queryProc: queryProcs )
+			sample ( out, name, "{query=\"" + queryProc.getQueryId () + "\"}", value.applyAsLong ( queryProc ) );
+	}
+
+	private static void gauge ( StringBuilder out, String name, String help, Number value )
+	{
+		header ( out, name, "gauge", help );
+		sample ( out, name, "", value );
+	}
+
+	private static void header ( StringBuilder out, String name, String type, String help )
+	{
+		out.append ( "# HELP " ).append ( PROMETHEUS_PREFIX ).append ( name ).append ( ' ' ).append ( help ).append ( '\n' );
+		out.append ( "# TYPE " ).append ( PROMETHEUS_PREFIX ).append ( name ).append ( ' ' ).append ( type ).append ( '\n' );
+	}
+
+	private static void sample ( StringBuilder out, String name, String labels, Number value ) {
+		out.append ( PROMETHEUS_PREFIX ).append ( name ).append ( labels ).append ( ' ' ).append ( value ).append ( '\n' );
+	}
+
+	/**
+	 * Queries are multi-line and have quotes, we make them one line and escape them as the format requires.
+	 */
+	static String escapeLabel ( String value )
+	{
+		return value.trim ()
+			.replaceAll ( "\\s+", " " )
+			.replace ( "\\", "\\\\" )
+			.replace ( "\"", "\\\"" );
+	}
+
+	/**
+	 * A short and stable query ID, which is based on the same hash used for {@link TraversalResultCache}. This is 
+	 * used for both the metrics and the JFR events (see {@link uk.ac.rothamsted.knetminer.backend.cypher.jfr}).
+	 */
+	static String toQueryId ( long queryHash ) {
+		return String.format ( "%016x", queryHash );
+	}
+}
@@ -0,0 +1,53 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import java.util.Map;
+
+/**
+ * The live metrics of the Cypher traverser that are published via JMX, see {@link TraverserMetrics}.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public interface TraverserMetricsMXBean
+{
+	/** The no. of traversals that are running */
+	int getActiveTraversals ();
+
+	/** The mean progress (0-100) of the running traversals, 100 if none is running */
+	double getTraversalProgress ();
+
+	/** The query batches that are running, over all the queries */
+	int getInFlightBatches ();
+
+	/** The query jobs waiting in the interactive lane of the thread pool */
+	int getQueuedInteractiveJobs ();
+
+	/** The query jobs waiting in the bulk lane of the thread pool */
+	int getQueuedBulkJobs ();
+
+	/** The query jobs that are running in the thread pool */
+	int getActiveJobs ();
+
+	/** The max no. of jobs that can run in the thread pool, which might change, if it's adaptive */
+	int getConcurrencyLimit ();
+
+	/** The open Neo4j sessions, when the session pool is enabled */
+	int getOpenSessions ();
+
+	/** The idle Neo4j sessions, when the session pool is enabled */
+	int getIdleSessions ();
+
+	/** The open Neo4j transactions */
+	int getOpenTransactions ();
+
+	/**
+	 * The query stats, since the application started, ie, query ID -&gt; metric -&gt; value. The metrics are
+	 * invocations (batches), timeouts, paths, inFlightBatches, batchTime.count, batchTime.sum, batchTime.p50/p90/p99
+	 * (-1 if there isn't any completed batch yet) and batchTime.max (ms).
+	 */
+	Map<String, Map<String, Long>> getQueryMetrics ();
+
+	/** query ID -&gt; query, to look up the IDs used in {@link #getQueryMetrics()} */
+	Map<String, String> getQueries ();
+}
@@ -44,6 +44,7 @@ import uk.ac.ebi.utils.exceptions.ExceptionUtils;
 import uk.ac.ebi.utils.exceptions.UncheckedFileNotFoundException;
 import uk.ac.ebi.utils.exceptions.UnexpectedValueException;
 import uk.ac.ebi.utils.opt.io.IOUtils;
+import uk.ac.rothamsted.knetminer.backend.cypher.CyPathProjection;
 
 /**
  * Converts a semantic motif file (parsed via {@link StateMachineFlatFileParser2}) to a set
@@ -58,6 +59,9 @@ public class StateMachine2CyTranslator
 	private StateMachine stateMachine;
   private BiMap<Integer, State> stateIndex;
   
+  /** @see #setPathProjection(boolean) */
+  private boolean isPathProjection = true;
+  
   private Logger log = LoggerFactory.getLogger ( this.getClass () );
   
   /** Used in a couple of point to assign a deterministic order to transition lists **/
@@ -201,6 +205,19 @@ public class StateMachine2CyTranslator
 	}
 	
 	
+	/**
+	 * If true (the default), the queries built by {@link #getCypherQueries()} return the 
+	 * {@link CyPathProjection projection} of the path IRIs, rather than the whole path.
+	 */
+	public void setPathProjection ( boolean isPathProjection ) {
+		this.isPathProjection = isPathProjection;
+	}
+
+	public boolean isPathProjection () {
+		return isPathProjection;
+	}
+	
+	
 	/**
 	 * Recursive method to visit the {@link StateMachine} graph and collect query clauses.
 	 * 
@@ -228,7 +245,10 @@ public class StateMachine2CyTranslator
 				// A new path, choose a name and build the final query by wrapping the clauses collected so far from
 				// upstream nodes.
 				String qname = format ( "%03d_L%02d_%s", resultsCount.incrementAndGet (), distance, buildNodeId ( state ) );
-				result.put ( qname, "MATCH path = " + partialQuery + "\nWHERE gene_1.iri IN $startGeneIris\nRETURN path" );
+				String returnClause = isPathProjection ? CyPathProjection.buildProjection ( "path", "iri" ) : "path"; 
+				result.put ( 
+					qname, "MATCH path = " + partialQuery + "\nWHERE gene_1.iri IN $startGeneIris\nRETURN " + returnClause 
+				);
 				return;
 			}
 
@@ -0,0 +1,36 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A JFR event about the building of an evidence path from the Ondex entities of a path found by the Cypher traverser.
+ * This is emitted for every path, so it's disabled by default, it has to be enabled in the JFR settings when needed.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+@Name ( EvidencePathEvent.NAME )
+@Label ( "Cypher Evidence Path" )
+@Category ( { "Knetminer", "Cypher Traverser" } )
+@Description ( "An evidence path built from a path found by a semantic motif query" )
+@StackTrace ( false )
+@Enabled ( false )
+public class EvidencePathEvent extends Event
+{
+	public static final String NAME = "uk.ac.rothamsted.knetminer.cypher.EvidencePath";
+
+	@Label ( "Query ID" )
+	@Description ( "The query hash, as reported by the traverser metrics" )
+	public String queryId;
+	
+	@Label ( "Path Length" )
+	@Description ( "The no. of concepts and relations in the path" )
+	public int pathLength;
+}
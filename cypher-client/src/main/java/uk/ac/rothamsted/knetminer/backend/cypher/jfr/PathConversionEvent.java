@@ -0,0 +1,36 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A JFR event about the conversion of a path returned by Neo4j (as IRIs or Ondex IDs) into Ondex entities. This is
+ * emitted for every path, so it's disabled by default, it has to be enabled in the JFR settings when needed.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+@Name ( PathConversionEvent.NAME )
+@Label ( "Cypher Path Conversion" )
+@Category ( { "Knetminer", "Cypher Traverser" } )
+@Description ( "A path from Neo4j converted into Ondex entities" )
+@StackTrace ( false )
+@Enabled ( false )
+public class PathConversionEvent extends Event
+{
+	public static final String NAME = "uk.ac.rothamsted.knetminer.cypher.PathConversion";
+
+	@Label ( "Resolution Mode" )
+	@Description ( "How the path is identified, IRI or ONDEX_ID" )
+	public String resolutionMode;
+	
+	@Label ( "Path Length" )
+	@Description ( "The no. of concepts and relations in the path" )
+	public int pathLength;
+}
@@ -0,0 +1,58 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * <p>A JFR event about a batch of start genes that the Cypher traverser sends to Neo4j with a semantic motif query,
+ * including all its pages and, if it's hedged, both its attempts.</p>
+ * 
+ * <p>Like the other events in this package, this is emitted following the JFR idiom of {@code begin()/end()} and 
+ * {@code shouldCommit()}, so that it doesn't cost anything when no recording is active.</p>
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+@Name ( QueryBatchEvent.NAME )
+@Label ( "Cypher Query Batch" )
+@Category ( { "Knetminer", "Cypher Traverser" } )
+@Description ( "A batch of start genes queried with a semantic motif query" )
+@StackTrace ( false )
+public class QueryBatchEvent extends Event
+{
+	public static final String NAME = "uk.ac.rothamsted.knetminer.cypher.QueryBatch";
+	
+	@Label ( "Query ID" )
+	@Description ( "The query hash, as reported by the traverser metrics" )
+	public String queryId;
+
+	@Label ( "Batch Size" )
+	@Description ( "The no. of start genes in the batch" )
+	public int batchSize;
+
+	@Label ( "Rows" )
+	@Description ( "The no. of paths returned by Neo4j" )
+	public long rows;
+
+	@Label ( "Entities" )
+	@Description ( "The total length of the returned paths, ie, the no. of concepts and relations" )
+	public long entities;
+	
+	@Label ( "Bytes" )
+	@Description ( "The approximate size of the returned path keys (IRIs or IDs), summed over all the pages" )
+	@DataAmount
+	public long bytes;
+	
+	@Label ( "Timed Out" )
+	public boolean timedOut;
+
+	@Label ( "Hedged" )
+	@Description ( "True if the result came from the hedged attempt" )
+	public boolean hedged;
+}
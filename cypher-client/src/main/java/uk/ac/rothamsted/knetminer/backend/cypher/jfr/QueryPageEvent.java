@@ -0,0 +1,55 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A JFR event about a page of paths that the Cypher traverser fetches from Neo4j, from when the page query is sent, 
+ * to when the page is consumed (or cancelled). With the streaming mode, there is a single page per batch.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+@Name ( QueryPageEvent.NAME )
+@Label ( "Cypher Query Page" )
+@Category ( { "Knetminer", "Cypher Traverser" } )
+@Description ( "A page of paths fetched from Neo4j for a query batch" )
+@StackTrace ( false )
+public class QueryPageEvent extends Event
+{
+	public static final String NAME = "uk.ac.rothamsted.knetminer.cypher.QueryPage";
+
+	@Label ( "Query ID" )
+	@Description ( "The query hash, as reported by the traverser metrics" )
+	public String queryId;
+	
+	@Label ( "Paging Mode" )
+	public String pagingMode;
+	
+	@Label ( "Offset" )
+	@Description ( "The page offset" )
+	public long offset;
+
+	@Label ( "Rows" )
+	@Description ( "The no. of paths returned by the page" )
+	public long rows;
+	
+	@Label ( "Bytes" )
+	@Description ( "The approximate size of the returned path keys (IRIs or IDs)" )
+	@DataAmount
+	public long bytes;
+	
+	@Label ( "Endpoint" )
+	@Description ( "The Neo4j endpoint that served the page" )
+	public String endpoint;
+
+	@Label ( "Cancelled" )
+	@Description ( "True if the page was cancelled, due to a timeout or an interruption" )
+	public boolean cancelled;
+}
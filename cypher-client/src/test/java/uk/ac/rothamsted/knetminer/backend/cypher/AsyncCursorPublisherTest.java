@@ -0,0 +1,140 @@
+package uk.ac.rothamsted.knetminer.backend.cypher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link AsyncCursorPublisher}, using a plain iterator as cursor.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class AsyncCursorPublisherTest
+{
+	private static class TestSubscriber implements Flow.Subscriber<Integer>
+	{
+		private final List<Integer> items = new ArrayList<> ();
+		private final CompletableFuture<Void> done = new CompletableFuture<> ();
+		private Flow.Subscription subscription;
+
+		@Override
+		public void onSubscribe ( Flow.Subscription subscription ) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public synchronized void onNext ( Integer item ) {
+			items.add ( item );
+		}
+
+		@Override
+		public void onError ( Throwable ex ) {
+			done.completeExceptionally ( ex );
+		}
+
+		@Override
+		public void onComplete () {
+			done.complete ( null );
+		}
+
+		synchronized List<Integer> getItems () {
+			return new ArrayList<> ( items );
+		}
+	}
+
+
+	@Test
+	public void testBackPressure ()
+	{
+		AtomicInteger fetches = new AtomicInteger ( 0 );
+		AtomicInteger closes = new AtomicInteger ( 0 );
+		Iterator<Integer> source = IntStream.range ( 0, 10 ).iterator ();
+
+		AsyncCursorPublisher<Iterator<Integer>, Integer> publisher = new AsyncCursorPublisher<> (
+			() -> CompletableFuture.completedFuture ( source ),
+			cursor -> {
+				fetches.incrementAndGet ();
+				return CompletableFuture.completedFuture ( cursor.hasNext () ? cursor.next () : null );
+			},
+			() -> { closes.incrementAndGet (); return CompletableFuture.completedFuture ( null ); }
+		);
+
+		TestSubscriber subscriber = new TestSubscriber ();
+		publisher.subscribe ( subscriber );
+		assertEquals ( "Items fetched before any request!", 0, fetches.get () );
+
+		subscriber.subscription.request ( 3 );
+		assertEquals ( "Wrong no. of items after the first request!", List.of ( 0, 1, 2 ), subscriber.getItems () );
+		assertEquals ( "Fetched more than requested!", 3, fetches.get () );
+
+		subscriber.subscription.request ( Long.MAX_VALUE );
+		assertEquals ( "Wrong items at the end!",
+			IntStream.range ( 0, 10 ).boxed ().collect ( Collectors.toList () ), subscriber.getItems ()
+		);
+		assertTrue ( "Not completed!", subscriber.done.isDone () && !subscriber.done.isCompletedExceptionally () );
+		assertEquals ( "Termination action not called once!", 1, closes.get () );
+	}
+
+	@Test
+	public void testAsyncFetchesAndCancel () throws Exception
+	{
+		AtomicInteger closes = new AtomicInteger ( 0 );
+		Executor delayedExecutor = CompletableFuture.delayedExecutor ( 1, TimeUnit.MILLISECONDS );
+		Iterator<Integer> source = IntStream.range ( 0, 1000 ).iterator ();
+
+		AsyncCursorPublisher<Iterator<Integer>, Integer> publisher = new AsyncCursorPublisher<> (
+			() -> CompletableFuture.supplyAsync ( () -> source, delayedExecutor ),
+			cursor -> CompletableFuture.supplyAsync ( cursor::next, delayedExecutor ),
+			() -> { closes.incrementAndGet (); return CompletableFuture.completedFuture ( null ); }
+		);
+
+		TestSubscriber subscriber = new TestSubscriber ();
+		publisher.subscribe ( subscriber );
+		subscriber.subscription.request ( 5 );
+
+		long timeout = System.currentTimeMillis () + 10000;
+		while ( subscriber.getItems ().size () < 5 && System.currentTimeMillis () < timeout ) Thread.sleep ( 10 );
+		Thread.sleep ( 50 );
+		assertEquals ( "Wrong items after the request!", List.of ( 0, 1, 2, 3, 4 ), subscriber.getItems () );
+
+		subscriber.subscription.cancel ();
+		subscriber.subscription.request ( 5 );
+		Thread.sleep ( 50 );
+		assertEquals ( "Items published after the cancel!", 5, subscriber.getItems ().size () );
+		assertEquals ( "Termination action not called once!", 1, closes.get () );
+		assertTrue ( "Cancel signalled the subscriber!", !subscriber.done.isDone () );
+	}
+
+	@Test
+	public void testError ()
+	{
+		AsyncCursorPublisher<Object, Integer> publisher = new AsyncCursorPublisher<> (
+			() -> CompletableFuture.completedFuture ( new Object () ),
+			cursor -> CompletableFuture.<Integer>failedFuture ( new IllegalStateException ( "Test error" ) ),
+			null
+		);
+		TestSubscriber subscriber = new TestSubscriber ();
+		publisher.subscribe ( subscriber );
+		subscriber.subscription.request ( 1 );
+		assertTrue ( "Error not signalled!", subscriber.done.isCompletedExceptionally () );
+
+		// Only one subscription allowed
+		TestSubscriber subscriber1 = new TestSubscriber ();
+		publisher.subscribe ( subscriber1 );
+		assertTrue ( "Second subscription not rejected!", subscriber1.done.isCompletedExceptionally () );
+	}
+}
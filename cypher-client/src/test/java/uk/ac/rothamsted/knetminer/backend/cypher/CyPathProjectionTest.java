@@ -0,0 +1,54 @@
+package uk.ac.rothamsted.knetminer.backend.cypher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link CyPathProjection}.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class CyPathProjectionTest
+{
+	private static final String QUERY = 
+		"MATCH path = (gene_1:Gene) - [enc:enc] - (protein_2:Protein)\nWHERE gene_1.iri IN $startGeneIris\nRETURN path";
+	
+	@Test
+	public void testProjection ()
+	{
+		String pquery = CyPathProjection.projectPathQuery ( QUERY, "iri" );
+		assertTrue ( "Projection not found!", pquery.endsWith ( 
+			"RETURN [pathNode IN nodes(path) | pathNode.iri] AS pathNodeKeys, " 
+			+ "[pathRel IN relationships(path) | pathRel.iri] AS pathRelKeys" 
+		));
+		assertTrue ( "Query body changed!", pquery.startsWith ( "MATCH path = (gene_1:Gene)" ) );
+		
+		assertEquals ( "Projection not reversed!", QUERY, CyPathProjection.toPathQuery ( pquery ) );
+	}
+
+	@Test
+	public void testKeyChange ()
+	{
+		String pquery = CyPathProjection.projectPathQuery ( QUERY, "iri" );
+		String idQuery = CyPathProjection.projectPathQuery ( pquery, "ondexId" );
+		assertEquals ( "Projection key not changed!", CyPathProjection.projectPathQuery ( QUERY, "ondexId" ), idQuery );
+	}
+	
+	@Test
+	public void testTrail ()
+	{
+		String pquery = CyPathProjection.projectPathQuery ( QUERY + "\nSKIP $offset LIMIT $pageSize", "iri" );
+		assertTrue ( "Pagination trail not kept!", pquery.endsWith ( "AS pathRelKeys\nSKIP $offset LIMIT $pageSize" ) );
+	}
+	
+	@Test
+	public void testUnrecognised ()
+	{
+		String query = "MATCH (n) RETURN n.iri, n.name";
+		assertEquals ( "Unrecognised query changed!", query, CyPathProjection.projectPathQuery ( query, "iri" ) );
+	}
+}
@@ -1,12 +1,20 @@
 package uk.ac.rothamsted.knetminer.backend.cypher;
 
 import static info.marcobrandizi.rdfutils.namespaces.NamespaceUtils.iri;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -16,7 +24,9 @@ import org.junit.Test;
 import org.neo4j.driver.AuthTokens;
 import org.neo4j.driver.Driver;
 import org.neo4j.driver.GraphDatabase;
+import org.neo4j.driver.Record;
 import org.neo4j.driver.Values;
+import org.neo4j.driver.exceptions.Neo4jException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -198,6 +208,117 @@ public class CypherClientIT
 	}
 	
 	
+	/**
+	 * Tests the async and the reactive variants.
+	 */
+	@Test
+	public void findPathIrisAsyncTest () throws Exception
+	{
+		CypherClientProvider cyProvider = new CypherClientProvider ( neoDriver );
+		
+		String query = 
+			"MATCH path = \n" + 
+			"(g:Gene)-[enc:enc]->(p:Protein)\n" + 
+			"  -[hss:h_s_s]->(p1:Protein)\n" + 
+			"  -[pubref:pub_in]->(pub:Publication)\n" +
+			"RETURN path\n" +
+			"LIMIT 100\n"; // Normally not needed, it's just for safety in this test 
+		
+		List<List<String>> iris = cyProvider.findPathIrisAsync ( query, null, 10, Duration.ofMinutes ( 1 ) )
+			.toCompletableFuture ()
+			.get ( 1, TimeUnit.MINUTES );
+		
+		verifyResultIris ( "Expected Result about traescs1d02g284700 not found (async)!", iris,
+			"gene_traescs1d02g284700", 0,
+			"enc_", 1,
+			"h_s_s_", 3,							
+			"publication_16407447", 6
+		);
+		
+		// The same via the publisher, requesting one path at a time
+		List<List<String>> publishedIris = new ArrayList<> ();
+		CompletableFuture<Void> done = new CompletableFuture<> ();
+		cyProvider.publishPathIris ( query, null, 10, null ).subscribe ( new Flow.Subscriber<List<String>> ()
+		{
+			private Flow.Subscription subscription;
+			
+			@Override
+			public void onSubscribe ( Flow.Subscription subscription ) {
+				( this.subscription = subscription ).request ( 1 );
+			}
+
+			@Override
+			public void onNext ( List<String> pathIris ) {
+				publishedIris.add ( pathIris );
+				subscription.request ( 1 );
+			}
+
+			@Override
+			public void onError ( Throwable ex ) {
+				done.completeExceptionally ( ex );
+			}
+
+			@Override
+			public void onComplete () {
+				done.complete ( null );
+			}
+		});
+		done.get ( 1, TimeUnit.MINUTES );
+		
+		Assert.assertEquals ( "Published paths differ from the async ones!", iris.size (), publishedIris.size () );
+		verifyResultIris ( "Expected Result about traescs1d02g284700 not found (publisher)!", publishedIris,
+			"gene_traescs1d02g284700", 0,
+			"enc_", 1,
+			"h_s_s_", 3,							
+			"publication_16407447", 6
+		);
+	}
+	
+	/**
+	 * A long-running query is stopped on the server by {@link CypherClientProvider#terminateTransactions(String, String)}, 
+	 * invoked by a thread other than the one consuming the results, which, in turn, gets an error and releases
+	 * its transaction.
+	 */
+	@Test
+	public void terminateTransactionsTest () throws Exception
+	{
+		CypherClientProvider cyProvider = new CypherClientProvider ( neoDriver );
+		String txTag = "terminateTransactionsTest";
+		int openTxs = CypherClient.getOpenTransactions ();
+		
+		// Takes minutes, well beyond the test timeouts
+		String query = "UNWIND range ( 1, 10000000000 ) AS i RETURN sum ( i ) AS total";
+		
+		CompletableFuture<Long> consumer = CompletableFuture.supplyAsync ( () -> 
+		{
+			try ( Stream<Record> results = cyProvider.queryToStream (
+				client -> client.queryToStream ( query, null ), -1, Duration.ofMinutes ( 10 ), null, null, txTag 
+			))
+			{
+				return results.findFirst ().get ().get ( "total" ).asLong ();
+			}
+		});
+		
+		// Wait for the query to start
+		int nterminated = 0;
+		for ( int i = 0; i < 50 && nterminated == 0; i++ )
+		{
+			Thread.sleep ( 200 );
+			nterminated = cyProvider.terminateTransactions ( "default", txTag );
+		}
+		assertEquals ( "Transaction not terminated!", 1, nterminated );
+		
+		try {
+			consumer.get ( 30, TimeUnit.SECONDS );
+			Assert.fail ( "Terminated query didn't fail!" );
+		}
+		catch ( ExecutionException ex ) {
+			assertTrue ( "Wrong exception for the terminated query!", ex.getCause () instanceof Neo4jException );
+		}
+		assertEquals ( "Transaction not released!", openTxs, CypherClient.getOpenTransactions () );
+		assertEquals ( "Transaction terminated twice!", 0, cyProvider.terminateTransactions ( "default", txTag ) );
+	}
+	
 	private void verifyResultIris (
 		String failMsg,
 		List<List<String>> pathsIris, Object ...iriIdAndIdxProbes 
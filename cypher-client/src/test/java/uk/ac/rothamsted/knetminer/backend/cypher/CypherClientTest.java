@@ -0,0 +1,101 @@
+package uk.ac.rothamsted.knetminer.backend.cypher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import net.sourceforge.ondex.core.Attribute;
+import net.sourceforge.ondex.core.ONDEXConcept;
+import net.sourceforge.ondex.core.ONDEXEntity;
+import net.sourceforge.ondex.core.ONDEXGraph;
+import net.sourceforge.ondex.core.ONDEXRelation;
+import net.sourceforge.ondex.core.util.ONDEXGraphUtils;
+
+/**
+ * Unit tests for the {@link CypherClient} methods that don't need a real Neo4j, ie, the
+ * {@link CypherClient.PathResolutionMode#ONDEX_ID Ondex ID} path resolution. Where Neo4j is involved, it's
+ * {@link FakeNeo4jDriver faked}.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class CypherClientTest
+{
+	@ClassRule
+	public static TestGraphResource graphResource = new TestGraphResource ();
+
+	@Test
+	public void testFindPathFromOndexIds ()
+	{
+		ONDEXGraph graph = graphResource.getGraph ();
+		ONDEXRelation rel = graph.getRelations ().iterator ().next ();
+		int[] pathIds = { rel.getFromConcept ().getId (), rel.getId (), rel.getToConcept ().getId () };
+
+		List<ONDEXEntity> path = CypherClient.findPathFromOndexIds ( graph, pathIds );
+
+		assertEquals ( "Wrong path length!", 3, path.size () );
+		assertSame ( "Wrong start concept!", rel.getFromConcept (), path.get ( 0 ) );
+		assertSame ( "Wrong relation!", rel, path.get ( 1 ) );
+		assertSame ( "Wrong end concept!", rel.getToConcept (), path.get ( 2 ) );
+	}
+
+	@Test ( expected = IllegalStateException.class )
+	public void testFindPathFromUnknownOndexId ()
+	{
+		ONDEXGraph graph = graphResource.getGraph ();
+		int unknownId = graph.getConcepts ().stream ().mapToInt ( ONDEXConcept::getId ).max ().getAsInt () + 1;
+
+		CypherClient.findPathFromOndexIds ( graph, new int[] { unknownId } );
+	}
+
+	@Test
+	public void testOndexIdAlignment ()
+	{
+		ONDEXGraph graph = graphResource.getGraph ();
+
+		// What Neo4j would return for a database created from the same graph
+		List<Map<String, Object>> rows = new ArrayList<> ();
+		Stream.concat ( graph.getConcepts ().stream ().limit ( 10 ), graph.getRelations ().stream ().limit ( 10 ) )
+		.forEach ( entity ->
+		{
+			Attribute iri = ONDEXGraphUtils.getAttribute ( graph, (ONDEXEntity) entity, "iri" );
+			if ( iri == null ) return;
+			rows.add ( Map.of (
+				"iri", iri.getValue (), "id", ( (ONDEXEntity) entity ).getId (), "isConcept", entity instanceof ONDEXConcept
+			));
+		});
+		assertTrue ( "No test entity with IRIs!", rows.size () > 1 );
+		assertTrue ( "Aligned graph not recognised!", checkAlignment ( graph, rows ) );
+
+		// Now the first entity has the ID of another one
+		Map<String, Object> misalignedRow = new HashMap<> ( rows.get ( 0 ) );
+		misalignedRow.put ( "iri", rows.get ( 1 ).get ( "iri" ) );
+		rows.set ( 0, misalignedRow );
+		assertFalse ( "Misaligned graph not detected!", checkAlignment ( graph, rows ) );
+
+		assertFalse ( "Missing ID property not detected!", checkAlignment ( graph, List.of () ) );
+	}
+
+	/**
+	 * Runs {@link CypherClient#checkOndexIdAlignment(ONDEXGraph, String, int)} against a Neo4j that returns
+	 * the given records.
+	 */
+	private static boolean checkAlignment ( ONDEXGraph graph, List<Map<String, Object>> neoRecords )
+	{
+		CypherClientProvider provider = FakeNeo4jDriver.newProvider (
+			FakeNeo4jDriver.newDriver ( ( query, params ) -> neoRecords )
+		);
+		return provider.query ( client -> client.checkOndexIdAlignment ( graph, "ondexId", 100 ) );
+	}
+}
@@ -0,0 +1,169 @@
+package uk.ac.rothamsted.knetminer.backend.cypher;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.Transaction;
+import org.neo4j.driver.Value;
+import org.neo4j.driver.Values;
+
+/**
+ * <p>A fake Neo4j {@link Driver}, which doesn't connect any server and answers the queries by means of a function.
+ * This is used to test the components based on {@link CypherClientProvider} without the Neo4j test server.</p>
+ *
+ * <p>Only the few driver methods that our clients use are implemented, the others return null or the
+ * default of their primitive type.</p>
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class FakeNeo4jDriver
+{
+	private FakeNeo4jDriver () {
+	}
+
+	/**
+	 * @param queryHandler receives a query and its parameters (null if there aren't any) and returns the
+	 * query records, each as a map of column name -&gt; value.
+	 */
+	public static Driver newDriver ( BiFunction<String, Value, List<Map<String, Object>>> queryHandler )
+	{
+		return newProxy ( Driver.class, ( method, args ) ->
+			"session".equals ( method ) ? newSession ( queryHandler ) : null
+		);
+	}
+
+	/**
+	 * A driver that returns no record for any query.
+	 */
+	public static Driver newDriver () {
+		return newDriver ( ( query, params ) -> List.of () );
+	}
+
+	/**
+	 * A provider for a single driver.
+	 */
+	public static CypherClientProvider newProvider ( Driver driver ) {
+		return new CypherClientProvider ( driver );
+	}
+
+	/**
+	 * A provider that balances the read queries over multiple drivers, ie, multiple endpoints.
+	 */
+	public static CypherClientProvider newProvider ( List<Driver> replicaDrivers ) {
+		return new CypherClientProvider ( replicaDrivers );
+	}
+
+
+	private static Session newSession ( BiFunction<String, Value, List<Map<String, Object>>> queryHandler )
+	{
+		AtomicBoolean isOpen = new AtomicBoolean ( true );
+		return newProxy ( Session.class, ( method, args ) ->
+		{
+			switch ( method )
+			{
+				case "isOpen": return isOpen.get ();
+				case "close": isOpen.set ( false ); return null;
+				case "beginTransaction": return newTransaction ( queryHandler );
+				case "run": return newResult ( queryHandler, args );
+				default: return null;
+			}
+		});
+	}
+
+	private static Transaction newTransaction ( BiFunction<String, Value, List<Map<String, Object>>> queryHandler )
+	{
+		return newProxy ( Transaction.class, ( method, args ) ->
+		{
+			switch ( method )
+			{
+				case "isOpen": return true;
+				case "run": return newResult ( queryHandler, args );
+				default: return null;
+			}
+		});
+	}
+
+	@SuppressWarnings ( "unchecked" )
+	private static Result newResult ( BiFunction<String, Value, List<Map<String, Object>>> queryHandler, Object[] args )
+	{
+		Value params = args.length > 1 && args [ 1 ] instanceof Value ? (Value) args [ 1 ] : null;
+		Iterator<Map<String, Object>> rows = queryHandler.apply ( (String) args [ 0 ], params ).iterator ();
+
+		return newProxy ( Result.class, ( method, margs ) ->
+		{
+			switch ( method )
+			{
+				case "hasNext": return rows.hasNext ();
+				case "next": return newRecord ( rows.next () );
+				case "forEachRemaining":
+					rows.forEachRemaining ( row -> ( (Consumer<Record>) margs [ 0 ] ).accept ( newRecord ( row ) ) );
+					return null;
+				default: return null;
+			}
+		});
+	}
+
+	private static Record newRecord ( Map<String, Object> row )
+	{
+		List<String> keys = new ArrayList<> ( row.keySet () );
+		return newProxy ( Record.class, ( method, args ) ->
+		{
+			switch ( method )
+			{
+				case "get": return Values.value (
+					row.get ( args [ 0 ] instanceof Integer ? keys.get ( (Integer) args [ 0 ] ) : args [ 0 ] )
+				);
+				case "containsKey": return row.containsKey ( args [ 0 ] );
+				case "keys": return keys;
+				case "size": return keys.size ();
+				case "asMap": return row;
+				default: return null;
+			}
+		});
+	}
+
+	/**
+	 * A proxy that answers the invocations by means of the handler, which receives the method name and arguments.
+	 * The {@link Object} methods are based on the proxy identity, null results are turned into defaults for
+	 * primitive types.
+	 */
+	@SuppressWarnings ( "unchecked" )
+	private static <T> T newProxy ( Class<T> type, BiFunction<String, Object[], Object> handler )
+	{
+		InvocationHandler invoker = ( proxy, method, args ) ->
+		{
+			Object[] margs = args == null ? new Object [ 0 ] : args;
+			switch ( method.getName () )
+			{
+				case "hashCode": if ( margs.length == 0 ) return System.identityHashCode ( proxy ); break;
+				case "equals": if ( margs.length == 1 ) return proxy == margs [ 0 ]; break;
+				case "toString": if ( margs.length == 0 ) return "Fake" + type.getSimpleName (); break;
+			}
+
+			Object result = handler.apply ( method.getName (), margs );
+			if ( result != null ) return result;
+
+			// Other primitives aren't used by the driver methods we deal with
+			Class<?> rtype = method.getReturnType ();
+			if ( rtype == boolean.class ) return false;
+			if ( rtype == int.class ) return 0;
+			if ( rtype == long.class ) return 0L;
+			if ( rtype == double.class ) return 0d;
+			return null;
+		};
+		return (T) Proxy.newProxyInstance ( type.getClassLoader (), new Class<?>[] { type }, invoker );
+	}
+}
@@ -0,0 +1,65 @@
+package uk.ac.rothamsted.knetminer.backend.cypher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.stream.Stream;
+
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import net.sourceforge.ondex.core.Attribute;
+import net.sourceforge.ondex.core.AttributeName;
+import net.sourceforge.ondex.core.ONDEXEntity;
+import net.sourceforge.ondex.core.ONDEXGraph;
+
+/**
+ * Tests {@link IriEntityIndex}.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class IriEntityIndexTest
+{
+	@ClassRule
+	public static TestGraphResource graphResource = new TestGraphResource ();
+
+	@Test
+	public void testIndex ()
+	{
+		ONDEXGraph graph = graphResource.getGraph ();
+		IriEntityIndex idx = IriEntityIndex.getInstance ( graph );
+		
+		assertTrue ( "IRI index is empty!", idx.size () > 0 );
+		assertSame ( "IRI index not cached!", idx, IriEntityIndex.getInstance ( graph ) );
+		
+		AttributeName iriAttr = graph.getMetaData ().getAttributeName ( "iri" );
+		Stream.concat ( graph.getConcepts ().stream (), graph.getRelations ().stream () )
+		.forEach ( entity -> 
+		{
+			Attribute attr = ( (ONDEXEntity) entity ).getAttribute ( iriAttr );
+			if ( attr == null ) return;
+			assertSame ( "Wrong entity for " + attr.getValue (), entity, idx.get ( (String) attr.getValue () ) );
+		});
+		
+		assertNull ( "Wrong result for a non-existing IRI!", idx.get ( "http://www.foo.com/no-such-iri" ) );
+	}
+	
+	@Test
+	public void testInvalidate ()
+	{
+		ONDEXGraph graph = graphResource.getGraph ();
+		IriEntityIndex idx = IriEntityIndex.getInstance ( graph );
+		
+		IriEntityIndex.invalidate ( graph );
+		IriEntityIndex newIdx = IriEntityIndex.getInstance ( graph );
+		
+		assertNotSame ( "IRI index not rebuilt!", idx, newIdx );
+		assertSame ( "Rebuilt IRI index not cached!", newIdx, IriEntityIndex.getInstance ( graph ) );
+		assertEquals ( "Wrong size for the rebuilt IRI index!", idx.size (), newIdx.size () );
+	}
+}
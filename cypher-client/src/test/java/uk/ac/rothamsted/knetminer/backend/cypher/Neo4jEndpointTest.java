@@ -0,0 +1,97 @@
+package uk.ac.rothamsted.knetminer.backend.cypher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link Neo4jEndpoint} balancing.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class Neo4jEndpointTest
+{
+	@Test
+	public void testLeastOutstanding ()
+	{
+		Neo4jEndpoint e0 = new Neo4jEndpoint ( "e0", null, null ), e1 = new Neo4jEndpoint ( "e1", null, null );
+		List<Neo4jEndpoint> endpoints = List.of ( e0, e1 );
+		
+		assertSame ( "Wrong first selection!", e0, Neo4jEndpoint.select ( endpoints ) );
+		assertSame ( "Wrong second selection!", e1, Neo4jEndpoint.select ( endpoints ) );
+		assertSame ( "Wrong third selection!", e0, Neo4jEndpoint.select ( endpoints ) );
+		assertEquals ( "Wrong outstanding count!", 2, e0.getOutstandingRequests () );
+		
+		e0.onRequestEnd ( 100, false );
+		e0.onRequestEnd ( 100, false );
+		e1.onRequestEnd ( 10, false );
+		
+		// Same load, the fastest wins
+		assertSame ( "Latency not considered!", e1, Neo4jEndpoint.select ( endpoints ) );
+		assertSame ( "Outstanding requests not considered!", e0, Neo4jEndpoint.select ( endpoints ) );
+		assertEquals ( "Wrong latency average!", 10d, e1.getAvgLatency (), 1E-6 );
+	}
+	
+	@Test
+	public void testFailover ()
+	{
+		Neo4jEndpoint e0 = new Neo4jEndpoint ( "e0", null, null ), e1 = new Neo4jEndpoint ( "e1", null, null );
+		List<Neo4jEndpoint> endpoints = List.of ( e0, e1 );
+
+		e0.markDown ( 60000 );
+		for ( int i = 0; i < 3; i++ )
+			assertSame ( "Down endpoint selected!", e1, Neo4jEndpoint.select ( endpoints ) );
+
+		// All down, the first to be retried is used
+		e1.markDown ( 120000 );
+		assertSame ( "Wrong fallback!", e0, Neo4jEndpoint.select ( endpoints ) );
+		
+		// Retry time over
+		e1.markDown ( -1 );
+		assertSame ( "Endpoint not retried!", e1, Neo4jEndpoint.select ( endpoints ) );
+		e1.markUp ();
+		assertEquals ( "Endpoint not up again!", true, e1.isHealthy ( System.currentTimeMillis () ) );
+	}
+	
+	@Test
+	public void testAvoidedEndpoint ()
+	{
+		Neo4jEndpoint e0 = new Neo4jEndpoint ( "e0", null, null ), e1 = new Neo4jEndpoint ( "e1", null, null );
+		List<Neo4jEndpoint> endpoints = List.of ( e0, e1 );
+
+		// e0 has less load, but the hedge has to go elsewhere
+		Neo4jEndpoint.select ( endpoints, "e0" );
+		assertSame ( "Avoided endpoint selected!", e1, Neo4jEndpoint.select ( endpoints, "e0" ) );
+		
+		// Unless it's the only healthy one
+		e1.markDown ( 60000 );
+		assertSame ( "Avoided endpoint not used as fallback!", e0, Neo4jEndpoint.select ( endpoints, "e0" ) );
+	}
+	
+	@Test
+	public void testPinnedEndpoint ()
+	{
+		Neo4jEndpoint e0 = new Neo4jEndpoint ( "e0", null, null ), e1 = new Neo4jEndpoint ( "e1", null, null );
+		List<Neo4jEndpoint> endpoints = List.of ( e0, e1 );
+
+		// e1 has less load, but the pinned one is used anyway
+		Neo4jEndpoint.select ( endpoints );
+		assertSame ( "Pinned endpoint not used!", e0, Neo4jEndpoint.select ( endpoints, null, "e0" ) );
+		
+		// Even when it's down
+		e0.markDown ( 60000 );
+		assertSame ( "Pinned endpoint not used when down!", e0, Neo4jEndpoint.select ( endpoints, null, "e0" ) );
+	}
+	
+	@Test ( expected = IllegalArgumentException.class )
+	public void testUnknownPinnedEndpoint ()
+	{
+		Neo4jEndpoint e0 = new Neo4jEndpoint ( "e0", null, null ), e1 = new Neo4jEndpoint ( "e1", null, null );
+		Neo4jEndpoint.select ( List.of ( e0, e1 ), null, "e2" );
+	}
+}
@@ -0,0 +1,162 @@
+package uk.ac.rothamsted.knetminer.backend.cypher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.UncheckedTimeoutException;
+
+/**
+ * Tests {@link SessionPool}, using fake sessions.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class SessionPoolTest
+{
+	private static class TestSession implements AutoCloseable
+	{
+		private final long fetchSize;
+		private boolean isClosed = false;
+		private boolean isHealthy = true;
+
+		TestSession ( long fetchSize ) {
+			this.fetchSize = fetchSize;
+		}
+
+		@Override
+		public void close () {
+			isClosed = true;
+		}
+	}
+
+	private final AtomicInteger createdSessions = new AtomicInteger ( 0 );
+
+	private SessionPool<TestSession> newPool ( int maxSize, long validationIdleMs )
+	{
+		return new SessionPool<> (
+			maxSize, validationIdleMs,
+			fetchSize -> { createdSessions.incrementAndGet (); return new TestSession ( fetchSize ); },
+			s -> s.isHealthy
+		);
+	}
+
+
+	@Test
+	public void testReuse ()
+	{
+		SessionPool<TestSession> pool = newPool ( 2, 60000 );
+
+		TestSession s1 = pool.borrow ( 100 );
+		pool.release ( s1, 100, false );
+		assertSame ( "Session not reused!", s1, pool.borrow ( 100 ) );
+		assertEquals ( "Wrong no. of created sessions!", 1, createdSessions.get () );
+
+		TestSession s2 = pool.borrow ( 200 );
+		assertEquals ( "Wrong fetch size!", 200, s2.fetchSize );
+		assertEquals ( "Wrong no. of open sessions!", 2, pool.getOpenSessions () );
+
+		// Broken sessions are closed
+		pool.release ( s1, 100, true );
+		assertTrue ( "Broken session not closed!", s1.isClosed );
+		assertEquals ( "Wrong recycled count!", 1, pool.getRecycledSessions () );
+		assertNotSame ( "Broken session reused!", s1, pool.borrow ( 100 ) );
+
+		pool.release ( s2, 200, false );
+		assertEquals ( "Wrong no. of idle sessions!", 1, pool.getIdleSessions () );
+		pool.close ();
+		assertTrue ( "Idle session not closed!", s2.isClosed );
+	}
+
+	@Test
+	public void testHealthCheck ()
+	{
+		SessionPool<TestSession> pool = newPool ( 2, -1 ); // always checked
+
+		TestSession s1 = pool.borrow ( 100 );
+		pool.release ( s1, 100, false );
+		s1.isHealthy = false;
+
+		TestSession s2 = pool.borrow ( 100 );
+		assertNotSame ( "Unhealthy session reused!", s1, s2 );
+		assertTrue ( "Unhealthy session not closed!", s1.isClosed );
+		assertEquals ( "Wrong no. of open sessions!", 1, pool.getOpenSessions () );
+	}
+
+	@Test
+	public void testBound () throws Exception
+	{
+		SessionPool<TestSession> pool = newPool ( 1, 60000 );
+		TestSession s1 = pool.borrow ( 100 );
+
+		AtomicBoolean isBorrowed = new AtomicBoolean ( false );
+		Thread borrower = new Thread ( () -> { pool.borrow ( 100 ); isBorrowed.set ( true ); } );
+		borrower.start ();
+		Thread.sleep ( 200 );
+		assertTrue ( "Pool bound not honoured!", !isBorrowed.get () );
+
+		pool.release ( s1, 100, false );
+		borrower.join ( 5000 );
+		assertTrue ( "Waiting borrower didn't get the released session!", isBorrowed.get () );
+		assertEquals ( "Wrong no. of created sessions!", 1, createdSessions.get () );
+	}
+
+	@Test
+	public void testWaitTimeout ()
+	{
+		SessionPool<TestSession> pool = newPool ( 1, 60000 );
+		TestSession s1 = pool.borrow ( 100 );
+
+		long start = System.currentTimeMillis ();
+		try {
+			pool.borrow ( 100, 200 );
+			fail ( "Pool wait not timed out!" );
+		}
+		catch ( UncheckedTimeoutException ex ) {
+			assertTrue ( "Pool wait timed out too early!", System.currentTimeMillis () - start >= 150 );
+		}
+
+		// The failed wait didn't take any permit
+		pool.release ( s1, 100, false );
+		assertSame ( "Session not available after a wait timeout!", s1, pool.borrow ( 100, 200 ) );
+	}
+
+	@Test
+	public void testWaitInterruption () throws Exception
+	{
+		SessionPool<TestSession> pool = newPool ( 1, 60000 );
+		pool.borrow ( 100 );
+
+		AtomicReference<Exception> error = new AtomicReference<> ();
+		AtomicBoolean isStillInterrupted = new AtomicBoolean ( false );
+		Thread borrower = new Thread ( () -> 
+		{
+			try {
+				pool.borrow ( 100 );
+			}
+			catch ( IllegalStateException ex ) {
+				error.set ( ex );
+				isStillInterrupted.set ( Thread.currentThread ().isInterrupted () );
+			}
+		});
+		borrower.start ();
+		Thread.sleep ( 200 );
+		borrower.interrupt ();
+		borrower.join ( 5000 );
+
+		assertFalse ( "Borrower still waiting after the interruption!", borrower.isAlive () );
+		assertNotNull ( "Interrupted wait not reported!", error.get () );
+		assertTrue ( "Interruption flag not kept!", isStillInterrupted.get () );
+	}
+}
@@ -0,0 +1,63 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link AdaptiveBatchSizer}.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class AdaptiveBatchSizerTest
+{
+	@Test
+	public void testIncrease ()
+	{
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer ( 500, 50, 1000, 1000 );
+		sizer.onCompleted ( 500, 100 );
+		assertEquals ( "Batch size not increased!", 550, sizer.getBatchSize () );
+
+		for ( int i = 0; i < 100; i++ ) sizer.onCompleted ( sizer.getBatchSize (), 100 );
+		assertEquals ( "Batch size ceiling not honoured!", 1000, sizer.getBatchSize () );
+	}
+
+	@Test
+	public void testDecrease ()
+	{
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer ( 500, 50, 1000, 1000 );
+
+		sizer.onCompleted ( 500, 1250 );
+		assertEquals ( "Batch size not decreased proportionally!", 400, sizer.getBatchSize () );
+
+		sizer.onCompleted ( 400, 10000 );
+		assertEquals ( "Batch size decreased too much!", 200, sizer.getBatchSize () );
+	}
+
+	@Test
+	public void testTimeout ()
+	{
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer ( 500, 50, 1000, 1000 );
+
+		sizer.onTimeout ( 500 );
+		assertEquals ( "Batch size not halved!", 250, sizer.getBatchSize () );
+
+		// A late timeout of an old, bigger batch doesn't increase the size
+		sizer.onTimeout ( 1000 );
+		assertEquals ( "Batch size wrongly increased!", 250, sizer.getBatchSize () );
+
+		for ( int i = 0; i < 100; i++ ) sizer.onTimeout ( sizer.getBatchSize () );
+		assertEquals ( "Batch size floor not honoured!", 50, sizer.getBatchSize () );
+	}
+
+	@Test
+	public void testInitialSizeClamped ()
+	{
+		assertTrue (
+			"Initial batch size not clamped!", new AdaptiveBatchSizer ( 10000, 50, 1000, 1000 ).getBatchSize () == 1000
+		);
+	}
+}
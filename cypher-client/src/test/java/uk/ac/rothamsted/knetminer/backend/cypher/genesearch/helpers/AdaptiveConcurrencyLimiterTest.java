@@ -0,0 +1,67 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link AdaptiveConcurrencyLimiter}.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class AdaptiveConcurrencyLimiterTest
+{
+	@Test
+	public void testFixedLimit ()
+	{
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter ( 2 );
+		assertTrue ( "Slot 1 not acquired!", limiter.tryAcquire () );
+		assertTrue ( "Slot 2 not acquired!", limiter.tryAcquire () );
+		assertFalse ( "Limit not honoured!", limiter.tryAcquire () );
+		
+		for ( int i = 0; i < 10; i++ ) limiter.onSample ( "q", 1000 );
+		limiter.onDrop ();
+		assertEquals ( "Fixed limit changed!", 2, limiter.getLimit () );
+		
+		limiter.release ();
+		assertTrue ( "Released slot not acquired!", limiter.tryAcquire () );
+	}
+	
+	@Test
+	public void testAdaptation ()
+	{
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter ( 2, 32 );
+		while ( limiter.tryAcquire () ); // Fully loaded 
+		
+		for ( int i = 0; i < 50; i++ ) limiter.onSample ( "q", 10 );
+		assertEquals ( "Limit should stay at max with normal latency!", 32, limiter.getLimit () );
+		
+		// Latency inflates, limit should go down
+		for ( int i = 0; i < 20; i++ ) limiter.onSample ( "q", 50 );
+		int slowLimit = limiter.getLimit ();
+		assertTrue ( "Limit didn't shrink with high latency!", slowLimit < 16 );
+		
+		// Another query with its own costs doesn't look slow
+		for ( int i = 0; i < 10; i++ ) limiter.onSample ( "q1", 500 );
+		assertTrue ( "A slow query is confused with an inflated latency!", limiter.getLimit () >= slowLimit );
+		
+		// Back to normal, it grows again
+		for ( int i = 0; i < 50; i++ ) limiter.onSample ( "q", 10 );
+		assertTrue ( "Limit didn't grow back!", limiter.getLimit () > slowLimit );
+		
+		int limit = limiter.getLimit ();
+		limiter.onDrop ();
+		assertTrue ( "Limit didn't shrink after a timeout!", limiter.getLimit () < limit );
+		
+		// A sudden, big slow down
+		for ( int i = 0; i < 20; i++ ) limiter.onSample ( "q", 1000 );
+		assertTrue ( "Limit didn't go down enough!", limiter.getLimit () < 16 );
+		
+		for ( int i = 0; i < 100; i++ ) limiter.onDrop ();
+		assertEquals ( "Limit went below the min!", 2, limiter.getLimit () );
+	}
+}
@@ -0,0 +1,255 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.tuple.Triple;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.UncheckedTimeoutException;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import net.sourceforge.ondex.core.ONDEXConcept;
+import uk.ac.rothamsted.knetminer.backend.cypher.TestGraphResource;
+
+/**
+ * Unit tests for {@link CyTraverserPerformanceTracker}.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class CyTraverserPerformanceTrackerTest
+{
+	@ClassRule
+	public static TestGraphResource graphResource = new TestGraphResource ();
+
+	private static final String QUERY = "MATCH path = (g:Gene) WHERE g.iri IN $startGeneIris RETURN path";
+	private static final String IDLE_QUERY = "MATCH path = (g:Gene)-[]->(p:Protein) RETURN path";
+
+	@Test
+	public void testPercentiles ()
+	{
+		CyTraverserPerformanceTracker tracker = newTracker ();
+		List<ONDEXConcept> batch = List.of ( graphResource.getGraph ().getConcepts ().iterator ().next () );
+
+		// 9 fast batches and a slow one, returning 1 to 10 paths
+		for ( int i = 1; i <= 10; i++ )
+		{
+			int npaths = i;
+			long sleepTime = i == 10 ? 200 : 0;
+			tracker.track (
+				QUERY, () -> Uninterruptibles.sleepUninterruptibly ( sleepTime, TimeUnit.MILLISECONDS ),
+				() -> npaths, () -> 0, batch
+			);
+		}
+		// Path lengths from 1 to 20
+		for ( int i = 1; i <= 20; i += 2 )
+			tracker.trackPathLengths ( QUERY, List.of ( i, i + 1 ), Integer::intValue );
+
+		Map<String, Long> metrics = tracker.getPercentiles ().get ( QUERY );
+
+		assertEquals ( "Wrong batchPaths.p50!", 5, (long) metrics.get ( "batchPaths.p50" ) );
+		assertEquals ( "Wrong batchPaths.p90!", 9, (long) metrics.get ( "batchPaths.p90" ) );
+		assertEquals ( "Wrong batchPaths.p99!", 10, (long) metrics.get ( "batchPaths.p99" ) );
+		assertEquals ( "Wrong batchPaths.max!", 10, (long) metrics.get ( "batchPaths.max" ) );
+
+		assertEquals ( "Wrong pathLength.p50!", 10, (long) metrics.get ( "pathLength.p50" ) );
+		assertEquals ( "Wrong pathLength.p90!", 18, (long) metrics.get ( "pathLength.p90" ) );
+		assertEquals ( "Wrong pathLength.p99!", 20, (long) metrics.get ( "pathLength.p99" ) );
+		assertEquals ( "Wrong pathLength.max!", 20, (long) metrics.get ( "pathLength.max" ) );
+
+		// The slow batch is only seen at the top
+		assertTrue ( "batchTime.p50 too high!", metrics.get ( "batchTime.p50" ) < 100 );
+		assertTrue ( "batchTime.p90 too high!", metrics.get ( "batchTime.p90" ) < 100 );
+		assertTrue ( "batchTime.p99 too low!", metrics.get ( "batchTime.p99" ) >= 200 );
+		assertTrue ( "batchTime.max too low!", metrics.get ( "batchTime.max" ) >= 200 );
+		assertTrue (
+			"batchTime.p99 beyond the max!", metrics.get ( "batchTime.p99" ) <= metrics.get ( "batchTime.max" )
+		);
+	}
+
+	@Test
+	public void testNoSamples ()
+	{
+		CyTraverserPerformanceTracker tracker = newTracker ();
+		Map<String, Long> metrics = tracker.getPercentiles ().get ( IDLE_QUERY );
+
+		assertEquals ( "Wrong no. of metrics!", 3 * 4, metrics.size () );
+		metrics.forEach ( ( metric, value ) ->
+			assertEquals ( "Wrong " + metric + " with no samples!", -1, (long) value )
+		);
+
+		tracker.setReportFrequency ( -1 );
+		assertTrue ( "Percentiles reported with no tracking!", tracker.getPercentiles ().isEmpty () );
+	}
+
+	/**
+	 * When there are more timed out batches than {@code timeoutReportMaxEntries}, only the newest are kept.
+	 */
+	@Test
+	public void testTimeoutLogOverflow ()
+	{
+		CyTraverserPerformanceTracker tracker = new CyTraverserPerformanceTracker ();
+		tracker.setTimeoutReportMaxEntries ( 5 );
+		tracker.setSemanticMotifsQueries ( List.of ( QUERY ) );
+
+		List<ONDEXConcept> genes = getGenes ();
+		for ( int i = 0; i < 12; i++ ) trackTimeout ( tracker, List.of ( genes.get ( i ) ) );
+
+		List<Triple<String, Long, List<ONDEXConcept>>> timeoutLog = tracker.getTimeoutLog ();
+		assertEquals ( "Wrong no. of kept timeouts!", 5, timeoutLog.size () );
+		assertEquals ( "Wrong no. of tracked timeouts!", 12, tracker.getTimeoutCount () );
+
+		Set<ONDEXConcept> keptGenes = timeoutLog.stream ()
+			.flatMap ( e -> e.getRight ().stream () )
+			.collect ( Collectors.toSet () );
+		assertEquals ( "Wrong timeouts kept!", new HashSet<> ( genes.subList ( 7, 12 ) ), keptGenes );
+
+		// The newest genes have the newest time stamps
+		timeoutLog.sort ( Comparator.comparing ( Triple::getMiddle ) );
+		assertEquals ( "Time stamps not in the tracking order!", genes.subList ( 7, 12 ),
+			timeoutLog.stream ().map ( e -> e.getRight ().get ( 0 ) ).collect ( Collectors.toList () )
+		);
+
+		// The same genes are reported per query
+		assertEquals ( "Wrong timed out genes!", keptGenes, new HashSet<> ( tracker.getTimedOutQueries ().get ( QUERY ) ) );
+	}
+
+	/**
+	 * The time stamps of the timed out batches are unique, even when they're tracked concurrently and within
+	 * the same ms.
+	 */
+	@Test
+	public void testTimeoutTimeStamps () throws Exception
+	{
+		CyTraverserPerformanceTracker tracker = new CyTraverserPerformanceTracker ();
+		tracker.setTimeoutReportMaxEntries ( 1000 );
+		tracker.setSemanticMotifsQueries ( List.of ( QUERY ) );
+
+		List<ONDEXConcept> batch = List.of ( graphResource.getGraph ().getConcepts ().iterator ().next () );
+		int nthreads = 4, ntimeouts = 200;
+		ExecutorService executor = Executors.newFixedThreadPool ( nthreads );
+		try
+		{
+			List<Future<?>> jobs = new ArrayList<> ();
+			for ( int i = 0; i < nthreads; i++ )
+				jobs.add ( executor.submit ( () -> {
+					for ( int j = 0; j < ntimeouts; j++ ) trackTimeout ( tracker, batch );
+				}));
+			for ( Future<?> job: jobs ) job.get ( 10, TimeUnit.SECONDS );
+		}
+		finally {
+			executor.shutdownNow ();
+		}
+
+		List<Triple<String, Long, List<ONDEXConcept>>> timeoutLog = tracker.getTimeoutLog ();
+		assertEquals ( "Wrong no. of kept timeouts!", nthreads * ntimeouts, timeoutLog.size () );
+		assertEquals ( "Time stamps not unique!",
+			nthreads * ntimeouts, timeoutLog.stream ().map ( Triple::getMiddle ).distinct ().count ()
+		);
+	}
+
+	/**
+	 * Tests the time shares of the batch genes and the hub gene ranking.
+	 */
+	@Test
+	public void testHubGenes ()
+	{
+		CyTraverserPerformanceTracker tracker = newTracker ();
+		tracker.setGeneCostTracking ( true );
+		tracker.setHubGenesReportSize ( 3 );
+		List<ONDEXConcept> genes = getGenes ();
+		ONDEXConcept g0 = genes.get ( 0 ), g1 = genes.get ( 1 ), g2 = genes.get ( 2 ), g3 = genes.get ( 3 ), 
+			g4 = genes.get ( 4 );
+
+		// 110ms for 4 genes and 7 paths, ie, 10ms per unit. g2 has no paths and it's ignored
+		tracker.trackGeneCosts ( 
+			QUERY, List.of ( g0, g1, g2, g3 ), Map.of ( g0, new int[] { 5 }, g1, new int[] { 1 }, g3, new int[] { 1 } ), 110 
+		);
+		
+		List<Triple<ONDEXConcept, Long, Double>> hubGenes = tracker.getHubGenes ().get ( QUERY );
+		assertEquals ( "Wrong no. of hub genes!", 3, hubGenes.size () );
+		checkHubGene ( hubGenes.get ( 0 ), g0, 5, 60 );
+		// Same time, same paths, either order
+		for ( Triple<ONDEXConcept, Long, Double> hubGene: hubGenes.subList ( 1, 3 ) )
+			checkHubGene ( hubGene, hubGene.getLeft () == g1 ? g1 : g3, 1, 20 );
+		assertNull ( "Idle query reported!", tracker.getHubGenes ().get ( IDLE_QUERY ) );
+
+		// A batch that returns more paths wins a time tie
+		tracker.trackGeneCosts ( QUERY, List.of ( g1 ), Map.of ( g1, new int[] { 1 } ), 0 );
+		hubGenes = tracker.getHubGenes ().get ( QUERY );
+		checkHubGene ( hubGenes.get ( 1 ), g1, 2, 20 );
+		checkHubGene ( hubGenes.get ( 2 ), g3, 1, 20 );
+
+		// Now a batch times out and it's bisected. g4 keeps timing out and, unlike g2, it becomes the top hub
+		tracker.trackTimedOutGeneCosts ( QUERY, List.of ( g2, g4 ), 100 );
+		tracker.trackTimedOutGeneCosts ( QUERY, List.of ( g4 ), 100 );
+		tracker.trackUnresolvedTimeout ( QUERY, List.of ( g4 ) );
+		
+		hubGenes = tracker.getHubGenes ().get ( QUERY );
+		assertEquals ( "Wrong no. of hub genes after timeouts!", 3, hubGenes.size () );
+		checkHubGene ( hubGenes.get ( 0 ), g4, 0, 150 );
+		checkHubGene ( hubGenes.get ( 1 ), g0, 5, 60 );
+		checkHubGene ( hubGenes.get ( 2 ), g2, 0, 50 );
+		assertEquals ( "Wrong unresolved genes!", List.of ( g4 ), tracker.getUnresolvedTimedOutGenes ().get ( QUERY ) );
+		
+		tracker.setGeneCostTracking ( false );
+		assertTrue ( "Hub genes reported with no gene cost tracking!", tracker.getHubGenes ().isEmpty () );
+	}
+	
+	private static void checkHubGene ( 
+		Triple<ONDEXConcept, Long, Double> hubGene, ONDEXConcept gene, long npaths, double timeMs 
+	)
+	{
+		assertEquals ( "Wrong hub gene!", gene, hubGene.getLeft () );
+		assertEquals ( "Wrong no. of paths for " + gene + "!", npaths, (long) hubGene.getMiddle () );
+		assertEquals ( "Wrong time for " + gene + "!", timeMs, hubGene.getRight (), 1E-3 );
+	}
+	
+	/**
+	 * Tracks a batch the way the processor does when the query is cancelled by the timeout.
+	 */
+	private static void trackTimeout ( CyTraverserPerformanceTracker tracker, List<ONDEXConcept> batch )
+	{
+		try {
+			tracker.track ( QUERY, () -> { throw new UncheckedTimeoutException (); }, () -> 0, () -> 0, batch );
+			fail ( "Timeout not propagated!" );
+		}
+		catch ( UncheckedTimeoutException ex ) {
+			// Expected
+		}
+	}
+
+	/**
+	 * The test graph concepts, sorted by ID.
+	 */
+	private static List<ONDEXConcept> getGenes ()
+	{
+		List<ONDEXConcept> result = new ArrayList<> ( graphResource.getGraph ().getConcepts () );
+		result.sort ( Comparator.comparing ( ONDEXConcept::getId ) );
+		return result;
+	}
+
+	private static CyTraverserPerformanceTracker newTracker ()
+	{
+		CyTraverserPerformanceTracker result = new CyTraverserPerformanceTracker ();
+		result.setSemanticMotifsQueries ( List.of ( QUERY, IDLE_QUERY ) );
+		return result;
+	}
+}
@@ -0,0 +1,61 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link InFlightQueryRegistry}.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class InFlightQueryRegistryTest
+{
+	private final Object graph = new Object ();
+	
+	@Test
+	public void testJoin ()
+	{
+		InFlightQueryRegistry registry = new InFlightQueryRegistry ();
+		
+		CompletableFuture<List<int[]>> ownerFuture = new CompletableFuture<> ();
+		assertNull ( "First claim isn't owned!", registry.join ( graph, 1, 10, ownerFuture ) );
+		
+		CompletableFuture<List<int[]>> pending = registry.join ( graph, 1, 10, new CompletableFuture<> () );
+		assertSame ( "Second claim doesn't get the owner's future!", ownerFuture, pending );
+		assertEquals ( "Wrong no. of joins!", 1, registry.getJoins () );
+
+		assertNull ( "A different gene is joined!", registry.join ( graph, 1, 11, new CompletableFuture<> () ) );
+		assertNull ( "A different query is joined!", registry.join ( graph, 2, 10, new CompletableFuture<> () ) );
+		assertNull ( "A different graph is joined!", registry.join ( new Object (), 1, 10, new CompletableFuture<> () ) );
+		
+		List<int[]> paths = List.of ( new int[] { 10, 100, 20 } );
+		registry.complete ( graph, 1, 10, ownerFuture, paths );
+		assertTrue ( "Pending future not completed!", pending.isDone () );
+		assertSame ( "Wrong result for the joined unit!", paths, pending.join () );
+		
+		assertNull ( "Completed unit is still in-flight!", registry.join ( graph, 1, 10, new CompletableFuture<> () ) );
+	}
+	
+	@Test
+	public void testFailedOwner ()
+	{
+		InFlightQueryRegistry registry = new InFlightQueryRegistry ();
+		
+		CompletableFuture<List<int[]>> ownerFuture = new CompletableFuture<> ();
+		registry.join ( graph, 1, 10, ownerFuture );
+		CompletableFuture<List<int[]>> pending = registry.join ( graph, 1, 10, new CompletableFuture<> () );
+
+		registry.complete ( graph, 1, 10, ownerFuture, null );
+		assertNull ( "Failed unit doesn't return null!", pending.join () );
+		assertEquals ( "Failed unit is still in-flight!", 0, registry.size () );
+	}
+}
@@ -0,0 +1,134 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link LatencyHistogram} and {@link HedgingBudget}.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class LatencyHistogramTest
+{
+	@Test
+	public void testPercentiles ()
+	{
+		LatencyHistogram histo = new LatencyHistogram ();
+		assertEquals ( "Wrong percentile for no values!", -1, histo.getPercentile ( 50 ) );
+
+		for ( int i = 1; i <= 1000; i++ ) histo.record ( i );
+
+		assertEquals ( "Wrong count!", 1000, histo.getCount () );
+		assertEquals ( "Wrong max!", 1000, histo.getMax () );
+		assertEquals ( "Wrong mean!", 500.5, histo.getMean (), 1E-6 );
+		assertEquals ( "Wrong low percentile!", 10, histo.getPercentile ( 1 ) );
+
+		for ( double p: new double[] { 50, 90, 95, 99 } )
+		{
+			long v = histo.getPercentile ( p );
+			assertTrue ( "p" + p + " too imprecise: " + v, Math.abs ( v - p * 10 ) <= p * 10 * 0.04 );
+		}
+		assertEquals ( "Wrong p100!", 1000, histo.getPercentile ( 100 ) );
+	}
+
+	@Test
+	public void testRecordAll ()
+	{
+		LatencyHistogram histo = new LatencyHistogram (), refHisto = new LatencyHistogram ();
+		
+		List<Long> values = LongStream.rangeClosed ( 1, 1000 ).map ( i -> i % 7 == 0 ? i * 1000 : i % 13 ).boxed ()
+			.collect ( Collectors.toList () );
+		histo.recordAll ( values, Long::longValue );
+		histo.recordAll ( List.of (), Long::longValue );
+		values.forEach ( refHisto::record );
+		
+		assertEquals ( "Wrong count!", refHisto.getCount (), histo.getCount () );
+		assertEquals ( "Wrong sum!", refHisto.getSum (), histo.getSum () );
+		assertEquals ( "Wrong max!", refHisto.getMax (), histo.getMax () );
+		for ( double p: new double[] { 1, 50, 85, 90, 99, 100 } )
+			assertEquals ( "Wrong p" + p + "!", refHisto.getPercentile ( p ), histo.getPercentile ( p ) );
+	}
+	
+	/**
+	 * Different threads update different stripes, which must be merged correctly.
+	 */
+	@Test
+	public void testConcurrentUpdates () throws Exception
+	{
+		LatencyHistogram histo = new LatencyHistogram ();
+		int nthreads = 16, nvalues = 10000;
+		
+		ExecutorService executor = Executors.newFixedThreadPool ( nthreads );
+		try
+		{
+			List<Future<?>> jobs = new ArrayList<> ();
+			for ( int t = 0; t < nthreads; t++ )
+			{
+				final int thread = t;
+				jobs.add ( executor.submit ( () -> 
+				{
+					for ( int i = 1; i <= nvalues; i++ ) 
+						if ( thread % 2 == 0 ) histo.record ( i ); else histo.recordAll ( List.of ( i ), Integer::longValue );
+				}));
+			}
+			for ( Future<?> job: jobs ) job.get ();
+		}
+		finally {
+			executor.shutdownNow ();
+		}
+		
+		assertEquals ( "Wrong count!", nthreads * nvalues, histo.getCount () );
+		assertEquals ( "Wrong sum!", nthreads * ( nvalues * ( nvalues + 1L ) / 2 ), histo.getSum () );
+		assertEquals ( "Wrong max!", nvalues, histo.getMax () );
+		assertEquals ( "Wrong p100!", nvalues, histo.getPercentile ( 100 ) );
+		for ( double p: new double[] { 1, 50, 90 } )
+		{
+			long v = histo.getPercentile ( p );
+			assertTrue ( "p" + p + " too imprecise: " + v, Math.abs ( v - p * nvalues / 100 ) <= p * nvalues / 100 * 0.04 );
+		}
+	}
+
+	@Test
+	public void testBuckets ()
+	{
+		long prevBound = -1;
+		for ( long v: new long[] { 0, 63, 64, 65, 127, 128, 1000, 123456789L } )
+		{
+			int idx = LatencyHistogram.bucketIndex ( v );
+			long bound = LatencyHistogram.bucketUpperBound ( idx );
+			assertTrue ( "Value " + v + " above its bucket bound " + bound, v <= bound );
+			assertTrue ( "Value " + v + " below its bucket", idx == 0 || v > LatencyHistogram.bucketUpperBound ( idx - 1 ) );
+			assertTrue ( "Bucket bounds not monotonic!", bound >= prevBound );
+			prevBound = bound;
+		}
+	}
+
+	@Test
+	public void testHedgingBudget ()
+	{
+		HedgingBudget budget = new HedgingBudget ( 0.1, 2 );
+		assertTrue ( "Hedge allowed without tokens!", !budget.tryAcquire () );
+
+		for ( int i = 0; i < 10; i++ ) budget.onBatch ();
+		assertTrue ( "Hedge not allowed after enough batches!", budget.tryAcquire () );
+		assertTrue ( "Hedge allowed over the budget!", !budget.tryAcquire () );
+
+		// Burst cap
+		for ( int i = 0; i < 1000; i++ ) budget.onBatch ();
+		assertTrue ( "Burst hedge 1 not allowed!", budget.tryAcquire () );
+		assertTrue ( "Burst hedge 2 not allowed!", budget.tryAcquire () );
+		assertTrue ( "Hedge allowed over the burst!", !budget.tryAcquire () );
+	}
+}
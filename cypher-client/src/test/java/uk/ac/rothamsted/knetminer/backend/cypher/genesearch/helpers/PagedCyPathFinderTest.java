@@ -0,0 +1,175 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import jdk.jfr.consumer.RecordedEvent;
+
+import org.junit.Test;
+import org.neo4j.driver.Value;
+
+import uk.ac.rothamsted.knetminer.backend.cypher.CypherClient;
+import uk.ac.rothamsted.knetminer.backend.cypher.CypherClientProvider;
+import uk.ac.rothamsted.knetminer.backend.cypher.FakeNeo4jDriver;
+import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers.PagedCyPathFinder.PathFetcher;
+import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers.PagedCyPathFinder.PagingMode;
+import uk.ac.rothamsted.knetminer.backend.cypher.jfr.JfrTestUtils;
+import uk.ac.rothamsted.knetminer.backend.cypher.jfr.QueryPageEvent;
+
+/**
+ * Tests {@link PagedCyPathFinder} against a {@link FakeNeo4jDriver fake Neo4j}.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class PagedCyPathFinderTest
+{
+	/**
+	 * Returns paths from a fixed range, paginated by the offset and page size parameters, so that a wrong
+	 * offset loses or duplicates paths. It records the offsets it was asked for, or -1 when it's called without
+	 * pagination.
+	 */
+	private static class TestFetcher implements PathFetcher<List<String>>
+	{
+		private final int nPaths;
+		private final List<Long> offsets = new ArrayList<> ();
+		private final List<String> endpoints = new ArrayList<> ();
+
+		TestFetcher ( int nPaths ) {
+			this.nPaths = nPaths;
+		}
+
+		@Override
+		public Stream<List<String>> fetch ( CypherClient client, String query, Value params )
+		{
+			boolean isPaged = !params.get ( "offset" ).isNull ();
+			long offset = isPaged ? params.get ( "offset" ).asLong () : 0;
+			long pageSize = isPaged ? params.get ( "pageSize" ).asLong () : nPaths;
+			offsets.add ( isPaged ? offset : -1 );
+			endpoints.add ( client.getEndpointName () );
+			return LongStream.range ( offset, Math.min ( offset + pageSize, nPaths ) )
+				.mapToObj ( i -> List.of ( "gene0", "path" + i ) );
+		}
+
+		@Override
+		public String getKeyProperty () {
+			return "iri";
+		}
+
+		@Override
+		public long getSize ( List<String> path ) {
+			return 0;
+		}
+	}
+
+
+	private PagedCyPathFinder<List<String>> newFinder ( CypherClientProvider provider, PagingMode mode, long pageSize )
+	{
+		PagedCyPathFinder<List<String>> finder = new PagedCyPathFinder<> ();
+		finder.setCypherClientProvider ( provider );
+		finder.setQueryPagingMode ( mode.name () );
+		finder.setQueryPageSize ( pageSize );
+		finder.setQueryPathProjection ( false );
+		return finder;
+	}
+
+	private static List<List<String>> fetchAll ( PagedCyPathFinder<List<String>> finder )
+	{
+		List<List<String>> result = new ArrayList<> ();
+		try ( finder ) {
+			finder.forEachRemaining ( result::add );
+		}
+		return result;
+	}
+
+	/**
+	 * {@link PagingMode#STREAMING} issues the query once, without pagination, and returns all the paths.
+	 */
+	@Test
+	public void testStreamingMode ()
+	{
+		PagedCyPathFinder<List<String>> finder = newFinder ( 
+			FakeNeo4jDriver.newProvider ( FakeNeo4jDriver.newDriver () ), PagingMode.STREAMING, 2 
+		);
+		TestFetcher fetcher = new TestFetcher ( 5 );
+		finder.init ( fetcher, List.of ( "gene0" ), "MATCH path = (g:Gene) WHERE g.iri IN $startGeneIris RETURN path", -1 );
+
+		List<List<String>> paths = fetchAll ( finder );
+
+		assertEquals ( "Wrong queries for the streaming mode!", List.of ( -1L ), fetcher.offsets );
+		assertEquals ( "Wrong no. of paths!", 5, paths.size () );
+		for ( int i = 0; i < paths.size (); i++ )
+			assertEquals ( "Wrong path #" + i + "!", "path" + i, paths.get ( i ).get ( 1 ) );
+	}
+	
+	/**
+	 * Every page emits a {@link QueryPageEvent}, with the query ID and the no. of rows it returned.
+	 */
+	@Test
+	public void testPageEvents () throws IOException
+	{
+		PagedCyPathFinder<List<String>> finder = newFinder ( 
+			FakeNeo4jDriver.newProvider ( FakeNeo4jDriver.newDriver () ), PagingMode.OFFSET, 2 
+		);
+		finder.setQueryId ( "testQueryId" );
+		TestFetcher fetcher = new TestFetcher ( 5 );
+
+		List<RecordedEvent> events = JfrTestUtils.recordEvents ( 
+			() -> {
+				finder.init ( fetcher, List.of ( "gene0" ), "MATCH path = (g) RETURN path", -1 );
+				assertEquals ( "Wrong no. of paths!", 5, fetchAll ( finder ).size () );
+			},
+			QueryPageEvent.NAME 
+		);
+
+		events.sort ( Comparator.comparing ( e -> e.getLong ( "offset" ) ) );
+		assertEquals ( "Wrong no. of page events!", fetcher.offsets.size (), events.size () );
+		for ( int i = 0; i < events.size (); i++ )
+		{
+			RecordedEvent event = events.get ( i );
+			assertEquals ( "Wrong event type!", QueryPageEvent.NAME, event.getEventType ().getName () );
+			assertEquals ( "Wrong query ID!", "testQueryId", event.getString ( "queryId" ) );
+			assertEquals ( "Wrong paging mode!", PagingMode.OFFSET.name (), event.getString ( "pagingMode" ) );
+			assertEquals ( "Wrong page offset!", (long) fetcher.offsets.get ( i ), event.getLong ( "offset" ) );
+			assertEquals ( "Wrong no. of page rows!", Math.max ( 0, Math.min ( 2, 5 - 2 * i ) ), event.getLong ( "rows" ) );
+			assertFalse ( "Page cancelled!", event.getBoolean ( "cancelled" ) );
+		}
+	}
+	
+	/**
+	 * With multiple endpoints, all the pages of a finder must go to the same endpoint, since the offset pagination
+	 * isn't stable across servers.
+	 */
+	@Test
+	public void testEndpointPinning ()
+	{
+		CypherClientProvider provider = FakeNeo4jDriver.newProvider ( 
+			List.of ( FakeNeo4jDriver.newDriver (), FakeNeo4jDriver.newDriver () ) 
+		);
+		assertEquals ( "Wrong no. of test endpoints!", 2, provider.getReadEndpointsCount () );
+		
+		for ( int i = 0; i < 2; i++ )
+		{
+			PagedCyPathFinder<List<String>> finder = newFinder ( provider, PagingMode.OFFSET, 2 );
+			TestFetcher fetcher = new TestFetcher ( 7 );
+			finder.init ( fetcher, List.of ( "gene0" ), "MATCH path = (g) RETURN path", -1 );
+	
+			List<List<String>> paths = fetchAll ( finder );
+	
+			assertEquals ( "Wrong no. of paths!", 7, paths.size () );
+			assertEquals ( "Wrong no. of pages!", 5, fetcher.endpoints.size () );
+			assertEquals ( 
+				"Pages sent to multiple endpoints!", 1, fetcher.endpoints.stream ().distinct ().count () 
+			);
+			assertEquals ( "Wrong last endpoint!", fetcher.endpoints.get ( 0 ), finder.getLastEndpoint () );
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.exceptions.ClientException;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import net.sourceforge.ondex.algorithm.graphquery.nodepath.EvidencePathNode;
+import net.sourceforge.ondex.core.ONDEXConcept;
+import net.sourceforge.ondex.core.ONDEXGraph;
+import net.sourceforge.ondex.core.util.ONDEXGraphUtils;
+import uk.ac.rothamsted.knetminer.backend.cypher.CyPathProjection;
+import uk.ac.rothamsted.knetminer.backend.cypher.CypherClientProvider;
+import uk.ac.rothamsted.knetminer.backend.cypher.FakeNeo4jDriver;
+import uk.ac.rothamsted.knetminer.backend.cypher.TestGraphResource;
+import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers.PagedCyPathFinder.PagingMode;
+
+/**
+ * Tests {@link PathQueryProcessor} against a {@link FakeNeo4jDriver fake Neo4j}, with the traverser components
+ * wired by a minimal Spring context.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class PathQueryProcessorTest
+{
+	@ClassRule
+	public static TestGraphResource graphResource = new TestGraphResource ();
+
+	private static final String QUERY = "MATCH path = (g:Gene) WHERE g.iri IN $startGeneIris RETURN path";
+
+	/**
+	 * A batch with a hub gene that always times out is split and retried, until the hub gene is alone and it's
+	 * reported as unresolved, while the other genes get their paths.
+	 */
+	@Test
+	@SuppressWarnings ( "rawtypes" )
+	public void testTimeoutBisection ()
+	{
+		ONDEXGraph graph = graphResource.getGraph ();
+		List<ONDEXConcept> genes = getGenes ( graph, 4 );
+		ONDEXConcept hubGene = genes.get ( 1 );
+		String hubIri = getIri ( graph, hubGene );
+
+		// Every gene has a single-node path, the batches with the hub gene time out on the server side
+		Driver driver = FakeNeo4jDriver.newDriver ( ( query, params ) ->
+		{
+			List<Object> iris = params.get ( "startGeneIris" ).asList ();
+			if ( iris.contains ( hubIri ) ) throw new ClientException (
+				"Neo.ClientError.Transaction.TransactionTimedOut", "Test timeout for the hub gene"
+			);
+			return toSingleNodePaths ( iris );
+		});
+
+		try ( AnnotationConfigApplicationContext springContext = newSpringContext ( driver, genes.size (), 1 ) )
+		{
+			PathQueryProcessor processor = springContext.getBean ( PathQueryProcessor.class );
+			TraversalContext context = processor.newContext ();
+			Map<ONDEXConcept, List<EvidencePathNode>> result = processor.process ( context, graph, genes );
+
+			Map<String, Collection<ONDEXConcept>> unresolved =
+				context.getPerformanceTracker ().getUnresolvedTimedOutGenes ();
+			assertEquals ( "Wrong unresolved genes!", Set.of ( hubGene ), new HashSet<> ( unresolved.get ( QUERY ) ) );
+
+			assertNull ( "Paths returned for the hub gene!", result.get ( hubGene ) );
+			for ( ONDEXConcept gene: genes )
+			{
+				if ( gene == hubGene ) continue;
+				assertEquals ( "Wrong no. of paths for a regular gene!", 1, result.get ( gene ).size () );
+			}
+			assertTrue ( "Traversal reported as incomplete!", context.isComplete () );
+		}
+	}
+
+	/**
+	 * Two traversals running at the same time have their own results, progress, stats and interruption: the first
+	 * one is interrupted while its batch is running, the second one completes, without being affected.
+	 */
+	@Test
+	@SuppressWarnings ( "rawtypes" )
+	public void testConcurrentTraversals () throws Exception
+	{
+		ONDEXGraph graph = graphResource.getGraph ();
+		List<ONDEXConcept> genes = getGenes ( graph, 4 );
+		List<ONDEXConcept> genesA = genes.subList ( 0, 2 ), genesB = genes.subList ( 2, 4 );
+		String blockingIri = getIri ( graph, genesA.get ( 0 ) );
+
+		// The batch of the first traversal blocks until it's released, after having interrupted its traversal
+		CountDownLatch isAStarted = new CountDownLatch ( 1 ), isAReleased = new CountDownLatch ( 1 );
+		Driver driver = FakeNeo4jDriver.newDriver ( ( query, params ) ->
+		{
+			List<Object> iris = params.get ( "startGeneIris" ).asList ();
+			if ( iris.contains ( blockingIri ) )
+			{
+				isAStarted.countDown ();
+				Uninterruptibles.awaitUninterruptibly ( isAReleased, 10, TimeUnit.SECONDS );
+			}
+			return toSingleNodePaths ( iris );
+		});
+
+		try ( AnnotationConfigApplicationContext springContext = newSpringContext ( driver, 2, -1 ) )
+		{
+			PathQueryProcessor processor = springContext.getBean ( PathQueryProcessor.class );
+			TraversalContext contextA = processor.newContext (), contextB = processor.newContext ();
+
+			CompletableFuture<Map<ONDEXConcept, List<EvidencePathNode>>> jobA = CompletableFuture.supplyAsync (
+				() -> processor.process ( contextA, graph, genesA )
+			);
+			assertTrue ( "The first traversal didn't start!", isAStarted.await ( 5, TimeUnit.SECONDS ) );
+			
+			Map<ONDEXConcept, List<EvidencePathNode>> resultB = processor.process ( contextB, graph, genesB );
+			
+			assertEquals ( "Wrong progress for the completed traversal!", 100d, contextB.getPercentProgress (), 0.1 );
+			assertEquals ( "Wrong progress for the running traversal!", 0d, contextA.getPercentProgress (), 0.1 );
+
+			// The completed batch is in the stats of the second traversal only
+			assertNotSame (
+				"Performance tracker shared!", contextA.getPerformanceTracker (), contextB.getPerformanceTracker ()
+			);
+			assertEquals ( "Wrong stats for the completed traversal!",
+				2L, (long) contextB.getPerformanceTracker ().getPercentiles ().get ( QUERY ).get ( "batchPaths.max" )
+			);
+			assertEquals ( "Wrong stats for the running traversal!",
+				-1L, (long) contextA.getPerformanceTracker ().getPercentiles ().get ( QUERY ).get ( "batchPaths.max" )
+			);
+			
+			contextA.interrupt ();
+			isAReleased.countDown ();
+			Map<ONDEXConcept, List<EvidencePathNode>> resultA = jobA.get ( 5, TimeUnit.SECONDS );
+			
+			assertTrue ( "First traversal not interrupted!", contextA.isInterrupted () );
+			assertFalse ( "Interrupted traversal reported as complete!", contextA.isComplete () );
+			assertTrue ( "Results from an interrupted batch!", resultA.isEmpty () );
+			
+			assertFalse ( "Second traversal interrupted!", contextB.isInterrupted () );
+			assertTrue ( "Second traversal incomplete!", contextB.isComplete () );
+			assertEquals ( "Wrong genes in the second traversal!", new HashSet<> ( genesB ), resultB.keySet () );
+			for ( ONDEXConcept gene: genesB )
+				assertEquals ( "Wrong no. of paths in the second traversal!", 1, resultB.get ( gene ).size () );
+		}
+	}
+
+	/**
+	 * The traverser components, without the component scan, configured to run the tests against a fake driver,
+	 * which returns the same result for every page, hence the streaming mode.
+	 */
+	static AnnotationConfigApplicationContext newSpringContext (
+		Driver driver, long queryBatchSize, long queryTimeoutMinBatchSize
+	)
+	{
+		AnnotationConfigApplicationContext result = new AnnotationConfigApplicationContext ();
+		result.registerBean ( "neoDriver", Driver.class, () -> driver );
+		result.registerBean ( "semanticMotifsQueries", List.class, () -> List.of ( QUERY ) );
+		result.registerBean ( "queryBatchSize", Long.class, () -> queryBatchSize );
+		result.registerBean ( "queryTimeoutMinBatchSize", Long.class, () -> queryTimeoutMinBatchSize );
+		result.registerBean ( "queryPagingMode", String.class, () -> PagingMode.STREAMING.name () );
+		result.registerBean ( "metricsJmx", Boolean.class, () -> false );
+		// The query thread pool is shared by all the processors, this is enough for the tests that need parallelism
+		result.registerBean ( "queryThreadPoolSize", Integer.class, () -> 4 );
+		result.register (
+			CypherClientProvider.class, TraversalResultCache.class, InFlightQueryRegistry.class,
+			CyTraverserPerformanceTracker.class, PagedCyPathFinder.class, SinglePathQueryProcessor.class,
+			PathQueryProcessor.class
+		);
+		result.refresh ();
+		return result;
+	}
+
+	/**
+	 * A path per start gene, made of the gene only, in the format of the projected queries.
+	 */
+	private static List<Map<String, Object>> toSingleNodePaths ( List<Object> startGeneIris )
+	{
+		return startGeneIris.stream ()
+			.map ( iri -> Map.<String, Object> of (
+				CyPathProjection.NODE_KEYS, List.of ( iri ), CyPathProjection.REL_KEYS, List.of ()
+			))
+			.collect ( Collectors.toList () );
+	}
+
+	/**
+	 * The first n concepts having an IRI, which is needed to query them.
+	 */
+	static List<ONDEXConcept> getGenes ( ONDEXGraph graph, int n )
+	{
+		return graph.getConcepts ()
+			.stream ()
+			.filter ( concept -> ONDEXGraphUtils.getAttribute ( graph, concept, "iri" ) != null )
+			.limit ( n )
+			.collect ( Collectors.toList () );
+	}
+
+	static String getIri ( ONDEXGraph graph, ONDEXConcept concept ) {
+		return (String) ONDEXGraphUtils.getAttribute ( graph, concept, "iri" ).getValue ();
+	}
+}
@@ -0,0 +1,163 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers.TraversalContext.Priority;
+
+/**
+ * Tests {@link QueryJobDispatcher}.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class QueryJobDispatcherTest
+{
+	@Test
+	public void testInteractiveFirst () throws Exception
+	{
+		QueryJobDispatcher dispatcher = new QueryJobDispatcher ( 1, 10, 1, "testInteractiveFirst" );
+		
+		CountDownLatch blocker = new CountDownLatch ( 1 ), b1Started = new CountDownLatch ( 1 );
+		List<String> order = new Vector<> ();
+		
+		// Keeps the only worker busy, while we queue the rest. It must be running before that, else the worker 
+		// might pick I1 first
+		dispatcher.submit ( Priority.BULK, () -> { 
+			b1Started.countDown ();
+			Uninterruptibles.awaitUninterruptibly ( blocker ); 
+			order.add ( "B1" ); 
+		});
+		Uninterruptibles.awaitUninterruptibly ( b1Started );
+		Future<?> b2 = dispatcher.submit ( Priority.BULK, () -> order.add ( "B2" ) );
+		Future<?> i1 = dispatcher.submit ( Priority.INTERACTIVE, () -> order.add ( "I1" ) );
+		
+		blocker.countDown ();
+		b2.get ();
+		i1.get ();
+		
+		assertEquals ( "Wrong job order!", List.of ( "B1", "I1", "B2" ), order );
+	}
+	
+	@Test
+	public void testBulkThrottling () throws Exception
+	{
+		QueryJobDispatcher dispatcher = new QueryJobDispatcher ( 4, 100, 1, "testBulkThrottling" );
+		
+		CountDownLatch interactiveBlocker = new CountDownLatch ( 1 );
+		Future<?> interactiveJob = dispatcher.submit ( 
+			Priority.INTERACTIVE, () -> Uninterruptibles.awaitUninterruptibly ( interactiveBlocker ) 
+		);
+		
+		AtomicInteger runningBulkJobs = new AtomicInteger (), maxRunningBulkJobs = new AtomicInteger ();
+		List<Future<?>> bulkJobs = new ArrayList<> ();
+		for ( int i = 0; i < 6; i++ )
+			bulkJobs.add ( dispatcher.submit ( Priority.BULK, () -> 
+			{
+				maxRunningBulkJobs.accumulateAndGet ( runningBulkJobs.incrementAndGet (), Math::max );
+				Uninterruptibles.sleepUninterruptibly ( 20, TimeUnit.MILLISECONDS );
+				runningBulkJobs.decrementAndGet ();
+			}));
+		
+		// While the interactive job runs, the bulk jobs can go, but on one thread only
+		for ( Future<?> job: bulkJobs ) job.get ();
+		assertEquals ( "Bulk jobs weren't throttled!", 1, maxRunningBulkJobs.get () );
+
+		interactiveBlocker.countDown ();
+		interactiveJob.get ();
+	}
+	
+	/**
+	 * This works with the platform fallback too, when virtual threads aren't available.
+	 */
+	@Test
+	public void testVirtualMode () throws Exception
+	{
+		Assume.assumeTrue ( "Virtual threads not available, skipping", QueryJobDispatcher.isVirtualThreadsAvailable () );
+		
+		QueryJobDispatcher dispatcher = new QueryJobDispatcher ( 
+			QueryJobDispatcher.ExecutorMode.VIRTUAL, 2, 100, 1, "testVirtualMode" 
+		);
+		
+		// Reflection, since we still compile with Java 17
+		Method isVirtual = Thread.class.getMethod ( "isVirtual" );
+		
+		AtomicInteger runningJobs = new AtomicInteger (), maxRunningJobs = new AtomicInteger ();
+		List<Boolean> virtualFlags = new Vector<> ();
+		List<Future<?>> jobs = new ArrayList<> ();
+		for ( int i = 0; i < 8; i++ )
+			jobs.add ( dispatcher.submit ( Priority.INTERACTIVE, () -> 
+			{
+				maxRunningJobs.accumulateAndGet ( runningJobs.incrementAndGet (), Math::max );
+				try {
+					virtualFlags.add ( (Boolean) isVirtual.invoke ( Thread.currentThread () ) );
+				}
+				catch ( ReflectiveOperationException ex ) {
+					throw new IllegalStateException ( ex );
+				}
+				Uninterruptibles.sleepUninterruptibly ( 20, TimeUnit.MILLISECONDS );
+				runningJobs.decrementAndGet ();
+			}));
+		
+		for ( Future<?> job: jobs ) job.get ();
+		assertTrue ( "Concurrency limit not honoured!", maxRunningJobs.get () <= 2 );
+		assertEquals ( "Wrong no. of jobs run!", 8, virtualFlags.size () );
+		assertFalse ( "Jobs not run on virtual threads!", virtualFlags.contains ( false ) );
+	}
+	
+	/**
+	 * A hedge that outlives the last running job, while the limit has gone down, mustn't leave the queued jobs 
+	 * waiting forever.
+	 */
+	@Test
+	public void testHedgeOutlivingJobs () throws Exception
+	{
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter ( 1, 2 );
+		QueryJobDispatcher dispatcher = new QueryJobDispatcher ( 
+			QueryJobDispatcher.ExecutorMode.PLATFORM, limiter, 2, 10, 1, "testHedgeOutlivingJobs" 
+		);
+		
+		CountDownLatch started = new CountDownLatch ( 1 ), blocker = new CountDownLatch ( 1 );
+		Future<?> job = dispatcher.submit ( Priority.INTERACTIVE, () -> { 
+			started.countDown ();
+			Uninterruptibles.awaitUninterruptibly ( blocker ); 
+		});
+		started.await ( 2, TimeUnit.SECONDS );
+		
+		// The job is hedged, then the limit goes down to 1 and more jobs arrive
+		assertTrue ( "Hedge permit not given!", dispatcher.tryAcquireHedgePermit () );
+		limiter.onDrop ();
+		assertEquals ( "Limit not lowered!", 1, limiter.getLimit () );
+		
+		List<Future<?>> queuedJobs = new ArrayList<> ();
+		for ( int i = 0; i < 3; i++ ) queuedJobs.add ( dispatcher.submit ( Priority.INTERACTIVE, () -> {} ) );
+		assertFalse ( "Hedge permit given with queued jobs!", dispatcher.tryAcquireHedgePermit () );
+		
+		// The last running job ends, but the hedge still holds the only permit
+		blocker.countDown ();
+		job.get ( 2, TimeUnit.SECONDS );
+		Thread.sleep ( 200 );
+		assertFalse ( "Queued job run beyond the limit!", queuedJobs.get ( 0 ).isDone () );
+		
+		// Now the hedge ends and the queued jobs must go
+		dispatcher.releaseHedgePermit ();
+		for ( Future<?> queuedJob: queuedJobs ) queuedJob.get ( 2, TimeUnit.SECONDS );
+		assertEquals ( "Permits not released!", 0, limiter.getInFlight () );
+	}
+}
@@ -0,0 +1,469 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import jdk.jfr.consumer.RecordedEvent;
+
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.neo4j.driver.exceptions.ClientException;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import net.sourceforge.ondex.algorithm.graphquery.nodepath.EvidencePathNode;
+import net.sourceforge.ondex.core.ONDEXConcept;
+import net.sourceforge.ondex.core.ONDEXEntity;
+import net.sourceforge.ondex.core.ONDEXGraph;
+import net.sourceforge.ondex.core.ONDEXRelation;
+import net.sourceforge.ondex.core.util.ONDEXGraphUtils;
+import uk.ac.rothamsted.knetminer.backend.cypher.CyPathProjection;
+import uk.ac.rothamsted.knetminer.backend.cypher.CypherClient;
+import uk.ac.rothamsted.knetminer.backend.cypher.CypherClientProvider;
+import uk.ac.rothamsted.knetminer.backend.cypher.FakeNeo4jDriver;
+import uk.ac.rothamsted.knetminer.backend.cypher.TestGraphResource;
+import uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers.SinglePathQueryProcessor.QueryAttempt;
+import uk.ac.rothamsted.knetminer.backend.cypher.jfr.JfrTestUtils;
+import uk.ac.rothamsted.knetminer.backend.cypher.jfr.QueryBatchEvent;
+import uk.ac.rothamsted.knetminer.backend.cypher.jfr.QueryPageEvent;
+
+/**
+ * Unit tests for {@link SinglePathQueryProcessor}, which don't need Neo4j.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class SinglePathQueryProcessorTest
+{
+	@ClassRule
+	public static TestGraphResource graphResource = new TestGraphResource ();
+
+	private static final String QUERY = "MATCH path = (g:Gene) WHERE g.iri IN $startGeneIris RETURN path";
+
+	/**
+	 * A cache entry with IDs that aren't in the graph (eg, the OXL has changed, but not the dataset version) must be
+	 * treated like a miss and removed.
+	 */
+	@Test
+	@SuppressWarnings ( "rawtypes" )
+	public void testStaleCacheEntry () throws IOException
+	{
+		ONDEXGraph graph = graphResource.getGraph ();
+		ONDEXRelation rel = graph.getRelations ().iterator ().next ();
+		ONDEXConcept gene = rel.getFromConcept (), staleGene = rel.getToConcept ();
+		int unknownId = graph.getRelations ().stream ().mapToInt ( ONDEXRelation::getId ).max ().getAsInt () + 1;
+
+		TraversalResultCache cache = new TraversalResultCache ( TraversalResultCacheTest.newCacheDir (), 1, "v1" );
+		cache.open ( graph );
+
+		SinglePathQueryProcessor processor = new SinglePathQueryProcessor ();
+		processor.setPathQuery ( QUERY );
+		processor.setResultCache ( cache );
+
+		long queryHash = TraversalResultCache.queryHash ( QUERY );
+		cache.put ( queryHash, gene.getId (), List.of ( new int[] { gene.getId (), rel.getId (), staleGene.getId () } ) );
+		cache.put ( queryHash, staleGene.getId (), List.of (
+			new int[] { staleGene.getId () }, new int[] { staleGene.getId (), unknownId, gene.getId () }
+		));
+
+		Map<ONDEXConcept, List<EvidencePathNode>> result = new HashMap<> ();
+		TraversalContext context = new TraversalContext ( new CyTraverserPerformanceTracker () );
+		context.start ( graph, result, 2 );
+
+		List<ONDEXConcept> misses = processor.resolveFromCache ( context, List.of ( gene, staleGene ) );
+
+		assertEquals ( "Stale entry not reported as a miss!", List.of ( staleGene ), misses );
+		assertEquals ( "Cached paths not resolved!", 1, result.get ( gene ).size () );
+		assertNull ( "Partial results from a stale entry!", result.get ( staleGene ) );
+
+		assertNull ( "Stale entry not removed!", cache.get ( queryHash, staleGene.getId () ) );
+		assertNotNull ( "Valid entry removed!", cache.get ( queryHash, gene.getId () ) );
+	}
+
+	/**
+	 * A job waiting for a gene that another traversal is querying must stop when its own traversal is interrupted.
+	 */
+	@Test
+	public void testJoinedGeneInterruption () throws Exception
+	{
+		ONDEXGraph graph = graphResource.getGraph ();
+		ONDEXConcept gene = graph.getConcepts ().iterator ().next ();
+
+		InFlightQueryRegistry registry = new InFlightQueryRegistry ();
+		SinglePathQueryProcessor processor = newCoalescingProcessor ( registry );
+
+		// The other traversal, which never completes the gene
+		registry.join ( graph, TraversalResultCache.queryHash ( QUERY ), gene.getId (), new CompletableFuture<> () );
+
+		TraversalContext context = newContext ( graph );
+		CompletableFuture<Void> job = CompletableFuture.runAsync ( () -> processor.queryJob ( context, List.of ( gene ) ) );
+
+		Thread.sleep ( 300 );
+		assertFalse ( "Joined gene not waited!", job.isDone () );
+
+		context.interrupt ();
+		job.get ( 2, TimeUnit.SECONDS );
+	}
+
+	/**
+	 * A job waiting for a gene that another traversal is querying mustn't go beyond its own traversal deadline.
+	 */
+	@Test
+	public void testJoinedGeneDeadline () throws Exception
+	{
+		ONDEXGraph graph = graphResource.getGraph ();
+		ONDEXConcept gene = graph.getConcepts ().iterator ().next ();
+
+		InFlightQueryRegistry registry = new InFlightQueryRegistry ();
+		SinglePathQueryProcessor processor = newCoalescingProcessor ( registry );
+
+		// The other traversal, which has no deadline and doesn't complete the gene in our time
+		registry.join ( graph, TraversalResultCache.queryHash ( QUERY ), gene.getId (), new CompletableFuture<> () );
+
+		TraversalContext context = new TraversalContext ( new CyTraverserPerformanceTracker () );
+		context.setTimeoutMs ( 300 );
+		context.start ( graph, new HashMap<> (), 1 );
+		
+		long start = System.currentTimeMillis ();
+		CompletableFuture.runAsync ( () -> processor.queryJob ( context, List.of ( gene ) ) ).get ( 2, TimeUnit.SECONDS );
+		
+		assertTrue ( "Job ended before the deadline!", System.currentTimeMillis () - start >= 300 );
+		assertFalse ( "Traversal not marked as incomplete!", context.isComplete () );
+		assertFalse ( "Traversal interrupted!", context.isInterrupted () );
+	}
+	
+	/**
+	 * A slow primary attempt is hedged and the hedge wins.
+	 */
+	@Test
+	public void testHedging () throws Exception
+	{
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter ( 4 );
+		SinglePathQueryProcessor processor = newHedgingProcessor ( limiter, new HedgingBudget ( 1, 1 ) );
+		QueryAttempt<String> primary = new QueryAttempt<> ( new PagedCyPathFinder<> () );
+		
+		long start = System.currentTimeMillis ();
+		QueryAttempt<String> winner = processor.hedgedQuery ( newContext ( graphResource.getGraph () ), primary, attempt -> 
+		{
+			// The hedge is fast, the primary waits until the hedge cancels it
+			if ( attempt != primary ) {
+				attempt.paths.add ( "hedge" );
+				return;
+			}
+			waitCancellation ( attempt, 5000 );
+			throw new IllegalStateException ( "Primary cancelled" );
+		});
+		
+		assertNotSame ( "Hedge didn't win!", primary, winner );
+		assertEquals ( "Wrong hedge result!", List.of ( "hedge" ), winner.paths );
+		assertTrue ( "Primary not cancelled!", primary.pathsItr.isCancelled () );
+		assertTrue ( "Hedge too late!", System.currentTimeMillis () - start < 2000 );
+		
+		// The hedge permit is released after the hedge, which is in the hedge thread
+		for ( int i = 0; i < 100 && limiter.getInFlight () > 0; i++ ) Thread.sleep ( 10 );
+		assertEquals ( "Hedge limiter permit not released!", 0, limiter.getInFlight () );
+	}
+
+	/**
+	 * No hedge is issued when the budget is over, or when the limiter doesn't allow for more queries.
+	 */
+	@Test
+	public void testNoHedging () throws Exception
+	{
+		// No budget
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter ( 4 );
+		checkNoHedge ( newHedgingProcessor ( limiter, new HedgingBudget ( 0, 1 ) ) );
+		assertEquals ( "Limiter permit not released!", 0, limiter.getInFlight () );
+		
+		// Limiter full
+		limiter = new AdaptiveConcurrencyLimiter ( 1 );
+		limiter.tryAcquire ();
+		HedgingBudget budget = new HedgingBudget ( 1, 1 );
+		checkNoHedge ( newHedgingProcessor ( limiter, budget ) );
+		assertTrue ( "Budget used with no limiter permit!", budget.tryAcquire () );
+	}
+	
+	/**
+	 * A completed batch emits a {@link QueryBatchEvent}, with the query ID, the batch size and the no. of rows
+	 * returned by Neo4j, and its page emits a {@link QueryPageEvent}.
+	 */
+	@Test
+	public void testBatchEvent () throws IOException
+	{
+		ONDEXGraph graph = graphResource.getGraph ();
+		ONDEXRelation rel = graph.getRelations ().iterator ().next ();
+		ONDEXConcept gene = rel.getFromConcept (), gene1 = rel.getToConcept ();
+
+		// 3 paths for the first gene, in the format of the projected queries
+		Map<String, Object> row = Map.of (
+			CyPathProjection.NODE_KEYS, List.of ( getIri ( graph, gene ), getIri ( graph, gene1 ) ),
+			CyPathProjection.REL_KEYS, List.of ( getIri ( graph, rel ) )
+		);
+		CypherClientProvider provider = FakeNeo4jDriver.newProvider ( 
+			FakeNeo4jDriver.newDriver ( ( query, params ) -> List.of ( row, row, row ) ) 
+		);
+
+		SinglePathQueryProcessor processor = newStreamingProcessor ( provider );
+
+		Map<ONDEXConcept, List<EvidencePathNode>> result = new HashMap<> ();
+		TraversalContext context = new TraversalContext ( new CyTraverserPerformanceTracker () );
+		context.start ( graph, result, 1 );
+		List<RecordedEvent> events = JfrTestUtils.recordEvents ( 
+			() -> processor.queryJob ( context, List.of ( gene, gene1 ) ), QueryBatchEvent.NAME 
+		);
+
+		assertEquals ( "Batch paths not collected!", 3, result.get ( gene ).size () );
+
+		// The page events are enabled by default, so they're recorded too
+		Map<String, List<RecordedEvent>> name2Events = events.stream ()
+			.collect ( Collectors.groupingBy ( e -> e.getEventType ().getName () ) );
+		
+		List<RecordedEvent> pageEvents = name2Events.get ( QueryPageEvent.NAME );
+		assertEquals ( "Wrong no. of page events!", 1, pageEvents.size () );
+		assertEquals ( "Wrong page query ID!", processor.getQueryId (), pageEvents.get ( 0 ).getString ( "queryId" ) );
+		assertEquals ( "Wrong no. of page rows!", 3, pageEvents.get ( 0 ).getLong ( "rows" ) );
+
+		List<RecordedEvent> batchEvents = name2Events.get ( QueryBatchEvent.NAME );
+		assertEquals ( "Wrong no. of batch events!", 1, batchEvents.size () );
+		RecordedEvent event = batchEvents.get ( 0 );
+		assertEquals ( "Wrong query ID!", processor.getQueryId (), event.getString ( "queryId" ) );
+		assertEquals ( "Wrong batch size!", 2, event.getInt ( "batchSize" ) );
+		assertEquals ( "Wrong no. of rows!", 3, event.getLong ( "rows" ) );
+		assertTrue ( "No batch bytes!", event.getLong ( "bytes" ) > 0 );
+		assertEquals ( "Batch bytes differ from the page bytes!", 
+			pageEvents.get ( 0 ).getLong ( "bytes" ), event.getLong ( "bytes" ) 
+		);
+		assertEquals ( "Wrong no. of entities!", 9, event.getLong ( "entities" ) );
+		assertFalse ( "Batch reported as timed out!", event.getBoolean ( "timedOut" ) );
+		assertFalse ( "Batch reported as hedged!", event.getBoolean ( "hedged" ) );
+	}
+
+	/**
+	 * A query that doesn't return within the batch timeout is cancelled by the timeout watchdog, which terminates 
+	 * its transaction on the server, the query thread releases its transaction and session, and the batch is 
+	 * reported as timed out. Here, the query fails because of the termination, as the Neo4j driver does.
+	 */
+	@Test
+	public void testTimeoutWatchdog () {
+		checkTimeoutWatchdog ( true );
+	}
+
+	/**
+	 * As above, but the cancelled query looks like it's over, which mustn't be taken as a complete result.
+	 */
+	@Test
+	public void testTimeoutWatchdogNoError () {
+		checkTimeoutWatchdog ( false );
+	}
+
+	@SuppressWarnings ( "rawtypes" )
+	private void checkTimeoutWatchdog ( boolean failsOnCancel )
+	{
+		ONDEXGraph graph = graphResource.getGraph ();
+		ONDEXConcept gene = graph.getConcepts ().iterator ().next ();
+		int openTxs = CypherClient.getOpenTransactions ();
+
+		CountDownLatch terminated = new CountDownLatch ( 1 );
+		
+		// Blocks until its transaction is terminated by the cancellation, like a query that takes too long
+		List<Map<String, Object>> blockingRows = new AbstractList<> ()
+		{
+			@Override
+			public Iterator<Map<String, Object>> iterator ()
+			{
+				return new Iterator<> ()
+				{
+					@Override
+					public boolean hasNext ()
+					{
+						Uninterruptibles.awaitUninterruptibly ( terminated, 5, TimeUnit.SECONDS );
+						if ( failsOnCancel ) throw new ClientException ( 
+							"Neo.ClientError.Transaction.Terminated", "Test transaction terminated" 
+						);
+						return false;
+					}
+
+					@Override
+					public Map<String, Object> next () {
+						throw new NoSuchElementException ();
+					}
+				};
+			}
+
+			@Override
+			public Map<String, Object> get ( int index ) {
+				throw new UnsupportedOperationException ();
+			}
+
+			@Override
+			public int size () {
+				return 0;
+			}
+		};
+		SinglePathQueryProcessor processor = newStreamingProcessor ( 
+			FakeNeo4jDriver.newProvider ( FakeNeo4jDriver.newDriver ( ( query, params ) -> 
+			{
+				if ( query.startsWith ( "SHOW TRANSACTIONS" ) ) return List.of ( Map.of ( "transactionId", "test-tx-1" ) );
+				if ( query.startsWith ( "TERMINATE TRANSACTIONS" ) ) {
+					terminated.countDown ();
+					return List.of ();
+				}
+				return blockingRows;
+			}))
+		);
+		processor.setQueryTimeoutMs ( 300 );
+
+		Map<ONDEXConcept, List<EvidencePathNode>> result = new HashMap<> ();
+		TraversalContext context = new TraversalContext ( new CyTraverserPerformanceTracker () );
+		context.start ( graph, result, 1 );
+
+		// Would throw GenericNeo4jException, if the failure wasn't recognised as a timeout
+		long start = System.currentTimeMillis ();
+		processor.queryJob ( context, List.of ( gene ) );
+
+		assertTrue ( "Query not cancelled by the watchdog!", System.currentTimeMillis () - start < 3000 );
+		assertEquals ( "Query not terminated on the server!", 0, terminated.getCount () );
+		assertEquals ( "Transaction not released!", openTxs, CypherClient.getOpenTransactions () );
+		assertEquals ( "Batch timeout not counted!", 1, processor.getTimeoutCount () );
+		assertEquals ( "Batch timeout not tracked!", 
+			List.of ( gene ), context.getPerformanceTracker ().getTimedOutQueries ().get ( QUERY ) 
+		);
+		assertTrue ( "Results from a timed out batch!", result.isEmpty () );
+	}
+
+	/**
+	 * The retried halves of a timed out batch don't shrink the concurrency limit, only the original batches do.
+	 */
+	@Test
+	public void testRetryTimeoutNoPenalty ()
+	{
+		ONDEXGraph graph = graphResource.getGraph ();
+		ONDEXConcept gene = graph.getConcepts ().iterator ().next ();
+
+		SinglePathQueryProcessor processor = newStreamingProcessor ( FakeNeo4jDriver.newProvider ( 
+			FakeNeo4jDriver.newDriver ( ( query, params ) -> { 
+				throw new ClientException ( "Neo.ClientError.Transaction.TransactionTimedOut", "Test timeout" ); 
+			})
+		));
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter ( 1, 10 );
+		processor.setConcurrencyLimiter ( limiter );
+
+		processor.queryJob ( newContext ( graph ), List.of ( gene ), true );
+		assertEquals ( "Batch not timed out!", 1, processor.getTimeoutCount () );
+		assertEquals ( "Concurrency limit changed by a retry!", 10, limiter.getLimit () );
+
+		processor.queryJob ( newContext ( graph ), List.of ( gene ), false );
+		assertEquals ( "Batch not timed out!", 2, processor.getTimeoutCount () );
+		assertTrue ( "Concurrency limit not changed by a regular batch!", limiter.getLimit () < 10 );
+	}
+
+	private void checkNoHedge ( SinglePathQueryProcessor processor )
+	{
+		QueryAttempt<String> primary = new QueryAttempt<> ( new PagedCyPathFinder<> () );
+		AtomicInteger nattempts = new AtomicInteger ();
+		
+		QueryAttempt<String> winner = processor.hedgedQuery ( newContext ( graphResource.getGraph () ), primary, attempt -> 
+		{
+			nattempts.incrementAndGet ();
+			Uninterruptibles.sleepUninterruptibly ( 300, TimeUnit.MILLISECONDS );
+			attempt.paths.add ( "primary" );
+		});
+		
+		assertSame ( "Primary didn't win!", primary, winner );
+		assertEquals ( "Hedge issued!", 1, nattempts.get () );
+	}
+	
+
+	/**
+	 * A processor that queries the provider in streaming mode, with no result cache.
+	 */
+	private static SinglePathQueryProcessor newStreamingProcessor ( CypherClientProvider provider )
+	{
+		SinglePathQueryProcessor result = new SinglePathQueryProcessor ()
+		{
+			@Override
+			public <P> PagedCyPathFinder<P> getCyPathFinder () 
+			{
+				PagedCyPathFinder<P> finder = new PagedCyPathFinder<> ();
+				finder.setCypherClientProvider ( provider );
+				finder.setQueryPagingMode ( PagedCyPathFinder.PagingMode.STREAMING.name () );
+				return finder;
+			}
+		};
+		result.setPathQuery ( QUERY );
+		result.setResultCache ( new TraversalResultCache () );
+		return result;
+	}
+
+	/**
+	 * A processor that is ready to hedge, with a hedge delay of about 10ms. 
+	 */
+	private static SinglePathQueryProcessor newHedgingProcessor ( 
+		AdaptiveConcurrencyLimiter limiter, HedgingBudget budget 
+	)
+	{
+		SinglePathQueryProcessor result = new SinglePathQueryProcessor () 
+		{
+			@Override
+			public <P> PagedCyPathFinder<P> getCyPathFinder () {
+				return new PagedCyPathFinder<> ();
+			}
+		};
+		result.setPathQuery ( QUERY );
+		result.setConcurrencyLimiter ( limiter );
+		result.setJobDispatcher ( new QueryJobDispatcher ( 
+			QueryJobDispatcher.ExecutorMode.PLATFORM, limiter, 1, 10, 1, "testHedging" 
+		));
+		result.setHedgingBudget ( budget );
+		for ( int i = 0; i < 20; i++ ) result.getBatchTimes ().record ( 10 );
+		return result;
+	}
+	
+	private static void waitCancellation ( QueryAttempt<?> attempt, long timeoutMs )
+	{
+		for ( long start = System.currentTimeMillis (); System.currentTimeMillis () - start < timeoutMs; )
+		{
+			if ( attempt.pathsItr.isCancelled () ) return;
+			Uninterruptibles.sleepUninterruptibly ( 10, TimeUnit.MILLISECONDS );
+		}
+	}
+
+	private static SinglePathQueryProcessor newCoalescingProcessor ( InFlightQueryRegistry registry )
+	{
+		SinglePathQueryProcessor result = new SinglePathQueryProcessor ();
+		result.setPathQuery ( QUERY );
+		result.setQueryCoalescing ( true );
+		result.setInFlightRegistry ( registry );
+		return result;
+	}
+
+	private static TraversalContext newContext ( ONDEXGraph graph )
+	{
+		TraversalContext result = new TraversalContext ( new CyTraverserPerformanceTracker () );
+		result.start ( graph, new HashMap<> (), 1 );
+		return result;
+	}
+
+	private static String getIri ( ONDEXGraph graph, ONDEXEntity entity ) {
+		return (String) ONDEXGraphUtils.getAttribute ( graph, entity, "iri" ).getValue ();
+	}
+}
@@ -0,0 +1,183 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link TraversalResultCache}.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class TraversalResultCacheTest
+{
+	private static final long QUERY_HASH = TraversalResultCache.queryHash ( "MATCH path = (g:Gene) RETURN path" );
+	
+	@Test
+	public void testPersistence () throws IOException
+	{
+		String dir = newCacheDir ();
+
+		TraversalResultCache cache = new TraversalResultCache ( dir, 1, "v1" );
+		cache.open ( null );
+		cache.put ( QUERY_HASH, 1, List.of ( new int[] { 1, 10, 2 }, new int[] { 1, 11, 3, 12, 4 } ) );
+		cache.put ( QUERY_HASH, 2, List.of () );
+		cache.close ();
+		
+		cache = new TraversalResultCache ( dir, 1, "v1" );
+		cache.open ( null );
+		
+		List<int[]> paths = cache.get ( QUERY_HASH, 1 );
+		assertNotNull ( "Cached paths not found!", paths );
+		assertEquals ( "Wrong no. of cached paths!", 2, paths.size () );
+		assertArrayEquals ( "Wrong cached path!", new int[] { 1, 11, 3, 12, 4 }, paths.get ( 1 ) );
+		
+		assertTrue ( "Empty result not cached!", cache.get ( QUERY_HASH, 2 ).isEmpty () );
+		assertNull ( "Wrong result for a missing gene!", cache.get ( QUERY_HASH, 3 ) );
+		assertNull ( "Wrong result for a missing query!", cache.get ( QUERY_HASH + 1, 1 ) );
+	}
+	
+	@Test
+	public void testVersionChange () throws IOException
+	{
+		String dir = newCacheDir ();
+
+		TraversalResultCache cache = new TraversalResultCache ( dir, 1, "v1" );
+		cache.open ( null );
+		cache.put ( QUERY_HASH, 1, List.of ( new int[] { 1, 10, 2 } ) );
+		cache.close ();
+
+		cache = new TraversalResultCache ( dir, 1, "v2" );
+		cache.open ( null );
+		assertNull ( "Cache not invalidated by the new version!", cache.get ( QUERY_HASH, 1 ) );
+	}
+	
+	@Test
+	public void testEviction () throws IOException
+	{
+		TraversalResultCache cache = new TraversalResultCache ( newCacheDir (), 1, "v1" );
+		cache.open ( null );
+		
+		// Each is about 1k, so the oldest ones are evicted after about 1MB
+		int[] path = new int [ 250 ];
+		for ( int gene = 0; gene < 2000; gene++ )
+			cache.put ( QUERY_HASH, gene, List.of ( path ) );
+		
+		assertNull ( "Old entry not evicted!", cache.get ( QUERY_HASH, 0 ) );
+		assertNotNull ( "New entry not found!", cache.get ( QUERY_HASH, 1999 ) );
+	}
+	
+	/**
+	 * Many workers storing at the same time, with evictions in between, mustn't mix up the entries.
+	 */
+	@Test
+	public void testConcurrentPuts () throws Exception
+	{
+		TraversalResultCache cache = new TraversalResultCache ( newCacheDir (), 1, "v1" );
+		cache.open ( null );
+		
+		int nthreads = 8, ngenes = 500;
+		ExecutorService executor = Executors.newFixedThreadPool ( nthreads );
+		try
+		{
+			List<Future<?>> jobs = new ArrayList<> ();
+			for ( int t = 0; t < nthreads; t++ )
+			{
+				int thread = t;
+				jobs.add ( executor.submit ( () -> 
+				{
+					// Each gene has paths of its own length and content, so that we can verify them. The total is
+					// about 2.5MB, so there are evictions
+					for ( int gene = thread * ngenes; gene < ( thread + 1 ) * ngenes; gene++ )
+						cache.put ( QUERY_HASH, gene, List.of ( newPath ( gene ) ) );
+				}));
+			}
+			for ( Future<?> job: jobs ) job.get ();
+		}
+		finally {
+			executor.shutdownNow ();
+		}
+		
+		int nfound = 0;
+		for ( int gene = 0; gene < nthreads * ngenes; gene++ )
+		{
+			List<int[]> paths = cache.get ( QUERY_HASH, gene );
+			if ( paths == null ) continue; // evicted
+			nfound++;
+			assertEquals ( "Wrong no. of paths for the gene " + gene + "!", 1, paths.size () );
+			assertArrayEquals ( "Wrong path for the gene " + gene + "!", newPath ( gene ), paths.get ( 0 ) );
+		}
+		assertTrue ( "No entry left!", nfound > 0 );
+		assertTrue ( "No eviction!", nfound < nthreads * ngenes );
+	}
+	
+	@Test
+	public void testRemove () throws IOException
+	{
+		String dir = newCacheDir ();
+		
+		TraversalResultCache cache = new TraversalResultCache ( dir, 1, "v1" );
+		cache.open ( null );
+		cache.put ( QUERY_HASH, 1, List.of ( new int[] { 1, 10, 2 } ) );
+		cache.put ( QUERY_HASH, 2, List.of ( new int[] { 2, 11, 3 } ) );
+		// A newer copy, the older one must not come back after the removal
+		cache.put ( QUERY_HASH, 1, List.of ( new int[] { 1, 12, 4 } ) );
+		
+		cache.remove ( QUERY_HASH, 1 );
+		assertNull ( "Entry not removed!", cache.get ( QUERY_HASH, 1 ) );
+		assertNotNull ( "Wrong entry removed!", cache.get ( QUERY_HASH, 2 ) );
+		
+		// The removal is persisted
+		cache.close ();
+		cache = new TraversalResultCache ( dir, 1, "v1" );
+		cache.open ( null );
+		assertNull ( "Removed entry back after reopening!", cache.get ( QUERY_HASH, 1 ) );
+		assertNotNull ( "Entry lost after a removal!", cache.get ( QUERY_HASH, 2 ) );
+		
+		// New entries for the same key are fine
+		cache.put ( QUERY_HASH, 1, List.of ( new int[] { 1, 13, 5 } ) );
+		cache.close ();
+		cache = new TraversalResultCache ( dir, 1, "v1" );
+		cache.open ( null );
+		assertArrayEquals ( "Wrong entry after a removal!", new int[] { 1, 13, 5 }, cache.get ( QUERY_HASH, 1 ).get ( 0 ) );
+	}
+	
+	@Test ( expected = IllegalArgumentException.class )
+	public void testMissingVersion () throws IOException
+	{
+		new TraversalResultCache ( newCacheDir (), 1, null ).open ( null );
+	}
+	
+	private static int[] newPath ( int gene )
+	{
+		int[] result = new int [ 50 + gene % 200 ];
+		Arrays.fill ( result, gene );
+		return result;
+	}
+	
+	/**
+	 * A new cache directory under target/, which is deleted when the JVM exits. This is used by other tests too.
+	 */
+	static String newCacheDir () throws IOException
+	{
+		File dir = Files.createTempDirectory ( new File ( "target" ).toPath (), "traversal-cache-" ).toFile ();
+		dir.deleteOnExit ();
+		return dir.getAbsolutePath ();
+	}
+}
@@ -0,0 +1,153 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.genesearch.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rothamsted.knetminer.backend.cypher.FakeNeo4jDriver;
+
+/**
+ * Unit tests for {@link TraverserMetrics}, which use a {@link PathQueryProcessor} with a fixed set of queries.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class TraverserMetricsTest
+{
+	private static final String QUERY =
+		"MATCH path = (g:Gene)\n  WHERE g.iri IN $startGeneIris\n  AND g.name <> \"foo\\\\bar\"\nRETURN path";
+
+	private SinglePathQueryProcessor queryProc;
+	private TraverserMetrics metrics;
+
+	@Before
+	public void initMetrics ()
+	{
+		queryProc = new SinglePathQueryProcessor ();
+		queryProc.setPathQuery ( QUERY );
+		for ( long t: new long[] { 10, 20, 30 } ) queryProc.getBatchTimes ().record ( t );
+
+		QueryJobDispatcher dispatcher = new QueryJobDispatcher ( 1, 10, 1, "testTraverserMetrics" );
+		PathQueryProcessor processor = new PathQueryProcessor ()
+		{
+			@Override
+			Collection<SinglePathQueryProcessor> getQueryProcessors () {
+				return List.of ( queryProc );
+			}
+
+			@Override
+			QueryJobDispatcher getDispatcher () {
+				return dispatcher;
+			}
+		};
+		metrics = new TraverserMetrics ( processor, FakeNeo4jDriver.newProvider ( FakeNeo4jDriver.newDriver () ) );
+	}
+
+	@After
+	public void closeMetrics () {
+		metrics.close ();
+	}
+
+
+	@Test
+	public void testEscapeLabel ()
+	{
+		assertEquals (
+			"Wrong escaped label!",
+			"MATCH (g) WHERE g.name = \\\"a\\\\b\\\" RETURN g",
+			TraverserMetrics.escapeLabel ( "  MATCH (g)\n\tWHERE g.name = \"a\\b\"\n  RETURN g\n" )
+		);
+	}
+
+	@Test
+	public void testPrometheusText ()
+	{
+		String text = metrics.getPrometheusText ();
+		String queryId = queryProc.getQueryId ();
+
+		// Every line is either a comment or a sample with a numeric value
+		for ( String line: text.split ( "\n" ) )
+			assertTrue (
+				"Bad Prometheus line: " + line,
+				line.matches ( "# (HELP|TYPE) knetminer_traverser_\\w+ .+" )
+				|| line.matches ( "knetminer_traverser_\\w+(\\{(\\w+=\"([^\"\\\\\\n]|\\\\.)*\",?)+\\})? -?[0-9.E]+" )
+			);
+
+		assertTrue ( "No type for the batch times!", text.contains ( "# TYPE knetminer_traverser_query_batch_time_ms summary\n" ) );
+		assertTrue ( "No query info!", text.contains (
+			"knetminer_traverser_query_info{query=\"" + queryId + "\",cypher=\""
+				+ "MATCH path = (g:Gene) WHERE g.iri IN $startGeneIris AND g.name <> \\\"foo\\\\\\\\bar\\\" RETURN path\"} 1\n"
+		));
+		assertTrue ( "No batch count!", text.contains (
+			"knetminer_traverser_query_batch_time_ms_count{query=\"" + queryId + "\"} 3\n"
+		));
+		assertTrue ( "No batch time sum!", text.contains (
+			"knetminer_traverser_query_batch_time_ms_sum{query=\"" + queryId + "\"} 60\n"
+		));
+		assertTrue ( "No batch time median!", text.contains (
+			"knetminer_traverser_query_batch_time_ms{query=\"" + queryId + "\",quantile=\"0.5\"} 20\n"
+		));
+		assertTrue ( "No queued jobs!", text.contains ( "knetminer_traverser_queued_jobs{lane=\"bulk\"} 0\n" ) );
+		assertTrue ( "No active traversals!", text.contains ( "knetminer_traverser_active_traversals 0\n" ) );
+	}
+
+	@Test
+	public void testHttpEndpoint () throws IOException
+	{
+		assertTrue ( "Endpoint not started!", metrics.startHttpEndpoint ( "127.0.0.1", 0 ) );
+		InetSocketAddress address = metrics.getHttpAddress ();
+		assertTrue ( "Endpoint not on the loopback interface!", address.getAddress ().isLoopbackAddress () );
+
+		URL url = new URL ( "http://127.0.0.1:" + address.getPort () + TraverserMetrics.HTTP_PATH );
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection ();
+		try ( InputStream in = conn.getInputStream () )
+		{
+			assertEquals ( "Wrong HTTP status!", 200, conn.getResponseCode () );
+			assertTrue ( "Wrong content type!", conn.getContentType ().startsWith ( "text/plain; version=0.0.4" ) );
+			assertEquals (
+				"Wrong HTTP body!", metrics.getPrometheusText (), new String ( in.readAllBytes (), StandardCharsets.UTF_8 )
+			);
+		}
+
+		conn = (HttpURLConnection) url.openConnection ();
+		conn.setRequestMethod ( "DELETE" );
+		assertEquals ( "Non-GET method accepted!", 405, conn.getResponseCode () );
+	}
+
+	/**
+	 * A busy port is reported, but it doesn't stop the application.
+	 */
+	@Test
+	public void testBusyPort ()
+	{
+		assertTrue ( "Endpoint not started!", metrics.startHttpEndpoint ( "127.0.0.1", 0 ) );
+		int port = metrics.getHttpAddress ().getPort ();
+
+		TraverserMetrics metrics1 = new TraverserMetrics (
+			new PathQueryProcessor (), FakeNeo4jDriver.newProvider ( FakeNeo4jDriver.newDriver () )
+		);
+		try
+		{
+			assertFalse ( "Busy port not reported!", metrics1.startHttpEndpoint ( "127.0.0.1", port ) );
+			assertNull ( "Endpoint started on a busy port!", metrics1.getHttpAddress () );
+		}
+		finally {
+			metrics1.close ();
+		}
+	}
+}
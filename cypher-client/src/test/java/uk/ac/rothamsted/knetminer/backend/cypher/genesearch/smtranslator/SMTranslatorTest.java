@@ -42,7 +42,8 @@ public class SMTranslatorTest
 			new String [] {	
 				"gene_1:Gene",
 				"(bioProc_3:BioProc)",
-				"- [part_of_3_5:part_of] - (path_5:Path)"
+				"- [part_of_3_5:part_of] - (path_5:Path)",
+				"RETURN [pathNode IN nodes(path) | pathNode.iri] AS pathNodeKeys"
 			}
 		);
 	}
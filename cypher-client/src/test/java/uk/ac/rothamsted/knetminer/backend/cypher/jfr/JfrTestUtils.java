@@ -0,0 +1,47 @@
+package uk.ac.rothamsted.knetminer.backend.cypher.jfr;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Utilities to test the emission of the JFR events in this package.
+ *
+ * @author agent
+ * <dl><dt>Date:</dt><dd>16 Oct 2026</dd></dl>
+ *
+ */
+public class JfrTestUtils
+{
+	private JfrTestUtils () {
+	}
+
+	/**
+	 * Runs the action while JFR records the named events, plus the ones that are enabled by default, and returns 
+	 * what was recorded.
+	 */
+	public static List<RecordedEvent> recordEvents ( Runnable action, String... eventNames ) throws IOException
+	{
+		try ( Recording recording = new Recording () )
+		{
+			for ( String eventName: eventNames ) recording.enable ( eventName );
+			recording.start ();
+			action.run ();
+			recording.stop ();
+
+			Path dumpPath = Files.createTempFile ( "jfr-test-", ".jfr" );
+			try {
+				recording.dump ( dumpPath );
+				return RecordingFile.readAllEvents ( dumpPath );
+			}
+			finally {
+				Files.deleteIfExists ( dumpPath );
+			}
+		}
+	}
+}